@@ -178,6 +178,28 @@ public interface CacheControl {
      */
     void flush(CellRegion region);
 
+    /**
+     * Loads into the cell cache the cells that correspond to measures in a
+     * cube and to a given region, which has typically just been added to
+     * the fact table, without discarding existing segments.
+     *
+     * <p>Intended for fact tables that are partitioned by time and grow by
+     * appending rows, one day (say) at a time. The region is usually the
+     * crossjoin of a cube's measures with the member for the new day. A
+     * segment that has a column for every level of that member, and no
+     * compound predicates, is kept; Mondrian issues a SQL statement for just
+     * the cells of the region and merges them into the segment, adding a
+     * value to the segment's axis. Other segments that intersect the region,
+     * for example those that are rolled up to the year, are flushed as if
+     * by {@link #flush(CellRegion)}.</p>
+     *
+     * <p>While the method is executing, queries for cells in the region read
+     * from the database. Once it returns, they are answered from cache.</p>
+     *
+     * @param region a region
+     */
+    void append(CellRegion region);
+
     /**
      * Prints the state of the cell cache as it pertains to a given region.
      * @param pw the output target
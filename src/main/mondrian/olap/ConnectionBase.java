@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2001-2005 Julian Hyde
-// Copyright (C) 2005-2011 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.olap;
@@ -80,7 +80,28 @@ public abstract class ConnectionBase implements Connection {
         FunTable funTable,
         boolean strictValidation)
     {
-        MdxParserValidator parser = createParser();
+        return parseStatement(
+            statement, query, funTable, strictValidation, createParser());
+    }
+
+    /**
+     * Parses a query using a given parser.
+     *
+     * @param statement Evaluation context
+     * @param query MDX query
+     * @param funTable Customized function table, or null to use the schema's
+     * @param strictValidation If true, do not ignore invalid members
+     * @param parser Parser
+     * @return Query the corresponding Query object if parsing is successful
+     * @throws MondrianException if parsing fails
+     */
+    protected QueryPart parseStatement(
+        Statement statement,
+        String query,
+        FunTable funTable,
+        boolean strictValidation,
+        MdxParserValidator parser)
+    {
         boolean debug = false;
 
         if (funTable == null) {
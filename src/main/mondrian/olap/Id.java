@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 1998-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.olap;
@@ -108,11 +108,9 @@ public class Id
             }
         }
         final Exp element =
-            Util.lookup(
-                validator.getQuery(),
+            validator.getQuery().lookupId(
                 validator.getSchemaReader().withLocus(),
-                segments,
-                true);
+                segments);
 
         if (element == null) {
             return null;
@@ -63,6 +63,10 @@ import java.util.*;
  */
 public class Query extends QueryPart {
 
+    private static final String PARSE_TIMING_NAME = "Parse";
+    private static final String VALIDATE_TIMING_NAME = "Validate";
+    private static final String COMPILE_TIMING_NAME = "Compile";
+
     private Formula[] formulas;
 
     /**
@@ -135,7 +139,8 @@ public class Query extends QueryPart {
     private ResultStyle resultStyle =
         Util.Retrowoven ? ResultStyle.LIST : ResultStyle.ITERABLE;
 
-    private Map<String, Object> evalCache = new HashMap<String, Object>();
+    private Map<String, Object> evalCache =
+        Collections.synchronizedMap(new HashMap<String, Object>());
 
     /**
      * List of aliased expressions defined in this query, and where they are
@@ -146,6 +151,22 @@ public class Query extends QueryPart {
         new ArrayList<ScopedNamedSet>();
     private boolean ownStatement;
 
+    /**
+     * Durations, in milliseconds, of the phases that prepared this query for
+     * execution. Reported to each execution's {@link QueryTiming}; see
+     * {@link #markPreparation(QueryTiming)}.
+     */
+    private long parseDuration;
+    private long validateDuration;
+    private long compileDuration;
+
+    /**
+     * Elements of the schema that identifiers in this query resolved to,
+     * shared by all queries created from the same template; or null. See
+     * {@link QueryPlanCache}.
+     */
+    private final Map<String, OlapElement> resolvedIds;
+
     /**
      * Creates a Query.
      */
@@ -157,6 +178,25 @@ public class Query extends QueryPart {
         QueryAxis slicerAxis,
         QueryPart[] cellProps,
         boolean strictValidation)
+    {
+        this(
+            statement, formulas, axes, cube, slicerAxis, cellProps,
+            strictValidation, null);
+    }
+
+    /**
+     * Creates a Query that shares the resolutions of its identifiers with
+     * other queries created from the same template.
+     */
+    Query(
+        Statement statement,
+        Formula[] formulas,
+        QueryAxis[] axes,
+        String cube,
+        QueryAxis slicerAxis,
+        QueryPart[] cellProps,
+        boolean strictValidation,
+        Map<String, OlapElement> resolvedIds)
     {
         this(
             statement,
@@ -166,7 +206,8 @@ public class Query extends QueryPart {
             slicerAxis,
             cellProps,
             new Parameter[0],
-            strictValidation);
+            strictValidation,
+            resolvedIds);
     }
 
     /**
@@ -181,6 +222,22 @@ public class Query extends QueryPart {
         QueryPart[] cellProps,
         Parameter[] parameters,
         boolean strictValidation)
+    {
+        this(
+            statement, mdxCube, formulas, axes, slicerAxis, cellProps,
+            parameters, strictValidation, null);
+    }
+
+    private Query(
+        Statement statement,
+        Cube mdxCube,
+        Formula[] formulas,
+        QueryAxis[] axes,
+        QueryAxis slicerAxis,
+        QueryPart[] cellProps,
+        Parameter[] parameters,
+        boolean strictValidation,
+        Map<String, OlapElement> resolvedIds)
     {
         this.statement = statement;
         this.cube = mdxCube;
@@ -196,6 +253,7 @@ public class Query extends QueryPart {
         this.nativeCrossJoinVirtualCube = true;
         this.strictValidation = strictValidation;
         this.alertedNonNativeFunDefs = new HashSet<FunDef>();
+        this.resolvedIds = resolvedIds;
         statement.setQuery(this);
         resolve();
 
@@ -445,14 +503,43 @@ public class Query extends QueryPart {
      * tree in any way.
      */
     public void resolve() {
+        final long start = System.currentTimeMillis();
         final Validator validator = createValidator();
         resolve(validator); // resolve self and children
+        final long validated = System.currentTimeMillis();
         // Create a dummy result so we can use its evaluator
         final Evaluator evaluator = RolapUtil.createEvaluator(statement);
         ExpCompiler compiler =
             createCompiler(
                 evaluator, validator, Collections.singletonList(resultStyle));
         compile(compiler);
+        validateDuration = validated - start;
+        compileDuration = System.currentTimeMillis() - validated;
+    }
+
+    /**
+     * Records that this query has been parsed. The time spent parsing is the
+     * time since parsing started, less the time spent validating and
+     * compiling, which happen while the query is being created.
+     *
+     * @param startMillis Time that parsing started
+     */
+    public void markParsed(long startMillis) {
+        parseDuration =
+            System.currentTimeMillis() - startMillis
+            - validateDuration - compileDuration;
+    }
+
+    /**
+     * Reports the time spent parsing, validating and compiling this query to
+     * the timing of an execution.
+     *
+     * @param timing Query timing of an execution of this query
+     */
+    public void markPreparation(QueryTiming timing) {
+        timing.markFull(PARSE_TIMING_NAME, parseDuration);
+        timing.markFull(VALIDATE_TIMING_NAME, validateDuration);
+        timing.markFull(COMPILE_TIMING_NAME, compileDuration);
     }
 
     /**
@@ -1318,6 +1405,62 @@ public class Query extends QueryPart {
         return compiler;
     }
 
+    /**
+     * Converts an identifier into an expression, as
+     * {@link Util#lookup(Query, SchemaReader, List, boolean)} does.
+     *
+     * <p>If this query was created by a {@link QueryPlanCache}, and the
+     * identifier has resolved to an element of the schema in a query created
+     * from the same template, returns that element without looking it up.
+     * Identifiers that resolve to elements that belong to a query, such as
+     * calculated members and named sets, are looked up every time; and so
+     * are all identifiers in a query that uses aliases ('expr AS alias'),
+     * because what an identifier resolves to depends on where it is used.
+     *
+     * @param schemaReader Schema reader
+     * @param segments Parts of the identifier
+     * @return OLAP object or property reference
+     */
+    Exp lookupId(SchemaReader schemaReader, List<Id.Segment> segments) {
+        if (resolvedIds == null || !scopedNamedSets.isEmpty()) {
+            return Util.lookup(this, schemaReader, segments, true);
+        }
+        final String name = Util.quoteMdxIdentifier(segments);
+        OlapElement element = resolvedIds.get(name);
+        if (element != null) {
+            addMeasuresMembers(element);
+            return Util.createExpr(element);
+        }
+        final Exp exp = Util.lookup(this, schemaReader, segments, true);
+        element = getSchemaElement(exp);
+        if (element != null) {
+            resolvedIds.put(name, element);
+        }
+        return exp;
+    }
+
+    /**
+     * Returns the element of the schema that an expression refers to, or null
+     * if it does not refer to one. A calculated member defined in a query, or
+     * the null member that an invalid member resolves to, does not count.
+     */
+    private static OlapElement getSchemaElement(Exp exp) {
+        if (exp instanceof MemberExpr) {
+            final Member member = ((MemberExpr) exp).getMember();
+            return member.isCalculatedInQuery() || member.isNull()
+                ? null
+                : member;
+        } else if (exp instanceof LevelExpr) {
+            return ((LevelExpr) exp).getLevel();
+        } else if (exp instanceof HierarchyExpr) {
+            return ((HierarchyExpr) exp).getHierarchy();
+        } else if (exp instanceof DimensionExpr) {
+            return ((DimensionExpr) exp).getDimension();
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Keeps track of references to members of the measures dimension
      *
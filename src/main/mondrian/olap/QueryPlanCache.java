@@ -0,0 +1,368 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.olap;
+
+import mondrian.parser.JavaccParserValidatorImpl;
+import mondrian.parser.MdxParserValidator;
+import mondrian.server.Statement;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the parse trees of MDX queries, and of what their identifiers
+ * resolve to, belonging to a schema.
+ *
+ * <p>If {@link MondrianProperties#QueryPlanCacheMaxSize} is positive, the
+ * first time that the text of a query is parsed for a given role, a template
+ * is made from its parse tree. When a statement of a connection with the same
+ * role parses the same text again, the query is created from a copy of the
+ * template, without running the parser.
+ *
+ * <p>The template also records the elements of the schema (members, levels,
+ * hierarchies and dimensions) that the identifiers in the query resolved to.
+ * When a query created from the template is validated, those identifiers are
+ * bound to the same elements without looking them up again, which for
+ * members may mean reading the member cache or executing SQL. See
+ * {@link Query#lookupId}.
+ *
+ * <p>Everything else is created afresh for each query, by validating and
+ * compiling it as usual: the calculated members and named sets that it
+ * defines, and the parameters whose slots hold its parameter values. Those
+ * objects belong to one query and must not be shared with concurrent queries.
+ *
+ * <p>The elements that an identifier resolves to depend on the role, so a
+ * template is made for each role. Templates are removed when their schema is
+ * flushed, or when members of their schema are flushed or edited using
+ * {@link CacheControl}.
+ *
+ * <p>Queries whose text differs only in white space and comments share a
+ * template; see {@link #normalize(String)}. When the cache is full, the least
+ * recently used template is removed.
+ *
+ * @author agent
+ */
+public class QueryPlanCache {
+    private final Map<List<Object>, Template> map =
+        new LinkedHashMap<List<Object>, Template>(16, 0.75f, true);
+
+    /**
+     * Returns whether the cache is enabled.
+     */
+    public static boolean isEnabled() {
+        return MondrianProperties.instance().QueryPlanCacheMaxSize.get() > 0;
+    }
+
+    /**
+     * Parses a statement, creating it from a template if the same text has
+     * been parsed before for the connection's role.
+     *
+     * @param connection Connection
+     * @param statement Statement
+     * @param mdx MDX text
+     * @param strictValidation If true, do not ignore invalid members
+     * @return Parse tree
+     */
+    public QueryPart parse(
+        ConnectionBase connection,
+        Statement statement,
+        String mdx,
+        boolean strictValidation)
+    {
+        final List<Object> key =
+            Arrays.<Object>asList(
+                normalize(mdx), strictValidation, connection.getRole());
+        final Template template = get(key);
+        if (template != null) {
+            try {
+                return template.instantiate(statement);
+            } catch (RuntimeException e) {
+                // Fall through and parse again, so that the error is
+                // reported as it would be without a cache.
+            }
+        }
+        final Recorder recorder = new Recorder();
+        final QueryPart queryPart =
+            connection.parseStatement(
+                statement, mdx, null, strictValidation, recorder);
+        if (recorder.template != null
+            && recorder.query == queryPart
+            && mdx.equals(recorder.queryString))
+        {
+            put(key, recorder.template);
+        }
+        return queryPart;
+    }
+
+    private synchronized Template get(List<Object> key) {
+        return map.get(key);
+    }
+
+    private synchronized void put(List<Object> key, Template template) {
+        final int maxSize =
+            MondrianProperties.instance().QueryPlanCacheMaxSize.get();
+        map.put(key, template);
+        final Iterator<List<Object>> iterator = map.keySet().iterator();
+        while (map.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes all templates.
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * Returns the number of templates in the cache.
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Normalizes the text of a query, so that queries that differ only in
+     * white space and comments have the same key. Outside quoted strings and
+     * identifiers, removes comments (recognized as {@link Scanner} does),
+     * removes leading and trailing white space, and replaces each run of
+     * white space and comments with a single space.
+     *
+     * @param mdx MDX text
+     * @return Normalized text
+     */
+    static String normalize(String mdx) {
+        final StringBuilder buf = new StringBuilder(mdx.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < mdx.length(); i++) {
+            final char c = mdx.charAt(i);
+            if (quote == 0) {
+                if (Character.isWhitespace(c)) {
+                    space = true;
+                    continue;
+                }
+                final int end = skipComment(mdx, i);
+                if (end > i) {
+                    space = true;
+                    i = end - 1;
+                    continue;
+                }
+            }
+            if (space && buf.length() > 0) {
+                buf.append(' ');
+            }
+            space = false;
+            buf.append(c);
+            if (quote == 0) {
+                switch (c) {
+                case '\'':
+                case '"':
+                    quote = c;
+                    break;
+                case '[':
+                    quote = ']';
+                    break;
+                }
+            } else if (c == quote) {
+                if (i + 1 < mdx.length() && mdx.charAt(i + 1) == quote) {
+                    // Escaped quote ('', "" or ]]); still quoted.
+                    buf.append(mdx.charAt(++i));
+                } else {
+                    quote = 0;
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * If a comment starts at a given position in a query, returns the
+     * position after its end; otherwise returns the given position.
+     *
+     * @param mdx MDX text
+     * @param start Position
+     * @return Position after comment, or start if there is no comment
+     */
+    private static int skipComment(String mdx, int start) {
+        for (String[] delims : Scanner.getCommentDelimiters()) {
+            if (!mdx.startsWith(delims[0], start)) {
+                continue;
+            }
+            if (delims[1] == null) {
+                // Comment ends at the end of the line.
+                final int end = mdx.indexOf('\n', start);
+                return end < 0 ? mdx.length() : end;
+            }
+            int depth = 1;
+            int i = start + delims[0].length();
+            while (i < mdx.length()) {
+                if (mdx.startsWith(delims[1], i)) {
+                    i += delims[1].length();
+                    if (--depth == 0) {
+                        return i;
+                    }
+                } else if (Scanner.getNestedCommentsState()
+                    && mdx.startsWith(delims[0], i))
+                {
+                    i += delims[0].length();
+                    ++depth;
+                } else {
+                    ++i;
+                }
+            }
+            // End of text ends a comment.
+            return mdx.length();
+        }
+        return start;
+    }
+
+    /**
+     * Parse tree of a query, before identifiers are resolved, and the elements
+     * of the schema that its identifiers resolved to.
+     */
+    private static class Template {
+        private final Formula[] formulas;
+        private final QueryAxis[] axes;
+        private final String cube;
+        private final Exp slicer;
+        private final QueryPart[] cellProps;
+        private final boolean strictValidation;
+        private final Map<String, OlapElement> resolvedIds =
+            new ConcurrentHashMap<String, OlapElement>();
+
+        /**
+         * Creates a Template. The arguments are copied, because the query
+         * that is created from them resolves them in place.
+         */
+        Template(
+            Formula[] formulas,
+            QueryAxis[] axes,
+            String cube,
+            Exp slicer,
+            QueryPart[] cellProps,
+            boolean strictValidation)
+        {
+            this.formulas = Formula.cloneArray(formulas);
+            this.axes = QueryAxis.cloneArray(axes);
+            this.cube = cube;
+            this.slicer = slicer == null ? null : slicer.clone();
+            this.cellProps = cellProps;
+            this.strictValidation = strictValidation;
+        }
+
+        /**
+         * Creates a query from a copy of this template.
+         *
+         * @param statement Statement
+         * @return Validated and compiled query
+         */
+        Query instantiate(Statement statement) {
+            return makeQuery(
+                statement,
+                Formula.cloneArray(formulas),
+                QueryAxis.cloneArray(axes),
+                slicer == null ? null : slicer.clone());
+        }
+
+        /**
+         * Creates a query from a parse tree, recording what its identifiers
+         * resolve to in this template, and using what they resolved to in
+         * earlier queries.
+         *
+         * @param statement Statement
+         * @param formulas Formulas; resolved in place
+         * @param axes Axes; resolved in place
+         * @param slicer Slicer expression, or null; resolved in place
+         * @return Validated and compiled query
+         */
+        Query makeQuery(
+            Statement statement,
+            Formula[] formulas,
+            QueryAxis[] axes,
+            Exp slicer)
+        {
+            final QueryAxis slicerAxis =
+                slicer == null
+                    ? null
+                    : new QueryAxis(
+                        false, slicer, AxisOrdinal.StandardAxisOrdinal.SLICER,
+                        QueryAxis.SubtotalVisibility.Undefined, new Id[0]);
+            return new Query(
+                statement, formulas, axes, cube, slicerAxis, cellProps,
+                strictValidation, resolvedIds);
+        }
+    }
+
+    /**
+     * Parser that records the template of the query it creates.
+     *
+     * <p>If the parser is called more than once (for instance, if the
+     * connection retries a failed query using a different text), or creates
+     * more than one query, the last call is recorded; the caller checks that
+     * its result is the query that was recorded, for the text it asked for.
+     */
+    private static class Recorder implements MdxParserValidator {
+        private final MdxParserValidator parser =
+            new JavaccParserValidatorImpl(
+                new Parser.FactoryImpl() {
+                    public Query makeQuery(
+                        Statement statement,
+                        Formula[] formulae,
+                        QueryAxis[] axes,
+                        String cube,
+                        Exp slicer,
+                        QueryPart[] cellProps,
+                        boolean strictValidation)
+                    {
+                        query = null;
+                        template =
+                            new Template(
+                                formulae, axes, cube, slicer, cellProps,
+                                strictValidation);
+                        query =
+                            template.makeQuery(
+                                statement, formulae, axes, slicer);
+                        return query;
+                    }
+                });
+        private String queryString;
+        private Template template;
+        private Query query;
+
+        public QueryPart parseInternal(
+            Statement statement,
+            String queryString,
+            boolean debug,
+            FunTable funTable,
+            boolean strictValidation)
+        {
+            this.queryString = queryString;
+            this.template = null;
+            this.query = null;
+            return parser.parseInternal(
+                statement, queryString, debug, funTable, strictValidation);
+        }
+
+        public Exp parseExpression(
+            Statement statement,
+            String queryString,
+            boolean debug,
+            FunTable funTable)
+        {
+            return parser.parseExpression(
+                statement, queryString, debug, funTable);
+        }
+    }
+}
+
+// End QueryPlanCache.java
@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2011 Pentaho and others
+// Copyright (C) 2011-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.olap;
@@ -22,7 +22,8 @@ import java.util.*;
  * {@link QueryTiming#markStart(String)}
  * before executing, and {@link QueryTiming#markEnd(String)} afterwards, or can
  * track execution times manually and call
- * {@link QueryTiming#markFull(String, long)}.
+ * {@link QueryTiming#markFull(String, long)}. Several threads may record
+ * timings for the same query; each has its own stack of timings in progress.
  *
  * <p>To read timing information, add a handler to the statement using
  * {@link mondrian.server.Statement#enableProfiling} and implement the
@@ -32,11 +33,13 @@ import java.util.*;
  */
 public class QueryTiming {
     private boolean enabled;
-    private final Stack<TimingInfo> currentTimings = new Stack<TimingInfo>();
+    /** Timings in progress in each thread that is working on the query. */
+    private ThreadLocal<Stack<TimingInfo>> currentTimings = newStacks();
     private final Map<String, List<StartEnd>> timings =
         new HashMap<String, List<StartEnd>>();
     private final Map<String, DurationCount> fullTimings =
         new HashMap<String, DurationCount>();
+    private final List<String> notes = new ArrayList<String>();
 
     /**
      * Initializes (or re-initializes) a query timing, also setting whether
@@ -46,9 +49,10 @@ public class QueryTiming {
      */
     public void init(boolean enabled) {
         this.enabled = enabled;
-        currentTimings.clear();
+        currentTimings = newStacks();
         timings.clear();
         fullTimings.clear();
+        notes.clear();
     }
 
     public void done() {
@@ -89,18 +93,45 @@ public class QueryTiming {
         }
     }
 
+    /**
+     * Records a note about a decision made while executing the Query, such
+     * as which aggregate table was chosen to answer a request.
+     *
+     * @param note Note
+     */
+    public final synchronized void markNote(String note) {
+        if (enabled) {
+            notes.add(note);
+        }
+    }
+
+    /**
+     * @return a list of the notes recorded during execution
+     */
+    public synchronized List<String> getNotes() {
+        return new ArrayList<String>(notes);
+    }
+
+    private static ThreadLocal<Stack<TimingInfo>> newStacks() {
+        return new ThreadLocal<Stack<TimingInfo>>() {
+            protected Stack<TimingInfo> initialValue() {
+                return new Stack<TimingInfo>();
+            }
+        };
+    }
+
     private void markStartInternal(String name) {
-        currentTimings.push(new TimingInfo(name));
+        currentTimings.get().push(new TimingInfo(name));
     }
 
-    private void markEndInternal(String name, long tstamp) {
-        if (currentTimings == null
-            || currentTimings.isEmpty()
-            || !currentTimings.peek().name.equals(name))
+    private synchronized void markEndInternal(String name, long tstamp) {
+        final Stack<TimingInfo> stack = currentTimings.get();
+        if (stack.isEmpty()
+            || !stack.peek().name.equals(name))
         {
             throw new IllegalStateException("end but no start for " + name);
         }
-        TimingInfo finished = currentTimings.pop();
+        TimingInfo finished = stack.pop();
         assert finished.name.equals(name);
         finished.markEnd(tstamp);
 
@@ -112,7 +143,7 @@ public class QueryTiming {
         timingList.add(new StartEnd(finished.startTime, finished.endTime));
     }
 
-    private void markFullInternal(String name, long duration) {
+    private synchronized void markFullInternal(String name, long duration) {
         DurationCount p = fullTimings.get(name);
         if (p == null) {
             p = new DurationCount();
@@ -122,7 +153,7 @@ public class QueryTiming {
         p.duration += duration;
     }
 
-    public String toString() {
+    public synchronized String toString() {
         StringBuilder sb = new StringBuilder();
         for (Map.Entry<String, List<StartEnd>> entry
             : timings.entrySet())
@@ -159,13 +190,19 @@ public class QueryTiming {
                 .append(entry.getValue().duration / entry.getValue().count)
                 .append("ms/invocation)");
         }
+        for (String note : getNotes()) {
+            if (sb.length() > 0) {
+                sb.append(Util.nl);
+            }
+            sb.append(note);
+        }
         return sb.toString();
     }
 
     /**
      * @return a collection of all Query component names
      */
-    public Collection<String> getTimingKeys() {
+    public synchronized Collection<String> getTimingKeys() {
         Set<String> keys = new HashSet<String>();
         keys.addAll(timings.keySet());
         keys.addAll(fullTimings.keySet());
@@ -176,7 +213,7 @@ public class QueryTiming {
      * @param key Name of the Query component to get timing information on
      * @return a List of durations
      */
-    public List<Long> getTimings(String key) {
+    public synchronized List<Long> getTimings(String key) {
         List<Long> timingList = new ArrayList<Long>();
         List<StartEnd> regTime = timings.get(key);
         if (regTime != null) {
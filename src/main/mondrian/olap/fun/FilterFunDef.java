@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2006-2011 Pentaho
+// Copyright (C) 2006-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.olap.fun;
@@ -13,6 +13,7 @@ import mondrian.calc.*;
 import mondrian.calc.impl.*;
 import mondrian.mdx.ResolvedFunCall;
 import mondrian.olap.*;
+import mondrian.rolap.ParallelEvaluator;
 import mondrian.server.Locus;
 
 import java.util.List;
@@ -65,6 +66,70 @@ class FilterFunDef extends FunDefBase {
         }
     }
 
+    /**
+     * Adds to a list the tuples of another list for which a condition is
+     * true.
+     *
+     * <p>If the list is large and the condition has no side effects,
+     * evaluates the condition in several threads, each with its own
+     * evaluator; see {@link MondrianProperties#SetEvaluationThreads}.
+     *
+     * @param evaluator Evaluator
+     * @param list List to filter
+     * @param bcalc Condition
+     * @param call Call to the Filter function
+     * @param result List to which to add tuples
+     */
+    private static void filter(
+        Evaluator evaluator,
+        final TupleList list,
+        final BooleanCalc bcalc,
+        ResolvedFunCall call,
+        TupleList result)
+    {
+        if (ParallelEvaluator.isParallel(evaluator, list.size())
+            && FunUtil.isParallelSafe(evaluator, call.getArg(1)))
+        {
+            final List<TupleList> chunks =
+                ParallelEvaluator.evaluate(
+                    evaluator,
+                    list.size(),
+                    new ParallelEvaluator.Task<TupleList>() {
+                        public TupleList evaluate(
+                            Evaluator evaluator, int start, int end)
+                        {
+                            final TupleList chunkResult =
+                                TupleCollections.createList(
+                                    list.getArity(), (end - start) / 2);
+                            filterSerial(
+                                evaluator, list.subList(start, end), bcalc,
+                                chunkResult);
+                            return chunkResult;
+                        }
+                    });
+            for (TupleList chunk : chunks) {
+                result.addAll(chunk);
+            }
+        } else {
+            filterSerial(evaluator, list, bcalc, result);
+        }
+    }
+
+    private static void filterSerial(
+        Evaluator evaluator,
+        TupleList list,
+        BooleanCalc bcalc,
+        TupleList result)
+    {
+        final TupleCursor cursor = list.tupleCursor();
+        while (cursor.forward()) {
+            cursor.setContext(evaluator);
+            if (bcalc.evaluateBoolean(evaluator)) {
+                result.addCurrent(cursor);
+            }
+        }
+    }
+
     /**
      * Returns an IterCalc.
      *
@@ -154,13 +219,7 @@ class FilterFunDef extends FunDefBase {
                     TupleCollections.createList(
                         list.getArity(), list.size() / 2);
                 evaluator.setNonEmpty(false);
-                TupleCursor cursor = list.tupleCursor();
-                while (cursor.forward()) {
-                    cursor.setContext(evaluator);
-                    if (bcalc.evaluateBoolean(evaluator)) {
-                        result.addCurrent(cursor);
-                    }
-                }
+                filter(evaluator, list, bcalc, (ResolvedFunCall) exp, result);
                 return result;
             } finally {
                 evaluator.restore(savepoint);
@@ -187,13 +246,8 @@ class FilterFunDef extends FunDefBase {
             final int savepoint = evaluator.savepoint();
             try {
                 evaluator.setNonEmpty(false);
-                TupleCursor cursor = members.tupleCursor();
-                while (cursor.forward()) {
-                    cursor.setContext(evaluator);
-                    if (bcalc.evaluateBoolean(evaluator)) {
-                        result.addCurrent(cursor);
-                    }
-                }
+                filter(
+                    evaluator, members, bcalc, (ResolvedFunCall) exp, result);
                 return result;
             } finally {
                 evaluator.restore(savepoint);
@@ -320,13 +374,8 @@ class FilterFunDef extends FunDefBase {
             final int savepoint = evaluator.savepoint();
             try {
                 evaluator.setNonEmpty(false);
-                final TupleCursor cursor = members0.tupleCursor();
-                while (cursor.forward()) {
-                    cursor.setContext(evaluator);
-                    if (bcalc.evaluateBoolean(evaluator)) {
-                        result.addCurrent(cursor);
-                    }
-                }
+                filter(
+                    evaluator, members0, bcalc, (ResolvedFunCall) exp, result);
                 return result;
             } finally {
                 evaluator.restore(savepoint);
@@ -354,13 +403,8 @@ class FilterFunDef extends FunDefBase {
                 // for capacity planning, guess selectivity = .5
                 TupleList result = members0.cloneList(members0.size() / 2);
                 evaluator.setNonEmpty(false);
-                final TupleCursor cursor = members0.tupleCursor();
-                while (cursor.forward()) {
-                    cursor.setContext(evaluator);
-                    if (bcalc.evaluateBoolean(evaluator)) {
-                        result.addCurrent(cursor);
-                    }
-                }
+                filter(
+                    evaluator, members0, bcalc, (ResolvedFunCall) exp, result);
                 return result;
             } finally {
                 evaluator.restore(savepoint);
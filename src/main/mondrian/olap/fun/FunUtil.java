@@ -680,6 +680,185 @@ public class FunUtil extends Util {
         return result;
     }
 
+    /**
+     * Sorts a list of members or tuples by the value of an expression,
+     * evaluating the expression, and sorting, in several threads.
+     *
+     * <p>Gives the same result as the serial methods,
+     * {@link #sortMembers(Evaluator, Iterable, List, Calc, boolean, boolean)}
+     * (if the arity is 1) and {@code sortTuples}.
+     * Evaluates the expression for every member or tuple, and for the
+     * ancestors that a hierarchical comparison would look at, then sorts
+     * using the precomputed values.
+     *
+     * <p>The caller must check that the expression can be evaluated in
+     * parallel; see {@link #isParallelSafe}.
+     *
+     * @param evaluator Evaluator
+     * @param list List of members or tuples; not modified
+     * @param exp Expression to sort on
+     * @param desc Whether to sort descending
+     * @param brk Whether to break
+     * @return Sorted list
+     *
+     * @see ParallelEvaluator
+     */
+    static TupleList sortTuplesParallel(
+        Evaluator evaluator,
+        final TupleList list,
+        final Calc exp,
+        boolean desc,
+        final boolean brk)
+    {
+        if (list.size() <= 1) {
+            return list;
+        }
+        if (list.getArity() == 1) {
+            final List<Member> memberList = list.slice(0);
+            final MemberComparator comp;
+            if (brk) {
+                comp = new BreakMemberComparator(evaluator, exp, desc);
+            } else {
+                comp = new HierarchicalMemberComparator(evaluator, exp, desc);
+            }
+            evaluator.getTiming().markStart(SORT_EVAL_TIMING_NAME);
+            try {
+                for (Map<Member, Object> map
+                    : ParallelEvaluator.evaluate(
+                        evaluator,
+                        list.size(),
+                        new ParallelEvaluator.Task<Map<Member, Object>>() {
+                            public Map<Member, Object> evaluate(
+                                Evaluator evaluator, int start, int end)
+                            {
+                                return evaluateMembers(
+                                    evaluator, exp,
+                                    memberList.subList(start, end), null,
+                                    !brk);
+                            }
+                        }))
+                {
+                    comp.preloadValues(map);
+                }
+            } finally {
+                evaluator.getTiming().markEnd(SORT_EVAL_TIMING_NAME);
+            }
+            final Member[] members =
+                memberList.toArray(new Member[memberList.size()]);
+            evaluator.getTiming().markStart(SORT_TIMING_NAME);
+            try {
+                ParallelEvaluator.sort(members, comp.wrap());
+            } finally {
+                evaluator.getTiming().markEnd(SORT_TIMING_NAME);
+            }
+            return new UnaryTupleList(Arrays.asList(members));
+        }
+
+        final int arity = list.getArity();
+        final Map<List<Member>, Object> valueMap =
+            new HashMap<List<Member>, Object>();
+        evaluator.getTiming().markStart(SORT_EVAL_TIMING_NAME);
+        try {
+            for (Map<List<Member>, Object> map
+                : ParallelEvaluator.evaluate(
+                    evaluator,
+                    list.size(),
+                    new ParallelEvaluator.Task<Map<List<Member>, Object>>() {
+                        public Map<List<Member>, Object> evaluate(
+                            Evaluator evaluator, int start, int end)
+                        {
+                            final TupleList chunk = list.subList(start, end);
+                            return brk
+                                ? evaluateTuples(evaluator, exp, chunk)
+                                : evaluateTuplesHierarchically(
+                                    evaluator, exp, chunk);
+                        }
+                    }))
+            {
+                valueMap.putAll(map);
+            }
+        } finally {
+            evaluator.getTiming().markEnd(SORT_EVAL_TIMING_NAME);
+        }
+        Comparator<List<Member>> comparator;
+        if (brk) {
+            final BreakTupleComparator comp =
+                new BreakTupleComparator(evaluator, exp, arity);
+            comp.preloadValues(valueMap);
+            comparator = comp;
+            if (desc) {
+                comparator = Collections.reverseOrder(comparator);
+            }
+        } else {
+            comparator =
+                new HierarchicalTupleMemoComparator(valueMap, arity, desc);
+        }
+        @SuppressWarnings({"unchecked"})
+        final List<Member>[] tuples = list.toArray(new List[list.size()]);
+        evaluator.getTiming().markStart(SORT_TIMING_NAME);
+        try {
+            ParallelEvaluator.sort(tuples, comparator);
+        } finally {
+            evaluator.getTiming().markEnd(SORT_TIMING_NAME);
+        }
+        return new DelegatingTupleList(arity, Arrays.asList(tuples));
+    }
+
+    /**
+     * For each tuple in a list, evaluates an expression in the context of
+     * each leading part of the tuple and each ancestor of the following
+     * member; these are the values that
+     * {@link HierarchicalTupleComparator} would evaluate.
+     *
+     * @param evaluator Evaluation context
+     * @param exp Expression to evaluate
+     * @param tuples List of tuples
+     * @return Map from keys (see {@link #prefixKey}) to values
+     */
+    private static Map<List<Member>, Object> evaluateTuplesHierarchically(
+        Evaluator evaluator,
+        Calc exp,
+        TupleList tuples)
+    {
+        final int savepoint = evaluator.savepoint();
+        try {
+            final Map<List<Member>, Object> map =
+                new HashMap<List<Member>, Object>();
+            for (List<Member> tuple : tuples) {
+                for (int i = 0; i < tuple.size(); i++) {
+                    final List<Member> prefix = tuple.subList(0, i);
+                    for (Member member = tuple.get(i);
+                        member != null;
+                        member = member.getParentMember())
+                    {
+                        final List<Member> key = prefixKey(prefix, member);
+                        if (map.containsKey(key)) {
+                            break;
+                        }
+                        evaluator.setContext(member);
+                        map.put(key, exp.evaluate(evaluator));
+                    }
+                    evaluator.setContext(tuple.get(i));
+                }
+                evaluator.restore(savepoint);
+            }
+            return map;
+        } finally {
+            evaluator.restore(savepoint);
+        }
+    }
+
+    /**
+     * Returns a list consisting of the members of a prefix followed by a
+     * member.
+     */
+    private static List<Member> prefixKey(List<Member> prefix, Member member) {
+        final List<Member> key = new ArrayList<Member>(prefix.size() + 1);
+        key.addAll(prefix);
+        key.add(member);
+        return key;
+    }
+
     /**
      * Partially sorts a list of Members by the value of an applied expression.
      *
@@ -2671,6 +2850,64 @@ public class FunUtil extends Util {
         return true;
     }
 
+    /**
+     * Returns whether expressions can be evaluated in several threads at
+     * once.
+     *
+     * <p>They cannot if they, the calculated members they reference, or the
+     * calculated members and named sets of the query call a user-defined
+     * function, whose state Mondrian does not know, or the {@code Current}
+     * or {@code CurrentOrdinal} function of a named set, which rely on the
+     * position of an iteration over the set, or reference a named set, which
+     * may be evaluated under a lock that the calling thread holds.
+     *
+     * @param evaluator Evaluator
+     * @param exps Expressions
+     * @return Whether expressions can be evaluated in parallel
+     *
+     * @see mondrian.rolap.ParallelEvaluator
+     */
+    public static boolean isParallelSafe(Evaluator evaluator, Exp... exps) {
+        return !find(new SideEffectFinder(false), evaluator, exps);
+    }
+
+    /**
+     * Returns whether the values of expressions depend only on their
+     * context, and therefore can be shared between statements.
+     *
+     * <p>They cannot if they cannot be evaluated in parallel (see
+     * {@link #isParallelSafe}), or if they, the calculated members they
+     * reference, or the calculated members and named sets of the query use a
+     * parameter, a function whose value depends on the current time, or the
+     * {@code LookupCube} function, which reads cells of another cube.
+     *
+     * @param evaluator Evaluator
+     * @param exps Expressions
+     * @return Whether values of expressions can be shared between statements
+     *
+     * @see mondrian.rolap.ExpResultCache
+     */
+    public static boolean isShareable(Evaluator evaluator, Exp... exps) {
+        return !find(new SideEffectFinder(true), evaluator, exps);
+    }
+
+    private static boolean find(
+        SideEffectFinder finder,
+        Evaluator evaluator,
+        Exp... exps)
+    {
+        for (Exp exp : exps) {
+            exp.accept(finder);
+        }
+        final Query query = evaluator.getQuery();
+        if (query != null) {
+            for (Formula formula : query.getFormulas()) {
+                formula.getExpression().accept(finder);
+            }
+        }
+        return finder.found;
+    }
+
     // ~ Inner classes ---------------------------------------------------------
 
     /**
@@ -3211,6 +3448,11 @@ public class FunUtil extends Util {
                 compute(t);
             }
         }
+
+        // Preloads the value map with precomputed values.
+        void preloadValues(Map<List<Member>, Object> map) {
+            valueMap.putAll(map);
+        }
     }
 
     private static class BreakTupleComparator extends TupleExpMemoComparator {
@@ -3279,6 +3521,79 @@ public class FunUtil extends Util {
         }
     }
 
+    /**
+     * Compares tuples in the same order as
+     * {@link HierarchicalTupleComparator}, but using values computed
+     * beforehand by {@link FunUtil#evaluateTuplesHierarchically}. It does
+     * not evaluate expressions, so can be used from several threads at once.
+     */
+    private static class HierarchicalTupleMemoComparator
+        extends TupleComparator
+    {
+        private final Map<List<Member>, Object> valueMap;
+        private final boolean desc;
+
+        HierarchicalTupleMemoComparator(
+            Map<List<Member>, Object> valueMap, int arity, boolean desc)
+        {
+            super(arity);
+            this.valueMap = valueMap;
+            this.desc = desc;
+        }
+
+        public int compare(List<Member> a1, List<Member> a2) {
+            for (int i = 0; i < arity; i++) {
+                final int c =
+                    compareHierarchicallyButSiblingsByValue(
+                        a1.subList(0, i), a1.get(i), a2.get(i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+
+        private int compareHierarchicallyButSiblingsByValue(
+            List<Member> prefix,
+            Member m1,
+            Member m2)
+        {
+            if (FunUtil.equals(m1, m2)) {
+                return 0;
+            }
+            while (true) {
+                int depth1 = m1.getDepth(),
+                        depth2 = m2.getDepth();
+                if (depth1 < depth2) {
+                    m2 = m2.getParentMember();
+                    if (FunUtil.equals(m1, m2)) {
+                        return -1;
+                    }
+                } else if (depth1 > depth2) {
+                    m1 = m1.getParentMember();
+                    if (FunUtil.equals(m1, m2)) {
+                        return 1;
+                    }
+                } else {
+                    Member prev1 = m1, prev2 = m2;
+                    m1 = m1.getParentMember();
+                    m2 = m2.getParentMember();
+                    if (FunUtil.equals(m1, m2)) {
+                        // including case where both parents are null
+                        int c =
+                            FunUtil.compareValues(
+                                valueMap.get(prefixKey(prefix, prev1)),
+                                valueMap.get(prefixKey(prefix, prev2)));
+                        if (c == 0) {
+                            c = FunUtil.compareSiblingMembers(prev1, prev2);
+                        }
+                        return desc ? -c : c;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Compares lists of {@link Member}s so as to convert them into hierarchical
      * order. Applies lexicographic order to the array.
@@ -3358,6 +3673,68 @@ public class FunUtil extends Util {
         }
     }
 
+    /**
+     * Visitor that looks for calls to functions that prevent an expression
+     * from being evaluated in parallel (see {@link #isParallelSafe}) or,
+     * optionally, from having its value shared (see {@link #isShareable}).
+     */
+    private static class SideEffectFinder extends MdxVisitorImpl {
+        private static final Set<String> UNSHAREABLE_FUN_NAMES =
+            new HashSet<String>(
+                Arrays.asList("now", "date", "time", "timer", "lookupcube"));
+        boolean found;
+        private final boolean shareable;
+        private final Set<Member> activeMembers = new HashSet<Member>();
+
+        SideEffectFinder(boolean shareable) {
+            this.shareable = shareable;
+        }
+
+        public Object visit(ResolvedFunCall funCall) {
+            final FunDef funDef = funCall.getFunDef();
+            if (funDef instanceof NamedSetCurrentFunDef
+                || funDef instanceof NamedSetCurrentOrdinalFunDef
+                || funDef instanceof UdfResolver.UdfFunDef
+                || shareable
+                && UNSHAREABLE_FUN_NAMES.contains(
+                    funDef.getName().toLowerCase()))
+            {
+                found = true;
+            }
+            return null;
+        }
+
+        public Object visit(NamedSetExpr namedSetExpr) {
+            // A named set that has not been evaluated yet is evaluated by
+            // the first thread that needs it, holding the lock of the
+            // query's result. The thread that forks chunks may hold that
+            // lock already, so a chunk that waited for it would deadlock.
+            found = true;
+            return null;
+        }
+
+        public Object visit(ParameterExpr parameterExpr) {
+            if (shareable) {
+                found = true;
+            }
+            return null;
+        }
+
+        public Object visit(MemberExpr memberExpr) {
+            Member member = memberExpr.getMember();
+            if (member.isCalculated()) {
+                if (activeMembers.add(member)) {
+                    Exp memberExp = member.getExpression();
+                    if (memberExp != null) {
+                        memberExp.accept(this);
+                    }
+                    activeMembers.remove(member);
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Null member of unknown hierarchy.
      */
@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2004-2005 Julian Hyde
-// Copyright (C) 2005-2011 Pentaho
+// Copyright (C) 2005-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.olap.fun;
@@ -14,6 +14,7 @@ import mondrian.calc.*;
 import mondrian.calc.impl.*;
 import mondrian.mdx.ResolvedFunCall;
 import mondrian.olap.*;
+import mondrian.rolap.ParallelEvaluator;
 
 import java.util.*;
 
@@ -169,7 +170,15 @@ class OrderFunDef extends FunDefBase {
             final int savepoint = subEvaluator.savepoint();
             try {
                 subEvaluator.setNonEmpty(false);
-                if (arity == 1) {
+                if (isParallel(subEvaluator, iterable)) {
+                    tupleList =
+                        sortTuplesParallel(
+                            subEvaluator,
+                            (TupleList) iterable,
+                            sortKeyCalc,
+                            sortKeyDir.descending,
+                            sortKeyDir.brk);
+                } else if (arity == 1) {
                     tupleList =
                         new UnaryTupleList(
                             sortMembers(
@@ -213,7 +222,15 @@ class OrderFunDef extends FunDefBase {
                 final int savepoint = evaluator.savepoint();
                 try {
                     evaluator.setNonEmpty(false);
-                    if (arity == 1) {
+                    if (isParallel(evaluator, iterable)) {
+                        tupleList =
+                            sortTuplesParallel(
+                                evaluator,
+                                (TupleList) iterable,
+                                sortKeyCalc,
+                                sortKeyDir.descending,
+                                sortKeyDir.brk);
+                    } else if (arity == 1) {
                         tupleList =
                             new UnaryTupleList(
                                 sortMembers(
@@ -271,6 +288,25 @@ class OrderFunDef extends FunDefBase {
             }
         }
 
+        /**
+         * Returns whether to sort a set by a single key in several threads;
+         * see {@link MondrianProperties#SetEvaluationThreads}. Only sets that
+         * have already been evaluated to a list are sorted in parallel.
+         *
+         * @param evaluator Evaluator
+         * @param iterable Set to sort
+         * @return Whether to sort in parallel
+         */
+        private boolean isParallel(
+            Evaluator evaluator,
+            TupleIterable iterable)
+        {
+            return iterable instanceof TupleList
+                && ParallelEvaluator.isParallel(
+                    evaluator, ((TupleList) iterable).size())
+                && isParallelSafe(evaluator, ((ResolvedFunCall) exp).getArgs());
+        }
+
         public void collectArguments(Map<String, Object> arguments) {
             super.collectArguments(arguments);
 
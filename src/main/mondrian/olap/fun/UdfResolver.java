@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2005-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho
+// Copyright (C) 2005-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.olap.fun;
@@ -117,7 +117,7 @@ public class UdfResolver implements Resolver {
      * Adapter which converts a {@link UserDefinedFunction} into a
      * {@link FunDef}.
      */
-    private class UdfFunDef extends FunDefBase {
+    class UdfFunDef extends FunDefBase {
         private Type returnType;
 
         public UdfFunDef(int[] parameterCategories, Type returnType) {
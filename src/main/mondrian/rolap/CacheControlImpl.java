@@ -24,7 +24,6 @@ import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import javax.sql.DataSource;
 
@@ -177,13 +176,30 @@ public class CacheControlImpl implements CacheControl {
             "Flush",
             new Locus.Action<Void>() {
                 public Void execute() {
-                    flushInternal(region);
+                    flushInternal(region, false);
                     return null;
                 }
             });
     }
 
-    private void flushInternal(CellRegion region) {
+    public void append(final CellRegion region) {
+        // Loading appended rows is not on behalf of any query, so its SQL
+        // yields to interactive statements. See SqlQueue.
+        final Execution execution =
+            new Execution(connection.getInternalStatement(), 0);
+        execution.setCacheWarming(true);
+        Locus.execute(
+            execution,
+            "Append",
+            new Locus.Action<Void>() {
+                public Void execute() {
+                    flushInternal(region, true);
+                    return null;
+                }
+            });
+    }
+
+    private void flushInternal(CellRegion region, boolean append) {
         if (region instanceof EmptyCellRegion) {
             return;
         }
@@ -200,9 +216,26 @@ public class CacheControlImpl implements CacheControl {
                 .ex();
         }
         final UnionCellRegion union = normalize((CellRegionImpl) region);
+        if (append) {
+            for (CellRegionImpl cellRegion : union.regions) {
+                final List<SegmentColumn> columns = findAxisValues(cellRegion);
+                boolean valid = !columns.isEmpty();
+                for (SegmentColumn column : columns) {
+                    valid &= column.getValues() != null;
+                }
+                if (!valid) {
+                    throw MondrianResource.instance()
+                        .CacheAppendRegionMustContainMembers.ex();
+                }
+            }
+        }
         for (CellRegionImpl cellRegion : union.regions) {
             // Figure out the bits.
-            flushNonUnion(cellRegion);
+            if (append) {
+                appendNonUnion(cellRegion);
+            } else {
+                flushNonUnion(cellRegion);
+            }
         }
     }
 
@@ -309,6 +342,10 @@ public class CacheControlImpl implements CacheControl {
         throw new UnsupportedOperationException();
     }
 
+    protected void appendNonUnion(CellRegion region) {
+        throw new UnsupportedOperationException();
+    }
+
     /**
      * Normalizes a CellRegion into a union of crossjoins of member regions.
      *
@@ -468,74 +505,127 @@ public class CacheControlImpl implements CacheControl {
         return list;
     }
 
+    /**
+     * Converts a cell region into a list of constrained columns.
+     *
+     * <p>The result is treated as an N-dimensional region: the cartesian
+     * product of the columns' values. If the region is a union, or a member
+     * region with several members, the result is the smallest such product
+     * that contains every component; columns that do not occur in every
+     * component are omitted, and the values of columns that do are
+     * merged.</p>
+     *
+     * @param region Cell region
+     * @return Constrained columns
+     */
     public static SegmentColumn[] findAxisValues(CellRegion region) {
         final List<SegmentColumn> list =
-            new ArrayList<SegmentColumn>();
-        final CellRegionVisitor visitor =
-            new CellRegionVisitorImpl() {
-                public void visit(MemberCellRegion region) {
-                    if (region.dimension.isMeasures()) {
-                        return;
-                    }
-                    final Map<String, Set<Comparable>> levels =
-                        new HashMap<String, Set<Comparable>>();
-                    for (Member member : region.memberList) {
-                        while (true) {
-                            if (member == null || member.isAll()) {
-                                break;
-                            }
-                            final String ccName =
-                                ((RolapLevel) member.getLevel()).getKeyExp()
-                                    .getGenericExpression();
-                            if (!levels.containsKey(ccName)) {
-                                levels.put(
-                                    ccName, new HashSet<Comparable>());
-                            }
-                                levels.get(ccName).add(
-                                    (Comparable)((RolapMember)member).getKey());
-                            member = member.getParentMember();
-                        }
-                    }
-                    for (Entry<String, Set<Comparable>> entry
-                        : levels.entrySet())
+            findAxisValues((CellRegionImpl) region);
+        return list.toArray(new SegmentColumn[list.size()]);
+    }
+
+    private static List<SegmentColumn> findAxisValues(CellRegionImpl region) {
+        if (region instanceof CrossjoinCellRegion) {
+            final List<SegmentColumn> list = new ArrayList<SegmentColumn>();
+            for (CellRegionImpl component
+                : ((CrossjoinCellRegion) region).components)
+            {
+                list.addAll(findAxisValues(component));
+            }
+            return list;
+        } else if (region instanceof UnionCellRegion) {
+            final List<List<SegmentColumn>> lists =
+                new ArrayList<List<SegmentColumn>>();
+            for (CellRegionImpl component
+                : ((UnionCellRegion) region).regions)
+            {
+                lists.add(findAxisValues(component));
+            }
+            return union(lists);
+        } else if (region instanceof MemberCellRegion) {
+            final MemberCellRegion memberRegion = (MemberCellRegion) region;
+            if (memberRegion.dimension.isMeasures()) {
+                return Collections.emptyList();
+            }
+            final List<List<SegmentColumn>> lists =
+                new ArrayList<List<SegmentColumn>>();
+            for (Member member : memberRegion.memberList) {
+                lists.add(findAxisValues(member));
+            }
+            return union(lists);
+        } else if (region instanceof MemberRangeCellRegion) {
+            // We translate all ranges into wildcards.
+            // FIXME Optimize this by resolving the list of members
+            // into an actual list of values for ConstrainedColumn
+            return Collections.singletonList(
+                new SegmentColumn(
+                    ((MemberRangeCellRegion) region).level.getKeyExp()
+                        .getGenericExpression(),
+                    -1,
+                    null));
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Returns the columns of a member and its ancestors, outermost first.
+     */
+    private static List<SegmentColumn> findAxisValues(Member member) {
+        final List<SegmentColumn> list = new ArrayList<SegmentColumn>();
+        for (; member != null && !member.isAll();
+             member = member.getParentMember())
+        {
+            final String ccName =
+                ((RolapLevel) member.getLevel()).getKeyExp()
+                    .getGenericExpression();
+            final Comparable key =
+                (Comparable) ((RolapMember) member).getKey();
+            if (key.equals(true)) {
+                list.add(0, new SegmentColumn(ccName, -1, null));
+            } else {
+                //noinspection unchecked
+                list.add(
+                    0,
+                    new SegmentColumn(
+                        ccName,
+                        -1,
+                        new ArraySortedSet(new Comparable[] {key})));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the smallest product of columns that contains each of a list
+     * of products of columns. Keeps the columns that occur in every list, in
+     * the order they occur in the first list, and merges their values.
+     */
+    private static List<SegmentColumn> union(List<List<SegmentColumn>> lists) {
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        final List<SegmentColumn> list = new ArrayList<SegmentColumn>();
+        columnLoop:
+        for (SegmentColumn column : lists.get(0)) {
+            for (List<SegmentColumn> list2 : lists.subList(1, lists.size())) {
+                boolean found = false;
+                for (SegmentColumn column2 : list2) {
+                    if (column2.columnExpression.equals(
+                            column.columnExpression))
                     {
-                        // Now sort and convert to an ArraySortedSet.
-                        final Comparable[] keys =
-                            entry.getValue().toArray(
-                                new Comparable[entry.getValue().size()]);
-                        if (keys.length == 1 && keys[0].equals(true)) {
-                            list.add(
-                                new SegmentColumn(
-                                    entry.getKey(),
-                                    -1,
-                                    null));
-                        } else {
-                            Arrays.sort(
-                                keys,
-                                Util.SqlNullSafeComparator.instance);
-                            //noinspection unchecked
-                            list.add(
-                                new SegmentColumn(
-                                    entry.getKey(),
-                                    -1,
-                                    new ArraySortedSet(keys)));
-                        }
+                        column = column.merge(column2);
+                        found = true;
+                        break;
                     }
                 }
-
-                public void visit(MemberRangeCellRegion region) {
-                    // We translate all ranges into wildcards.
-                    // FIXME Optimize this by resolving the list of members
-                    // into an actual list of values for ConstrainedColumn
-                    list.add(
-                        new SegmentColumn(
-                            region.level.getKeyExp().getGenericExpression(),
-                            -1,
-                            null));
+                if (!found) {
+                    continue columnLoop;
                 }
-            };
-        ((CellRegionImpl) region).accept(visitor);
-        return list.toArray(new SegmentColumn[list.size()]);
+            }
+            list.add(column);
+        }
+        return list;
     }
 
     public static List<RolapStar> getStarList(CellRegion region) {
@@ -838,6 +928,7 @@ public class CacheControlImpl implements CacheControl {
                     final List<Dimension> dimensions =
                         memberRegion.getDimensionality();
                     if (dimensions.size() > 0) {
+                        flushQueryPlans(dimensions.get(0).getSchema());
                         for (Cube cube
                             : dimensions.get(0) .getSchema().getCubes())
                         {
@@ -1900,6 +1991,18 @@ public class CacheControlImpl implements CacheControl {
             memberCache.makeKey(member.getParentMember(), member.getKey());
         memberCache.removeMember(key);
         cellRegionList.add(createMemberRegion(member, false));
+        flushQueryPlans(member.getHierarchy().getDimension().getSchema());
+    }
+
+    /**
+     * Removes the cached plans of queries against a schema whose members have
+     * changed. A plan may refer to a member that no longer exists, or lack
+     * one that has been added.
+     *
+     * @param schema Schema
+     */
+    private static void flushQueryPlans(Schema schema) {
+        ((RolapSchema) schema).getQueryPlanCache().clear();
     }
 }
 
@@ -107,6 +107,20 @@ public interface CellKey extends Serializable {
      */
     int getOffset(int[] axisMultipliers);
 
+    /**
+     * Returns the offset of the cell in a raster-scan order, as a
+     * {@code long}.
+     *
+     * <p>Same as {@link #getOffset(int[])}, but does not overflow if the
+     * product of the axis lengths exceeds {@link Integer#MAX_VALUE}, as it
+     * may for a sparse segment with many axes.
+     *
+     * @param axisMultipliers For each axis, the product of the lengths of later
+     *     axes
+     * @return The raster-scan ordinal of this cell
+     */
+    long getOffset(long[] axisMultipliers);
+
     public abstract class Generator {
         /**
          * Creates a CellKey with a given number of axes.
@@ -180,6 +194,17 @@ public interface CellKey extends Serializable {
             }
             return offset;
         }
+
+        public static long getOffset(
+            int[] ordinals,
+            long[] axisMultipliers)
+        {
+            long offset = 0;
+            for (int i = 0; i < ordinals.length; i++) {
+                offset += ordinals[i] * axisMultipliers[i];
+            }
+            return offset;
+        }
     }
 
     public class Zero implements CellKey {
@@ -202,6 +227,10 @@ public interface CellKey extends Serializable {
             return 0;
         }
 
+        public long getOffset(long[] axisMultipliers) {
+            return 0;
+        }
+
         public boolean equals(Object o) {
             return o == this;
         }
@@ -288,6 +317,10 @@ public interface CellKey extends Serializable {
             return ordinal0;
         }
 
+        public long getOffset(long[] axisMultipliers) {
+            return ordinal0;
+        }
+
         public boolean equals(Object o) {
             // here we cheat, we know that all CellKey's will be the same size
             if (o instanceof One) {
@@ -336,6 +369,11 @@ public interface CellKey extends Serializable {
                 + ordinal1;
         }
 
+        public long getOffset(long[] axisMultipliers) {
+            return ordinal0 * axisMultipliers[0]
+                + ordinal1;
+        }
+
         public boolean equals(Object o) {
             if (o instanceof Two) {
                 Two other = (Two) o;
@@ -425,6 +463,12 @@ public interface CellKey extends Serializable {
                 + ordinal2;
         }
 
+        public long getOffset(long[] axisMultipliers) {
+            return ordinal0 * axisMultipliers[0]
+                + ordinal1 * axisMultipliers[1]
+                + ordinal2;
+        }
+
         public boolean equals(Object o) {
             // here we cheat, we know that all CellKey's will be the same size
             if (o instanceof Three) {
@@ -529,6 +573,13 @@ public interface CellKey extends Serializable {
                 + ordinal3;
         }
 
+        public long getOffset(long[] axisMultipliers) {
+            return ordinal0 * axisMultipliers[0]
+                + ordinal1 * axisMultipliers[1]
+                + ordinal2 * axisMultipliers[2]
+                + ordinal3;
+        }
+
         public boolean equals(Object o) {
             // here we cheat, we know that all CellKey's will be the same size
             if (o instanceof Four) {
@@ -658,6 +709,10 @@ public interface CellKey extends Serializable {
             return Generator.getOffset(ordinals, axisMultipliers);
         }
 
+        public long getOffset(long[] axisMultipliers) {
+            return Generator.getOffset(ordinals, axisMultipliers);
+        }
+
         public int hashCode() {
             int h = 17;
             for (int ordinal : ordinals) {
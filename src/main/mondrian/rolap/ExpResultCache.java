@@ -0,0 +1,233 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.*;
+
+import java.util.*;
+
+/**
+ * Cache of the values of expressions, shared by all statements of a server.
+ *
+ * <p>Each query has its own cache of the values of cached expressions and
+ * named sets (see {@link RolapEvaluatorRoot}). If
+ * {@link MondrianProperties#ExpCacheSharedMaxSize} is positive, values that
+ * were computed without missing cells are also put into this cache, so that
+ * later statements that evaluate the same expression in the same context can
+ * use them.
+ *
+ * <p>The key of an entry consists of the text of the expression and of the
+ * calculated members and sets defined in its query (because the expression
+ * may refer to them), the context members on which the expression depends,
+ * the schema, the role and the locale. Expressions whose value depends on
+ * more than their context are never shared; see
+ * {@link mondrian.olap.fun.FunUtil#isShareable}.
+ *
+ * <p>Each entry records the stars from which it might have read cells. When
+ * cells are flushed or appended using {@link CacheControl}, which also
+ * happens when members are flushed or edited, the entries that depend on the
+ * stars of those cells are removed. When a schema is flushed, its entries
+ * are removed. When the cache is full, the least recently used entry is
+ * removed.
+ *
+ * <p>A statement that starts to compute a value before a flush, and finishes
+ * after it, might have read stale cells; see {@link #getGeneration()}.
+ *
+ * @author agent
+ */
+public class ExpResultCache {
+    private final Map<Key, Entry> map =
+        new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * Number of flushes so far. A value computed while a flush happened is
+     * not put into the cache.
+     */
+    private long generation;
+
+    /**
+     * Returns whether the shared cache is enabled.
+     */
+    static boolean isEnabled() {
+        return MondrianProperties.instance().ExpCacheSharedMaxSize.get() > 0;
+    }
+
+    /**
+     * Returns the value of an expression, or null if it is not in the cache.
+     *
+     * @param key Key
+     * @return Value, or null
+     */
+    synchronized Object get(Key key) {
+        final Entry entry = map.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Returns the number of flushes so far. Call this before computing a
+     * value, and pass the result to {@link #put}.
+     *
+     * @return Generation
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Puts the value of an expression into the cache, unless the cache has
+     * been flushed since the value started to be computed. If the cache is
+     * full, removes the least recently used entries.
+     *
+     * @param key Key
+     * @param value Value
+     * @param stars Stars from which the value might have read cells
+     * @param generation Generation when the value started to be computed
+     */
+    synchronized void put(
+        Key key,
+        Object value,
+        Set<RolapStar> stars,
+        long generation)
+    {
+        final int maxSize =
+            MondrianProperties.instance().ExpCacheSharedMaxSize.get();
+        if (maxSize <= 0 || generation != this.generation) {
+            return;
+        }
+        map.put(key, new Entry(value, stars));
+        final Iterator<Key> iterator = map.keySet().iterator();
+        while (map.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes the entries that might have read cells from any of a list of
+     * stars.
+     *
+     * @param stars Stars whose cells have been flushed
+     */
+    public synchronized void flush(Collection<RolapStar> stars) {
+        ++generation;
+        for (Iterator<Entry> iterator = map.values().iterator();
+            iterator.hasNext();)
+        {
+            if (!Collections.disjoint(iterator.next().stars, stars)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of a schema.
+     *
+     * @param schema Schema that has been flushed
+     */
+    public synchronized void flush(RolapSchema schema) {
+        ++generation;
+        for (Iterator<Key> iterator = map.keySet().iterator();
+            iterator.hasNext();)
+        {
+            if (iterator.next().schema == schema) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Key of an entry in the cache.
+     */
+    static class Key {
+        private final RolapSchema schema;
+        private final Role role;
+        private final Locale locale;
+        private final String text;
+        private final boolean nonEmpty;
+        private final List<Object> members;
+        private final int hashCode;
+
+        /**
+         * Creates a Key.
+         *
+         * @param schema Schema; compared by identity, so that the entries of
+         *   a schema that has been flushed and loaded again are not used
+         * @param role Role of the connection
+         * @param locale Locale of the connection
+         * @param text Text of the expression and of its query's formulas
+         * @param nonEmpty Whether the evaluator was in non-empty mode
+         * @param members Context members on which the expression depends
+         */
+        Key(
+            RolapSchema schema,
+            Role role,
+            Locale locale,
+            String text,
+            boolean nonEmpty,
+            List<Object> members)
+        {
+            this.schema = schema;
+            this.role = role;
+            this.locale = locale;
+            this.text = text;
+            this.nonEmpty = nonEmpty;
+            this.members = members;
+            int h = System.identityHashCode(schema);
+            h = Util.hash(h, role);
+            h = Util.hash(h, locale);
+            h = Util.hash(h, text);
+            h = Util.hash(h, nonEmpty ? 1 : 0);
+            this.hashCode = Util.hash(h, members);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key that = (Key) obj;
+            return this.hashCode == that.hashCode
+                && this.schema == that.schema
+                && this.nonEmpty == that.nonEmpty
+                && Util.equals(this.role, that.role)
+                && Util.equals(this.locale, that.locale)
+                && this.text.equals(that.text)
+                && this.members.equals(that.members);
+        }
+    }
+
+    /**
+     * Entry in the cache.
+     */
+    private static class Entry {
+        private final Object value;
+        private final Set<RolapStar> stars;
+
+        Entry(Object value, Set<RolapStar> stars) {
+            this.value = value;
+            this.stars = stars;
+        }
+    }
+}
+
+// End ExpResultCache.java
@@ -80,6 +80,19 @@ public class FastBatchingCellReader implements CellReader {
 
     private final List<CellRequest> cellRequests = new ArrayList<CellRequest>();
 
+    /**
+     * Number of requests at the start of {@link #cellRequests} that have
+     * already been checked against the global and external caches.
+     */
+    private int resolvedCount;
+
+    /**
+     * Number of requests to accumulate before checking them against the
+     * global and external caches; see
+     * {@link MondrianProperties#CellBatchChunkSize}.
+     */
+    private final int chunkSize;
+
     private final Execution execution;
 
     /**
@@ -103,6 +116,7 @@ public class FastBatchingCellReader implements CellReader {
         cacheMgr = aggMgr.cacheMgr;
         pinnedSegments = this.aggMgr.createPinSet();
         cacheEnabled = !MondrianProperties.instance().DisableCaching.get();
+        chunkSize = MondrianProperties.instance().CellBatchChunkSize.get();
     }
 
     public Object get(RolapEvaluator evaluator) {
@@ -164,18 +178,78 @@ public class FastBatchingCellReader implements CellReader {
         assert !request.isUnsatisfiable();
         ++missCount;
         cellRequests.add(request);
+        if (cacheEnabled
+            && chunkSize > 0
+            && cellRequests.size() - resolvedCount >= chunkSize)
+        {
+            resolveFromCache();
+        }
         int limit =
             MondrianProperties.instance().CellBatchSize.get();
         if (limit <= 0) {
             limit = 50000; // TODO Make this logic into a pluggable algorithm.
         }
-        if (cellRequests.size() % limit == 0) {
-            // Signal that it's time to ask the cache manager if it has cells
-            // we need in the cache. Not really an exception.
+        if (cellRequests.size() >= limit) {
+            // Too many requests could not be answered from cache. Signal
+            // that it's time to end the phase and load them using SQL, before
+            // they use too much memory. Not really an exception.
             throw CellRequestQuantumExceededException.INSTANCE;
         }
     }
 
+    /**
+     * Checks the cell requests recorded since the last call against the
+     * global and external caches, without executing SQL.
+     *
+     * <p>Segments that answer requests are loaded (or rolled up) into the
+     * query's local cache, and the requests they answer are forgotten. The
+     * remaining requests stay in the list, and will be loaded using SQL, all
+     * together, when {@link #loadAggregations()} is called at the end of the
+     * phase. Thus queries whose cells are mostly in cache do not need to end
+     * the phase early, and the SQL statements they issue are fewer and
+     * create larger segments.</p>
+     */
+    private void resolveFromCache() {
+        final List<CellRequest> chunk =
+            cellRequests.subList(resolvedCount, cellRequests.size());
+        final BatchLoader.LoadBatchResponse response =
+            loadBatch(new ArrayList<CellRequest>(chunk), true);
+        loadCacheSegments(
+            response, new HashMap<SegmentHeader, SegmentBody>());
+
+        // Segments that other statements are loading via SQL. Use those that
+        // have finished; don't wait for the others.
+        for (Map.Entry<SegmentHeader, Future<SegmentBody>> entry
+            : response.futures.entrySet())
+        {
+            final Future<SegmentBody> bodyFuture = entry.getValue();
+            if (bodyFuture.isDone()) {
+                final SegmentBody body = Util.safeGet(
+                    bodyFuture,
+                    "Waiting for someone else's segment to load via SQL");
+                final SegmentWithData segmentWithData =
+                    response.convert(entry.getKey(), body);
+                segmentWithData.getStar().register(segmentWithData);
+            }
+        }
+
+        final List<CellRequest> unresolved = new ArrayList<CellRequest>();
+        for (CellRequest cellRequest : chunk) {
+            if (cellRequest.getMeasure().getStar()
+                .getCellFromCache(cellRequest, null) == null)
+            {
+                unresolved.add(cellRequest);
+            }
+        }
+        if (unresolved.size() < chunk.size()) {
+            // We have told lies about the requests we are about to forget.
+            dirty = true;
+            chunk.clear();
+            chunk.addAll(unresolved);
+        }
+        resolvedCount = cellRequests.size();
+    }
+
     /**
      * Returns whether this reader has told a lie. This is the case if there
      * are pending batches to load or if {@link #setDirty(boolean)} has been
@@ -225,6 +299,11 @@ public class FastBatchingCellReader implements CellReader {
         if (!isDirty()) {
             return false;
         }
+        if (cellRequests.isEmpty()) {
+            // Every request was answered from cache during the phase.
+            dirty = false;
+            return true;
+        }
 
         // List of futures yielding segments populated by SQL statements. If
         // loading requires several iterations, we just append to the list. We
@@ -237,125 +316,14 @@ public class FastBatchingCellReader implements CellReader {
 
         for (int iteration = 0;; ++iteration) {
             final BatchLoader.LoadBatchResponse response =
-                cacheMgr.execute(
-                    new BatchLoader.LoadBatchCommand(
-                        Locus.peek(),
-                        cacheMgr,
-                        getDialect(),
-                        cube,
-                        Collections.unmodifiableList(cellRequests1)));
-
-            int failureCount = 0;
+                loadBatch(cellRequests1, false);
 
             // Segments that have been retrieved from cache this cycle. Allows
             // us to reduce calls to the external cache.
             Map<SegmentHeader, SegmentBody> headerBodies =
                 new HashMap<SegmentHeader, SegmentBody>();
 
-            // Load each suggested segment from cache, and place it in
-            // thread-local cache. Note that this step can't be done by the
-            // cacheMgr -- it's our cache.
-            for (SegmentHeader header : response.cacheSegments) {
-                final SegmentBody body = cacheMgr.compositeCache.get(header);
-                if (body == null) {
-                    // REVIEW: This is an async call. It will return before the
-                    // index is informed that this header is there,
-                    // so a LoadBatchCommand might still return
-                    // it on the next iteration.
-                    if (cube.getStar() != null) {
-                        cacheMgr.remove(cube.getStar(), header);
-                    }
-                    ++failureCount;
-                    continue;
-                }
-                headerBodies.put(header, body);
-                final SegmentWithData segmentWithData =
-                    response.convert(header, body);
-                segmentWithData.getStar().register(segmentWithData);
-            }
-
-            // Perform each suggested rollup.
-            //
-            // TODO this could be improved.
-            // See http://jira.pentaho.com/browse/MONDRIAN-1195
-
-            // Rollups that succeeded. Will tell cache mgr to put the headers
-            // into the index and the header/bodies in cache.
-            final Map<SegmentHeader, SegmentBody> succeededRollups =
-                new HashMap<SegmentHeader, SegmentBody>();
-
-            for (final BatchLoader.RollupInfo rollup : response.rollups) {
-                // Gather the required segments.
-                Map<SegmentHeader, SegmentBody> map =
-                    findResidentRollupCandidate(headerBodies, rollup);
-                if (map == null) {
-                    // None of the candidate segment-sets for this rollup was
-                    // all present in the cache.
-                    continue;
-                }
-
-                final Set<String> keepColumns = new HashSet<String>();
-                for (RolapStar.Column column : rollup.constrainedColumns) {
-                    keepColumns.add(
-                        column.getExpression().getGenericExpression());
-                }
-                Pair<SegmentHeader, SegmentBody> rollupHeaderBody =
-                    SegmentBuilder.rollup(
-                        map,
-                        keepColumns,
-                        rollup.constrainedColumnsBitKey,
-                        rollup.measure.getAggregator().getRollup(),
-                        rollup.measure.getDatatype());
-
-                final SegmentHeader header = rollupHeaderBody.left;
-                final SegmentBody body = rollupHeaderBody.right;
-
-                if (headerBodies.containsKey(header)) {
-                    // We had already created this segment, somehow.
-                    continue;
-                }
-
-                headerBodies.put(header, body);
-                succeededRollups.put(header, body);
-
-                final SegmentWithData segmentWithData =
-                    response.convert(header, body);
-
-                // Register this segment with the local star.
-                segmentWithData.getStar().register(segmentWithData);
-
-                // Make sure that the cache manager knows about this new
-                // segment. First thing we do is to add it to the index.
-                // Then we insert the segment body into the SlotFuture.
-                // This has to be done on the SegmentCacheManager's
-                // Actor thread to ensure thread safety.
-                if (!MondrianProperties.instance().DisableCaching.get()) {
-                    final Locus locus = Locus.peek();
-                    cacheMgr.execute(
-                        new SegmentCacheManager.Command<Void>() {
-                            public Void call() throws Exception {
-                                SegmentCacheIndex index =
-                                    cacheMgr.getIndexRegistry()
-                                    .getIndex(segmentWithData.getStar());
-                                boolean added = index.add(
-                                    segmentWithData.getHeader(),
-                                    true,
-                                    response.converterMap.get(
-                                        SegmentCacheIndexImpl
-                                            .makeConverterKey(
-                                                segmentWithData.getHeader())));
-                                if (added) {
-                                    index.loadSucceeded(
-                                        segmentWithData.getHeader(), body);
-                                }
-                                return null;
-                            }
-                            public Locus getLocus() {
-                                return locus;
-                            }
-                        });
-                }
-            }
+            int failureCount = loadCacheSegments(response, headerBodies);
 
             // Wait for SQL statements to end -- but only if there are no
             // failures.
@@ -440,9 +408,200 @@ public class FastBatchingCellReader implements CellReader {
 
         dirty = false;
         cellRequests.clear();
+        resolvedCount = 0;
         return true;
     }
 
+    /**
+     * Loads each segment that a response says is in cache, performs each
+     * rollup that it suggests, and registers the resulting segments with
+     * the local star.
+     *
+     * @param response Response from the cache manager
+     * @param headerBodies Segments that have been retrieved from cache this
+     *   cycle; this method adds to it
+     * @return Number of segments that were no longer in cache
+     */
+    private int loadCacheSegments(
+        final BatchLoader.LoadBatchResponse response,
+        Map<SegmentHeader, SegmentBody> headerBodies)
+    {
+        int failureCount = 0;
+
+        // Load each suggested segment from cache, and place it in
+        // thread-local cache. Note that this step can't be done by the
+        // cacheMgr -- it's our cache.
+        for (SegmentHeader header : response.cacheSegments) {
+            final SegmentBody body = cacheMgr.compositeCache.get(header);
+            if (body == null) {
+                // REVIEW: This is an async call. It will return before the
+                // index is informed that this header is there,
+                // so a LoadBatchCommand might still return
+                // it on the next iteration.
+                if (cube.getStar() != null) {
+                    cacheMgr.remove(cube.getStar(), header);
+                }
+                ++failureCount;
+                continue;
+            }
+            headerBodies.put(header, body);
+            final SegmentWithData segmentWithData =
+                response.convert(header, body);
+            segmentWithData.getStar().register(segmentWithData);
+        }
+
+        // Perform each suggested rollup.
+        //
+        // TODO this could be improved.
+        // See http://jira.pentaho.com/browse/MONDRIAN-1195
+
+        // Rollups that succeeded. Will tell cache mgr to put the headers
+        // into the index and the header/bodies in cache.
+        final Map<SegmentHeader, SegmentBody> succeededRollups =
+            new HashMap<SegmentHeader, SegmentBody>();
+
+        for (final BatchLoader.RollupInfo rollup : response.rollups) {
+            // Gather the required segments.
+            Map<SegmentHeader, SegmentBody> map =
+                findResidentRollupCandidate(headerBodies, rollup);
+            if (map == null) {
+                // None of the candidate segment-sets for this rollup was
+                // all present in the cache.
+                continue;
+            }
+
+            final Set<String> keepColumns = new HashSet<String>();
+            for (RolapStar.Column column : rollup.constrainedColumns) {
+                keepColumns.add(
+                    column.getExpression().getGenericExpression());
+            }
+            Pair<SegmentHeader, SegmentBody> rollupHeaderBody =
+                SegmentBuilder.rollup(
+                    map,
+                    keepColumns,
+                    rollup.constrainedColumnsBitKey,
+                    rollup.measure.getAggregator().getRollup(),
+                    rollup.measure.getDatatype());
+
+            final SegmentHeader header = rollupHeaderBody.left;
+            final SegmentBody body = rollupHeaderBody.right;
+
+            if (headerBodies.containsKey(header)) {
+                // We had already created this segment, somehow.
+                continue;
+            }
+
+            headerBodies.put(header, body);
+            succeededRollups.put(header, body);
+
+            final SegmentWithData segmentWithData =
+                response.convert(header, body);
+
+            // Register this segment with the local star.
+            segmentWithData.getStar().register(segmentWithData);
+
+            // Make sure that the cache manager knows about this new
+            // segment. First thing we do is to add it to the index.
+            // Then we insert the segment body into the SlotFuture.
+            // This has to be done on the SegmentCacheManager's
+            // Actor thread to ensure thread safety.
+            if (!MondrianProperties.instance().DisableCaching.get()) {
+                final Locus locus = Locus.peek();
+                cacheMgr.execute(
+                    segmentWithData.getStar(),
+                    new SegmentCacheManager.Command<Void>() {
+                        public Void call() throws Exception {
+                            SegmentCacheIndex index =
+                                cacheMgr.getIndexRegistry()
+                                .getIndex(segmentWithData.getStar());
+                            boolean added = index.add(
+                                segmentWithData.getHeader(),
+                                true,
+                                response.converterMap.get(
+                                    SegmentCacheIndexImpl
+                                        .makeConverterKey(
+                                            segmentWithData.getHeader())));
+                            if (added) {
+                                index.loadSucceeded(
+                                    segmentWithData.getHeader(), body);
+                            }
+                            return null;
+                        }
+                        public Locus getLocus() {
+                            return locus;
+                        }
+                    });
+            }
+        }
+        return failureCount;
+    }
+
+    /**
+     * Asks the cache manager to resolve a list of cell requests.
+     *
+     * <p>If the cache manager is partitioned, groups the requests by the
+     * partition that owns their star, sends a {@link
+     * BatchLoader.LoadBatchCommand} to each of those partitions, and combines
+     * the responses.</p>
+     *
+     * @param cellRequests Cell requests
+     * @param cacheOnly Whether to only look in cache, and not issue SQL
+     * @return Response
+     */
+    private BatchLoader.LoadBatchResponse loadBatch(
+        List<CellRequest> cellRequests,
+        boolean cacheOnly)
+    {
+        // Make sure that segments already in file caches (which may have
+        // persisted segments before the server restarted) are in the index.
+        RolapStar prevStar = null;
+        for (CellRequest cellRequest : cellRequests) {
+            final RolapStar star = cellRequest.getMeasure().getStar();
+            if (star != prevStar) {
+                cacheMgr.loadCacheForStar(star);
+                prevStar = star;
+            }
+        }
+        if (cacheMgr.getPartitionCount() == 1) {
+            return cacheMgr.execute(
+                new BatchLoader.LoadBatchCommand(
+                    Locus.peek(),
+                    cacheMgr,
+                    getDialect(),
+                    cube,
+                    Collections.unmodifiableList(cellRequests),
+                    cacheOnly));
+        }
+        final Map<Integer, Pair<RolapStar, List<CellRequest>>> map =
+            new TreeMap<Integer, Pair<RolapStar, List<CellRequest>>>();
+        for (CellRequest cellRequest : cellRequests) {
+            final RolapStar star = cellRequest.getMeasure().getStar();
+            final int partition = cacheMgr.getPartition(star);
+            Pair<RolapStar, List<CellRequest>> pair = map.get(partition);
+            if (pair == null) {
+                pair = Pair.of(star, (List<CellRequest>)
+                    new ArrayList<CellRequest>());
+                map.put(partition, pair);
+            }
+            pair.right.add(cellRequest);
+        }
+        final List<BatchLoader.LoadBatchResponse> responses =
+            new ArrayList<BatchLoader.LoadBatchResponse>();
+        for (Pair<RolapStar, List<CellRequest>> pair : map.values()) {
+            responses.add(
+                cacheMgr.execute(
+                    pair.left,
+                    new BatchLoader.LoadBatchCommand(
+                        Locus.peek(),
+                        cacheMgr,
+                        getDialect(),
+                        cube,
+                        Collections.unmodifiableList(pair.right),
+                        cacheOnly)));
+        }
+        return BatchLoader.LoadBatchResponse.merge(responses);
+    }
+
     /**
      * Finds a segment-list among a list of candidate segment-lists
      * for which the bodies of all segments are in cache. Returns a map
@@ -519,6 +678,40 @@ public class FastBatchingCellReader implements CellReader {
         this.dirty = dirty;
     }
 
+    /**
+     * Creates an empty reader for the same statement and cube, for a thread
+     * that evaluates part of an expression on this reader's behalf. When the
+     * thread is done, pass the reader to {@link #merge}.
+     *
+     * @return New reader
+     */
+    FastBatchingCellReader fork() {
+        return new FastBatchingCellReader(execution, cube, aggMgr);
+    }
+
+    /**
+     * Adds the cell requests, counts and pinned segments of another reader
+     * to this reader.
+     *
+     * <p>When cells are evaluated in parallel, each thread has its own
+     * reader. At the end of the phase, the statement's reader merges them in
+     * a fixed order, so that it loads the same segments as it would have
+     * had it read every cell itself.</p>
+     *
+     * @param reader Reader whose requests to add
+     */
+    void merge(FastBatchingCellReader reader) {
+        cellRequests.addAll(reader.cellRequests);
+        // The other reader has already checked its requests against the
+        // cache.
+        resolvedCount = cellRequests.size();
+        hitCount += reader.hitCount;
+        missCount += reader.missCount;
+        pendingCount += reader.pendingCount;
+        dirty |= reader.dirty;
+        ((AggregationManager.PinSetImpl) pinnedSegments).addAll(
+            (AggregationManager.PinSetImpl) reader.pinnedSegments);
+    }
 }
 
 /**
@@ -534,6 +727,7 @@ class BatchLoader {
     private final SegmentCacheManager cacheMgr;
     private final Dialect dialect;
     private final RolapCube cube;
+    private final boolean cacheOnly;
 
     private final Map<AggregationKey, Batch> batches =
         new HashMap<AggregationKey, Batch>();
@@ -556,11 +750,33 @@ class BatchLoader {
         SegmentCacheManager cacheMgr,
         Dialect dialect,
         RolapCube cube)
+    {
+        this(locus, cacheMgr, dialect, cube, false);
+    }
+
+    /**
+     * Creates a BatchLoader.
+     *
+     * @param locus Locus
+     * @param cacheMgr Cache manager
+     * @param dialect Dialect
+     * @param cube Cube
+     * @param cacheOnly Whether to only look for segments in cache and in
+     *   rollups of cached segments; if true, cell requests that cannot be
+     *   satisfied that way are ignored, and no SQL is issued
+     */
+    public BatchLoader(
+        Locus locus,
+        SegmentCacheManager cacheMgr,
+        Dialect dialect,
+        RolapCube cube,
+        boolean cacheOnly)
     {
         this.locus = locus;
         this.cacheMgr = cacheMgr;
         this.dialect = dialect;
         this.cube = cube;
+        this.cacheOnly = cacheOnly;
     }
 
     final boolean shouldUseGroupingFunction() {
@@ -583,8 +799,10 @@ class BatchLoader {
             return;
         }
 
-        // As a last resort, we load from SQL.
-        if (!success) {
+        // As a last resort, we load from SQL. (Unless the client has asked us
+        // to look in cache only. It will send the request again at the end
+        // of the phase.)
+        if (!success && !cacheOnly) {
             loadFromSql(request, key, converter);
         }
     }
@@ -974,6 +1192,7 @@ class BatchLoader {
         private final Dialect dialect;
         private final RolapCube cube;
         private final List<CellRequest> cellRequests;
+        private final boolean cacheOnly;
         private final Map<String, Object> mdc =
             new HashMap<String, Object>();
 
@@ -983,12 +1202,24 @@ class BatchLoader {
             Dialect dialect,
             RolapCube cube,
             List<CellRequest> cellRequests)
+        {
+            this(locus, cacheMgr, dialect, cube, cellRequests, false);
+        }
+
+        public LoadBatchCommand(
+            Locus locus,
+            SegmentCacheManager cacheMgr,
+            Dialect dialect,
+            RolapCube cube,
+            List<CellRequest> cellRequests,
+            boolean cacheOnly)
         {
             this.locus = locus;
             this.cacheMgr = cacheMgr;
             this.dialect = dialect;
             this.cube = cube;
             this.cellRequests = cellRequests;
+            this.cacheOnly = cacheOnly;
             if (MDC.getContext() != null) {
                 this.mdc.putAll(MDC.getContext());
             }
@@ -1000,7 +1231,7 @@ class BatchLoader {
                 old.clear();
                 old.putAll(mdc);
             }
-            return new BatchLoader(locus, cacheMgr, dialect, cube)
+            return new BatchLoader(locus, cacheMgr, dialect, cube, cacheOnly)
                 .load(cellRequests);
         }
 
@@ -1132,6 +1363,46 @@ class BatchLoader {
             this.futures = futures;
         }
 
+        /**
+         * Combines the responses from several partitions of the cache
+         * manager.
+         *
+         * @param responses Responses
+         * @return Combined response
+         */
+        static LoadBatchResponse merge(List<LoadBatchResponse> responses) {
+            if (responses.size() == 1) {
+                return responses.get(0);
+            }
+            final List<CellRequest> cellRequests =
+                new ArrayList<CellRequest>();
+            final List<SegmentHeader> cacheSegments =
+                new ArrayList<SegmentHeader>();
+            final List<RollupInfo> rollups = new ArrayList<RollupInfo>();
+            final Map<List, SegmentBuilder.SegmentConverter> converterMap =
+                new HashMap<List, SegmentBuilder.SegmentConverter>();
+            final List<Future<Map<Segment, SegmentWithData>>>
+                sqlSegmentMapFutures =
+                    new ArrayList<Future<Map<Segment, SegmentWithData>>>();
+            final Map<SegmentHeader, Future<SegmentBody>> futures =
+                new HashMap<SegmentHeader, Future<SegmentBody>>();
+            for (LoadBatchResponse response : responses) {
+                cellRequests.addAll(response.cellRequests);
+                cacheSegments.addAll(response.cacheSegments);
+                rollups.addAll(response.rollups);
+                converterMap.putAll(response.converterMap);
+                sqlSegmentMapFutures.addAll(response.sqlSegmentMapFutures);
+                futures.putAll(response.futures);
+            }
+            return new LoadBatchResponse(
+                cellRequests,
+                cacheSegments,
+                rollups,
+                converterMap,
+                sqlSegmentMapFutures,
+                futures);
+        }
+
         public SegmentWithData convert(
             SegmentHeader header,
             SegmentBody body)
@@ -0,0 +1,343 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.*;
+import mondrian.server.Locus;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Evaluates an expression for each element of a large list, and sorts large
+ * arrays, in several threads.
+ *
+ * <p>Used by functions such as {@code Filter} and {@code Order}, which
+ * evaluate an expression for each tuple of a set. The list is divided into
+ * chunks, and each chunk is evaluated in a thread of a shared executor, with
+ * its own evaluator and, if the evaluator is batching cell requests, its own
+ * cell reader. When every chunk has finished, the readers are merged into
+ * the evaluator's reader in chunk order, so that the phase loads the same
+ * cells as serial evaluation would.
+ *
+ * @see MondrianProperties#SetEvaluationThreads
+ *
+ * @author agent
+ */
+public class ParallelEvaluator {
+    /**
+     * Executor shared by all statements; created on first use. See
+     * {@link #getExecutor()}.
+     */
+    private static ThreadPoolExecutor executor;
+
+    private ParallelEvaluator() {
+    }
+
+    /**
+     * Returns whether a list of a given size should be evaluated in
+     * parallel.
+     *
+     * <p>The caller must also check that the expression has no side effects,
+     * and does not reference a named set;
+     * see {@link mondrian.olap.fun.FunUtil#isParallelSafe}.
+     *
+     * @param evaluator Evaluator
+     * @param size Number of elements in the list
+     * @return Whether to call {@link #evaluate}
+     */
+    public static boolean isParallel(Evaluator evaluator, int size) {
+        final MondrianProperties properties = MondrianProperties.instance();
+        return properties.SetEvaluationThreads.get() > 1
+            && size > 1
+            && size >= properties.SetEvaluationParallelThreshold.get()
+            && evaluator.getClass() == RolapEvaluator.class
+            && !mayWaitForResult((RolapEvaluator) evaluator);
+    }
+
+    /**
+     * Returns whether a chunk evaluated in the context of an evaluator might
+     * wait for a lock that the current thread holds, and so deadlock.
+     *
+     * <p>While the current thread evaluates an axis or a named set, it holds
+     * the lock of the query's result. A calculated member in the context,
+     * such as an aggregate in the slicer, may cause a chunk to evaluate a
+     * set (see {@link RolapSetEvaluator}), which requires that lock.
+     */
+    private static boolean mayWaitForResult(RolapEvaluator evaluator) {
+        if (!(evaluator.root instanceof RolapResult.RolapResultEvaluatorRoot)
+            || !Thread.holdsLock(
+                ((RolapResult.RolapResultEvaluatorRoot) evaluator.root)
+                    .result))
+        {
+            return false;
+        }
+        for (Member member : evaluator.getNonAllMembers()) {
+            if (member.isCalculated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Divides a list into chunks, and evaluates each chunk in a separate
+     * thread.
+     *
+     * <p>If any chunk throws, waits for the other chunks to finish, then
+     * throws the exception of the earliest chunk that failed. In particular,
+     * if a chunk's reader has asked for too many cells, throws
+     * {@link mondrian.rolap.agg.CellRequestQuantumExceededException}, as
+     * serial evaluation would.
+     *
+     * @param evaluator Evaluator; the context of each chunk's evaluator
+     * @param size Number of elements in the list
+     * @param task Task that evaluates a chunk
+     * @return Results of the chunks, in order
+     */
+    public static <T> List<T> evaluate(
+        Evaluator evaluator,
+        int size,
+        final Task<T> task)
+    {
+        final RolapEvaluator rolapEvaluator = (RolapEvaluator) evaluator;
+        final int chunkCount = chunkCount(size);
+        final CellReader cellReader = rolapEvaluator.cellReader;
+        final List<FastBatchingCellReader> readers =
+            new ArrayList<FastBatchingCellReader>();
+        final List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 0; i < chunkCount; i++) {
+            final int start = (int) ((long) size * i / chunkCount);
+            final int end = (int) ((long) size * (i + 1) / chunkCount);
+            final RolapEvaluator chunkEvaluator = rolapEvaluator.push();
+            if (cellReader instanceof FastBatchingCellReader) {
+                final FastBatchingCellReader reader =
+                    ((FastBatchingCellReader) cellReader).fork();
+                chunkEvaluator.setCellReader(reader);
+                readers.add(reader);
+            }
+            futures.add(
+                submit(
+                    new Callable<T>() {
+                        public T call() {
+                            return task.evaluate(chunkEvaluator, start, end);
+                        }
+                    }));
+        }
+
+        // Wait for every chunk, even if one fails, so that no thread is
+        // still using the evaluator when we return.
+        final List<T> results = new ArrayList<T>(chunkCount);
+        RuntimeException exception = null;
+        for (int i = 0; i < chunkCount; i++) {
+            try {
+                results.add(
+                    Util.safeGet(futures.get(i), "Evaluating set in parallel"));
+            } catch (RuntimeException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+            if (!readers.isEmpty()) {
+                ((FastBatchingCellReader) cellReader).merge(readers.get(i));
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return results;
+    }
+
+    /**
+     * Sorts an array in several threads. Sorts chunks of the array in
+     * parallel, then merges adjacent runs, in parallel, until one run
+     * remains.
+     *
+     * <p>Like {@link Arrays#sort(Object[], Comparator)}, the sort is stable.
+     * The comparator is called from several threads, so must not evaluate
+     * expressions; typically it compares values that have been computed
+     * beforehand.
+     *
+     * @param a Array to sort
+     * @param comparator Comparator
+     */
+    public static <E> void sort(
+        final E[] a,
+        final Comparator<? super E> comparator)
+    {
+        final int chunkCount = chunkCount(a.length);
+        int[] bounds = new int[chunkCount + 1];
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < chunkCount; i++) {
+            final int start = (int) ((long) a.length * i / chunkCount);
+            final int end = (int) ((long) a.length * (i + 1) / chunkCount);
+            bounds[i] = start;
+            futures.add(
+                submit(
+                    new Callable<Void>() {
+                        public Void call() {
+                            Arrays.sort(a, start, end, comparator);
+                            return null;
+                        }
+                    }));
+        }
+        bounds[chunkCount] = a.length;
+        await(futures);
+
+        E[] source = a;
+        E[] target = a.clone();
+        while (bounds.length > 2) {
+            final int runCount = bounds.length - 1;
+            final int[] newBounds = new int[(runCount + 1) / 2 + 1];
+            for (int i = 0; i < runCount; i += 2) {
+                final int start = bounds[i];
+                final int middle = bounds[Math.min(i + 1, runCount)];
+                final int end = bounds[Math.min(i + 2, runCount)];
+                newBounds[i / 2] = start;
+                final E[] source0 = source;
+                final E[] target0 = target;
+                futures.add(
+                    submit(
+                        new Callable<Void>() {
+                            public Void call() {
+                                merge(
+                                    source0, target0, start, middle, end,
+                                    comparator);
+                                return null;
+                            }
+                        }));
+            }
+            newBounds[newBounds.length - 1] = a.length;
+            await(futures);
+            bounds = newBounds;
+            final E[] temp = source;
+            source = target;
+            target = temp;
+        }
+        if (source != a) {
+            System.arraycopy(source, 0, a, 0, a.length);
+        }
+    }
+
+    /**
+     * Merges two adjacent sorted runs of an array into another array. If
+     * elements are equal, the element from the first run comes first.
+     */
+    private static <E> void merge(
+        E[] source,
+        E[] target,
+        int start,
+        int middle,
+        int end,
+        Comparator<? super E> comparator)
+    {
+        int i = start;
+        int j = middle;
+        int k = start;
+        while (i < middle && j < end) {
+            if (comparator.compare(source[i], source[j]) <= 0) {
+                target[k++] = source[i++];
+            } else {
+                target[k++] = source[j++];
+            }
+        }
+        System.arraycopy(source, i, target, k, middle - i);
+        System.arraycopy(source, j, target, k + middle - i, end - j);
+    }
+
+    private static int chunkCount(int size) {
+        return Math.max(
+            1,
+            Math.min(
+                MondrianProperties.instance().SetEvaluationThreads.get(),
+                size));
+    }
+
+    /**
+     * Submits a task to the executor. The task runs in the current
+     * statement's {@link Locus}, and uses the local cache of the thread
+     * that is executing the statement.
+     */
+    private static <T> Future<T> submit(final Callable<T> callable) {
+        final Locus locus = Locus.peek();
+        final Thread owner = RolapStar.getLocalCacheOwner();
+        return getExecutor().submit(
+            new Callable<T>() {
+                public T call() throws Exception {
+                    Locus.push(locus);
+                    final Thread previousOwner =
+                        RolapStar.setLocalCacheOwner(owner);
+                    try {
+                        return callable.call();
+                    } finally {
+                        RolapStar.setLocalCacheOwner(previousOwner);
+                        Locus.pop(locus);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Waits for tasks to finish, and clears the list.
+     */
+    private static void await(List<Future<Void>> futures) {
+        for (Future<Void> future : futures) {
+            Util.safeGet(future, "Sorting in parallel");
+        }
+        futures.clear();
+    }
+
+    /**
+     * Returns the executor, creating it if necessary. If all of its threads
+     * are busy, the calling thread runs the task; so tasks that themselves
+     * evaluate in parallel cannot deadlock.
+     *
+     * <p>The number of threads follows
+     * {@link MondrianProperties#SetEvaluationThreads}, even if the property
+     * changes after the executor is created.
+     *
+     * @return Executor
+     */
+    private static synchronized ExecutorService getExecutor() {
+        final int threadCount =
+            Math.max(
+                1, MondrianProperties.instance().SetEvaluationThreads.get());
+        if (executor == null) {
+            executor =
+                (ThreadPoolExecutor) Util.getExecutorService(
+                    threadCount,
+                    0, 1,
+                    "mondrian.rolap.ParallelEvaluator$executor",
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        } else if (executor.getMaximumPoolSize() != threadCount) {
+            executor.setMaximumPoolSize(threadCount);
+        }
+        return executor;
+    }
+
+    /**
+     * Evaluates a chunk of a list.
+     *
+     * @param <T> Result type
+     */
+    public interface Task<T> {
+        /**
+         * Evaluates the elements of a chunk.
+         *
+         * @param evaluator Evaluator for the exclusive use of this chunk
+         * @param start Index of the first element of the chunk
+         * @param end Index after the last element of the chunk
+         * @return Result of the chunk
+         */
+        T evaluate(Evaluator evaluator, int start, int end);
+    }
+}
+
+// End ParallelEvaluator.java
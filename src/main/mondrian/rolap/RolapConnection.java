@@ -667,6 +667,7 @@ public class RolapConnection extends ConnectionBase {
             Result result;
             try {
                 statement.start(execution);
+                query.markPreparation(execution.getQueryTiming());
                 ((RolapCube) query.getCube()).clearCachedAggregations(true);
                 result = new RolapResult(execution, true);
                 int i = 0;
@@ -771,6 +772,29 @@ public class RolapConnection extends ConnectionBase {
         }
     }
 
+    public QueryPart parseStatement(
+        Statement statement,
+        String query,
+        FunTable funTable,
+        boolean strictValidation)
+    {
+        final long start = System.currentTimeMillis();
+        final QueryPart queryPart;
+        if (funTable == null && QueryPlanCache.isEnabled()) {
+            queryPart =
+                schema.getQueryPlanCache().parse(
+                    this, statement, query, strictValidation);
+        } else {
+            queryPart =
+                super.parseStatement(
+                    statement, query, funTable, strictValidation);
+        }
+        if (queryPart instanceof Query) {
+            ((Query) queryPart).markParsed(start);
+        }
+        return queryPart;
+    }
+
     public Exp parseExpression(String expr) {
         boolean debug = false;
         if (getLogger().isDebugEnabled()) {
@@ -6,15 +6,19 @@
 //
 // Copyright (C) 2003-2006 Robin Bagot and others
 // Copyright (C) 2003-2005 Julian Hyde
-// Copyright (C) 2005-2010 Pentaho
+// Copyright (C) 2005-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.rolap;
 
+import mondrian.olap.MondrianProperties;
 import mondrian.olap.Util;
 
 import org.apache.commons.dbcp.*;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
 import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
 import java.util.*;
@@ -204,6 +208,27 @@ class RolapConnectionPool {
             // Flag to log stack traces for application code which abandoned a
             // Statement or Connection
             abandonedConfig.setLogAbandoned(true);
+
+            // If SQL is generated with bind variables, each connection keeps
+            // a pool of prepared statements, keyed by SQL text; closing a
+            // statement returns it to its connection's pool.
+            final int statementCacheSize =
+                MondrianProperties.instance().PreparedStatementCacheSize.get();
+            final KeyedObjectPoolFactory statementPoolFactory;
+            if (MondrianProperties.instance().GenerateBindVariables.get()
+                && statementCacheSize > 0)
+            {
+                statementPoolFactory =
+                    new GenericKeyedObjectPoolFactory(
+                        null,
+                        -1, // max active per SQL string
+                        GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW,
+                        0, // max wait
+                        1, // max idle per SQL string
+                        statementCacheSize); // max total
+            } else {
+                statementPoolFactory = null;
+            }
             PoolableConnectionFactory poolableConnectionFactory =
                 new PoolableConnectionFactory(
                     // the connection factory
@@ -212,7 +237,7 @@ class RolapConnectionPool {
                     connectionPool,
                     // statement pool factory for pooling prepared statements,
                     // or null for no pooling
-                    null,
+                    statementPoolFactory,
                     // validation query (must return at least 1 row e.g. Oracle:
                     // select count(*) from dual) to test connection, can be
                     // null
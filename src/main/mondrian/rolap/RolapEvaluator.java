@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2001-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 //
 // jhyde, 10 August, 2001
@@ -917,7 +917,7 @@ public class RolapEvaluator implements Evaluator {
      * context. The context includes members of dimensions which the
      * expression is dependent upon.
      */
-    private Object getExpResultCacheKey(ExpCacheDescriptor descriptor) {
+    private List<Object> getExpResultCacheKey(ExpCacheDescriptor descriptor) {
         // in NON EMPTY mode the result depends on everything, e.g.
         // "NON EMPTY [Customer].[Name].members" may return different results
         // for 1997-01 and 1997-02
@@ -946,9 +946,23 @@ public class RolapEvaluator implements Evaluator {
     public final Object getCachedResult(ExpCacheDescriptor cacheDescriptor) {
         // Look up a cached result, and if not present, compute one and add to
         // cache. Use a dummy value to represent nulls.
-        final Object key = getExpResultCacheKey(cacheDescriptor);
+        final List<Object> key = getExpResultCacheKey(cacheDescriptor);
         Object result = root.getCacheResult(key);
         if (result == null) {
+            // Look in the cache shared by all statements.
+            final ExpResultCache.Key sharedKey =
+                getSharedCacheKey(
+                    cacheDescriptor.getExp(), key.subList(1, key.size()));
+            long generation = 0;
+            if (sharedKey != null) {
+                result = root.sharedExpResultCache.get(sharedKey);
+                if (result != null) {
+                    root.putCacheResult(key, result, true);
+                    return result == nullResult ? null : result;
+                }
+                generation = root.sharedExpResultCache.getGeneration();
+            }
+
             boolean aggCacheDirty = cellReader.isDirty();
             int aggregateCacheMissCountBefore = cellReader.getMissCount();
             result = cacheDescriptor.evaluate(this);
@@ -974,6 +988,13 @@ public class RolapEvaluator implements Evaluator {
                 key,
                 result == null ? nullResult : result,
                 isValidResult);
+            if (isValidResult && sharedKey != null) {
+                root.sharedExpResultCache.put(
+                    sharedKey,
+                    result == null ? nullResult : result,
+                    root.getStars(),
+                    generation);
+            }
         } else if (result == nullResult) {
             result = null;
         }
@@ -981,6 +1002,29 @@ public class RolapEvaluator implements Evaluator {
         return result;
     }
 
+    /**
+     * Returns the key of an expression's value in the cache shared by all
+     * statements, or null if the value cannot be shared. The value can be
+     * shared only if it depends on nothing but the expression and the context
+     * members; not, for instance, if this evaluator has a compound slicer.
+     *
+     * @param exp Expression
+     * @param members Context members on which the expression depends
+     * @return Key, or null
+     */
+    final ExpResultCache.Key getSharedCacheKey(Exp exp, List<Object> members) {
+        if (root.sharedExpResultCache == null || aggregationLists != null) {
+            return null;
+        }
+        for (Object member : members) {
+            if (member instanceof RolapResult.CompoundSlicerRolapMember) {
+                return null;
+            }
+        }
+        return root.getSharedCacheKey(
+            this, exp, nonEmpty, new ArrayList<Object>(members));
+    }
+
     public final void clearExpResultCache(boolean clearValidResult) {
         root.clearResultCache(clearValidResult);
     }
@@ -4,13 +4,14 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2008-2011 Pentaho and others
+// Copyright (C) 2008-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap;
 
 import mondrian.calc.*;
 import mondrian.olap.*;
+import mondrian.olap.fun.FunUtil;
 import mondrian.server.Execution;
 import mondrian.server.Statement;
 import mondrian.spi.Dialect;
@@ -24,6 +25,10 @@ import java.util.*;
  * <p>Contains the context that does not change as evaluation context is
  * pushed/popped.
  *
+ * <p>When cells are evaluated in parallel, evaluators in several threads
+ * share the same root, so the methods that access its caches are
+ * synchronized.
+ *
  * @author jhyde
  * @since Nov 11, 2008
  */
@@ -56,7 +61,35 @@ class RolapEvaluatorRoot {
             MondrianProperties.instance().SolveOrderMode.get().toUpperCase(),
             SolveOrderMode.ABSOLUTE);
 
-    final Set<Exp> activeNativeExpansions = new HashSet<Exp>();
+    final Set<Exp> activeNativeExpansions =
+        Collections.synchronizedSet(new HashSet<Exp>());
+
+    /**
+     * Cache of expression values shared by all statements, or null if it is
+     * disabled or this statement cannot use it.
+     */
+    final ExpResultCache sharedExpResultCache;
+
+    /**
+     * Text by which expressions are known in the shared expression cache,
+     * or the empty string if their values cannot be shared. See
+     * {@link #getSharedCacheKey}.
+     */
+    private final Map<Exp, String> sharedExpTexts =
+        new IdentityHashMap<Exp, String>();
+
+    /**
+     * Text of the calculated members and sets defined in the query, or the
+     * empty string if the values of expressions cannot be shared; computed
+     * on first use.
+     */
+    private String formulasText;
+
+    /**
+     * Stars from which this statement might read cells; computed on first
+     * use.
+     */
+    private Set<RolapStar> stars;
 
     /**
      * The size of the command stack at which we will next check for recursion.
@@ -123,6 +156,12 @@ class RolapEvaluatorRoot {
             DialectManager.createDialect(schemaReader.getDataSource(), null);
 
         this.recursionCheckCommandCount = (defaultMembers.length << 4);
+        this.sharedExpResultCache =
+            ExpResultCache.isEnabled()
+            && connection.getScenario() == null
+                ? connection.getServer().getAggregationManager()
+                    .expResultCache
+                : null;
     }
 
     /**
@@ -137,7 +176,7 @@ class RolapEvaluatorRoot {
      *     result style; ignored if expression is scalar
      * @return compiled expression
      */
-    final Calc getCompiled(
+    final synchronized Calc getCompiled(
         Exp exp,
         boolean scalar,
         ResultStyle resultStyle)
@@ -254,7 +293,7 @@ class RolapEvaluatorRoot {
      * @param result value to be cached
      * @param isValidResult indicate if this result is valid
      */
-    public final void putCacheResult(
+    public final synchronized void putCacheResult(
         Object key,
         Object result,
         boolean isValidResult)
@@ -272,7 +311,7 @@ class RolapEvaluatorRoot {
      * @param key cache key
      * @return cached expression
      */
-    public final Object getCacheResult(Object key) {
+    public final synchronized Object getCacheResult(Object key) {
         Object result = expResultCache.get(key);
         if (result == null) {
             result = tmpExpResultCache.get(key);
@@ -280,12 +319,94 @@ class RolapEvaluatorRoot {
         return result;
     }
 
+    /**
+     * Returns the key of an expression's value in the shared expression
+     * cache, or null if the value cannot be shared.
+     *
+     * @param evaluator Evaluator
+     * @param exp Expression
+     * @param nonEmpty Whether the evaluator is in non-empty mode
+     * @param members Context members on which the expression depends
+     * @return Key in shared cache, or null
+     */
+    final synchronized ExpResultCache.Key getSharedCacheKey(
+        Evaluator evaluator,
+        Exp exp,
+        boolean nonEmpty,
+        List<Object> members)
+    {
+        if (sharedExpResultCache == null) {
+            return null;
+        }
+        String text = sharedExpTexts.get(exp);
+        if (text == null) {
+            if (formulasText == null) {
+                formulasText = computeFormulasText(evaluator);
+            }
+            if (formulasText.length() == 0
+                || !FunUtil.isShareable(evaluator, exp))
+            {
+                text = "";
+            } else {
+                text = Util.unparse(exp) + Util.nl + formulasText;
+            }
+            sharedExpTexts.put(exp, text);
+        }
+        if (text.length() == 0) {
+            return null;
+        }
+        return new ExpResultCache.Key(
+            cube.getSchema(),
+            schemaReader.getRole(),
+            connection.getLocale(),
+            text,
+            nonEmpty,
+            members);
+    }
+
+    private String computeFormulasText(Evaluator evaluator) {
+        if (!FunUtil.isShareable(evaluator)) {
+            return "";
+        }
+        final StringBuilder buf =
+            new StringBuilder("FROM ").append(cube.getUniqueName());
+        for (Formula formula : query.getFormulas()) {
+            buf.append(Util.nl)
+                .append(formula.isMember() ? "MEMBER " : "SET ")
+                .append(formula.getIdentifier())
+                .append(" AS ")
+                .append(Util.unparse(formula.getExpression()));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns the stars from which this statement might read cells: the star
+     * of its cube or, for a virtual cube, the stars of its base cubes. A
+     * value in the shared expression cache depends on these stars.
+     */
+    final synchronized Set<RolapStar> getStars() {
+        if (stars == null) {
+            final Set<RolapStar> set = new HashSet<RolapStar>();
+            for (RolapMember measure : cube.getMeasuresMembers()) {
+                if (measure instanceof RolapStoredMeasure) {
+                    set.add(
+                        ((RolapStar.Measure)
+                            ((RolapStoredMeasure) measure).getStarMeasure())
+                            .getStar());
+                }
+            }
+            stars = set;
+        }
+        return stars;
+    }
+
     /**
      * Clears the expression result cache.
      *
      * @param clearValidResult whether to clear valid expression results
      */
-    public final void clearResultCache(boolean clearValidResult) {
+    public final synchronized void clearResultCache(boolean clearValidResult) {
         if (clearValidResult) {
             expResultCache.clear();
         }
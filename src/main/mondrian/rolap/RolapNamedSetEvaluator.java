@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2008-2012 Pentaho and others
+// Copyright (C) 2008-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap;
@@ -12,6 +12,7 @@ package mondrian.rolap;
 import mondrian.calc.*;
 import mondrian.olap.*;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,7 +33,7 @@ class RolapNamedSetEvaluator
     private int recursionCount;
 
     /** Value of this named set; set on first use. */
-    private TupleList list;
+    private volatile TupleList list;
 
     /**
      * Dummy list used as a marker to detect re-entrant calls to
@@ -63,8 +64,20 @@ class RolapNamedSetEvaluator
     }
 
     public TupleIterable evaluateTupleIterable(Evaluator evaluator) {
-        ensureList(evaluator);
-        return list;
+        final TupleList list = this.list;
+        if (list != null && list != DUMMY_LIST) {
+            return list;
+        }
+        // When cells are evaluated in parallel, another thread may be
+        // evaluating this set. Wait for it, rather than mistaking its work
+        // for a recursive reference. The lock is the same one that
+        // RolapResult.evaluateExp holds. A thread that waits for it must not
+        // have been forked by the thread that holds it, so ParallelEvaluator
+        // does not evaluate expressions that reference a named set.
+        synchronized (rrer.result) {
+            ensureList(evaluator);
+            return this.list;
+        }
     }
 
     /**
@@ -95,24 +108,52 @@ class RolapNamedSetEvaluator
             final Calc calc =
                 rrer.getCompiled(
                     namedSet.getExp(), false, ResultStyle.ITERABLE);
-            TupleIterable iterable =
-                (TupleIterable)
-                    rrer.result.evaluateExp(
-                        calc,
-                        rrer.result.slicerEvaluator,
-                        evaluator);
-
-            // Axes can be in two forms: list or iterable. If iterable, we
-            // need to materialize it, to ensure that all cell values are in
-            // cache.
-            final TupleList rawList;
-            if (iterable instanceof TupleList) {
-                rawList = (TupleList) iterable;
-            } else {
-                rawList = TupleCollections.createList(iterable.getArity());
-                TupleCursor cursor = iterable.tupleCursor();
-                while (cursor.forward()) {
-                    rawList.addCurrent(cursor);
+
+            // The value may be in the cache shared by all statements, if it
+            // depends only on the slicer context. Not if the set is dynamic,
+            // or is evaluated in the context of an axis (see
+            // RolapResult.evaluateExp); then it depends on the caller.
+            final RolapEvaluator slicerEvaluator = rrer.result.slicerEvaluator;
+            final ExpResultCache.Key sharedKey =
+                namedSet.isDynamic()
+                || evaluator != null && evaluator.isEvalAxes()
+                    ? null
+                    : slicerEvaluator.getSharedCacheKey(
+                        namedSet.getExp(),
+                        Arrays.<Object>asList(slicerEvaluator.getMembers()));
+            TupleList rawList =
+                sharedKey == null
+                    ? null
+                    : (TupleList) rrer.sharedExpResultCache.get(sharedKey);
+            if (rawList == null) {
+                final long generation =
+                    sharedKey == null
+                        ? 0
+                        : rrer.sharedExpResultCache.getGeneration();
+                TupleIterable iterable =
+                    (TupleIterable)
+                        rrer.result.evaluateExp(
+                            calc,
+                            slicerEvaluator,
+                            evaluator);
+
+                // Axes can be in two forms: list or iterable. If iterable, we
+                // need to materialize it, to ensure that all cell values are
+                // in cache.
+                if (iterable instanceof TupleList) {
+                    rawList = (TupleList) iterable;
+                } else {
+                    rawList = TupleCollections.createList(iterable.getArity());
+                    TupleCursor cursor = iterable.tupleCursor();
+                    while (cursor.forward()) {
+                        rawList.addCurrent(cursor);
+                    }
+                }
+                if (sharedKey != null) {
+                    // evaluateExp has loaded every cell that the set needs,
+                    // so the value is valid.
+                    rrer.sharedExpResultCache.put(
+                        sharedKey, rawList, rrer.getStars(), generation);
                 }
             }
             if (RolapResult.LOGGER.isDebugEnabled()) {
@@ -19,10 +19,12 @@ import mondrian.rolap.TupleReader.MemberBuilder;
 import mondrian.rolap.aggmatcher.AggStar;
 import mondrian.rolap.cache.*;
 import mondrian.rolap.sql.*;
+import mondrian.util.InFlightRegistry;
 
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import javax.sql.DataSource;
 
@@ -44,6 +46,13 @@ public abstract class RolapNativeSet extends RolapNative {
     private SmartCache<Object, TupleList> cache =
         new SoftSmartCache<Object, TupleList>();
 
+    /**
+     * Tuple queries in progress, with the same keys as {@link #cache}.
+     * Concurrent requests for the same tuples share one SQL statement.
+     */
+    private final InFlightRegistry<Object, TupleList> inFlightRegistry =
+        new InFlightRegistry<Object, TupleList>();
+
     /**
      * Returns whether certain member types (e.g. calculated members) should
      * disable native SQL evaluation for expressions containing them.
@@ -212,7 +221,7 @@ public abstract class RolapNativeSet extends RolapNative {
             // that independent axes have identical constraints but different
             // args (i.e. projections). REVIEW: In this case, should we use the
             // same cached result and project different columns?
-            List<Object> key = new ArrayList<Object>();
+            final List<Object> key = new ArrayList<Object>();
             key.add(tr.getCacheKey());
             key.addAll(Arrays.asList(args));
             key.add(maxRows);
@@ -241,15 +250,24 @@ public abstract class RolapNativeSet extends RolapNative {
             if (hasEnumTargets && partialResult == null) {
                 newPartialResult = new ArrayList<List<RolapMember>>();
             }
-            DataSource dataSource = schemaReader.getDataSource();
-            if (args.length == 1) {
-                result =
-                    tr.readMembers(
-                        dataSource, partialResult, newPartialResult);
+            final DataSource dataSource = schemaReader.getDataSource();
+            if (hasEnumTargets
+                || tr instanceof HighCardSqlTupleReader
+                || constraint.getCacheKey() == null)
+            {
+                result = read(tr, dataSource, partialResult, newPartialResult);
             } else {
+                // If another statement is reading the same tuples, wait for
+                // it and use its result. The result is read-only, just as if
+                // it came from the cache.
                 result =
-                    tr.readTuples(
-                        dataSource, partialResult, newPartialResult);
+                    inFlightRegistry.execute(
+                        key,
+                        new Callable<TupleList>() {
+                            public TupleList call() {
+                                return read(tr, dataSource, null, null);
+                            }
+                        });
             }
 
             if (!MondrianProperties.instance().DisableCaching.get()) {
@@ -268,6 +286,21 @@ public abstract class RolapNativeSet extends RolapNative {
             return result;
         }
 
+        private TupleList read(
+            SqlTupleReader tr,
+            DataSource dataSource,
+            TupleList partialResult,
+            List<List<RolapMember>> newPartialResult)
+        {
+            if (args.length == 1) {
+                return tr.readMembers(
+                    dataSource, partialResult, newPartialResult);
+            } else {
+                return tr.readTuples(
+                    dataSource, partialResult, newPartialResult);
+            }
+        }
+
         private void addLevel(TupleReader tr, CrossJoinArg arg) {
             RolapLevel level = arg.getLevel();
             if (level == null) {
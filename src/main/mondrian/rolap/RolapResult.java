@@ -29,6 +29,7 @@ import mondrian.util.*;
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -47,6 +48,7 @@ public class RolapResult extends ResultBase {
 
     private CellInfoContainer cellInfos;
     private FastBatchingCellReader batchingReader;
+    private final AggregationManager aggMgr;
     private final CellReader aggregatingReader;
     private Modulos modulos = null;
     private final int maxEvalDepth =
@@ -61,6 +63,31 @@ public class RolapResult extends ResultBase {
     private final Map<Integer, List<List<Member>>> positionsCurrent =
         new HashMap<Integer, List<List<Member>>>();
 
+    /**
+     * Executor that evaluates stripes of cells in parallel; created on first
+     * use. See {@link #getCellExecutor()}.
+     */
+    private static ThreadPoolExecutor cellExecutor;
+
+    /**
+     * Executor that evaluates axes concurrently; created on first use. See
+     * {@link #getPrefetchExecutor()}.
+     */
+    private static ThreadPoolExecutor prefetchExecutor;
+
+    /**
+     * Cell readers of the threads that are evaluating axes, named sets and
+     * stripes of cells on behalf of this result. See {@link #prefetchAxes}
+     * and {@link #executeStripes}.
+     */
+    private final Map<Thread, FastBatchingCellReader> prefetchReaders =
+        new ConcurrentHashMap<Thread, FastBatchingCellReader>();
+
+    /**
+     * Set when the threads started by {@link #prefetchAxes} should stop.
+     */
+    private volatile boolean prefetchStopped;
+
     /**
      * Creates a RolapResult.
      *
@@ -74,7 +101,7 @@ public class RolapResult extends ResultBase {
         super(execution, null);
 
         this.point = CellKey.Generator.newCellKey(axes.length);
-        final AggregationManager aggMgr =
+        this.aggMgr =
             execution.getMondrianStatement()
                 .getMondrianConnection()
                 .getServer().getAggregationManager();
@@ -98,7 +125,7 @@ public class RolapResult extends ResultBase {
 
         this.cellInfos =
             (query.axes.length > 4)
-                ? new CellInfoMap(point)
+                ? new CellInfoMap()
                 : new CellInfoPool(query.axes.length);
 
         if (!execute) {
@@ -106,6 +133,7 @@ public class RolapResult extends ResultBase {
         }
 
         boolean normalExecution = true;
+        List<Future<?>> prefetches = Collections.emptyList();
         try {
             // This call to clear the cube's cache only has an
             // effect if caching has been disabled, otherwise
@@ -274,6 +302,12 @@ public class RolapResult extends ResultBase {
             // Save evaluator that has slicer as its context.
             slicerEvaluator = evaluator.push();
 
+            // Start evaluating the axes and independent named sets in other
+            // threads, if enabled, so that their SQL statements overlap. The
+            // steps below evaluate the axes as before, and find what those
+            // threads have loaded in cache.
+            prefetches = prefetchAxes(evaluator);
+
             /////////////////////////////////////////////////////////////////
             // Determine Axes
             //
@@ -459,6 +493,7 @@ public class RolapResult extends ResultBase {
                     // Safe to ignore. Need to call 'phase' and loop again.
                 }
             } while (phase());
+            awaitPrefetches(prefetches);
 
             evaluator.restore(savepoint);
 
@@ -504,6 +539,10 @@ public class RolapResult extends ResultBase {
 
             throw ex;
         } finally {
+            // If evaluation failed, stop the threads that are evaluating
+            // axes concurrently, and wait for them; they are using this
+            // statement's cache.
+            awaitPrefetches(prefetches);
             if (normalExecution) {
                 // Expression cache duration is for each query. It is time to
                 // clear out the whole expression cache at the end of a query.
@@ -554,18 +593,225 @@ public class RolapResult extends ResultBase {
     }
 
     private boolean phase() {
-        if (batchingReader.isDirty()) {
-            execution.tracePhase(
-                batchingReader.getHitCount(),
-                batchingReader.getMissCount(),
-                batchingReader.getPendingCount());
+        return phase(batchingReader);
+    }
 
-            return batchingReader.loadAggregations();
+    /**
+     * Loads the cells that a reader has been asked for, if any.
+     *
+     * @param reader Cell reader; this result's reader, or the reader of a
+     *   thread that is evaluating on its behalf
+     * @return Whether any cells were loaded
+     */
+    private boolean phase(FastBatchingCellReader reader) {
+        if (reader.isDirty()) {
+            if (reader == batchingReader) {
+                execution.tracePhase(
+                    reader.getHitCount(),
+                    reader.getMissCount(),
+                    reader.getPendingCount());
+            }
+            return reader.loadAggregations();
         } else {
             return false;
         }
     }
 
+    /**
+     * Starts evaluating, in other threads, the axes of the query and the
+     * named sets in its WITH clause that do not reference other named sets,
+     * if {@link MondrianProperties#ConcurrentAxes} is enabled.
+     *
+     * <p>Each thread has its own evaluator and cell reader, and loads the
+     * cells its expression needs. It discards the value of the expression.
+     * Its purpose is to execute SQL statements (to read members, tuples and
+     * cells) while the statement's thread is executing others; the
+     * statement's thread then finds their results in the caches.
+     *
+     * <p>Because the statement's thread evaluates the same expressions, the
+     * threads repeat some of its work. To limit that, a thread stops when
+     * the statement's thread has evaluated the axes; see
+     * {@link #awaitPrefetches}.
+     *
+     * @param evaluator Evaluator whose context is the slicer
+     * @return Futures of the threads, never null
+     */
+    private List<Future<?>> prefetchAxes(RolapEvaluator evaluator) {
+        if (!MondrianProperties.instance().ConcurrentAxes.get()
+            || evaluator.getClass() != RolapEvaluator.class)
+        {
+            return Collections.emptyList();
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (Formula formula : query.getFormulas()) {
+            if (formula.isMember()) {
+                continue;
+            }
+            final NamedSetFinder finder = new NamedSetFinder();
+            formula.getExpression().accept(finder);
+            if (finder.reference) {
+                continue;
+            }
+            final Calc calc =
+                evaluator.root.getCompiled(
+                    formula.getExpression(), false, ResultStyle.ITERABLE);
+            futures.add(
+                prefetch(
+                    "named set " + formula.getName(),
+                    slicerEvaluator.push(), null, calc));
+        }
+        // The statement's thread evaluates the first axis straight away, so
+        // a thread for that axis would only repeat its work.
+        if (query.axes.length > 1) {
+            for (int i = 1; i < query.axes.length; i++) {
+                futures.add(
+                    prefetch(
+                        "axis #" + i, evaluator.push(),
+                        query.axes[i], query.axisCalcs[i]));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Evaluates an axis or a set expression in another thread, loading the
+     * cells it needs, and discards the result. See {@link #prefetchAxes}.
+     *
+     * @param description Description of the expression, for logging
+     * @param evaluator Evaluator, for the exclusive use of the thread
+     * @param queryAxis Axis, or null to evaluate a named set
+     * @param calc Compiled expression
+     * @return Future
+     */
+    private Future<?> prefetch(
+        final String description,
+        final RolapEvaluator evaluator,
+        final QueryAxis queryAxis,
+        final Calc calc)
+    {
+        final Locus locus = Locus.peek();
+        final Thread owner = Thread.currentThread();
+        final FastBatchingCellReader reader =
+            new FastBatchingCellReader(
+                execution, (RolapCube) query.getCube(), aggMgr);
+        return getPrefetchExecutor().submit(
+            new Callable<Void>() {
+                public Void call() {
+                    if (Thread.currentThread() == owner) {
+                        // All prefetch threads were busy, so the executor
+                        // ran this task in the statement's thread. The
+                        // statement is about to evaluate the expression
+                        // anyway, so there is nothing to gain.
+                        return null;
+                    }
+                    Locus.push(locus);
+                    RolapStar.setLocalCacheOwner(owner);
+                    prefetchReaders.put(Thread.currentThread(), reader);
+                    try {
+                        int attempt = 0;
+                        do {
+                            evaluator.setCellReader(reader);
+                            final int savepoint = evaluator.savepoint();
+                            try {
+                                final Object o =
+                                    queryAxis == null
+                                        ? calc.evaluate(evaluator)
+                                        : executeAxis(
+                                            evaluator, queryAxis, calc,
+                                            false, null);
+                                if (o instanceof TupleIterable) {
+                                    final TupleCursor cursor =
+                                        ((TupleIterable) o).tupleCursor();
+                                    while (cursor.forward()) {
+                                        // ignore
+                                    }
+                                }
+                            } catch (CellRequestQuantumExceededException e) {
+                                // Load the cells requested so far, and
+                                // evaluate again.
+                            } finally {
+                                evaluator.restore(savepoint);
+                            }
+                        } while (!prefetchStopped
+                            && phase(reader)
+                            && attempt++ < maxEvalDepth);
+                    } catch (RuntimeException e) {
+                        // If the error is genuine, the statement's thread
+                        // will encounter it too.
+                        LOGGER.debug(
+                            "Error while evaluating " + description
+                            + " concurrently", e);
+                    } finally {
+                        prefetchReaders.remove(Thread.currentThread());
+                        RolapStar.setLocalCacheOwner(null);
+                        Locus.pop(locus);
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Tells the threads started by {@link #prefetchAxes} to stop, and waits
+     * for them to finish. A thread stops when it has finished its current
+     * pass over its expression; it does not load the cells requested in
+     * that pass.
+     *
+     * <p>They have usually finished by the time the statement's thread has
+     * evaluated the axes. If not, what remains of their work would repeat
+     * what the statement's thread has just done.
+     *
+     * @param futures Futures of prefetch threads
+     */
+    private void awaitPrefetches(List<Future<?>> futures) {
+        prefetchStopped = true;
+        for (Future<?> future : futures) {
+            Util.safeGet(future, "Evaluating axes concurrently");
+        }
+    }
+
+    /**
+     * Returns the executor for the threads started by
+     * {@link #prefetchAxes}, creating it if necessary. The executor is
+     * shared by all statements. If all of its threads are busy, the task
+     * is handed back to the calling thread, which skips it; so a statement
+     * never waits for a thread.
+     *
+     * <p>The number of threads follows
+     * {@link MondrianProperties#ConcurrentAxesThreads}, even if the property
+     * changes after the executor is created.
+     *
+     * @return Executor
+     */
+    private static synchronized ExecutorService getPrefetchExecutor() {
+        final int threadCount =
+            Math.max(
+                1, MondrianProperties.instance().ConcurrentAxesThreads.get());
+        if (prefetchExecutor == null) {
+            prefetchExecutor =
+                (ThreadPoolExecutor) Util.getExecutorService(
+                    threadCount,
+                    0, 1,
+                    "mondrian.rolap.RolapResult$prefetchExecutor",
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        } else if (prefetchExecutor.getMaximumPoolSize() != threadCount) {
+            prefetchExecutor.setMaximumPoolSize(threadCount);
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Returns the cell reader with which the current thread should
+     * evaluate expressions: its own, if it is evaluating an axis or a stripe
+     * of cells on this result's behalf (see {@link #prefetchAxes} and
+     * {@link #executeStripes}), otherwise this result's.
+     */
+    private FastBatchingCellReader currentReader() {
+        final FastBatchingCellReader reader =
+            prefetchReaders.get(Thread.currentThread());
+        return reader == null ? batchingReader : reader;
+    }
+
     @Override
     public void close() {
         super.close();
@@ -906,10 +1152,17 @@ public class RolapResult extends ResultBase {
         // evaluator which collects requests.
         int count = 0;
         final int savepoint = evaluator.savepoint();
+        final boolean parallel = isParallel(evaluator);
         while (true) {
             evaluator.setCellReader(batchingReader);
             try {
-                executeStripe(query.axes.length - 1, evaluator, pos);
+                if (parallel) {
+                    executeStripes(evaluator, pos);
+                } else {
+                    executeStripe(
+                        query.axes.length - 1, evaluator, pos, point,
+                        cellInfos);
+                }
             } catch (CellRequestQuantumExceededException e) {
                 // Safe to ignore. Need to call 'phase' and loop again.
                 // Decrement count because it wasn't a recursive formula that
@@ -952,6 +1205,207 @@ public class RolapResult extends ResultBase {
         }
     }
 
+    /**
+     * Returns whether the cells of this result should be evaluated in
+     * parallel.
+     *
+     * <p>Cells are evaluated in parallel if
+     * {@link MondrianProperties#CellEvaluationThreads} is greater than 1, the
+     * result has at least
+     * {@link MondrianProperties#CellEvaluationParallelThreshold} cells, and
+     * nothing in the query relies on state that is not safe to share
+     * between threads: high-cardinality axes (which are paged through),
+     * visual totals (whose expressions are rewritten during evaluation),
+     * the {@code Current} and {@code CurrentOrdinal} functions of named sets,
+     * and evaluators that test dependencies or profile the query.
+     *
+     * @param evaluator Evaluator
+     * @return Whether to evaluate cells in parallel
+     */
+    private boolean isParallel(RolapEvaluator evaluator) {
+        final MondrianProperties properties = MondrianProperties.instance();
+        if (properties.CellEvaluationThreads.get() <= 1
+            || axes.length == 0
+            || evaluator.getClass() != RolapEvaluator.class)
+        {
+            return false;
+        }
+        long cellCount = 1;
+        for (int i = 0; i < axes.length; i++) {
+            final TupleList tupleList = ((RolapAxis) axes[i]).getTupleList();
+            if (isAxisHighCardinality(i, tupleList)) {
+                return false;
+            }
+            for (List<Member> tuple : tupleList) {
+                for (Member member : tuple) {
+                    if (member instanceof VisualTotalMember) {
+                        return false;
+                    }
+                }
+            }
+            cellCount *= tupleList.size();
+        }
+        if (cellCount < properties.CellEvaluationParallelThreshold.get()
+            || ((RolapAxis) axes[axes.length - 1]).getTupleList().size() < 2)
+        {
+            return false;
+        }
+        final NamedSetFinder finder = new NamedSetFinder();
+        query.accept(finder);
+        return !finder.current;
+    }
+
+    /**
+     * Evaluates the cells of this result in several threads.
+     *
+     * <p>Divides the positions of the last axis into stripes, and evaluates
+     * each stripe in a thread of the {@link #getCellExecutor() cell executor}
+     * with its own evaluator, cell reader and cell coordinates. Evaluated
+     * cells go directly into this result's cell container. When every stripe
+     * has finished, merges the readers into this result's reader in stripe
+     * order, so that the phase loads the same cells as serial evaluation
+     * would.
+     *
+     * @param evaluator Evaluator
+     * @param pos Cell position
+     */
+    private void executeStripes(
+        RolapEvaluator evaluator,
+        final int[] pos)
+    {
+        final int axisOrdinal = axes.length - 1;
+        final TupleList tupleList =
+            ((RolapAxis) axes[axisOrdinal]).getTupleList();
+        final int stripeCount =
+            Math.min(
+                MondrianProperties.instance().CellEvaluationThreads.get(),
+                tupleList.size());
+        final CellInfoContainer stripeCellInfos =
+            new SynchronizedCellInfoContainer(cellInfos);
+        final Locus locus = Locus.peek();
+        final Thread owner = Thread.currentThread();
+        final RolapCube cube = (RolapCube) query.getCube();
+        final List<FastBatchingCellReader> readers =
+            new ArrayList<FastBatchingCellReader>();
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < stripeCount; i++) {
+            final int start =
+                (int) ((long) tupleList.size() * i / stripeCount);
+            final int end =
+                (int) ((long) tupleList.size() * (i + 1) / stripeCount);
+            final RolapEvaluator stripeEvaluator = evaluator.push();
+            final FastBatchingCellReader reader =
+                new FastBatchingCellReader(execution, cube, aggMgr);
+            stripeEvaluator.setCellReader(reader);
+            readers.add(reader);
+            futures.add(
+                getCellExecutor().submit(
+                    new Callable<Boolean>() {
+                        public Boolean call() {
+                            Locus.push(locus);
+                            RolapStar.setLocalCacheOwner(owner);
+                            // Named sets that the stripe evaluates lazily
+                            // (see evaluateExp) must use the stripe's reader,
+                            // too. If the executor is saturated, this task
+                            // runs in the caller's thread, which may already
+                            // have a reader.
+                            final Thread thread = Thread.currentThread();
+                            final FastBatchingCellReader previousReader =
+                                prefetchReaders.put(thread, reader);
+                            try {
+                                final CellKey stripePoint =
+                                    CellKey.Generator.newCellKey(axes.length);
+                                final int savepoint =
+                                    stripeEvaluator.savepoint();
+                                for (int k = start; k < end; k++) {
+                                    stripePoint.setAxis(axisOrdinal, k);
+                                    try {
+                                        stripeEvaluator.setContext(
+                                            tupleList.get(k));
+                                        execution.checkCancelOrTimeout();
+                                        executeStripe(
+                                            axisOrdinal - 1, stripeEvaluator,
+                                            pos, stripePoint,
+                                            stripeCellInfos);
+                                    } finally {
+                                        stripeEvaluator.restore(savepoint);
+                                    }
+                                }
+                                return true;
+                            } catch (CellRequestQuantumExceededException e) {
+                                // The stripe's reader is full. Its requests
+                                // will be loaded, and the stripe evaluated
+                                // again, in the next phase.
+                                return false;
+                            } finally {
+                                if (previousReader == null) {
+                                    prefetchReaders.remove(thread);
+                                } else {
+                                    prefetchReaders.put(thread, previousReader);
+                                }
+                                RolapStar.setLocalCacheOwner(null);
+                                Locus.pop(locus);
+                            }
+                        }
+                    }));
+        }
+
+        // Wait for every stripe, even if one fails, so that no thread is
+        // still using this result's cell container or a stripe's reader when
+        // we merge the readers or return.
+        boolean complete = true;
+        RuntimeException exception = null;
+        for (int i = 0; i < stripeCount; i++) {
+            try {
+                if (!Util.safeGet(futures.get(i), "Evaluating cells")) {
+                    complete = false;
+                }
+            } catch (RuntimeException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        for (FastBatchingCellReader reader : readers) {
+            batchingReader.merge(reader);
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        if (!complete) {
+            throw CellRequestQuantumExceededException.INSTANCE;
+        }
+    }
+
+    /**
+     * Returns the executor that evaluates stripes of cells in parallel,
+     * creating it if necessary. The executor is shared by all statements.
+     * If all of its threads are busy, the calling thread evaluates the
+     * stripe.
+     *
+     * <p>The number of threads follows
+     * {@link MondrianProperties#CellEvaluationThreads}, even if the property
+     * changes after the executor is created.
+     *
+     * @return Executor
+     */
+    private static synchronized ExecutorService getCellExecutor() {
+        final int threadCount =
+            Math.max(
+                1, MondrianProperties.instance().CellEvaluationThreads.get());
+        if (cellExecutor == null) {
+            cellExecutor =
+                (ThreadPoolExecutor) Util.getExecutorService(
+                    threadCount,
+                    0, 1,
+                    "mondrian.rolap.RolapResult$cellExecutor",
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        } else if (cellExecutor.getMaximumPoolSize() != threadCount) {
+            cellExecutor.setMaximumPoolSize(threadCount);
+        }
+        return cellExecutor;
+    }
+
     boolean isDirty() {
         return batchingReader.isDirty();
     }
@@ -966,7 +1420,7 @@ public class RolapResult extends ResultBase {
      * @param contextEvaluator Evaluation context (optional)
      * @return Result
      */
-    Object evaluateExp(
+    synchronized Object evaluateExp(
         Calc calc,
         RolapEvaluator slicerEvaluator,
         Evaluator contextEvaluator)
@@ -980,12 +1434,13 @@ public class RolapResult extends ResultBase {
         }
 
         final int savepoint = evaluator.savepoint();
-        boolean dirty = batchingReader.isDirty();
+        final FastBatchingCellReader reader = currentReader();
+        boolean dirty = reader.isDirty();
         try {
             while (true) {
                 evaluator.restore(savepoint);
 
-                evaluator.setCellReader(batchingReader);
+                evaluator.setCellReader(reader);
                 Object preliminaryValue = calc.evaluate(evaluator);
 
                 if (preliminaryValue instanceof TupleIterable) {
@@ -999,7 +1454,7 @@ public class RolapResult extends ResultBase {
                     }
                 }
 
-                if (!phase()) {
+                if (!phase(reader)) {
                     break;
                 } else {
                     // Clear invalid expression result so that the next
@@ -1019,7 +1474,7 @@ public class RolapResult extends ResultBase {
             // reader's 'dirty' flag so that the caller knows that it must
             // re-evaluate them.
             if (dirty) {
-                batchingReader.setDirty(true);
+                reader.setDirty(true);
             }
 
             evaluator.restore(savepoint);
@@ -1031,10 +1486,21 @@ public class RolapResult extends ResultBase {
         }
     }
 
+    /**
+     * Evaluates the cells of one axis and, recursively, the axes inside it.
+     *
+     * @param axisOrdinal Ordinal of axis, or -1 for the slicer
+     * @param revaluator Evaluator
+     * @param pos Cell position; used to page through high-cardinality axes
+     * @param point Coordinates of the current cell
+     * @param cellInfos Container into which to put evaluated cells
+     */
     private void executeStripe(
         int axisOrdinal,
         RolapEvaluator revaluator,
-        final int[] pos)
+        final int[] pos,
+        CellKey point,
+        CellInfoContainer cellInfos)
     {
         if (axisOrdinal < 0) {
             RolapAxis axis = (RolapAxis) slicerAxis;
@@ -1165,7 +1631,9 @@ public class RolapResult extends ResultBase {
                     try {
                         revaluator.setContext(tuple);
                         execution.checkCancelOrTimeout();
-                        executeStripe(axisOrdinal - 1, revaluator, pos);
+                        executeStripe(
+                            axisOrdinal - 1, revaluator, pos, point,
+                            cellInfos);
                     } finally {
                         revaluator.restore(savepoint);
                     }
@@ -1197,7 +1665,9 @@ public class RolapResult extends ResultBase {
                     try {
                         revaluator.setContext(tuple);
                         execution.checkCancelOrTimeout();
-                        executeStripe(axisOrdinal - 1, revaluator, pos);
+                        executeStripe(
+                            axisOrdinal - 1, revaluator, pos, point,
+                            cellInfos);
                     } finally {
                         revaluator.restore(savepoint);
                     }
@@ -1534,7 +2004,8 @@ public class RolapResult extends ResultBase {
         extends RolapEvaluatorRoot
     {
         /**
-         * Maps the names of sets to their values. Populated on demand.
+         * Maps the names of sets to their values. Populated on demand, by
+         * any thread that is evaluating the query, so guarded by this root.
          */
         private final Map<String, RolapSetEvaluator> setEvaluators =
             new HashMap<String, RolapSetEvaluator>();
@@ -1550,7 +2021,8 @@ public class RolapResult extends ResultBase {
             this.result = result;
         }
 
-        protected Evaluator.NamedSetEvaluator evaluateNamedSet(
+        protected synchronized Evaluator.NamedSetEvaluator
+        evaluateNamedSet(
             final NamedSet namedSet,
             boolean create)
         {
@@ -1568,7 +2040,7 @@ public class RolapResult extends ResultBase {
             return value;
         }
 
-        protected Evaluator.SetEvaluator evaluateSet(
+        protected synchronized Evaluator.SetEvaluator evaluateSet(
             final Exp exp,
             boolean create)
         {
@@ -1877,22 +2349,16 @@ public class RolapResult extends ResultBase {
      * Implementation of {@link CellInfoContainer} which uses a {@link Map} to
      * store CellInfo Objects.
      *
-     * <p>Note that the CellKey point instance variable is the same
-     * Object (NOT a copy) that is used and modified during
-     * the recursive calls to executeStripe - the
-     * <code>create</code> method relies on this fact.
+     * <p>The <code>create</code> method copies the position array into a
+     * new {@link CellKey}, so the caller may re-use the array.
      */
     static class CellInfoMap implements CellInfoContainer {
         private final Map<CellKey, CellInfo> cellInfoMap;
-        private final CellKey point;
 
         /**
-         * Creates a CellInfoMap
-         *
-         * @param point Cell position
+         * Creates a CellInfoMap.
          */
-        CellInfoMap(CellKey point) {
-            this.point = point;
+        CellInfoMap() {
             this.cellInfoMap = new HashMap<CellKey, CellInfo>();
         }
         public int size() {
@@ -1905,7 +2371,7 @@ public class RolapResult extends ResultBase {
             this.cellInfoMap.clear();
         }
         public CellInfo create(int[] pos) {
-            CellKey key = this.point.copy();
+            CellKey key = CellKey.Generator.newCellKey(pos);
             CellInfo ci = this.cellInfoMap.get(key);
             if (ci == null) {
                 ci = new CellInfo(0);
@@ -2101,6 +2567,84 @@ public class RolapResult extends ResultBase {
         }
     }
 
+    /**
+     * Implementation of {@link CellInfoContainer} that wraps another
+     * container and synchronizes access to it. Used while several threads
+     * are evaluating cells; see {@link RolapResult#executeStripes}.
+     */
+    static class SynchronizedCellInfoContainer implements CellInfoContainer {
+        private final CellInfoContainer container;
+
+        /**
+         * Creates a SynchronizedCellInfoContainer.
+         *
+         * @param container Underlying container
+         */
+        SynchronizedCellInfoContainer(CellInfoContainer container) {
+            this.container = container;
+        }
+        public synchronized int size() {
+            return container.size();
+        }
+        public synchronized void trimToSize() {
+            container.trimToSize();
+        }
+        public synchronized void clear() {
+            container.clear();
+        }
+        public synchronized CellInfo create(int[] pos) {
+            return container.create(pos);
+        }
+        public synchronized CellInfo lookup(int[] pos) {
+            return container.lookup(pos);
+        }
+    }
+
+    /**
+     * Visitor that looks for uses of named sets, including in the
+     * definitions of calculated members that an expression references.
+     *
+     * <p>Finds references to named sets, and calls to the {@code Current}
+     * and {@code CurrentOrdinal} functions of named sets. Those functions
+     * rely on the position of an iteration over the set, which is not safe
+     * to share between threads.
+     */
+    private static class NamedSetFinder extends MdxVisitorImpl {
+        /** Whether the expression references a named set. */
+        boolean reference;
+        /** Whether the expression calls Current or CurrentOrdinal. */
+        boolean current;
+        private final Set<Member> activeMembers = new HashSet<Member>();
+
+        public Object visit(ResolvedFunCall funCall) {
+            if (funCall.getFunDef() instanceof NamedSetCurrentFunDef
+                || funCall.getFunDef() instanceof NamedSetCurrentOrdinalFunDef)
+            {
+                current = true;
+            }
+            return null;
+        }
+
+        public Object visit(NamedSetExpr namedSetExpr) {
+            reference = true;
+            return null;
+        }
+
+        public Object visit(MemberExpr memberExpr) {
+            Member member = memberExpr.getMember();
+            if (member.isCalculated()) {
+                if (activeMembers.add(member)) {
+                    Exp memberExp = member.getExpression();
+                    if (memberExp != null) {
+                        memberExp.accept(this);
+                    }
+                    activeMembers.remove(member);
+                }
+            }
+            return null;
+        }
+    }
+
     static TupleList mergeAxes(
         TupleList axis1,
         TupleIterable axis2,
@@ -2139,7 +2683,7 @@ public class RolapResult extends ResultBase {
      * the context of the slicer members.
      * See MONDRIAN-1226.
      */
-    private class CompoundSlicerRolapMember extends DelegatingRolapMember
+    class CompoundSlicerRolapMember extends DelegatingRolapMember
     implements RolapMeasure
     {
         private final Calc calc;
@@ -158,6 +158,13 @@ public class RolapSchema implements Schema {
      */
     private final String id;
 
+    /**
+     * Parse trees of queries against this schema, and what their identifiers
+     * resolve to. A new schema, and so a new cache, is created when the
+     * schema is reloaded.
+     */
+    private final QueryPlanCache queryPlanCache = new QueryPlanCache();
+
     /**
      * This is ONLY called by other constructors (and MUST be called
      * by them) and NEVER by the Pool.
@@ -321,6 +328,14 @@ public class RolapSchema implements Schema {
             aggTableManager.finalCleanUp();
             aggTableManager = null;
         }
+        if (internalConnection != null) {
+            // Entries of this schema can never be used again, because the
+            // shared expression cache compares schemas by identity; remove
+            // them to free memory.
+            internalConnection.getServer().getAggregationManager()
+                .expResultCache.flush(this);
+        }
+        queryPlanCache.clear();
     }
 
     protected void finalize() throws Throwable {
@@ -1326,6 +1341,15 @@ System.out.println("RolapSchema.createMemberReader: CONTAINS NAME");
         return internalConnection;
     }
 
+    /**
+     * Returns the cache of plans of queries against this schema.
+     *
+     * @return Query plan cache
+     */
+    public QueryPlanCache getQueryPlanCache() {
+        return queryPlanCache;
+    }
+
     private RolapStar makeRolapStar(final MondrianDef.Relation fact) {
         DataSource dataSource = getInternalConnection().getDataSource();
         return new RolapStar(this, dataSource, fact);
@@ -4,7 +4,7 @@
  // http://www.eclipse.org/legal/epl-v10.html.
  // You must accept the terms of that agreement to use this software.
  //
- // Copyright (C) 2008-2011 Pentaho and others
+ // Copyright (C) 2008-2013 Pentaho and others
  // All Rights Reserved.
  */
 package mondrian.rolap;
@@ -33,7 +33,7 @@ class RolapSetEvaluator
     /**
      * Value of this named set; set on first use.
      */
-    private TupleList list;
+    private volatile TupleList list;
     /**
      * Dummy list used as a marker to detect re-entrant calls to
      * {@link #ensureList}.
@@ -61,8 +61,21 @@ class RolapSetEvaluator
     }
 
     public TupleIterable evaluateTupleIterable() {
-        ensureList();
-        return list;
+        final TupleList list = this.list;
+        if (list != null && list != DUMMY_LIST) {
+            return list;
+        }
+        // When cells are evaluated in parallel, another thread may be
+        // evaluating this set. Wait for it, rather than mistaking its work
+        // for a recursive reference. The lock is the same one that
+        // RolapResult.evaluateExp holds. A thread that waits for it must not
+        // have been forked by the thread that holds it, so ParallelEvaluator
+        // does not fork while it holds the lock and the context contains a
+        // calculated member, whose set may be evaluated here.
+        synchronized (rrer.result) {
+            ensureList();
+            return this.list;
+        }
     }
 
     /**
@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2001-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 //
 // jhyde, 12 August, 2001
@@ -142,24 +142,28 @@ public class RolapStar {
         // causes an AggregationKey to be created?
         AggregationKey aggregationKey = new AggregationKey(request);
 
-        final Bar bar = localBars.get();
-        for (SegmentWithData segment : Util.GcIterator.over(bar.segmentRefs)) {
-            if (!segment.getConstrainedColumnsBitKey().equals(
-                    request.getConstrainedColumnsBitKey()))
+        final Bar bar = getBar();
+        synchronized (bar) {
+            for (SegmentWithData segment
+                : Util.GcIterator.over(bar.segmentRefs))
             {
-                continue;
-            }
+                if (!segment.getConstrainedColumnsBitKey().equals(
+                        request.getConstrainedColumnsBitKey()))
+                {
+                    continue;
+                }
 
-            if (!segment.matches(aggregationKey, request.getMeasure())) {
-                continue;
-            }
+                if (!segment.matches(aggregationKey, request.getMeasure())) {
+                    continue;
+                }
 
-            Object o = segment.getCellValue(request.getSingleValues());
-            if (o != null) {
-                if (pinSet != null) {
-                    ((AggregationManager.PinSetImpl) pinSet).add(segment);
+                Object o = segment.getCellValue(request.getSingleValues());
+                if (o != null) {
+                    if (pinSet != null) {
+                        ((AggregationManager.PinSetImpl) pinSet).add(segment);
+                    }
+                    return o;
                 }
-                return o;
             }
         }
         // No segment contains the requested cell.
@@ -187,8 +191,10 @@ public class RolapStar {
     }
 
     public void register(SegmentWithData segment) {
-        localBars.get().segmentRefs.add(
-            new SoftReference<SegmentWithData>(segment));
+        final Bar bar = getBar();
+        synchronized (bar) {
+            bar.segmentRefs.add(new SoftReference<SegmentWithData>(segment));
+        }
     }
 
     public RolapStatisticsCache getStatisticsCache() {
@@ -196,9 +202,12 @@ public class RolapStar {
     }
 
     /**
-     * Temporary. Contains the local cache for a particular thread. Because
-     * it is accessed via a thread-local, the data structures can be accessed
-     * without acquiring locks.
+     * Temporary. Contains the local cache for a particular thread.
+     *
+     * <p>A bar is usually accessed only by the thread that owns it, but
+     * worker threads that evaluate cells on behalf of a statement share the
+     * bar of the statement's thread (see {@link #setLocalCacheOwner}), so
+     * its data structures are accessed while holding its lock.
      *
      * @see Util#deprecated(Object)
      */
@@ -211,13 +220,82 @@ public class RolapStar {
             new ArrayList<SoftReference<SegmentWithData>>();
     }
 
+    /**
+     * Local caches, keyed by the thread that owns them. Threads that have
+     * ended are removed automatically.
+     */
+    private final Map<Thread, Bar> barsByThread =
+        new WeakHashMap<Thread, Bar>();
+
     private final ThreadLocal<Bar> localBars =
         new ThreadLocal<Bar>() {
             protected Bar initialValue() {
-                return new Bar();
+                return lookupBar(Thread.currentThread());
             }
         };
 
+    /**
+     * Thread whose local cache the current thread uses, or null if it uses
+     * its own.
+     */
+    private static final ThreadLocal<Thread> LOCAL_CACHE_OWNER =
+        new ThreadLocal<Thread>();
+
+    /**
+     * Causes the current thread to use the local cache of another thread,
+     * in all stars. Worker threads call this method so that they see the
+     * segments that have been loaded for the statement they are working
+     * for, and so that segments they register are seen by that statement.
+     *
+     * @param owner Thread whose local cache to use, or null to revert to the
+     *   current thread's own local cache
+     * @return Previous owner, or null if the current thread was using its own
+     *   local cache
+     */
+    public static Thread setLocalCacheOwner(Thread owner) {
+        final Thread previous = LOCAL_CACHE_OWNER.get();
+        if (owner == null) {
+            Util.threadLocalRemove(LOCAL_CACHE_OWNER);
+        } else {
+            LOCAL_CACHE_OWNER.set(owner);
+        }
+        return previous;
+    }
+
+    /**
+     * Returns the thread whose local cache the current thread is using; the
+     * current thread itself, unless {@link #setLocalCacheOwner} has been
+     * called.
+     *
+     * @return Owner of the local cache, never null
+     */
+    public static Thread getLocalCacheOwner() {
+        final Thread owner = LOCAL_CACHE_OWNER.get();
+        return owner == null ? Thread.currentThread() : owner;
+    }
+
+    /**
+     * Returns the local cache that the current thread should use.
+     */
+    private Bar getBar() {
+        final Thread owner = LOCAL_CACHE_OWNER.get();
+        if (owner != null) {
+            return lookupBar(owner);
+        }
+        return localBars.get();
+    }
+
+    private Bar lookupBar(Thread thread) {
+        synchronized (barsByThread) {
+            Bar bar = barsByThread.get(thread);
+            if (bar == null) {
+                bar = new Bar();
+                barsByThread.put(thread, bar);
+            }
+            return bar;
+        }
+    }
+
     private static class StarNetworkNode {
         private StarNetworkNode parent;
         private MondrianDef.Relation origRel;
@@ -547,8 +625,11 @@ public class RolapStar {
             }
 
             // Clear aggregation cache for the current thread context.
-            localBars.get().aggregations.clear();
-            localBars.get().segmentRefs.clear();
+            final Bar bar = getBar();
+            synchronized (bar) {
+                bar.aggregations.clear();
+                bar.segmentRefs.clear();
+            }
         }
     }
 
@@ -572,8 +653,10 @@ public class RolapStar {
             new Aggregation(
                 aggregationKey);
 
-        localBars.get().aggregations.put(
-            aggregationKey, aggregation);
+        final Bar bar = getBar();
+        synchronized (bar) {
+            bar.aggregations.put(aggregationKey, aggregation);
+        }
 
         // Let the change listener get the opportunity to register the
         // first time the aggregation is used
@@ -596,7 +679,10 @@ public class RolapStar {
      * @see Util#deprecated(Object)  currently always returns null -- remove
      */
     public Aggregation lookupSegment(AggregationKey aggregationKey) {
-        return localBars.get().aggregations.get(aggregationKey);
+        final Bar bar = getBar();
+        synchronized (bar) {
+            return bar.aggregations.get(aggregationKey);
+        }
     }
 
     /** For testing purposes only.  */
@@ -46,6 +46,8 @@ public class RolapUtil {
         Logger.getLogger("mondrian.server.monitor");
     public static final Logger PROFILE_LOGGER =
         Logger.getLogger("mondrian.profile");
+    public static final Logger WORKLOAD_LOGGER =
+        Logger.getLogger("mondrian.server.monitor.workload");
 
     static final Logger LOGGER = Logger.getLogger(RolapUtil.class);
     private static Semaphore querySemaphore;
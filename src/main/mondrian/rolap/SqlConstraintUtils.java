@@ -1257,7 +1257,7 @@ public class SqlConstraintUtils {
                 Double.valueOf(columnValue);
             }
             final StringBuilder buf = new StringBuilder();
-            query.getDialect().quote(buf, columnValue, datatype);
+            query.quote(buf, columnValue, datatype);
             String value = buf.toString();
             if (caseSensitive && datatype == Dialect.Datatype.String) {
                 // Some databases (like DB2) compare case-sensitive. We convert
@@ -1299,7 +1299,7 @@ public class SqlConstraintUtils {
             final StringBuilder buf = new StringBuilder();
             buf.append(columnString);
             buf.append(" = ");
-            query.getDialect().quote(buf, columnValue, datatype);
+            query.quote(buf, columnValue, datatype);
             return buf.toString();
         }
     }
@@ -27,6 +27,7 @@ import org.eigenbase.util.property.StringProperty;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import javax.sql.DataSource;
 
@@ -50,6 +51,15 @@ class SqlMemberSource
     private boolean assignOrderKeys;
     private Map<Object, Object> valuePool;
 
+    /**
+     * Member queries in progress, keyed by hierarchy, level or parent member,
+     * and constraint. Concurrent requests for the same members share one SQL
+     * statement.
+     */
+    private final InFlightRegistry<List<Object>, List<RolapMember>>
+        inFlightRegistry =
+        new InFlightRegistry<List<Object>, List<RolapMember>>();
+
     SqlMemberSource(RolapHierarchy hierarchy) {
         this.hierarchy = hierarchy;
         this.dataSource =
@@ -494,12 +504,32 @@ RME is this right
     }
 
     public List<RolapMember> getMembersInLevel(
-        RolapLevel level,
-        TupleConstraint constraint)
+        final RolapLevel level,
+        final TupleConstraint constraint)
     {
         if (level.isAll()) {
             return Collections.singletonList(hierarchy.getAllMember());
         }
+        final Object cacheKey = constraint.getCacheKey();
+        if (cacheKey == null) {
+            return getMembersInLevel2(level, constraint);
+        }
+        final List<RolapMember> members =
+            inFlightRegistry.execute(
+                Arrays.<Object>asList(hierarchy, level, cacheKey),
+                new Callable<List<RolapMember>>() {
+                    public List<RolapMember> call() {
+                        return getMembersInLevel2(level, constraint);
+                    }
+                });
+        // Another thread may be using the same list.
+        return new ArrayList<RolapMember>(members);
+    }
+
+    private List<RolapMember> getMembersInLevel2(
+        RolapLevel level,
+        TupleConstraint constraint)
+    {
         final TupleReader tupleReader =
             level.getDimension().isHighCardinality()
                 ? new HighCardSqlTupleReader(constraint)
@@ -891,6 +921,29 @@ RME is this right
     }
 
     private void getMemberChildren2(
+        final RolapMember parentMember,
+        List<RolapMember> children,
+        final MemberChildrenConstraint constraint)
+    {
+        final Object cacheKey = constraint.getCacheKey();
+        if (cacheKey == null) {
+            getMemberChildren3(parentMember, children, constraint);
+            return;
+        }
+        children.addAll(
+            inFlightRegistry.execute(
+                Arrays.<Object>asList(hierarchy, parentMember, cacheKey),
+                new Callable<List<RolapMember>>() {
+                    public List<RolapMember> call() {
+                        final List<RolapMember> list =
+                            new ArrayList<RolapMember>();
+                        getMemberChildren3(parentMember, list, constraint);
+                        return list;
+                    }
+                }));
+    }
+
+    private void getMemberChildren3(
         RolapMember parentMember,
         List<RolapMember> children,
         MemberChildrenConstraint constraint)
@@ -1190,7 +1243,7 @@ RME is this right
         String parentId = level.getParentExp().getExpression(sqlQuery);
 
         StringBuilder buf = new StringBuilder();
-        sqlQuery.getDialect().quote(buf, member.getKey(), level.getDatatype());
+        sqlQuery.quote(buf, member.getKey(), level.getDatatype());
         sqlQuery.addWhere(parentId, " = ", buf.toString());
 
         hierarchy.addToFrom(sqlQuery, level.getKeyExp());
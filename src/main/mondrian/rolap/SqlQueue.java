@@ -0,0 +1,290 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.Util;
+import mondrian.server.Execution;
+import mondrian.server.Locus;
+import mondrian.server.monitor.SqlStatementEvent;
+
+import java.util.EmptyStackException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+
+/**
+ * Queue that controls how many SQL statements may execute simultaneously
+ * against a data source, and in what order waiting statements start.
+ *
+ * <p>There is one queue per {@link DataSource}; call
+ * {@link #forDataSource(DataSource)} to get it. {@link SqlStatement} enters
+ * the queue before it executes, and leaves when it is closed, so member,
+ * tuple, segment and drill-through SQL are all subject to it.</p>
+ *
+ * <p>The number of statements executing in a queue is limited by
+ * {@link MondrianProperties#SqlQueueLimit}, and the number of each
+ * {@link Priority} by {@link MondrianProperties#SqlQueueDrillThroughLimit}
+ * and {@link MondrianProperties#SqlQueueCacheWarmingLimit}. When a statement
+ * leaves, the waiting statement of highest priority that is allowed to
+ * start does so.</p>
+ *
+ * <p>The limits are read each time a statement enters the queue, so they
+ * can be changed while the server is running.</p>
+ *
+ * <p>A statement waits in the thread that will execute it. Segment loads
+ * execute in an executor per data source (see
+ * {@link mondrian.rolap.agg.SegmentCacheManager#getSqlExecutor}), so
+ * statements waiting for one data source do not hold up statements against
+ * another.</p>
+ *
+ * @author agent
+ */
+public class SqlQueue {
+    private static final Map<DataSource, SqlQueue> QUEUES =
+        new WeakHashMap<DataSource, SqlQueue>();
+
+    private static final AtomicInteger ID_GENERATOR = new AtomicInteger();
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * Interval, in milliseconds, at which a statement that is waiting to
+     * start checks whether it has been canceled or has timed out.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Name of this queue. Unique within this JVM.
+     */
+    public final String name;
+
+    private final int[] activeCounts = new int[PRIORITIES.length];
+    private final int[] waitingCounts = new int[PRIORITIES.length];
+    private int activeCount;
+
+    /**
+     * Creates a SqlQueue.
+     *
+     * @param name Name
+     */
+    SqlQueue(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the queue for a given data source, creating it if necessary.
+     *
+     * @param dataSource Data source
+     * @return Queue
+     */
+    public static SqlQueue forDataSource(DataSource dataSource) {
+        synchronized (QUEUES) {
+            SqlQueue queue = QUEUES.get(dataSource);
+            if (queue == null) {
+                queue =
+                    new SqlQueue(
+                        "SqlQueue#" + ID_GENERATOR.getAndIncrement()
+                        + "(" + dataSource + ")");
+                QUEUES.put(dataSource, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Returns the priority of a SQL statement.
+     *
+     * <p>Statements executed on behalf of a cache-warming execution (see
+     * {@link mondrian.server.Execution#isCacheWarming()}) have priority
+     * {@link Priority#CACHE_WARMING}; drill-through statements have
+     * priority {@link Priority#DRILL_THROUGH}; all others are
+     * {@link Priority#INTERACTIVE}.</p>
+     *
+     * @param locus Locus of statement
+     * @param purpose Purpose of statement
+     * @return Priority
+     */
+    public static Priority priority(
+        Locus locus,
+        SqlStatementEvent.Purpose purpose)
+    {
+        if (locus.execution.isCacheWarming()) {
+            return Priority.CACHE_WARMING;
+        }
+        if (purpose == SqlStatementEvent.Purpose.DRILL_THROUGH) {
+            return Priority.DRILL_THROUGH;
+        }
+        return Priority.INTERACTIVE;
+    }
+
+    /**
+     * Enters the queue, waiting if necessary until a statement of the given
+     * priority is allowed to start.
+     *
+     * <p>While it waits, the thread checks periodically whether its
+     * statement has been canceled or has timed out, and if so, leaves the
+     * queue and throws.</p>
+     *
+     * <p>Every call that returns normally must be matched by a call to
+     * {@link #leave(Priority)} with the same priority.</p>
+     *
+     * @param priority Priority of statement
+     * @return Time spent waiting, in nanoseconds
+     */
+    public synchronized long enter(Priority priority) {
+        final int ordinal = priority.ordinal();
+        if (canStart(ordinal)) {
+            ++activeCounts[ordinal];
+            ++activeCount;
+            return 0;
+        }
+        Execution execution;
+        try {
+            execution = Locus.peek().execution;
+        } catch (EmptyStackException e) {
+            execution = null;
+        }
+        final long startNanos = System.nanoTime();
+        ++waitingCounts[ordinal];
+        boolean started = false;
+        try {
+            do {
+                wait(POLL_MILLIS);
+                if (execution != null) {
+                    execution.checkCancelOrTimeout();
+                }
+            } while (!canStart(ordinal));
+            started = true;
+        } catch (InterruptedException e) {
+            throw Util.newInternal(e, "while waiting for " + name);
+        } finally {
+            --waitingCounts[ordinal];
+            if (!started) {
+                // Another statement may be allowed to start in our place.
+                notifyAll();
+            }
+        }
+        ++activeCounts[ordinal];
+        ++activeCount;
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Leaves the queue, allowing a waiting statement to start.
+     *
+     * @param priority Priority that was passed to {@link #enter(Priority)}
+     */
+    public synchronized void leave(Priority priority) {
+        assert activeCounts[priority.ordinal()] > 0;
+        --activeCounts[priority.ordinal()];
+        --activeCount;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of statements currently executing.
+     *
+     * @return Number of statements executing
+     */
+    public synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Returns the number of statements of a given priority that are waiting
+     * to start.
+     *
+     * @param priority Priority
+     * @return Number of statements waiting
+     */
+    public synchronized int getWaitingCount(Priority priority) {
+        return waitingCounts[priority.ordinal()];
+    }
+
+    /**
+     * Returns whether a statement of a given priority may start now. Called
+     * while holding the lock.
+     *
+     * <p>It may start if neither the limit for the queue nor the limit for
+     * the priority has been reached, and no statement of higher priority is
+     * waiting that could start instead.</p>
+     */
+    private boolean canStart(int ordinal) {
+        final int limit = MondrianProperties.instance().SqlQueueLimit.get();
+        if (limit > 0 && activeCount >= limit) {
+            return false;
+        }
+        if (!belowLimit(ordinal)) {
+            return false;
+        }
+        for (int i = 0; i < ordinal; i++) {
+            if (waitingCounts[i] > 0 && belowLimit(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean belowLimit(int ordinal) {
+        final int limit = PRIORITIES[ordinal].limit();
+        return limit <= 0 || activeCounts[ordinal] < limit;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Priority of a SQL statement. Values are in descending order of
+     * priority.
+     */
+    public enum Priority {
+        /**
+         * Statement that reads cells, members or tuples on behalf of a
+         * query.
+         */
+        INTERACTIVE {
+            int limit() {
+                return 0;
+            }
+        },
+
+        /**
+         * Statement that reads the fact rows underlying a cell.
+         */
+        DRILL_THROUGH {
+            int limit() {
+                return MondrianProperties.instance().SqlQueueDrillThroughLimit
+                    .get();
+            }
+        },
+
+        /**
+         * Statement that loads data into the cache in advance of any query.
+         */
+        CACHE_WARMING {
+            int limit() {
+                return MondrianProperties.instance().SqlQueueCacheWarmingLimit
+                    .get();
+            }
+        };
+
+        /**
+         * Returns the maximum number of statements of this priority that may
+         * execute simultaneously in a queue, or 0 if there is no limit
+         * other than that of the queue.
+         */
+        abstract int limit();
+    }
+}
+
+// End SqlQueue.java
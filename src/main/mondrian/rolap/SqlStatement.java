@@ -9,8 +9,10 @@
 */
 package mondrian.rolap;
 
+import mondrian.olap.MondrianProperties;
 import mondrian.olap.Util;
 import mondrian.olap.Util.Functor1;
+import mondrian.rolap.sql.SqlQuery;
 import mondrian.server.Execution;
 import mondrian.server.Locus;
 import mondrian.server.monitor.*;
@@ -71,6 +73,8 @@ public class SqlStatement {
     private Connection jdbcConnection;
     private ResultSet resultSet;
     private final String sql;
+    private final List<SqlQuery.BindVariable> bindVariables =
+        new ArrayList<SqlQuery.BindVariable>();
     private final List<Type> types;
     private final int maxRows;
     private final int firstRowOrdinal;
@@ -78,8 +82,15 @@ public class SqlStatement {
     private final int resultSetType;
     private final int resultSetConcurrency;
     private boolean haveSemaphore;
+    private SqlQueue queue;
+    private SqlQueue.Priority queuePriority;
+    private long queueWaitNanos;
+    private int fetchSize;
+    private boolean restoreAutoCommit;
+    private int rowByteCount;
     public int rowCount;
     private long startTimeNanos;
+    private long executeEndNanos;
     private long startTimeMillis;
     private final List<Accessor> accessors = new ArrayList<Accessor>();
     private State state = State.FRESH;
@@ -90,7 +101,8 @@ public class SqlStatement {
      * Creates a SqlStatement.
      *
      * @param dataSource Data source
-     * @param sql SQL
+     * @param sql SQL; may contain bind variables generated by
+     *     {@link SqlQuery#quote}
      * @param types Suggested types of columns, or null;
      *     if present, must have one element for each SQL column;
      *     each not-null entry overrides deduced JDBC type of the column
@@ -114,7 +126,7 @@ public class SqlStatement {
         this.callback = callback;
         this.id = ID_GENERATOR.getAndIncrement();
         this.dataSource = dataSource;
-        this.sql = sql;
+        this.sql = SqlQuery.extractBindVariables(sql, bindVariables);
         this.types = types;
         this.maxRows = maxRows;
         this.firstRowOrdinal = firstRowOrdinal;
@@ -134,9 +146,27 @@ public class SqlStatement {
         String status = "failed";
         Statement statement;
         try {
+            // Wait for our turn on the data source before we take a
+            // connection from its pool.
+            queuePriority = SqlQueue.priority(locus, getPurpose());
+            final SqlQueue queue = SqlQueue.forDataSource(dataSource);
+            queueWaitNanos = queue.enter(queuePriority);
+            this.queue = queue;
             this.jdbcConnection = dataSource.getConnection();
             querySemaphore.enter();
             haveSemaphore = true;
+
+            // If the result set may be large, ask the driver to stream it.
+            // Some drivers only stream within a transaction.
+            final Dialect dialect = getDialect();
+            fetchSize = getStreamingFetchSize(dialect);
+            if (fetchSize != 0
+                && dialect.requiresTransactionForStreaming()
+                && jdbcConnection.getAutoCommit())
+            {
+                jdbcConnection.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
             // Trace start of execution.
             if (RolapUtil.SQL_LOGGER.isDebugEnabled()) {
                 StringBuilder sqllog = new StringBuilder();
@@ -151,6 +181,9 @@ public class SqlStatement {
                 }
                 sqllog.append(sql);
                 sqllog.append(']');
+                if (!bindVariables.isEmpty()) {
+                    sqllog.append(" with values ").append(bindVariables);
+                }
                 RolapUtil.SQL_LOGGER.debug(sqllog.toString());
             }
 
@@ -161,15 +194,41 @@ public class SqlStatement {
             }
             startTimeNanos = System.nanoTime();
             startTimeMillis = System.currentTimeMillis();
-            if (resultSetType < 0 || resultSetConcurrency < 0) {
-                statement = jdbcConnection.createStatement();
+            final PreparedStatement preparedStatement;
+            if (bindVariables.isEmpty()) {
+                preparedStatement = null;
+                if (resultSetType < 0 || resultSetConcurrency < 0) {
+                    statement = jdbcConnection.createStatement();
+                } else {
+                    statement = jdbcConnection.createStatement(
+                        resultSetType,
+                        resultSetConcurrency);
+                }
             } else {
-                statement = jdbcConnection.createStatement(
-                    resultSetType,
-                    resultSetConcurrency);
+                // If the connection pools statements, this may reuse a
+                // statement that was prepared earlier with the same SQL.
+                if (resultSetType < 0 || resultSetConcurrency < 0) {
+                    preparedStatement = jdbcConnection.prepareStatement(sql);
+                } else {
+                    preparedStatement = jdbcConnection.prepareStatement(
+                        sql,
+                        resultSetType,
+                        resultSetConcurrency);
+                }
+                int i = 0;
+                for (SqlQuery.BindVariable bindVariable : bindVariables) {
+                    bindVariable.bind(preparedStatement, ++i);
+                }
+                statement = preparedStatement;
+            }
+            // A prepared statement may come from the connection's statement
+            // pool, still carrying the settings of its previous use, so reset
+            // them even if this statement wants the defaults.
+            if (maxRows > 0 || preparedStatement != null) {
+                statement.setMaxRows(Math.max(maxRows, 0));
             }
-            if (maxRows > 0) {
-                statement.setMaxRows(maxRows);
+            if (fetchSize != 0 || preparedStatement != null) {
+                statement.setFetchSize(fetchSize);
             }
 
             // First make sure to register with the execution instance.
@@ -190,7 +249,11 @@ public class SqlStatement {
                     getPurpose(),
                     getCellRequestCount()));
 
-            this.resultSet = statement.executeQuery(sql);
+            if (preparedStatement != null) {
+                this.resultSet = preparedStatement.executeQuery();
+            } else {
+                this.resultSet = statement.executeQuery(sql);
+            }
 
             // skip to first row specified in request
             this.state = State.ACTIVE;
@@ -211,6 +274,7 @@ public class SqlStatement {
 
             long timeMillis = System.currentTimeMillis();
             long timeNanos = System.nanoTime();
+            executeEndNanos = timeNanos;
             final long executeNanos = timeNanos - startTimeNanos;
             final long executeMillis = executeNanos / 1000000;
             Util.addDatabaseTime(executeMillis);
@@ -223,7 +287,10 @@ public class SqlStatement {
                     locus,
                     sql,
                     getPurpose(),
-                    executeNanos));
+                    executeNanos,
+                    queue.name,
+                    queuePriority,
+                    queueWaitNanos));
 
             // Compute accessors. They ensure that we use the most efficient
             // method (e.g. getInt, getDouble, getObject) for the type of the
@@ -235,6 +302,7 @@ public class SqlStatement {
             for (Type type : guessTypes()) {
                 accessors.add(createAccessor(accessors.size(), type));
             }
+            rowByteCount = estimateRowByteCount(resultSet.getMetaData());
         } catch (Throwable e) {
             status = ", failed (" + e + ")";
             if (e instanceof Error) {
@@ -278,12 +346,32 @@ public class SqlStatement {
             haveSemaphore = false;
             querySemaphore.leave();
         }
+        if (queue != null) {
+            queue.leave(queuePriority);
+            queue = null;
+        }
 
         // According to the JDBC spec, closing a statement automatically closes
         // its result sets, and closing a connection automatically closes its
         // statements. But let's be conservative and close everything
         // explicitly.
-        SQLException ex = Util.close(resultSet, null, jdbcConnection);
+        SQLException ex = Util.close(resultSet, null, null);
+        if (restoreAutoCommit) {
+            // Ends the transaction that we started in order to stream, before
+            // the connection goes back to the pool.
+            restoreAutoCommit = false;
+            try {
+                jdbcConnection.setAutoCommit(true);
+            } catch (SQLException e) {
+                if (ex == null) {
+                    ex = e;
+                }
+            }
+        }
+        final SQLException ex2 = Util.close(null, null, jdbcConnection);
+        if (ex == null) {
+            ex = ex2;
+        }
         resultSet = null;
         jdbcConnection = null;
 
@@ -295,6 +383,8 @@ public class SqlStatement {
 
         long endTime = System.currentTimeMillis();
         long totalMs = endTime - startTimeMillis;
+        final long fetchNanos =
+            executeEndNanos == 0 ? 0 : System.nanoTime() - executeEndNanos;
         String status =
             ", exec+fetch " + totalMs + " ms, " + rowCount + " rows";
 
@@ -328,10 +418,77 @@ public class SqlStatement {
                 sql,
                 getPurpose(),
                 rowCount,
+                fetchNanos,
+                (long) rowByteCount * getBufferedRowCount(),
                 false,
                 null));
     }
 
+    /**
+     * Returns the fetch size with which to stream this statement's result
+     * set, or 0 to leave the driver's default.
+     *
+     * @param dialect Dialect, or null if not known
+     * @return Fetch size, or 0
+     */
+    private int getStreamingFetchSize(Dialect dialect) {
+        final int fetchSize =
+            MondrianProperties.instance().StreamingFetchSize.get();
+        if (fetchSize <= 0 || dialect == null) {
+            return 0;
+        }
+        switch (getPurpose()) {
+        case CELL_SEGMENT:
+        case TUPLES:
+        case DRILL_THROUGH:
+            break;
+        default:
+            // Other statements return few rows.
+            return 0;
+        }
+        if (resultSetType >= 0 && resultSetType != ResultSet.TYPE_FORWARD_ONLY
+            || resultSetConcurrency >= 0
+            && resultSetConcurrency != ResultSet.CONCUR_READ_ONLY)
+        {
+            // Drivers cannot stream scrollable or updatable result sets.
+            return 0;
+        }
+        return dialect.getStreamingFetchSize(fetchSize);
+    }
+
+    /**
+     * Returns the number of rows that the driver held in memory at one time,
+     * assuming that a driver that is not streaming reads the whole result
+     * set.
+     */
+    private long getBufferedRowCount() {
+        if (fetchSize == 0) {
+            return rowCount;
+        } else if (fetchSize == Integer.MIN_VALUE) {
+            return Math.min(1, rowCount);
+        } else {
+            return Math.min(fetchSize, rowCount);
+        }
+    }
+
+    /**
+     * Estimates the number of bytes that a row of a result set occupies in
+     * the driver's buffers.
+     */
+    private static int estimateRowByteCount(ResultSetMetaData metaData)
+        throws SQLException
+    {
+        int n = 0;
+        for (int i = 0; i < metaData.getColumnCount(); i++) {
+            // The display size of a CLOB or unbounded VARCHAR column is huge;
+            // assume that its values are not much longer than a name. Allow
+            // 8 bytes per value for the object that holds it.
+            final int displaySize = metaData.getColumnDisplaySize(i + 1);
+            n += Math.min(Math.max(displaySize, 1), 256) + 8;
+        }
+        return n;
+    }
+
     public ResultSet getResultSet() {
         return resultSet;
     }
@@ -411,19 +568,14 @@ public class SqlStatement {
         assert this.types == null || this.types.size() == columnCount;
         List<Type> types = new ArrayList<Type>();
 
+        final Dialect dialect = getDialect();
         for (int i = 0; i < columnCount; i++) {
             final Type suggestedType =
                 this.types == null ? null : this.types.get(i);
-            // There might not be a schema constructed yet,
-            // so watch out here for NPEs.
-            RolapSchema schema = locus.execution.getMondrianStatement()
-                .getMondrianConnection()
-                .getSchema();
-
             if (suggestedType != null) {
                 types.add(suggestedType);
-            } else if (schema != null && schema.getDialect() != null) {
-                types.add(schema.getDialect().getType(metaData, i));
+            } else if (dialect != null) {
+                types.add(dialect.getType(metaData, i));
             } else {
                 types.add(Type.OBJECT);
             }
@@ -452,6 +604,19 @@ public class SqlStatement {
             new MyDelegatingInvocationHandler(this));
     }
 
+    /**
+     * Returns the dialect of the schema that this statement is executing on
+     * behalf of, or null.
+     */
+    private Dialect getDialect() {
+        // There might not be a schema constructed yet,
+        // so watch out here for NPEs.
+        RolapSchema schema = locus.execution.getMondrianStatement()
+            .getMondrianConnection()
+            .getSchema();
+        return schema == null ? null : schema.getDialect();
+    }
+
     private SqlStatementEvent.Purpose getPurpose() {
         if (locus instanceof StatementLocus) {
             return ((StatementLocus) locus).purpose;
@@ -556,6 +721,9 @@ public class SqlStatement {
     public static class StatementLocus extends Locus {
         private final SqlStatementEvent.Purpose purpose;
         private final int cellRequestCount;
+        private final RolapStar star;
+        private final BitKey levelBitKey;
+        private final BitKey measureBitKey;
 
         public StatementLocus(
             Execution execution,
@@ -563,6 +731,34 @@ public class SqlStatement {
             String message,
             SqlStatementEvent.Purpose purpose,
             int cellRequestCount)
+        {
+            this(
+                execution, component, message, purpose, cellRequestCount,
+                null, null, null);
+        }
+
+        /**
+         * Creates a StatementLocus for a statement that loads cell segments.
+         *
+         * @param execution Execution
+         * @param component Component
+         * @param message Message
+         * @param purpose Purpose
+         * @param cellRequestCount Number of missed cells that led to this
+         *     request
+         * @param star Star whose segments are being loaded, or null
+         * @param levelBitKey Constrained columns of the segments, or null
+         * @param measureBitKey Measures of the segments, or null
+         */
+        public StatementLocus(
+            Execution execution,
+            String component,
+            String message,
+            SqlStatementEvent.Purpose purpose,
+            int cellRequestCount,
+            RolapStar star,
+            BitKey levelBitKey,
+            BitKey measureBitKey)
         {
             super(
                 execution,
@@ -570,6 +766,33 @@ public class SqlStatement {
                 message);
             this.purpose = purpose;
             this.cellRequestCount = cellRequestCount;
+            this.star = star;
+            this.levelBitKey = levelBitKey;
+            this.measureBitKey = measureBitKey;
+        }
+
+        /**
+         * Returns the star whose segments this statement is loading, or null
+         * if it is not loading segments.
+         */
+        public RolapStar getStar() {
+            return star;
+        }
+
+        /**
+         * Returns the constrained columns of the segments that this
+         * statement is loading, or null.
+         */
+        public BitKey getLevelBitKey() {
+            return levelBitKey;
+        }
+
+        /**
+         * Returns the measures of the segments that this statement is
+         * loading, or null.
+         */
+        public BitKey getMeasureBitKey() {
+            return measureBitKey;
         }
     }
 }
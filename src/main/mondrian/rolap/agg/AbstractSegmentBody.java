@@ -10,6 +10,7 @@
 package mondrian.rolap.agg;
 
 import mondrian.rolap.CellKey;
+import mondrian.rolap.SqlStatement;
 import mondrian.spi.SegmentBody;
 import mondrian.util.Pair;
 
@@ -79,6 +80,89 @@ abstract class AbstractSegmentBody implements SegmentBody {
 
     protected abstract Object getObject(int i);
 
+    /**
+     * Returns an estimate of the number of bytes of heap used by this
+     * segment body: its values, null indicators and axis values.
+     *
+     * <p>The estimate assumes a 64-bit JVM. It is used to account for the
+     * size of segments in a memory-bounded cache, and need not be exact.</p>
+     *
+     * @return Estimated size in bytes
+     */
+    public long getEstimatedByteSize() {
+        long size = OBJECT_BYTES + getEstimatedValueByteSize();
+        for (SortedSet<Comparable> axisValueSet : axisValueSets) {
+            size += OBJECT_BYTES
+                + axisValueSet.size() * (AXIS_ENTRY_BYTES + OBJECT_BYTES);
+        }
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes used by the values of
+     * this segment body, including null indicators but excluding axes.
+     *
+     * @return Estimated size of values in bytes
+     */
+    protected abstract long getEstimatedValueByteSize();
+
+    /** Estimated size of an object header, or a small object such as a
+     * boxed number. */
+    static final int OBJECT_BYTES = 16;
+
+    /** Estimated size of an object reference. */
+    static final int REFERENCE_BYTES = 8;
+
+    /** Estimated size of an entry in a sorted set, excluding the key. */
+    static final int AXIS_ENTRY_BYTES = 40;
+
+    /**
+     * Returns the estimated size in bytes of a bit-set.
+     */
+    static long estimateByteSize(BitSet bitSet) {
+        return OBJECT_BYTES + bitSet.size() / 8;
+    }
+
+    /**
+     * Estimates the number of bytes that the values of a dense body would
+     * use, consistent with {@link #getEstimatedValueByteSize()} of
+     * {@link DenseDoubleSegmentBody}, {@link DenseIntSegmentBody} and
+     * {@link DenseObjectSegmentBody}.
+     *
+     * @param type Type of values
+     * @param valueCount Number of cells in the body; the product of the
+     *   lengths of the axes
+     * @param nonNullCount Number of cells that have a value
+     * @return Estimated size of values in bytes
+     */
+    static double estimateDenseValueByteSize(
+        SqlStatement.Type type,
+        double valueCount,
+        double nonNullCount)
+    {
+        switch (type) {
+        case DOUBLE:
+            return 2 * OBJECT_BYTES + 8 * valueCount + valueCount / 8;
+        case INT:
+            return 2 * OBJECT_BYTES + 4 * valueCount + valueCount / 8;
+        default:
+            return OBJECT_BYTES + REFERENCE_BYTES * valueCount
+                + OBJECT_BYTES * nonNullCount;
+        }
+    }
+
+    /**
+     * Estimates the number of bytes that the values of a
+     * {@link SparseSegmentBody} would use.
+     *
+     * @param nonNullCount Number of cells that have a value
+     * @return Estimated size of values in bytes
+     */
+    static double estimateSparseValueByteSize(double nonNullCount) {
+        return 2 * OBJECT_BYTES
+            + (8 + REFERENCE_BYTES + OBJECT_BYTES) * nonNullCount;
+    }
+
     /**
      * Iterator over all (cellkey, value) pairs in this data set.
      */
@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2005-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap.agg;
@@ -212,7 +212,9 @@ public class AggregationKey
                 new SqlQuery(
                     star.getSqlQueryDialect());
             compoundPredicate.toSql(query, buf);
-            cp.add(buf.toString());
+            // Headers are compared across servers and stored in external
+            // caches, so must not contain bind variables.
+            cp.add(SqlQuery.inlineBindVariables(buf.toString()));
         }
         return cp;
     }
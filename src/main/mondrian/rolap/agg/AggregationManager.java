@@ -20,6 +20,7 @@ import mondrian.olap.Util;
 import mondrian.rolap.*;
 import mondrian.rolap.SqlStatement.Type;
 import mondrian.rolap.aggmatcher.AggStar;
+import mondrian.rolap.sql.SqlQuery;
 import mondrian.server.Locus;
 import mondrian.util.Pair;
 
@@ -46,6 +47,12 @@ public class AggregationManager extends RolapAggregationManager {
 
     public final SegmentCacheManager cacheMgr;
 
+    /**
+     * Cache of expression values shared by the statements of this server.
+     * Flushing cells also flushes the values that may depend on them.
+     */
+    public final ExpResultCache expResultCache = new ExpResultCache();
+
     /**
      * Creates the AggregationManager.
      */
@@ -131,12 +138,7 @@ public class AggregationManager extends RolapAggregationManager {
         return new CacheControlImpl(connection) {
             protected void flushNonUnion(final CellRegion region) {
                 final SegmentCacheManager.FlushResult result =
-                    cacheMgr.execute(
-                        new SegmentCacheManager.FlushCommand(
-                            Locus.peek(),
-                            cacheMgr,
-                            region,
-                            this));
+                    cacheMgr.flush(Locus.peek(), region, this);
                 final List<Future<Boolean>> futures =
                     new ArrayList<Future<Boolean>>();
                 for (Callable<Boolean> task : result.tasks) {
@@ -145,6 +147,12 @@ public class AggregationManager extends RolapAggregationManager {
                 for (Future<Boolean> future : futures) {
                     Util.discard(Util.safeGet(future, "Flush cache"));
                 }
+                expResultCache.flush(getStarList(region));
+            }
+
+            protected void appendNonUnion(final CellRegion region) {
+                cacheMgr.append(Locus.peek(), region, this);
+                expResultCache.flush(getStarList(region));
             }
 
             public void flush(final CellRegion region) {
@@ -206,14 +214,17 @@ public class AggregationManager extends RolapAggregationManager {
                 countOnly);
         Pair<String, List<SqlStatement.Type>> pair = spec.generateSqlQuery();
 
+        // The caller may execute the SQL itself, so it must not contain
+        // bind variables.
+        final String sql = SqlQuery.inlineBindVariables(pair.left);
         if (getLogger().isDebugEnabled()) {
             getLogger().debug(
                 "DrillThroughSQL: "
-                + pair.left
+                + sql
                 + Util.nl);
         }
 
-        return pair.left;
+        return sql;
     }
 
     /**
@@ -241,11 +252,23 @@ public class AggregationManager extends RolapAggregationManager {
              && !hasCompoundPredicates)
         {
             final boolean[] rollup = {false};
-            AggStar aggStar = findAgg(star, levelBitKey, measureBitKey, rollup);
+            final List<AggStarCost> costs = new ArrayList<AggStarCost>();
+            AggStar aggStar =
+                findAgg(
+                    star, levelBitKey, measureBitKey,
+                    groupingSetsList.getDefaultPredicates(), rollup, costs);
 
             if (aggStar != null) {
                 // Got a match, hot damn
 
+                if (!costs.isEmpty()) {
+                    final String choice = describeChoice(aggStar, costs);
+                    Locus.peek().execution.getQueryTiming().markNote(choice);
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug(choice);
+                    }
+                }
+
                 if (LOGGER.isDebugEnabled()) {
                     StringBuilder buf = new StringBuilder(256);
                     buf.append("MATCH: ");
@@ -326,6 +349,31 @@ public class AggregationManager extends RolapAggregationManager {
         return pair;
     }
 
+    /**
+     * Describes the choice of an aggregate table by cost, for the explain
+     * output of a statement.
+     *
+     * @param aggStar Chosen aggregate table
+     * @param costs Estimated costs of all suitable aggregate tables
+     * @return Description
+     */
+    private static String describeChoice(
+        AggStar aggStar,
+        List<AggStarCost> costs)
+    {
+        final StringBuilder buf = new StringBuilder("AggStar chosen: ");
+        final List<AggStarCost> rejected = new ArrayList<AggStarCost>();
+        for (AggStarCost cost : costs) {
+            if (cost.aggStar == aggStar) {
+                buf.append(cost);
+            } else {
+                rejected.add(cost);
+            }
+        }
+        buf.append("; rejected: ").append(rejected);
+        return buf.toString();
+    }
+
     /**
      * Finds an aggregate table in the given star which has the desired levels
      * and measures. Returns null if no aggregate table is suitable.
@@ -347,6 +395,93 @@ public class AggregationManager extends RolapAggregationManager {
         final BitKey levelBitKey,
         final BitKey measureBitKey,
         boolean[] rollup)
+    {
+        return findAgg(star, levelBitKey, measureBitKey, null, rollup, null);
+    }
+
+    /**
+     * Finds an aggregate table in the given star which has the desired levels
+     * and measures, taking into account the predicates of the request.
+     * Returns null if no aggregate table is suitable.
+     *
+     * <p>If the property {@link MondrianProperties#ChooseAggregateByCost} is
+     * false, returns the first suitable aggregate table; the aggregate tables
+     * of a star are sorted by size, so this is the smallest. Otherwise,
+     * estimates the cost of each suitable aggregate table (see
+     * {@link #estimateCost}) and returns the cheapest.
+     *
+     * @param star Star
+     * @param levelBitKey Set of levels
+     * @param measureBitKey Set of measures
+     * @param predicates Predicates on the columns of the request, or null
+     * @param rollup Out parameter, is set to true if the aggregate is not
+     *   an exact match
+     * @param costs List to which to add the estimated cost of each suitable
+     *   aggregate table, or null; populated only if choosing by cost
+     * @return An aggregate, or null if none is suitable.
+     */
+    public static AggStar findAgg(
+        RolapStar star,
+        final BitKey levelBitKey,
+        final BitKey measureBitKey,
+        StarColumnPredicate[] predicates,
+        boolean[] rollup,
+        List<AggStarCost> costs)
+    {
+        assert rollup != null;
+        final boolean byCost =
+            MondrianProperties.instance().ChooseAggregateByCost.get();
+        final boolean[] aggRollup = {false};
+        AggStarCost best = null;
+
+        // The AggStars are already ordered from smallest to largest, so
+        // unless we are choosing by cost, we need only find the first one
+        // and return it. When choosing by cost, the earlier of two
+        // candidates of equal cost wins.
+        for (AggStar aggStar : star.getAggStars()) {
+            if (!isApplicable(aggStar, levelBitKey, measureBitKey, aggRollup)) {
+                continue;
+            }
+            if (!byCost) {
+                rollup[0] = aggRollup[0];
+                return aggStar;
+            }
+            final AggStarCost cost =
+                new AggStarCost(
+                    aggStar,
+                    aggRollup[0],
+                    estimateCost(
+                        aggStar, levelBitKey, predicates, aggRollup[0]));
+            if (costs != null) {
+                costs.add(cost);
+            }
+            if (best == null || cost.cost < best.cost) {
+                best = cost;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        rollup[0] = best.rollup;
+        return best.aggStar;
+    }
+
+    /**
+     * Returns whether an aggregate table can answer a request for the given
+     * levels and measures.
+     *
+     * @param aggStar Aggregate table
+     * @param levelBitKey Set of levels
+     * @param measureBitKey Set of measures
+     * @param rollup Out parameter, is set to true if the aggregate is not
+     *   an exact match
+     * @return Whether aggregate table is suitable
+     */
+    private static boolean isApplicable(
+        AggStar aggStar,
+        final BitKey levelBitKey,
+        final BitKey measureBitKey,
+        boolean[] rollup)
     {
         // If there is no distinct count measure, isDistinct == false,
         // then all we want is an AggStar whose BitKey is a superset
@@ -357,139 +492,234 @@ public class AggregationManager extends RolapAggregationManager {
         // whose measure BitKey is a superset of the measure BitKey,
         // whose level BitKey is an exact match and the aggregate table
         // can NOT have any foreign keys.
-        assert rollup != null;
         BitKey fullBitKey = levelBitKey.or(measureBitKey);
 
-        // The AggStars are already ordered from smallest to largest so
-        // we need only find the first one and return it.
-        for (AggStar aggStar : star.getAggStars()) {
-            // superset match
-            if (!aggStar.superSetMatch(fullBitKey)) {
-                continue;
-            }
-            boolean isDistinct = measureBitKey.intersects(
-                aggStar.getDistinctMeasureBitKey());
-
-            // The AggStar has no "distinct count" measures so
-            // we can use it without looking any further.
-            if (!isDistinct) {
-                // Need to use SUM if the query levels don't match
-                // the agg stars levels, or if the agg star is not
-                // fully collapsed.
-                rollup[0] = !aggStar.isFullyCollapsed()
-                    || (levelBitKey.isEmpty()
-                    || !aggStar.getLevelBitKey().equals(levelBitKey));
-                return aggStar;
-            }
+        // superset match
+        if (!aggStar.superSetMatch(fullBitKey)) {
+            return false;
+        }
+        boolean isDistinct = measureBitKey.intersects(
+            aggStar.getDistinctMeasureBitKey());
+
+        // The AggStar has no "distinct count" measures so
+        // we can use it without looking any further.
+        if (!isDistinct) {
+            // Need to use SUM if the query levels don't match
+            // the agg stars levels, or if the agg star is not
+            // fully collapsed.
+            rollup[0] = !aggStar.isFullyCollapsed()
+                || (levelBitKey.isEmpty()
+                || !aggStar.getLevelBitKey().equals(levelBitKey));
+            return true;
+        }
 
-            // If there are distinct measures, we can only rollup in limited
-            // circumstances.
-
-            // No foreign keys (except when its used as a distinct count
-            //   measure).
-            // Level key exact match.
-            // Measure superset match.
-
-            // Compute the core levels -- those which can be safely
-            // rolled up to. For example,
-            // if the measure is 'distinct customer count',
-            // and the agg table has levels customer_id,
-            // then gender is a core level.
-            final BitKey distinctMeasuresBitKey =
-                measureBitKey.and(aggStar.getDistinctMeasureBitKey());
-            final BitSet distinctMeasures = distinctMeasuresBitKey.toBitSet();
-            BitKey combinedLevelBitKey = null;
-            for (int k = distinctMeasures.nextSetBit(0); k >= 0;
-                k = distinctMeasures.nextSetBit(k + 1))
-            {
-                final AggStar.FactTable.Measure distinctMeasure =
-                    aggStar.lookupMeasure(k);
-                BitKey rollableLevelBitKey =
-                    distinctMeasure.getRollableLevelBitKey();
-                if (combinedLevelBitKey == null) {
-                    combinedLevelBitKey = rollableLevelBitKey;
-                } else {
-                    // TODO use '&=' to remove unnecessary copy
-                    combinedLevelBitKey =
-                        combinedLevelBitKey.and(rollableLevelBitKey);
-                }
+        // If there are distinct measures, we can only rollup in limited
+        // circumstances.
+
+        // No foreign keys (except when its used as a distinct count
+        //   measure).
+        // Level key exact match.
+        // Measure superset match.
+
+        // Compute the core levels -- those which can be safely
+        // rolled up to. For example,
+        // if the measure is 'distinct customer count',
+        // and the agg table has levels customer_id,
+        // then gender is a core level.
+        final BitKey distinctMeasuresBitKey =
+            measureBitKey.and(aggStar.getDistinctMeasureBitKey());
+        final BitSet distinctMeasures = distinctMeasuresBitKey.toBitSet();
+        BitKey combinedLevelBitKey = null;
+        for (int k = distinctMeasures.nextSetBit(0); k >= 0;
+            k = distinctMeasures.nextSetBit(k + 1))
+        {
+            final AggStar.FactTable.Measure distinctMeasure =
+                aggStar.lookupMeasure(k);
+            BitKey rollableLevelBitKey =
+                distinctMeasure.getRollableLevelBitKey();
+            if (combinedLevelBitKey == null) {
+                combinedLevelBitKey = rollableLevelBitKey;
+            } else {
+                // TODO use '&=' to remove unnecessary copy
+                combinedLevelBitKey =
+                    combinedLevelBitKey.and(rollableLevelBitKey);
             }
+        }
 
-            if (aggStar.hasForeignKeys()) {
+        if (aggStar.hasForeignKeys()) {
 /*
-                    StringBuilder buf = new StringBuilder(256);
-                    buf.append("");
-                    buf.append(star.getFactTable().getAlias());
-                    buf.append(Util.nl);
-                    buf.append("foreign =");
-                    buf.append(levelBitKey);
-                    buf.append(Util.nl);
-                    buf.append("measure =");
-                    buf.append(measureBitKey);
-                    buf.append(Util.nl);
-                    buf.append("aggstar =");
-                    buf.append(aggStar.getBitKey());
+                StringBuilder buf = new StringBuilder(256);
+                buf.append("");
+                buf.append(star.getFactTable().getAlias());
+                buf.append(Util.nl);
+                buf.append("foreign =");
+                buf.append(levelBitKey);
+                buf.append(Util.nl);
+                buf.append("measure =");
+                buf.append(measureBitKey);
+                buf.append(Util.nl);
+                buf.append("aggstar =");
+                buf.append(aggStar.getBitKey());
+                buf.append(Util.nl);
+                buf.append("distinct=");
+                buf.append(aggStar.getDistinctMeasureBitKey());
+                buf.append(Util.nl);
+                buf.append("AggStar=");
+                buf.append(aggStar.getFactTable().getName());
+                buf.append(Util.nl);
+                for (Iterator columnIter =
+                        aggStar.getFactTable().getColumns().iterator();
+                     columnIter.hasNext();) {
+                    AggStar.Table.Column column =
+                            (AggStar.Table.Column) columnIter.next();
+                    buf.append("   ");
+                    buf.append(column);
                     buf.append(Util.nl);
-                    buf.append("distinct=");
-                    buf.append(aggStar.getDistinctMeasureBitKey());
-                    buf.append(Util.nl);
-                    buf.append("AggStar=");
-                    buf.append(aggStar.getFactTable().getName());
-                    buf.append(Util.nl);
-                    for (Iterator columnIter =
-                            aggStar.getFactTable().getColumns().iterator();
-                         columnIter.hasNext();) {
-                        AggStar.Table.Column column =
-                                (AggStar.Table.Column) columnIter.next();
-                        buf.append("   ");
-                        buf.append(column);
-                        buf.append(Util.nl);
-                    }
+                }
 System.out.println(buf.toString());
 */
-                // This is a little pessimistic. If the measure is
-                // 'count(distinct customer_id)' and one of the foreign keys is
-                // 'customer_id' then it is OK to roll up.
-
-                // Some of the measures in this query are distinct count.
-                // Get all of the foreign key columns.
-                // For each such measure, is it based upon a foreign key.
-                // Are there any foreign keys left over. No, can use AggStar.
-                BitKey fkBitKey = aggStar.getForeignKeyBitKey().copy();
-                for (AggStar.FactTable.Measure measure
-                    : aggStar.getFactTable().getMeasures())
-                {
-                    if (measure.isDistinct()) {
-                        if (measureBitKey.get(measure.getBitPosition())) {
-                            fkBitKey.clear(measure.getBitPosition());
-                        }
+            // This is a little pessimistic. If the measure is
+            // 'count(distinct customer_id)' and one of the foreign keys is
+            // 'customer_id' then it is OK to roll up.
+
+            // Some of the measures in this query are distinct count.
+            // Get all of the foreign key columns.
+            // For each such measure, is it based upon a foreign key.
+            // Are there any foreign keys left over. No, can use AggStar.
+            BitKey fkBitKey = aggStar.getForeignKeyBitKey().copy();
+            for (AggStar.FactTable.Measure measure
+                : aggStar.getFactTable().getMeasures())
+            {
+                if (measure.isDistinct()) {
+                    if (measureBitKey.get(measure.getBitPosition())) {
+                        fkBitKey.clear(measure.getBitPosition());
                     }
                 }
-                if (!fkBitKey.isEmpty()) {
-                    // there are foreign keys left so we can not use this
-                    // AggStar.
-                    continue;
-                }
             }
+            if (!fkBitKey.isEmpty()) {
+                // there are foreign keys left so we can not use this
+                // AggStar.
+                return false;
+            }
+        }
+
+        if (!aggStar.select(
+                levelBitKey, combinedLevelBitKey, measureBitKey))
+        {
+            return false;
+        }
+
+        if (levelBitKey.isEmpty()) {
+            // We won't be able to resolve a distinct count measure like
+            // this. We need to resolve the distinct values but we don't
+            // have any levels for which we constraint on. This would
+            // result in either a bloated value (non-distinct) or
+            // only the first (non-rolled-up) to be returned.
+            return false;
+        }
+        rollup[0] = !aggStar.getLevelBitKey().equals(levelBitKey);
+        return true;
+    }
 
-            if (!aggStar.select(
-                    levelBitKey, combinedLevelBitKey, measureBitKey))
+    /**
+     * Estimates the cost of answering a request from an aggregate table.
+     *
+     * <p>The cost is the number of rows scanned, plus, for each row that
+     * survives the predicates, the number of dimension tables that must be
+     * joined to it and one more if the rows must be rolled up. The
+     * selectivity of a predicate is the number of values it allows divided
+     * by the cardinality of its column, as held in the star's statistics
+     * cache.
+     *
+     * @param aggStar Aggregate table
+     * @param levelBitKey Set of levels in the request
+     * @param predicates Predicates on the columns of the request, or null
+     * @param rollup Whether rows must be rolled up
+     * @return Estimated cost
+     */
+    public static double estimateCost(
+        AggStar aggStar,
+        BitKey levelBitKey,
+        StarColumnPredicate[] predicates,
+        boolean rollup)
+    {
+        double rowCount = aggStar.getFactTable().getNumberOfRows();
+        if (predicates != null) {
+            final List<Object> values = new ArrayList<Object>();
+            for (StarColumnPredicate predicate : predicates) {
+                rowCount *= selectivity(predicate, values);
+            }
+        }
+        final Set<AggStar.Table> joinTables = new HashSet<AggStar.Table>();
+        for (int bitPos = levelBitKey.nextSetBit(0); bitPos >= 0;
+            bitPos = levelBitKey.nextSetBit(bitPos + 1))
+        {
+            final AggStar.Table.Column column = aggStar.lookupColumn(bitPos);
+            if (column != null
+                && column.getTable() != aggStar.getFactTable())
             {
-                continue;
+                joinTables.add(column.getTable());
             }
+        }
+        return aggStar.getSize()
+            + rowCount * (joinTables.size() + (rollup ? 1 : 0));
+    }
 
-            if (levelBitKey.isEmpty()) {
-                // We won't be able to resolve a distinct count measure like
-                // this. We need to resolve the distinct values but we don't
-                // have any levels for which we constraint on. This would
-                // result in either a bloated value (non-distinct) or
-                // only the first (non-rolled-up) to be returned.
-                continue;
-            }
-            rollup[0] = !aggStar.getLevelBitKey().equals(levelBitKey);
-            return aggStar;
+    /**
+     * Returns the fraction of rows that satisfy a predicate; 1 if it is not
+     * known.
+     *
+     * @param predicate Predicate
+     * @param values Work list
+     * @return Selectivity, between 0 and 1
+     */
+    private static double selectivity(
+        StarColumnPredicate predicate,
+        List<Object> values)
+    {
+        if (predicate == null || predicate instanceof LiteralStarPredicate) {
+            return 1d;
+        }
+        values.clear();
+        predicate.values(values);
+        if (values.isEmpty()) {
+            // A range, or some other predicate whose values we cannot count.
+            return 1d;
+        }
+        final int cardinality =
+            predicate.getConstrainedColumn().getCardinality();
+        if (cardinality <= 0) {
+            return 1d;
+        }
+        return Math.min(1d, (double) values.size() / cardinality);
+    }
+
+    /**
+     * Estimated cost of answering a request from an aggregate table.
+     */
+    public static class AggStarCost {
+        public final AggStar aggStar;
+        public final boolean rollup;
+        public final double cost;
+
+        /**
+         * Creates an AggStarCost.
+         *
+         * @param aggStar Aggregate table
+         * @param rollup Whether rows must be rolled up
+         * @param cost Estimated cost
+         */
+        public AggStarCost(AggStar aggStar, boolean rollup, double cost) {
+            this.aggStar = aggStar;
+            this.rollup = rollup;
+            this.cost = cost;
+        }
+
+        public String toString() {
+            return aggStar.getFactTable().getName()
+                + (rollup ? " (rollup)" : "")
+                + " cost=" + Math.round(cost);
         }
-        return null;
     }
 
     public PinSet createPinSet() {
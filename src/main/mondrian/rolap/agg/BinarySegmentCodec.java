@@ -0,0 +1,748 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.olap.Util;
+import mondrian.rolap.BitKey;
+import mondrian.spi.*;
+import mondrian.util.*;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Compact binary implementation of {@link SegmentCodec}.
+ *
+ * <p>The encoding is much smaller and faster to produce than Java
+ * serialization:</p>
+ *
+ * <ul>
+ * <li>Counts, lengths, and integer and long axis keys are written as
+ *     variable-length integers (zig-zag encoded if they may be
+ *     negative), so that small values take one byte.</li>
+ * <li>Strings are dictionary-coded: the first occurrence of a string in a
+ *     payload is written in full, later occurrences as its ordinal.</li>
+ * <li>Values of dense {@code double} and {@code int} bodies are written as
+ *     raw arrays, null indicators as a list of offsets, and offsets of
+ *     sparse bodies as deltas.</li>
+ * <li>Optionally, a payload is compressed using {@link Deflater} at
+ *     {@link Deflater#BEST_SPEED best speed}, if that makes it smaller.</li>
+ * </ul>
+ *
+ * <p>Every payload starts with a version byte and a flags byte. A codec
+ * refuses to decode a payload of a different version; a cache should treat
+ * that as a miss.</p>
+ *
+ * <p>Values that are not strings, numbers or booleans are written using
+ * Java serialization.</p>
+ *
+ * <p>Instances are immutable and thread-safe.</p>
+ *
+ * @author agent
+ */
+public class BinarySegmentCodec implements SegmentCodec {
+    /**
+     * Version of the format. Increment this if you change the format.
+     */
+    static final byte VERSION = 1;
+
+    /** Codec that does not compress. */
+    public static final BinarySegmentCodec INSTANCE =
+        new BinarySegmentCodec(false);
+
+    /** Codec that compresses payloads if it makes them smaller. */
+    public static final BinarySegmentCodec COMPRESSING_INSTANCE =
+        new BinarySegmentCodec(true);
+
+    /**
+     * Payloads smaller than this are never compressed; the saving is not
+     * worth the effort.
+     */
+    private static final int MIN_COMPRESS_BYTES = 256;
+
+    private static final byte COMPRESSED_FLAG = 1;
+
+    // Kinds of body.
+    private static final byte DENSE_DOUBLE = 'D';
+    private static final byte DENSE_INT = 'I';
+    private static final byte DENSE_OBJECT = 'O';
+    private static final byte DICTIONARY_OBJECT = 'C';
+    private static final byte SPARSE = 'S';
+
+    // Tags of values.
+    private static final byte NULL_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte STRING_REF_VALUE = 2;
+    private static final byte INT_VALUE = 3;
+    private static final byte LONG_VALUE = 4;
+    private static final byte DOUBLE_VALUE = 5;
+    private static final byte BIG_DECIMAL_VALUE = 6;
+    private static final byte TRUE_VALUE = 7;
+    private static final byte FALSE_VALUE = 8;
+    private static final byte OBJECT_VALUE = 9;
+
+    private final boolean compress;
+
+    /**
+     * Creates a BinarySegmentCodec.
+     *
+     * @param compress Whether to compress payloads
+     */
+    public BinarySegmentCodec(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Returns whether this codec compresses payloads.
+     *
+     * @return Whether this codec compresses
+     */
+    public boolean isCompressing() {
+        return compress;
+    }
+
+    public byte[] encodeHeader(SegmentHeader header) {
+        final Encoder encoder = new Encoder();
+        try {
+            encoder.writeString(header.schemaName);
+            encoder.writeByteString(header.schemaChecksum);
+            encoder.writeString(header.cubeName);
+            encoder.writeString(header.measureName);
+            encoder.writeString(header.rolapStarFactTableName);
+            encoder.writeColumns(header.getConstrainedColumns());
+            encoder.writeVarInt(header.compoundPredicates.size());
+            for (String predicate : header.compoundPredicates) {
+                encoder.writeString(predicate);
+            }
+            final BitKey bitKey = header.getConstrainedColumnsBitKey();
+            encoder.out.writeBoolean(bitKey != null);
+            if (bitKey != null) {
+                encoder.writeBitSet(bitKey.toBitSet());
+            }
+            encoder.writeVarInt(header.getExcludedCellRegions().size());
+            for (List<SegmentColumn> region : header.getExcludedCellRegions()) {
+                encoder.writeColumns(region);
+            }
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while encoding segment header");
+        }
+        return finish(encoder);
+    }
+
+    public SegmentHeader decodeHeader(byte[] bytes) {
+        final Decoder decoder = start(bytes);
+        try {
+            final String schemaName = decoder.readString();
+            final ByteString schemaChecksum = decoder.readByteString();
+            final String cubeName = decoder.readString();
+            final String measureName = decoder.readString();
+            final String factTableName = decoder.readString();
+            final List<SegmentColumn> columns = decoder.readColumns();
+            final int predicateCount = decoder.readVarInt();
+            final List<String> predicates =
+                new ArrayList<String>(predicateCount);
+            for (int i = 0; i < predicateCount; i++) {
+                predicates.add(decoder.readString());
+            }
+            final BitKey bitKey =
+                decoder.in.readBoolean()
+                    ? BitKey.Factory.makeBitKey(decoder.readBitSet())
+                    : null;
+            final int regionCount = decoder.readVarInt();
+            final List<List<SegmentColumn>> regions =
+                new ArrayList<List<SegmentColumn>>(regionCount);
+            for (int i = 0; i < regionCount; i++) {
+                regions.add(decoder.readColumns());
+            }
+            return new SegmentHeader(
+                schemaName,
+                schemaChecksum,
+                cubeName,
+                measureName,
+                columns,
+                predicates,
+                factTableName,
+                bitKey,
+                regions);
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while decoding segment header");
+        }
+    }
+
+    public byte[] encodeBody(SegmentBody body) {
+        Object values = null;
+        if (!(body instanceof SparseSegmentBody)) {
+            try {
+                values = body.getValueArray();
+            } catch (UnsupportedOperationException e) {
+                // Sparse body of some other class.
+            }
+            if (values == null) {
+                body =
+                    new SparseSegmentBody(
+                        body.getValueMap(), getAxes(body));
+            }
+        }
+        final Encoder encoder = new Encoder();
+        try {
+            encoder.writeAxes(body);
+            if (body instanceof SparseSegmentBody) {
+                encoder.out.writeByte(SPARSE);
+                final SparseSegmentBody sparse = (SparseSegmentBody) body;
+                encoder.writeVarInt(sparse.offsets.length);
+                long previous = 0;
+                for (long offset : sparse.offsets) {
+                    encoder.writeZigZagVarLong(offset - previous);
+                    previous = offset;
+                }
+                encoder.writeValues(sparse.data);
+            } else {
+                if (values instanceof double[]) {
+                    encoder.out.writeByte(DENSE_DOUBLE);
+                    final double[] doubles = (double[]) values;
+                    encoder.writeVarInt(doubles.length);
+                    for (double d : doubles) {
+                        encoder.out.writeDouble(d);
+                    }
+                    encoder.writeBitSet(body.getNullValueIndicators());
+                } else if (values instanceof int[]) {
+                    encoder.out.writeByte(DENSE_INT);
+                    final int[] ints = (int[]) values;
+                    encoder.writeVarInt(ints.length);
+                    for (int i : ints) {
+                        encoder.out.writeInt(i);
+                    }
+                    encoder.writeBitSet(body.getNullValueIndicators());
+                } else if (body instanceof DictionaryObjectSegmentBody) {
+                    encoder.out.writeByte(DICTIONARY_OBJECT);
+                    final Object[] objects = (Object[]) values;
+                    encoder.writeVarInt(objects.length);
+                    encoder.writeDictionaryCoded(objects);
+                } else {
+                    encoder.out.writeByte(DENSE_OBJECT);
+                    final Object[] objects = (Object[]) values;
+                    encoder.writeVarInt(objects.length);
+                    for (Object o : objects) {
+                        encoder.writeValue(o);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while encoding segment body");
+        }
+        return finish(encoder);
+    }
+
+    public SegmentBody decodeBody(byte[] bytes) {
+        final Decoder decoder = start(bytes);
+        try {
+            final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+                decoder.readAxes();
+            final byte kind = decoder.in.readByte();
+            final int size = decoder.readVarInt();
+            switch (kind) {
+            case SPARSE:
+                final long[] offsets = new long[size];
+                long previous = 0;
+                for (int i = 0; i < size; i++) {
+                    previous += decoder.readZigZagVarLong();
+                    offsets[i] = previous;
+                }
+                return new SparseSegmentBody(
+                    offsets, decoder.readValues(size), axes);
+            case DENSE_DOUBLE:
+                final double[] doubles = new double[size];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = decoder.in.readDouble();
+                }
+                return new DenseDoubleSegmentBody(
+                    decoder.readBitSet(), doubles, axes);
+            case DENSE_INT:
+                final int[] ints = new int[size];
+                for (int i = 0; i < size; i++) {
+                    ints[i] = decoder.in.readInt();
+                }
+                return new DenseIntSegmentBody(
+                    decoder.readBitSet(), ints, axes);
+            case DICTIONARY_OBJECT:
+                return new DictionaryObjectSegmentBody(
+                    decoder.readDictionaryCoded(size), axes);
+            case DENSE_OBJECT:
+                final Object[] objects = new Object[size];
+                for (int i = 0; i < size; i++) {
+                    objects[i] = decoder.readValue();
+                }
+                return new DenseObjectSegmentBody(objects, axes);
+            default:
+                throw Util.newInternal("Unknown segment body kind: " + kind);
+            }
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while decoding segment body");
+        }
+    }
+
+    private static List<Pair<SortedSet<Comparable>, Boolean>> getAxes(
+        SegmentBody body)
+    {
+        final SortedSet<Comparable>[] axisValueSets = body.getAxisValueSets();
+        final boolean[] nullAxisFlags = body.getNullAxisFlags();
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        for (int i = 0; i < axisValueSets.length; i++) {
+            axes.add(Pair.of(axisValueSets[i], nullAxisFlags[i]));
+        }
+        return axes;
+    }
+
+    /**
+     * Prepends the version and flags to an encoded payload, compressing it
+     * if this codec compresses and if that makes it smaller.
+     */
+    private byte[] finish(Encoder encoder) {
+        final byte[] payload = encoder.toByteArray();
+        if (compress && payload.length >= MIN_COMPRESS_BYTES) {
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(payload);
+                deflater.finish();
+                final ByteArrayOutputStream baos =
+                    new ByteArrayOutputStream(payload.length / 2 + 16);
+                baos.write(VERSION);
+                baos.write(COMPRESSED_FLAG);
+                final DataOutputStream out = new DataOutputStream(baos);
+                out.writeInt(payload.length);
+                final byte[] buf = new byte[4096];
+                while (!deflater.finished()) {
+                    baos.write(buf, 0, deflater.deflate(buf));
+                }
+                if (baos.size() < payload.length + 2) {
+                    return baos.toByteArray();
+                }
+            } catch (IOException e) {
+                throw Util.newInternal(e, "Error while compressing segment");
+            } finally {
+                deflater.end();
+            }
+        }
+        final byte[] bytes = new byte[payload.length + 2];
+        bytes[0] = VERSION;
+        bytes[1] = 0;
+        System.arraycopy(payload, 0, bytes, 2, payload.length);
+        return bytes;
+    }
+
+    /**
+     * Checks the version of a payload, and decompresses it if necessary.
+     */
+    private static Decoder start(byte[] bytes) {
+        if (bytes.length < 2 || bytes[0] != VERSION) {
+            throw Util.newInternal(
+                "Segment was encoded using a different version");
+        }
+        if ((bytes[1] & COMPRESSED_FLAG) == 0) {
+            return new Decoder(bytes, 2, bytes.length - 2);
+        }
+        final int length =
+            ((bytes[2] & 0xFF) << 24)
+            | ((bytes[3] & 0xFF) << 16)
+            | ((bytes[4] & 0xFF) << 8)
+            | (bytes[5] & 0xFF);
+        final byte[] payload = new byte[length];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, 6, bytes.length - 6);
+            int n = 0;
+            while (n < length) {
+                final int k = inflater.inflate(payload, n, length - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw Util.newInternal("Truncated segment payload");
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw Util.newInternal(e, "Error while decompressing segment");
+        } finally {
+            inflater.end();
+        }
+        return new Decoder(payload, 0, length);
+    }
+
+    /**
+     * Writes values to a buffer. Remembers the strings it has written, so
+     * that it can write each string in full only once.
+     */
+    private static class Encoder {
+        private final ByteArrayOutputStream baos =
+            new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(baos);
+        private final Map<String, Integer> stringMap =
+            new HashMap<String, Integer>();
+
+        byte[] toByteArray() {
+            return baos.toByteArray();
+        }
+
+        void writeVarInt(int i) throws IOException {
+            writeVarLong(i & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long n) throws IOException {
+            while ((n & ~0x7FL) != 0) {
+                out.writeByte((int) ((n & 0x7F) | 0x80));
+                n >>>= 7;
+            }
+            out.writeByte((int) n);
+        }
+
+        void writeZigZagVarLong(long n) throws IOException {
+            writeVarLong((n << 1) ^ (n >> 63));
+        }
+
+        /** Writes a string that may be null, without using the
+         * dictionary. */
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeVarInt(0);
+                return;
+            }
+            final byte[] bytes = s.getBytes("UTF-8");
+            writeVarInt(bytes.length + 1);
+            out.write(bytes);
+        }
+
+        void writeByteString(ByteString s) throws IOException {
+            writeVarInt(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                out.writeByte(s.byteAt(i));
+            }
+        }
+
+        /** Writes the offsets of the set bits, as deltas. */
+        void writeBitSet(BitSet bitSet) throws IOException {
+            writeVarInt(bitSet.cardinality());
+            int previous = 0;
+            for (int i = bitSet.nextSetBit(0);
+                 i >= 0;
+                 i = bitSet.nextSetBit(i + 1))
+            {
+                writeVarInt(i - previous);
+                previous = i;
+            }
+        }
+
+        void writeColumns(List<SegmentColumn> columns) throws IOException {
+            writeVarInt(columns.size());
+            for (SegmentColumn column : columns) {
+                writeString(column.columnExpression);
+                writeVarInt(column.valueCount);
+                if (column.values == null) {
+                    writeVarInt(0);
+                } else {
+                    writeVarInt(column.values.size() + 1);
+                    for (Comparable value : column.values) {
+                        writeValue(value);
+                    }
+                }
+            }
+        }
+
+        void writeAxes(SegmentBody body) throws IOException {
+            final SortedSet<Comparable>[] axisValueSets =
+                body.getAxisValueSets();
+            final boolean[] nullAxisFlags = body.getNullAxisFlags();
+            writeVarInt(axisValueSets.length);
+            for (int i = 0; i < axisValueSets.length; i++) {
+                out.writeBoolean(nullAxisFlags[i]);
+                writeVarInt(axisValueSets[i].size());
+                for (Comparable key : axisValueSets[i]) {
+                    writeValue(key);
+                }
+            }
+        }
+
+        /** Writes an array of values; if they are all doubles or all ints,
+         * as a raw array. */
+        void writeValues(Object[] values) throws IOException {
+            boolean allDouble = true;
+            boolean allInt = true;
+            for (Object o : values) {
+                allDouble = allDouble && o instanceof Double;
+                allInt = allInt && o instanceof Integer;
+            }
+            if (allDouble && values.length > 0) {
+                out.writeByte(DOUBLE_VALUE);
+                for (Object o : values) {
+                    out.writeDouble((Double) o);
+                }
+            } else if (allInt && values.length > 0) {
+                out.writeByte(INT_VALUE);
+                for (Object o : values) {
+                    out.writeInt((Integer) o);
+                }
+            } else {
+                out.writeByte(OBJECT_VALUE);
+                for (Object o : values) {
+                    writeValue(o);
+                }
+            }
+        }
+
+        /** Writes an array of values as a list of distinct values followed
+         * by, for each value, its ordinal in the list plus one, or 0 if it
+         * is null. */
+        void writeDictionaryCoded(Object[] values) throws IOException {
+            final Map<Object, Integer> codeMap =
+                new LinkedHashMap<Object, Integer>();
+            final int[] codes = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    Integer code = codeMap.get(values[i]);
+                    if (code == null) {
+                        code = codeMap.size() + 1;
+                        codeMap.put(values[i], code);
+                    }
+                    codes[i] = code;
+                }
+            }
+            writeVarInt(codeMap.size());
+            for (Object o : codeMap.keySet()) {
+                writeValue(o);
+            }
+            for (int code : codes) {
+                writeVarInt(code);
+            }
+        }
+
+        void writeValue(Object o) throws IOException {
+            if (o == null) {
+                out.writeByte(NULL_VALUE);
+            } else if (o instanceof String) {
+                final Integer ordinal = stringMap.get(o);
+                if (ordinal != null) {
+                    out.writeByte(STRING_REF_VALUE);
+                    writeVarInt(ordinal);
+                } else {
+                    stringMap.put((String) o, stringMap.size());
+                    out.writeByte(STRING_VALUE);
+                    writeString((String) o);
+                }
+            } else if (o instanceof Integer) {
+                out.writeByte(INT_VALUE);
+                writeZigZagVarLong((Integer) o);
+            } else if (o instanceof Long) {
+                out.writeByte(LONG_VALUE);
+                writeZigZagVarLong((Long) o);
+            } else if (o instanceof Double) {
+                out.writeByte(DOUBLE_VALUE);
+                out.writeDouble((Double) o);
+            } else if (o instanceof BigDecimal) {
+                final BigDecimal bigDecimal = (BigDecimal) o;
+                final byte[] bytes =
+                    bigDecimal.unscaledValue().toByteArray();
+                out.writeByte(BIG_DECIMAL_VALUE);
+                writeZigZagVarLong(bigDecimal.scale());
+                writeVarInt(bytes.length);
+                out.write(bytes);
+            } else if (o instanceof Boolean) {
+                out.writeByte((Boolean) o ? TRUE_VALUE : FALSE_VALUE);
+            } else {
+                final ByteArrayOutputStream bytes =
+                    new ByteArrayOutputStream();
+                final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                oos.writeObject(o);
+                oos.close();
+                out.writeByte(OBJECT_VALUE);
+                writeVarInt(bytes.size());
+                bytes.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Reads values written by {@link Encoder}.
+     */
+    private static class Decoder {
+        final DataInputStream in;
+        private final List<String> strings = new ArrayList<String>();
+
+        Decoder(byte[] bytes, int offset, int length) {
+            in = new DataInputStream(
+                new ByteArrayInputStream(bytes, offset, length));
+        }
+
+        int readVarInt() throws IOException {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() throws IOException {
+            long n = 0;
+            for (int shift = 0;; shift += 7) {
+                final int b = in.readUnsignedByte();
+                n |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+        }
+
+        long readZigZagVarLong() throws IOException {
+            final long n = readVarLong();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        String readString() throws IOException {
+            final int n = readVarInt();
+            if (n == 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[n - 1];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        ByteString readByteString() throws IOException {
+            final byte[] bytes = new byte[readVarInt()];
+            in.readFully(bytes);
+            return new ByteString(bytes);
+        }
+
+        BitSet readBitSet() throws IOException {
+            final BitSet bitSet = new BitSet();
+            final int n = readVarInt();
+            int i = 0;
+            for (int j = 0; j < n; j++) {
+                i += readVarInt();
+                bitSet.set(i);
+            }
+            return bitSet;
+        }
+
+        List<SegmentColumn> readColumns() throws IOException {
+            final int n = readVarInt();
+            final List<SegmentColumn> columns =
+                new ArrayList<SegmentColumn>(n);
+            for (int i = 0; i < n; i++) {
+                final String expression = readString();
+                final int valueCount = readVarInt();
+                final int k = readVarInt();
+                columns.add(
+                    new SegmentColumn(
+                        expression,
+                        valueCount,
+                        k == 0 ? null : readSortedSet(k - 1)));
+            }
+            return columns;
+        }
+
+        List<Pair<SortedSet<Comparable>, Boolean>> readAxes()
+            throws IOException
+        {
+            final int n = readVarInt();
+            final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+                new ArrayList<Pair<SortedSet<Comparable>, Boolean>>(n);
+            for (int i = 0; i < n; i++) {
+                final boolean nullAxisFlag = in.readBoolean();
+                axes.add(
+                    Pair.of(readSortedSet(readVarInt()), nullAxisFlag));
+            }
+            return axes;
+        }
+
+        /** Reads a set whose values were written in sorted order. */
+        SortedSet<Comparable> readSortedSet(int n) throws IOException {
+            final Comparable[] keys = new Comparable[n];
+            for (int j = 0; j < n; j++) {
+                keys[j] = (Comparable) readValue();
+            }
+            //noinspection unchecked
+            return new ArraySortedSet(keys);
+        }
+
+        Object[] readValues(int n) throws IOException {
+            final Object[] values = new Object[n];
+            final byte tag = in.readByte();
+            switch (tag) {
+            case DOUBLE_VALUE:
+                for (int i = 0; i < n; i++) {
+                    values[i] = in.readDouble();
+                }
+                break;
+            case INT_VALUE:
+                for (int i = 0; i < n; i++) {
+                    values[i] = in.readInt();
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    values[i] = readValue();
+                }
+            }
+            return values;
+        }
+
+        Object[] readDictionaryCoded(int n) throws IOException {
+            final Object[] dictionary = new Object[readVarInt() + 1];
+            for (int i = 1; i < dictionary.length; i++) {
+                dictionary[i] = readValue();
+            }
+            final Object[] values = new Object[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = dictionary[readVarInt()];
+            }
+            return values;
+        }
+
+        Object readValue() throws IOException {
+            final byte tag = in.readByte();
+            switch (tag) {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                final String s = readString();
+                strings.add(s);
+                return s;
+            case STRING_REF_VALUE:
+                return strings.get(readVarInt());
+            case INT_VALUE:
+                return (int) readZigZagVarLong();
+            case LONG_VALUE:
+                return readZigZagVarLong();
+            case DOUBLE_VALUE:
+                return in.readDouble();
+            case BIG_DECIMAL_VALUE:
+                final int scale = (int) readZigZagVarLong();
+                final byte[] unscaled = new byte[readVarInt()];
+                in.readFully(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            case TRUE_VALUE:
+                return Boolean.TRUE;
+            case FALSE_VALUE:
+                return Boolean.FALSE;
+            case OBJECT_VALUE:
+                final byte[] bytes = new byte[readVarInt()];
+                in.readFully(bytes);
+                try {
+                    return new ObjectInputStream(
+                        new ByteArrayInputStream(bytes)).readObject();
+                } catch (ClassNotFoundException e) {
+                    throw Util.newInternal(
+                        e, "Error while decoding segment value");
+                }
+            default:
+                throw Util.newInternal("Unknown segment value tag: " + tag);
+            }
+        }
+    }
+}
+
+// End BinarySegmentCodec.java
@@ -63,6 +63,12 @@ class DenseDoubleSegmentBody extends AbstractSegmentBody {
         return values.length; // - nullValues.cardinality();
     }
 
+    @Override
+    protected long getEstimatedValueByteSize() {
+        return OBJECT_BYTES + 8L * values.length
+            + estimateByteSize(nullValues);
+    }
+
     @Override
     protected Object getObject(int i) {
         double value = values[i];
@@ -62,6 +62,11 @@ class DenseIntSegmentBody extends AbstractSegmentBody {
         return values.length - nullValues.cardinality();
     }
 
+    protected long getEstimatedValueByteSize() {
+        return OBJECT_BYTES + 4L * values.length
+            + estimateByteSize(nullValues);
+    }
+
     protected Object getObject(int i) {
         int value = values[i];
         if (value == 0 && nullValues.get(i)) {
@@ -55,6 +55,17 @@ class DenseObjectSegmentBody extends AbstractSegmentBody {
     protected int getSize() {
         return values.length; // TODO: subtract number of nulls?
     }
+
+    @Override
+    protected long getEstimatedValueByteSize() {
+        long size = OBJECT_BYTES + (long) REFERENCE_BYTES * values.length;
+        for (Object value : values) {
+            if (value != null) {
+                size += OBJECT_BYTES;
+            }
+        }
+        return size;
+    }
 }
 
 // End DenseObjectSegmentBody.java
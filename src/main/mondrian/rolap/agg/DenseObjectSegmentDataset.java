@@ -4,11 +4,12 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2010-2012 Pentaho and others
+// Copyright (C) 2010-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap.agg;
 
+import mondrian.olap.MondrianProperties;
 import mondrian.rolap.CellKey;
 import mondrian.rolap.SqlStatement;
 import mondrian.spi.SegmentBody;
@@ -92,9 +93,34 @@ class DenseObjectSegmentDataset extends DenseSegmentDataset {
         return values.length;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If {@link MondrianProperties#AdaptiveSegmentStorage} is true and
+     * the values would occupy fewer bytes as dictionary codes, creates a
+     * {@link DictionaryObjectSegmentBody}.</p>
+     */
     public SegmentBody createSegmentBody(
         List<Pair<SortedSet<Comparable>, Boolean>> axes)
     {
+        if (MondrianProperties.instance().AdaptiveSegmentStorage.get()) {
+            int nonNullCount = 0;
+            for (Object value : values) {
+                if (value != null) {
+                    ++nonNullCount;
+                }
+            }
+            final double denseBytes =
+                AbstractSegmentBody.estimateDenseValueByteSize(
+                    SqlStatement.Type.OBJECT, values.length, nonNullCount);
+            final double dictionaryBytes =
+                DictionaryObjectSegmentBody.estimateValueByteSize(
+                    values.length,
+                    DictionaryObjectSegmentBody.distinctCount(values));
+            if (dictionaryBytes < denseBytes) {
+                return new DictionaryObjectSegmentBody(values, axes);
+            }
+        }
         return new DenseObjectSegmentBody(
             values,
             axes);
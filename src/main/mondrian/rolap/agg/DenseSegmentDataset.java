@@ -92,6 +92,10 @@ outer:
         throw new UnsupportedOperationException();
     }
 
+    public Object getObjectAt(long offset) {
+        return getObject((int) offset);
+    }
+
     public int getInt(CellKey pos) {
         throw new UnsupportedOperationException();
     }
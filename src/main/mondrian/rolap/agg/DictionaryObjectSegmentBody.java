@@ -0,0 +1,165 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.util.Pair;
+
+import java.util.*;
+
+/**
+ * Implementation of a segment body that stores a dense array of Java objects
+ * in compressed form, as a dictionary of distinct values and, for each cell,
+ * a code into that dictionary.
+ *
+ * <p>Measures whose values are objects, such as strings or big decimals,
+ * often have only a few distinct values. Each cell of a
+ * {@link DenseObjectSegmentBody} costs a reference and usually a distinct
+ * boxed object; here it costs one byte (if there are fewer than 256 distinct
+ * values) or two bytes (if there are fewer than 65536).</p>
+ *
+ * <p>Code 0 represents null; code <i>i</i> represents
+ * {@code dictionary[i - 1]}.</p>
+ *
+ * @author agent
+ */
+class DictionaryObjectSegmentBody extends AbstractSegmentBody {
+    private static final long serialVersionUID = 2361948712440927315L;
+
+    /** Maximum number of distinct values that can be encoded. */
+    static final int MAX_DICTIONARY_SIZE = Character.MAX_VALUE;
+
+    private final Object[] dictionary;
+    private final byte[] byteCodes;
+    private final char[] charCodes;
+
+    /**
+     * Creates a DictionaryObjectSegmentBody.
+     *
+     * @param values Cell values; not retained
+     * @param axes Axes
+     */
+    DictionaryObjectSegmentBody(
+        Object[] values,
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        super(axes);
+        final Map<Object, Integer> codeMap = new HashMap<Object, Integer>();
+        final List<Object> dictionaryList = new ArrayList<Object>();
+        final int[] codes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            final Object value = values[i];
+            if (value == null) {
+                continue;
+            }
+            Integer code = codeMap.get(value);
+            if (code == null) {
+                dictionaryList.add(value);
+                code = dictionaryList.size();
+                codeMap.put(value, code);
+            }
+            codes[i] = code;
+        }
+        if (dictionaryList.size() > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException(
+                "too many distinct values: " + dictionaryList.size());
+        }
+        this.dictionary = dictionaryList.toArray();
+        if (dictionary.length <= 0xFF) {
+            this.byteCodes = new byte[values.length];
+            this.charCodes = null;
+            for (int i = 0; i < codes.length; i++) {
+                byteCodes[i] = (byte) codes[i];
+            }
+        } else {
+            this.byteCodes = null;
+            this.charCodes = new char[values.length];
+            for (int i = 0; i < codes.length; i++) {
+                charCodes[i] = (char) codes[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of distinct non-null values in an array, or
+     * {@link Integer#MAX_VALUE} if there are more than
+     * {@link #MAX_DICTIONARY_SIZE}, in which case the array cannot be
+     * compressed.
+     *
+     * @param values Cell values
+     * @return Number of distinct values
+     */
+    static int distinctCount(Object[] values) {
+        final Set<Object> set = new HashSet<Object>();
+        for (Object value : values) {
+            if (value != null && set.add(value)
+                && set.size() > MAX_DICTIONARY_SIZE)
+            {
+                return Integer.MAX_VALUE;
+            }
+        }
+        return set.size();
+    }
+
+    /**
+     * Estimates the number of bytes that the values of a
+     * DictionaryObjectSegmentBody would use.
+     *
+     * @param valueCount Number of cells
+     * @param distinctCount Number of distinct non-null values
+     * @return Estimated size of values in bytes, or
+     *   {@link Double#MAX_VALUE} if there are too many distinct values
+     */
+    static double estimateValueByteSize(
+        double valueCount,
+        double distinctCount)
+    {
+        if (distinctCount > MAX_DICTIONARY_SIZE) {
+            return Double.MAX_VALUE;
+        }
+        return 2 * OBJECT_BYTES
+            + (distinctCount <= 0xFF ? 1 : 2) * valueCount
+            + (REFERENCE_BYTES + OBJECT_BYTES) * distinctCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Decodes the values; the result is a new array each time.</p>
+     */
+    @Override
+    public Object getValueArray() {
+        final Object[] values = new Object[getSize()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getObject(i);
+        }
+        return values;
+    }
+
+    @Override
+    protected Object getObject(int i) {
+        final int code =
+            byteCodes != null
+                ? byteCodes[i] & 0xFF
+                : charCodes[i];
+        return code == 0 ? null : dictionary[code - 1];
+    }
+
+    @Override
+    protected int getSize() {
+        return byteCodes != null ? byteCodes.length : charCodes.length;
+    }
+
+    @Override
+    protected long getEstimatedValueByteSize() {
+        return (long) estimateValueByteSize(getSize(), dictionary.length);
+    }
+}
+
+// End DictionaryObjectSegmentBody.java
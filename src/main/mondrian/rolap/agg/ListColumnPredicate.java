@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2006-2011 Pentaho
+// Copyright (C) 2006-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.rolap.agg;
@@ -333,7 +333,7 @@ public class ListColumnPredicate extends AbstractColumnPredicate {
                 firstNotNull = predicate2;
             }
             ++notNullCount;
-            sqlQuery.getDialect().quote(buf, key, column.getDatatype());
+            sqlQuery.quote(buf, key, column.getDatatype());
         }
         buf.append(')');
 
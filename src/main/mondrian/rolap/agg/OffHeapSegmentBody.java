@@ -0,0 +1,466 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.olap.Util;
+import mondrian.rolap.SqlStatement;
+import mondrian.spi.SegmentBody;
+import mondrian.util.ArraySortedSet;
+import mondrian.util.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * Implementation of a segment body whose cell values are stored in a
+ * {@link ByteBuffer}, typically a direct buffer outside the Java heap.
+ *
+ * <p>The body is a view over the buffer: values and null indicators are read
+ * from the buffer on demand, and are not copied into Java arrays. (Methods
+ * {@link #getValueArray()} and {@link #getNullValueIndicators()} are required
+ * by the {@link SegmentBody} SPI to return arrays, and therefore do copy;
+ * mondrian itself reads the values via {@link OffHeapSegmentDataset}.)
+ * Axis values are decoded onto the heap when the view is created, because
+ * they are needed to build the segment's axes.</p>
+ *
+ * <p>Use {@link #encode(SegmentBody)} to write a body into a new direct
+ * buffer, and {@link #decode(ByteBuffer)} to create a view over it. The
+ * layout of the buffer is as follows:</p>
+ *
+ * <pre>
+ * int kind            {@link #DOUBLE}, {@link #INT} or {@link #OBJECT}
+ * int size            number of cells (for OBJECT, number of bytes)
+ * int nullOffset      offset of null indicators
+ * int axisOffset      offset of axes
+ * values              size * 8 bytes (DOUBLE) or size * 4 bytes (INT)
+ * null indicators     (size + 7) / 8 bytes, one bit per cell
+ * axes                int axisCount, then for each axis:
+ *                     byte nullFlag, int keyCount, keyCount tagged keys
+ * </pre>
+ *
+ * <p>Bodies whose values are not native doubles or ints (that is, dense
+ * object and sparse bodies) are stored as {@link #OBJECT}, in the form
+ * written by {@link BinarySegmentCodec}, and {@link #decode} returns a copy
+ * on the heap.</p>
+ *
+ * <p>Instances are immutable, and since they use only absolute reads, may be
+ * used by several threads at once.</p>
+ *
+ * @author agent
+ */
+public final class OffHeapSegmentBody extends AbstractSegmentBody {
+    private static final long serialVersionUID = 3498307548745716262L;
+
+    /** Kind of buffer that holds {@code double} values. */
+    static final int DOUBLE = 0;
+
+    /** Kind of buffer that holds {@code int} values. */
+    static final int INT = 1;
+
+    /** Kind of buffer that holds an encoded segment body. */
+    static final int OBJECT = 2;
+
+    private static final int HEADER_BYTES = 16;
+
+    private static final byte STRING_KEY = 'S';
+    private static final byte INT_KEY = 'I';
+    private static final byte LONG_KEY = 'L';
+    private static final byte DOUBLE_KEY = 'D';
+    private static final byte OBJECT_KEY = 'O';
+
+    private final transient ByteBuffer buffer;
+    private final int kind;
+    private final int size;
+    private final int nullOffset;
+
+    /**
+     * Creates an OffHeapSegmentBody.
+     *
+     * @param buffer Buffer, in the layout written by {@link #encode}
+     * @param axes Axes, decoded from the buffer
+     */
+    private OffHeapSegmentBody(
+        ByteBuffer buffer,
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        super(axes);
+        this.buffer = buffer;
+        this.kind = buffer.getInt(0);
+        this.size = buffer.getInt(4);
+        this.nullOffset = buffer.getInt(8);
+        assert kind == DOUBLE || kind == INT;
+    }
+
+    /**
+     * Writes a segment body into a new direct buffer.
+     *
+     * @param body Segment body
+     * @return Direct buffer containing the body
+     */
+    public static ByteBuffer encode(SegmentBody body) {
+        if (body instanceof OffHeapSegmentBody) {
+            // Already encoded. Buffers are never modified, so share it.
+            return ((OffHeapSegmentBody) body).buffer;
+        }
+        Object values;
+        try {
+            values = body.getValueArray();
+        } catch (UnsupportedOperationException e) {
+            // Sparse body.
+            values = null;
+        }
+        if (!(values instanceof double[]) && !(values instanceof int[])) {
+            final byte[] bytes = BinarySegmentCodec.INSTANCE.encodeBody(body);
+            final ByteBuffer buffer = allocate(HEADER_BYTES + bytes.length);
+            buffer.putInt(0, OBJECT);
+            buffer.putInt(4, bytes.length);
+            buffer.position(HEADER_BYTES);
+            buffer.put(bytes);
+            return buffer;
+        }
+
+        final byte[] axisBytes = encodeAxes(body);
+        final int kind;
+        final int size;
+        final int valueBytes;
+        if (values instanceof double[]) {
+            kind = DOUBLE;
+            size = ((double[]) values).length;
+            valueBytes = 8;
+        } else {
+            kind = INT;
+            size = ((int[]) values).length;
+            valueBytes = 4;
+        }
+        final int nullOffset = HEADER_BYTES + size * valueBytes;
+        final int axisOffset = nullOffset + (size + 7) / 8;
+        final ByteBuffer buffer = allocate(axisOffset + axisBytes.length);
+        buffer.putInt(0, kind);
+        buffer.putInt(4, size);
+        buffer.putInt(8, nullOffset);
+        buffer.putInt(12, axisOffset);
+        if (kind == DOUBLE) {
+            final double[] doubles = (double[]) values;
+            for (int i = 0; i < size; i++) {
+                buffer.putDouble(HEADER_BYTES + i * 8, doubles[i]);
+            }
+        } else {
+            final int[] ints = (int[]) values;
+            for (int i = 0; i < size; i++) {
+                buffer.putInt(HEADER_BYTES + i * 4, ints[i]);
+            }
+        }
+        final BitSet nullValues = body.getNullValueIndicators();
+        for (int i = nullValues.nextSetBit(0);
+             i >= 0 && i < size;
+             i = nullValues.nextSetBit(i + 1))
+        {
+            final int k = nullOffset + (i >> 3);
+            buffer.put(k, (byte) (buffer.get(k) | (1 << (i & 7))));
+        }
+        buffer.position(axisOffset);
+        buffer.put(axisBytes);
+        return buffer;
+    }
+
+    /**
+     * Creates a segment body from a buffer written by {@link #encode}.
+     *
+     * <p>If the buffer contains native values, the result is a view over the
+     * buffer; otherwise it is a copy on the heap.</p>
+     *
+     * @param buffer Buffer
+     * @return Segment body
+     */
+    public static SegmentBody decode(ByteBuffer buffer) {
+        final int kind = buffer.getInt(0);
+        if (kind == OBJECT) {
+            final byte[] bytes = new byte[buffer.getInt(4)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(HEADER_BYTES + i);
+            }
+            return BinarySegmentCodec.INSTANCE.decodeBody(bytes);
+        }
+        final int axisOffset = buffer.getInt(12);
+        final byte[] axisBytes = new byte[buffer.capacity() - axisOffset];
+        for (int i = 0; i < axisBytes.length; i++) {
+            axisBytes[i] = buffer.get(axisOffset + i);
+        }
+        return new OffHeapSegmentBody(buffer, decodeAxes(axisBytes));
+    }
+
+    private static ByteBuffer allocate(int byteCount) {
+        return ByteBuffer.allocateDirect(byteCount)
+            .order(ByteOrder.nativeOrder());
+    }
+
+    private static byte[] encodeAxes(SegmentBody body) {
+        final SortedSet<Comparable>[] axisValueSets =
+            body.getAxisValueSets();
+        final boolean[] nullAxisFlags = body.getNullAxisFlags();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(axisValueSets.length);
+            for (int i = 0; i < axisValueSets.length; i++) {
+                out.writeBoolean(nullAxisFlags[i]);
+                out.writeInt(axisValueSets[i].size());
+                for (Comparable key : axisValueSets[i]) {
+                    writeKey(out, key);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while encoding segment axes");
+        }
+        return baos.toByteArray();
+    }
+
+    private static void writeKey(
+        DataOutputStream out,
+        Comparable key) throws IOException
+    {
+        if (key instanceof String && ((String) key).length() < 16384) {
+            // writeUTF allows at most 65535 bytes, and a char may need 3.
+            out.writeByte(STRING_KEY);
+            out.writeUTF((String) key);
+        } else if (key instanceof Integer) {
+            out.writeByte(INT_KEY);
+            out.writeInt((Integer) key);
+        } else if (key instanceof Long) {
+            out.writeByte(LONG_KEY);
+            out.writeLong((Long) key);
+        } else if (key instanceof Double) {
+            out.writeByte(DOUBLE_KEY);
+            out.writeDouble((Double) key);
+        } else {
+            final byte[] bytes = serialize(key);
+            out.writeByte(OBJECT_KEY);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static List<Pair<SortedSet<Comparable>, Boolean>> decodeAxes(
+        byte[] axisBytes)
+    {
+        final DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(axisBytes));
+        try {
+            final int axisCount = in.readInt();
+            final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+                new ArrayList<Pair<SortedSet<Comparable>, Boolean>>(
+                    axisCount);
+            for (int i = 0; i < axisCount; i++) {
+                final boolean nullAxisFlag = in.readBoolean();
+                final Comparable[] keys = new Comparable[in.readInt()];
+                for (int j = 0; j < keys.length; j++) {
+                    keys[j] = readKey(in);
+                }
+                //noinspection unchecked
+                axes.add(
+                    Pair.<SortedSet<Comparable>, Boolean>of(
+                        new ArraySortedSet(keys),
+                        nullAxisFlag));
+            }
+            return axes;
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while decoding segment axes");
+        }
+    }
+
+    private static Comparable readKey(DataInputStream in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+        case STRING_KEY:
+            return in.readUTF();
+        case INT_KEY:
+            return in.readInt();
+        case LONG_KEY:
+            return in.readLong();
+        case DOUBLE_KEY:
+            return in.readDouble();
+        case OBJECT_KEY:
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return (Comparable) deserialize(bytes);
+        default:
+            throw Util.newInternal("Unknown segment axis key tag: " + tag);
+        }
+    }
+
+    private static byte[] serialize(Object o) {
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(baos);
+            out.writeObject(o);
+            out.close();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while serializing " + o);
+        }
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        try {
+            final ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            return in.readObject();
+        } catch (IOException e) {
+            throw Util.newInternal(e, "Error while deserializing");
+        } catch (ClassNotFoundException e) {
+            throw Util.newInternal(e, "Error while deserializing");
+        }
+    }
+
+    /**
+     * Returns the type of the values in this body.
+     */
+    SqlStatement.Type getType() {
+        return kind == DOUBLE
+            ? SqlStatement.Type.DOUBLE
+            : SqlStatement.Type.INT;
+    }
+
+    /**
+     * Returns the value at a given offset as a {@code double}. Returns 0 if
+     * the value is null.
+     */
+    double getDouble(int offset) {
+        return kind == DOUBLE
+            ? buffer.getDouble(HEADER_BYTES + offset * 8)
+            : buffer.getInt(HEADER_BYTES + offset * 4);
+    }
+
+    /**
+     * Returns the value at a given offset as an {@code int}. Returns 0 if
+     * the value is null.
+     */
+    int getInt(int offset) {
+        return kind == DOUBLE
+            ? (int) buffer.getDouble(HEADER_BYTES + offset * 8)
+            : buffer.getInt(HEADER_BYTES + offset * 4);
+    }
+
+    /**
+     * Returns whether the value at a given offset is null.
+     */
+    boolean isNull(int offset) {
+        return (buffer.get(nullOffset + (offset >> 3)) & (1 << (offset & 7)))
+            != 0;
+    }
+
+    /**
+     * Returns the number of bytes of memory used by the buffer.
+     */
+    public int getBufferByteSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Creates a dataset that reads values from this body's buffer.
+     *
+     * @param axes Segment axes, containing actual column values
+     * @return Dataset
+     */
+    SegmentDataset createDataset(SegmentAxis[] axes) {
+        return new OffHeapSegmentDataset(axes, this);
+    }
+
+    @Override
+    public Object getValueArray() {
+        if (kind == DOUBLE) {
+            final double[] values = new double[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = buffer.getDouble(HEADER_BYTES + i * 8);
+            }
+            return values;
+        } else {
+            final int[] values = new int[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = buffer.getInt(HEADER_BYTES + i * 4);
+            }
+            return values;
+        }
+    }
+
+    @Override
+    public BitSet getNullValueIndicators() {
+        final BitSet nullValues = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (isNull(i)) {
+                nullValues.set(i);
+            }
+        }
+        return nullValues;
+    }
+
+    @Override
+    protected int getSize() {
+        return size;
+    }
+
+    @Override
+    protected long getEstimatedValueByteSize() {
+        // Values are not on the heap.
+        return OBJECT_BYTES;
+    }
+
+    @Override
+    protected Object getObject(int i) {
+        if (kind == DOUBLE) {
+            final double value = getDouble(i);
+            if (value == 0d && isNull(i)) {
+                return null;
+            }
+            return value;
+        } else {
+            final int value = getInt(i);
+            if (value == 0 && isNull(i)) {
+                return null;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Replaces this body with a copy on the heap when it is serialized, for
+     * example when it is sent to an external cache. (The buffer itself is not
+     * serializable.)
+     */
+    private Object writeReplace() {
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        for (int i = 0; i < axisValueSets.length; i++) {
+            axes.add(Pair.of(axisValueSets[i], getNullAxisFlags()[i]));
+        }
+        if (kind == DOUBLE) {
+            return new DenseDoubleSegmentBody(
+                getNullValueIndicators(), (double[]) getValueArray(), axes);
+        } else {
+            return new DenseIntSegmentBody(
+                getNullValueIndicators(), (int[]) getValueArray(), axes);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapSegmentBody(type=" + getType()
+            + ", size=" + size
+            + ", bytes=" + buffer.capacity()
+            + ", axisValueSets=" + Arrays.toString(getAxisValueSets())
+            + ", nullAxisFlags=" + Arrays.toString(getNullAxisFlags())
+            + ")";
+    }
+}
+
+// End OffHeapSegmentBody.java
@@ -0,0 +1,93 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.rolap.SqlStatement;
+import mondrian.spi.SegmentBody;
+import mondrian.util.Pair;
+
+import java.util.List;
+import java.util.SortedSet;
+
+/**
+ * Implementation of {@link DenseSegmentDataset} that reads its values from
+ * an {@link OffHeapSegmentBody}.
+ *
+ * <p>The dataset is read-only; it is created from a segment body that has
+ * already been loaded, so the {@code populateFrom} methods are never
+ * called.</p>
+ *
+ * @author agent
+ */
+class OffHeapSegmentDataset extends DenseSegmentDataset {
+    private final OffHeapSegmentBody body;
+
+    /**
+     * Creates an OffHeapSegmentDataset.
+     *
+     * @param axes Segment axes, containing actual column values
+     * @param body Segment body that holds the values
+     */
+    OffHeapSegmentDataset(SegmentAxis[] axes, OffHeapSegmentBody body) {
+        super(axes);
+        this.body = body;
+    }
+
+    public double getDouble(CellKey key) {
+        return body.getDouble(key.getOffset(axisMultipliers));
+    }
+
+    public int getInt(CellKey key) {
+        return body.getInt(key.getOffset(axisMultipliers));
+    }
+
+    public Object getObject(CellKey pos) {
+        return getObject(pos.getOffset(axisMultipliers));
+    }
+
+    protected Object getObject(int offset) {
+        return body.getObject(offset);
+    }
+
+    public boolean isNull(CellKey pos) {
+        return body.isNull(pos.getOffset(axisMultipliers));
+    }
+
+    public boolean exists(CellKey pos) {
+        return true;
+    }
+
+    public void populateFrom(int[] pos, SegmentDataset data, CellKey key) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void populateFrom(
+        int[] pos, SegmentLoader.RowList rowList, int column)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public SqlStatement.Type getType() {
+        return body.getType();
+    }
+
+    protected int getSize() {
+        return body.getSize();
+    }
+
+    public SegmentBody createSegmentBody(
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        return body;
+    }
+}
+
+// End OffHeapSegmentDataset.java
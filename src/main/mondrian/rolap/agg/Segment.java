@@ -276,7 +276,7 @@ public class Segment {
         int size)
     {
         if (sparse) {
-            return new SparseSegmentDataset();
+            return new SparseSegmentDataset(axes, type);
         } else {
             switch (type) {
             case OBJECT:
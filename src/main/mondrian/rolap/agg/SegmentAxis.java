@@ -162,6 +162,27 @@ public class SegmentAxis {
         return predicate;
     }
 
+    /**
+     * Computes, for each of an array of axes, the product of the lengths of
+     * all later axes.
+     *
+     * <p>The offset of a cell in raster-scan order is the sum of each
+     * ordinal times the corresponding multiplier; see
+     * {@link mondrian.rolap.CellKey#getOffset(long[])}.</p>
+     *
+     * @param axes Axes
+     * @return Axis multipliers
+     */
+    static long[] computeAxisMultipliers(SegmentAxis[] axes) {
+        final long[] axisMultipliers = new long[axes.length];
+        long multiplier = 1;
+        for (int i = axes.length - 1; i >= 0; --i) {
+            axisMultipliers[i] = multiplier;
+            multiplier *= axes[i].getKeys().length;
+        }
+        return axisMultipliers;
+    }
+
     final Comparable[] getKeys() {
         return keys;
     }
@@ -14,6 +14,7 @@ import mondrian.olap.Util;
 import mondrian.rolap.*;
 import mondrian.rolap.agg.Segment.ExcludedRegion;
 import mondrian.rolap.sql.SqlQuery;
+import mondrian.server.monitor.CellCacheSegmentCreateEvent;
 import mondrian.spi.*;
 import mondrian.spi.Dialect.Datatype;
 import mondrian.util.ArraySortedSet;
@@ -82,12 +83,16 @@ public class SegmentBuilder {
                     axes,
                     (int[]) body.getValueArray(),
                     body.getNullValueIndicators());
-        } else if (body instanceof DenseObjectSegmentBody) {
+        } else if (body instanceof DenseObjectSegmentBody
+            || body instanceof DictionaryObjectSegmentBody)
+        {
             dataSet =
                 new DenseObjectSegmentDataset(
                     axes, (Object[]) body.getValueArray());
         } else if (body instanceof SparseSegmentBody) {
-            dataSet = new SparseSegmentDataset(body.getValueMap());
+            dataSet = ((SparseSegmentBody) body).createDataset(axes);
+        } else if (body instanceof OffHeapSegmentBody) {
+            dataSet = ((OffHeapSegmentBody) body).createDataset(axes);
         } else {
             throw Util.newInternal(
                 "Unknown segment body type: " + body.getClass() + ": " + body);
@@ -156,7 +161,7 @@ public class SegmentBuilder {
             measure,
             predicateList.toArray(
                 new StarColumnPredicate[predicateList.size()]),
-            new ExcludedRegionList(header),
+            toExcludedRegions(header),
             compoundPredicates);
     }
 
@@ -257,91 +262,124 @@ public class SegmentBuilder {
                 axis.valueSet.toArray(new Comparable[axis.valueSet.size()]);
         }
 
-        // Populate cells.
+        // Build the axis list. The length of an axis includes the null
+        // value, if present.
+        final List<Pair<SortedSet<Comparable>, Boolean>> axisList =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        BigInteger bigValueCount = BigInteger.ONE;
+        for (AxisInfo axis : axes) {
+            axisList.add(Pair.of(axis.valueSet, axis.hasNull));
+            bigValueCount = bigValueCount.multiply(
+                BigInteger.valueOf(
+                    axis.hasNull
+                        ? axis.values.length + 1
+                        : axis.values.length));
+        }
+
+        final int[] axisMultipliers =
+            computeAxisMultipliers(axisList);
+
+        // If the sources are dense arrays of native values, and the
+        // aggregator is simple, roll up directly from the arrays.
+        SegmentBody body = null;
+        if (bigValueCount.compareTo(BigInteger.valueOf(Integer.MAX_VALUE))
+            <= 0)
+        {
+            final Comparable[][] targetValues = new Comparable[axes.length][];
+            final boolean[] targetHasNull = new boolean[axes.length];
+            for (int i = 0; i < axes.length; i++) {
+                targetValues[i] = axes[i].values;
+                targetHasNull[i] = axes[i].hasNull;
+            }
+            body =
+                rollupDense(
+                    map,
+                    keepColumns,
+                    firstHeader.getConstrainedColumns(),
+                    targetValues,
+                    targetHasNull,
+                    axisList,
+                    axisMultipliers,
+                    bigValueCount.intValue(),
+                    rollupAggregator,
+                    datatype);
+        }
+
+        // Otherwise, populate cells.
         //
         // (This is a rough implementation, very inefficient. It makes all
         // segment types pretend to be sparse, for purposes of reading. It
         // maps all axis ordinals to a value, then back to an axis ordinal,
         // even if this translation were not necessary, say if the source and
         // target axes had the same set of values. And it always creates a
-        // sparse segment.
-        //
-        // We should do really efficient rollup if the source is an array: we
-        // should box values (e.g double to Double and back), and we should read
-        // a stripe of values from the and add them up into a single cell.
+        // sparse segment.)
         final Map<CellKey, List<Object>> cellValues =
             new HashMap<CellKey, List<Object>>();
-        for (Map.Entry<SegmentHeader, SegmentBody> entry : map.entrySet()) {
-            final int[] pos = new int[axes.length];
-            final Comparable[][] valueArrays =
-                new Comparable[firstHeader.getConstrainedColumns().size()][];
-            final SegmentBody body = entry.getValue();
-
-            // Copy source value sets into arrays. For axes that are being
-            // projected away, store null.
-            z = 0;
-            for (SortedSet<Comparable> set : body.getAxisValueSets()) {
-                valueArrays[z] = keepColumns.contains(
-                    firstHeader.getConstrainedColumns().get(z).columnExpression)
-                        ? set.toArray(new Comparable[set.size()])
-                        : null;
-                ++z;
-            }
-            Map<CellKey, Object> v = body.getValueMap();
-            entryLoop:
-            for (Map.Entry<CellKey, Object> vEntry : v.entrySet()) {
+        if (body == null) {
+            for (Map.Entry<SegmentHeader, SegmentBody> entry
+                : map.entrySet())
+            {
+                final int[] pos = new int[axes.length];
+                final Comparable[][] valueArrays =
+                    new Comparable
+                        [firstHeader.getConstrainedColumns().size()][];
+                final SegmentBody sourceBody = entry.getValue();
+
+                // Copy source value sets into arrays. For axes that are being
+                // projected away, store null.
                 z = 0;
-                for (int i = 0; i < vEntry.getKey().size(); i++) {
-                    final Comparable[] valueArray = valueArrays[i];
-                    if (valueArray == null) {
-                        continue;
-                    }
-                    final int ordinal = vEntry.getKey().getOrdinals()[i];
-                    final int targetOrdinal;
-                    if (axes[z].hasNull && ordinal == valueArray.length) {
-                        targetOrdinal = axes[z].valueSet.size();
-                    } else {
-                        final Comparable value = valueArray[ordinal];
-                        if (value == null) {
+                for (SortedSet<Comparable> set
+                    : sourceBody.getAxisValueSets())
+                {
+                    valueArrays[z] = keepColumns.contains(
+                        firstHeader.getConstrainedColumns().get(z)
+                            .columnExpression)
+                            ? set.toArray(new Comparable[set.size()])
+                            : null;
+                    ++z;
+                }
+                Map<CellKey, Object> v = sourceBody.getValueMap();
+                entryLoop:
+                for (Map.Entry<CellKey, Object> vEntry : v.entrySet()) {
+                    z = 0;
+                    for (int i = 0; i < vEntry.getKey().size(); i++) {
+                        final Comparable[] valueArray = valueArrays[i];
+                        if (valueArray == null) {
+                            continue;
+                        }
+                        final int ordinal = vEntry.getKey().getOrdinals()[i];
+                        final int targetOrdinal;
+                        if (axes[z].hasNull && ordinal == valueArray.length) {
                             targetOrdinal = axes[z].valueSet.size();
                         } else {
-                            targetOrdinal =
-                                Util.binarySearch(
-                                    axes[z].values,
-                                    0, axes[z].values.length,
-                                    value);
+                            final Comparable value = valueArray[ordinal];
+                            if (value == null) {
+                                targetOrdinal = axes[z].valueSet.size();
+                            } else {
+                                targetOrdinal =
+                                    Util.binarySearch(
+                                        axes[z].values,
+                                        0, axes[z].values.length,
+                                        value);
+                            }
+                        }
+                        if (targetOrdinal >= 0) {
+                            pos[z++] = targetOrdinal;
+                        } else {
+                            // This happens when one of the rollup candidate
+                            // doesn't contain the requested cell.
+                            continue entryLoop;
                         }
                     }
-                    if (targetOrdinal >= 0) {
-                        pos[z++] = targetOrdinal;
-                    } else {
-                        // This happens when one of the rollup candidate doesn't
-                        // contain the requested cell.
-                        continue entryLoop;
+                    final CellKey ck = CellKey.Generator.newCellKey(pos);
+                    if (!cellValues.containsKey(ck)) {
+                        cellValues.put(ck, new ArrayList<Object>());
                     }
+                    cellValues.get(ck).add(vEntry.getValue());
                 }
-                final CellKey ck = CellKey.Generator.newCellKey(pos);
-                if (!cellValues.containsKey(ck)) {
-                    cellValues.put(ck, new ArrayList<Object>());
-                }
-                cellValues.get(ck).add(vEntry.getValue());
             }
         }
 
-        // Build the axis list.
-        final List<Pair<SortedSet<Comparable>, Boolean>> axisList =
-            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
-        BigInteger bigValueCount = BigInteger.ONE;
-        for (AxisInfo axis : axes) {
-            axisList.add(Pair.of(axis.valueSet, axis.hasNull));
-            int size = axis.values.length;
-            if (axis.hasNull) {
-                ++size;
-            }
-            bigValueCount = bigValueCount.multiply(
-                BigInteger.valueOf(axis.hasNull ? size + 1 : size));
-        }
-
         // The logic used here for the sparse check follows
         // SegmentLoader.setAxisDataAndDecideSparseUse.
         // The two methods use different data structures (AxisInfo/SegmentAxis)
@@ -349,15 +387,15 @@ public class SegmentBuilder {
         final boolean sparse =
             bigValueCount.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0
                 || SegmentLoader.useSparse(
-                    bigValueCount.doubleValue(), cellValues.size());
+                    bigValueCount.doubleValue(),
+                    cellValues.size(),
+                    Collections.singletonList(toType(datatype)));
 
-        final int[] axisMultipliers =
-            computeAxisMultipliers(axisList);
-
-        final SegmentBody body;
         // Peak at the values and determine the best way to store them
         // (whether to use a dense native dataset or a sparse one.
-        if (cellValues.size() == 0) {
+        if (body != null) {
+            // Already rolled up from dense arrays.
+        } else if (cellValues.size() == 0) {
             // Just store the data into an empty dense object dataset.
             body =
                 new DenseObjectSegmentBody(
@@ -476,11 +514,407 @@ public class SegmentBuilder {
                 firstHeader.compoundPredicates,
                 firstHeader.rolapStarFactTableName,
                 targetBitkey,
-                Collections.<SegmentColumn>emptyList());
+                Collections.<List<SegmentColumn>>emptyList());
 
         return Pair.of(header, body);
     }
 
+    /**
+     * Rolls up segments whose bodies are dense arrays of native values.
+     *
+     * <p>Rather than converting every cell to a {@link CellKey} and a boxed
+     * value and calling {@link Aggregator#aggregate(List, Datatype)} for
+     * each target cell, computes, for each ordinal of each source axis, its
+     * contribution to the offset of the target cell, then walks the source
+     * array in raster order, accumulating values directly into a primitive
+     * array. Supports the {@link RolapAggregator#Sum},
+     * {@link RolapAggregator#Min} and {@link RolapAggregator#Max} rollup
+     * aggregators; counts roll up using {@code Sum}.</p>
+     *
+     * @param map Source segments
+     * @param keepColumns Columns to keep; others are projected away
+     * @param sourceColumns Constrained columns of the source segments
+     * @param targetValues Values of each target axis, sorted, not including
+     *   null
+     * @param targetHasNull Whether each target axis has a null value
+     * @param axisList Target axes
+     * @param axisMultipliers Multiplier of each target axis
+     * @param valueCount Number of cells in the target segment
+     * @param rollupAggregator Rollup aggregator
+     * @param datatype Data type of the measure
+     * @return Rolled up segment body, or null if the sources are not all
+     *   dense native arrays, or the aggregator is not supported
+     */
+    private static SegmentBody rollupDense(
+        Map<SegmentHeader, SegmentBody> map,
+        Set<String> keepColumns,
+        List<SegmentColumn> sourceColumns,
+        Comparable[][] targetValues,
+        boolean[] targetHasNull,
+        List<Pair<SortedSet<Comparable>, Boolean>> axisList,
+        int[] axisMultipliers,
+        int valueCount,
+        Aggregator rollupAggregator,
+        Datatype datatype)
+    {
+        final int op;
+        if (rollupAggregator == RolapAggregator.Sum) {
+            op = 0;
+        } else if (rollupAggregator == RolapAggregator.Min) {
+            op = 1;
+        } else if (rollupAggregator == RolapAggregator.Max) {
+            op = 2;
+        } else {
+            return null;
+        }
+        final boolean intTarget;
+        switch (datatype) {
+        case Integer:
+            intTarget = true;
+            break;
+        case Numeric:
+            intTarget = false;
+            break;
+        default:
+            return null;
+        }
+        long sourceCount = 0;
+        for (SegmentBody body : map.values()) {
+            if (body instanceof DenseIntSegmentBody) {
+                sourceCount += ((int[]) body.getValueArray()).length;
+            } else if (body instanceof DenseDoubleSegmentBody && !intTarget) {
+                sourceCount += ((double[]) body.getValueArray()).length;
+            } else {
+                return null;
+            }
+        }
+        if (valueCount > sourceCount) {
+            // Not much of a rollup. Don't allocate a large, empty array.
+            return null;
+        }
+
+        final int[] ints = intTarget ? new int[valueCount] : null;
+        final double[] doubles = intTarget ? null : new double[valueCount];
+        final BitSet present = new BitSet(valueCount);
+        for (SegmentBody body : map.values()) {
+            final SortedSet<Comparable>[] valueSets = body.getAxisValueSets();
+            final boolean[] nullAxisFlags = body.getNullAxisFlags();
+            final int axisCount = valueSets.length;
+
+            // For each ordinal of each source axis, the amount it adds to the
+            // offset of the target cell, or -1 if the target segment has no
+            // such value.
+            final int[][] contributions = new int[axisCount][];
+            int cellCount = 1;
+            int z = 0;
+            for (int i = 0; i < axisCount; i++) {
+                final int length =
+                    valueSets[i].size() + (nullAxisFlags[i] ? 1 : 0);
+                final int[] contribution = contributions[i] = new int[length];
+                cellCount *= length;
+                if (!keepColumns.contains(
+                        sourceColumns.get(i).columnExpression))
+                {
+                    continue; // projected away; contribution is 0
+                }
+                int k = 0;
+                for (Comparable value : valueSets[i]) {
+                    final int targetOrdinal =
+                        Util.binarySearch(
+                            targetValues[z], 0, targetValues[z].length, value);
+                    contribution[k++] =
+                        targetOrdinal < 0
+                            ? -1
+                            : targetOrdinal * axisMultipliers[z];
+                }
+                if (nullAxisFlags[i]) {
+                    contribution[k] =
+                        targetHasNull[z]
+                            ? targetValues[z].length * axisMultipliers[z]
+                            : -1;
+                }
+                ++z;
+            }
+            final Object valueArray = body.getValueArray();
+            final int[] sourceInts =
+                valueArray instanceof int[] ? (int[]) valueArray : null;
+            final double[] sourceDoubles =
+                valueArray instanceof double[] ? (double[]) valueArray : null;
+            final BitSet nullValues = body.getNullValueIndicators();
+            if (axisCount == 0
+                || cellCount
+                   != (sourceInts != null
+                       ? sourceInts.length
+                       : sourceDoubles.length))
+            {
+                return null;
+            }
+
+            // Walk the source in raster order. The last axis varies fastest,
+            // so handle it in an inner loop; the other axes are an odometer.
+            final int[] lastContribution = contributions[axisCount - 1];
+            final int lastLength = lastContribution.length;
+            final int[] ordinals = new int[axisCount - 1];
+            for (int start = 0; start < cellCount; start += lastLength) {
+                int base = 0;
+                for (int i = 0; i < ordinals.length; i++) {
+                    final int c = contributions[i][ordinals[i]];
+                    if (c < 0) {
+                        base = -1;
+                        break;
+                    }
+                    base += c;
+                }
+                if (base >= 0) {
+                    for (int k = 0; k < lastLength; k++) {
+                        final int c = lastContribution[k];
+                        final int source = start + k;
+                        if (c < 0 || nullValues.get(source)) {
+                            continue;
+                        }
+                        final int target = base + c;
+                        final boolean first = !present.get(target);
+                        if (first) {
+                            present.set(target);
+                        }
+                        if (intTarget) {
+                            final int v = sourceInts[source];
+                            if (first) {
+                                ints[target] = v;
+                            } else if (op == 0) {
+                                ints[target] += v;
+                            } else if (op == 1) {
+                                ints[target] = Math.min(ints[target], v);
+                            } else {
+                                ints[target] = Math.max(ints[target], v);
+                            }
+                        } else {
+                            final double v =
+                                sourceDoubles != null
+                                    ? sourceDoubles[source]
+                                    : sourceInts[source];
+                            if (first) {
+                                doubles[target] = v;
+                            } else if (op == 0) {
+                                doubles[target] += v;
+                            } else if (op == 1) {
+                                doubles[target] = Math.min(doubles[target], v);
+                            } else {
+                                doubles[target] = Math.max(doubles[target], v);
+                            }
+                        }
+                    }
+                }
+                for (int i = ordinals.length - 1; i >= 0; --i) {
+                    if (++ordinals[i] < contributions[i].length) {
+                        break;
+                    }
+                    ordinals[i] = 0;
+                }
+            }
+        }
+
+        final int presentCount = present.cardinality();
+        if (presentCount == 0) {
+            return new DenseObjectSegmentBody(new Object[0], axisList);
+        }
+        if (SegmentLoader.useSparse(
+                valueCount,
+                presentCount,
+                Collections.singletonList(
+                    intTarget
+                        ? SqlStatement.Type.INT
+                        : SqlStatement.Type.DOUBLE)))
+        {
+            final long[] offsets = new long[presentCount];
+            final Object[] data = new Object[presentCount];
+            int n = 0;
+            for (int i = present.nextSetBit(0); i >= 0;
+                i = present.nextSetBit(i + 1))
+            {
+                offsets[n] = i;
+                data[n++] = intTarget ? (Object) ints[i] : (Object) doubles[i];
+            }
+            return new SparseSegmentBody(offsets, data, axisList);
+        }
+        final BitSet nullValues = Util.bitSetBetween(0, valueCount);
+        nullValues.andNot(present);
+        if (intTarget) {
+            return new DenseIntSegmentBody(nullValues, ints, axisList);
+        } else {
+            return new DenseDoubleSegmentBody(nullValues, doubles, axisList);
+        }
+    }
+
+    /**
+     * Merges the cells of a region, freshly loaded from the database, into
+     * the body of an existing segment of the same dimensionality.
+     *
+     * <p>Each axis of the result has the union of the values of the two
+     * bodies' axes; typically the region adds one value to the axis of a
+     * time column. Cells of {@code body} that fall inside the region are
+     * replaced by the cells of {@code regionBody}, so it does not matter
+     * whether the region was already partially in the segment.</p>
+     *
+     * <p>The result is dense or sparse according to the same rule as
+     * {@link SegmentLoader#useSparse(double, double, List)}.</p>
+     *
+     * @param body Body of existing segment
+     * @param regionBody Body containing the cells of the region
+     * @param regionValues For each axis, the values of the region, or null
+     *   if the region does not constrain the axis
+     * @return Merged body, or null if the bodies cannot be merged (at
+     *   present, if any axis has a null value)
+     */
+    public static SegmentBody append(
+        SegmentBody body,
+        SegmentBody regionBody,
+        List<SortedSet<Comparable>> regionValues)
+    {
+        final int axisCount = regionValues.size();
+        for (int i = 0; i < axisCount; i++) {
+            if (body.getNullAxisFlags()[i]
+                || regionBody.getNullAxisFlags()[i])
+            {
+                return null;
+            }
+        }
+
+        // Build the axes of the merged body.
+        final List<Pair<SortedSet<Comparable>, Boolean>> axisList =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        final Comparable[][] values = new Comparable[axisCount][];
+        BigInteger bigValueCount = BigInteger.ONE;
+        for (int i = 0; i < axisCount; i++) {
+            final SortedSet<Comparable> valueSet =
+                new TreeSet<Comparable>(body.getAxisValueSets()[i]);
+            valueSet.addAll(regionBody.getAxisValueSets()[i]);
+            values[i] = valueSet.toArray(new Comparable[valueSet.size()]);
+            axisList.add(Pair.of(valueSet, false));
+            bigValueCount =
+                bigValueCount.multiply(BigInteger.valueOf(valueSet.size()));
+        }
+
+        // Copy the cells of the existing body that are outside the region,
+        // then the cells of the region.
+        final Map<CellKey, Object> cells = new HashMap<CellKey, Object>();
+        final int[][] ordinalMap = computeOrdinalMap(body, values);
+        final int[] pos = new int[axisCount];
+        for (Map.Entry<CellKey, Object> entry
+            : body.getValueMap().entrySet())
+        {
+            final int[] ordinals = entry.getKey().getOrdinals();
+            boolean inRegion = true;
+            for (int i = 0; i < axisCount; i++) {
+                pos[i] = ordinalMap[i][ordinals[i]];
+                inRegion &= regionValues.get(i) == null
+                    || regionValues.get(i).contains(values[i][pos[i]]);
+            }
+            if (!inRegion) {
+                cells.put(CellKey.Generator.newCellKey(pos), entry.getValue());
+            }
+        }
+        final int[][] regionOrdinalMap = computeOrdinalMap(regionBody, values);
+        for (Map.Entry<CellKey, Object> entry
+            : regionBody.getValueMap().entrySet())
+        {
+            final int[] ordinals = entry.getKey().getOrdinals();
+            for (int i = 0; i < axisCount; i++) {
+                pos[i] = regionOrdinalMap[i][ordinals[i]];
+            }
+            cells.put(CellKey.Generator.newCellKey(pos), entry.getValue());
+        }
+
+        // Store values in the narrowest array that holds them all.
+        boolean allInt = !cells.isEmpty();
+        boolean allDouble = !cells.isEmpty();
+        for (Object value : cells.values()) {
+            allInt &= value instanceof Integer;
+            allDouble &= value instanceof Double;
+        }
+        if (bigValueCount.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0
+            || SegmentLoader.useSparse(
+                bigValueCount.doubleValue(),
+                cells.size(),
+                Collections.singletonList(
+                    allInt ? SqlStatement.Type.INT
+                        : allDouble ? SqlStatement.Type.DOUBLE
+                        : SqlStatement.Type.OBJECT)))
+        {
+            return new SparseSegmentBody(cells, axisList);
+        }
+        final int valueCount = bigValueCount.intValue();
+        final int[] axisMultipliers = computeAxisMultipliers(axisList);
+        if (!(allInt || allDouble)) {
+            final Object[] objects = new Object[valueCount];
+            for (Map.Entry<CellKey, Object> entry : cells.entrySet()) {
+                objects[
+                    CellKey.Generator.getOffset(
+                        entry.getKey().getOrdinals(), axisMultipliers)] =
+                    entry.getValue();
+            }
+            return new DenseObjectSegmentBody(objects, axisList);
+        }
+        final BitSet nullValues = Util.bitSetBetween(0, valueCount);
+        final int[] ints = allInt ? new int[valueCount] : null;
+        final double[] doubles = allInt ? null : new double[valueCount];
+        for (Map.Entry<CellKey, Object> entry : cells.entrySet()) {
+            final int offset =
+                CellKey.Generator.getOffset(
+                    entry.getKey().getOrdinals(), axisMultipliers);
+            if (allInt) {
+                ints[offset] = (Integer) entry.getValue();
+            } else {
+                doubles[offset] = (Double) entry.getValue();
+            }
+            nullValues.clear(offset);
+        }
+        return allInt
+            ? new DenseIntSegmentBody(nullValues, ints, axisList)
+            : new DenseDoubleSegmentBody(nullValues, doubles, axisList);
+    }
+
+    /**
+     * Returns the type of value used to store a measure of a given datatype.
+     */
+    private static SqlStatement.Type toType(Datatype datatype) {
+        switch (datatype) {
+        case Integer:
+            return SqlStatement.Type.INT;
+        case Numeric:
+            return SqlStatement.Type.DOUBLE;
+        default:
+            return SqlStatement.Type.OBJECT;
+        }
+    }
+
+    /**
+     * Computes, for each axis of a segment body, the ordinal of each of its
+     * values in a target axis that contains all of those values.
+     */
+    private static int[][] computeOrdinalMap(
+        SegmentBody body,
+        Comparable[][] targetValues)
+    {
+        final int[][] ordinalMap = new int[targetValues.length][];
+        for (int i = 0; i < targetValues.length; i++) {
+            final SortedSet<Comparable> valueSet = body.getAxisValueSets()[i];
+            ordinalMap[i] = new int[valueSet.size()];
+            int j = 0;
+            for (Comparable value : valueSet) {
+                ordinalMap[i][j++] =
+                    Util.binarySearch(
+                        targetValues[i], 0, targetValues[i].length, value);
+            }
+        }
+        return ordinalMap;
+    }
+
+    /**
+     * Computes, for each axis, the product of the lengths of later axes. The
+     * length of an axis includes the null value, if present, which sorts
+     * last; this is consistent with {@link SegmentAxis}.
+     */
     private static int[] computeAxisMultipliers(
         List<Pair<SortedSet<Comparable>, Boolean>> axes)
     {
@@ -488,21 +922,65 @@ public class SegmentBuilder {
         int multiplier = 1;
         for (int i = axes.size() - 1; i >= 0; --i) {
             axisMultipliers[i] = multiplier;
-            multiplier *= axes.get(i).left.size();
+            final Pair<SortedSet<Comparable>, Boolean> axis = axes.get(i);
+            multiplier *= axis.left.size() + (axis.right ? 1 : 0);
         }
         return axisMultipliers;
     }
 
-    private static class ExcludedRegionList
-        extends AbstractList<Segment.ExcludedRegion>
-        implements Segment.ExcludedRegion
+    /**
+     * Converts the excluded regions of a segment header into
+     * {@link ExcludedRegion} objects.
+     *
+     * @param header Segment header
+     * @return List of excluded regions, one per region of the header
+     */
+    private static List<ExcludedRegion> toExcludedRegions(
+        SegmentHeader header)
     {
+        if (header.getExcludedCellRegions().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<ExcludedRegion> list =
+            new ArrayList<ExcludedRegion>();
+        for (List<SegmentColumn> region : header.getExcludedCellRegions()) {
+            list.add(new HeaderExcludedRegion(header, region));
+        }
+        return list;
+    }
+
+    /**
+     * Excluded region defined by one of the excluded regions of a
+     * {@link SegmentHeader}. It contains the cells whose coordinate on each
+     * of the region's columns is among that column's values.
+     */
+    private static class HeaderExcludedRegion implements ExcludedRegion {
+        private final int arity;
         private final int cellCount;
-        private final SegmentHeader header;
-        public ExcludedRegionList(SegmentHeader header) {
-            this.header = header;
+        private final List<SegmentColumn> region;
+        /** Ordinal, in the header's constrained columns, of each column in
+         * the region. */
+        private final int[] ordinals;
+
+        public HeaderExcludedRegion(
+            SegmentHeader header,
+            List<SegmentColumn> region)
+        {
+            this.arity = header.getConstrainedColumns().size();
+            this.region = region;
+            this.ordinals = new int[region.size()];
             int cellCount = 1;
-            for (SegmentColumn cc : header.getExcludedRegions()) {
+            for (int i = 0; i < region.size(); i++) {
+                final SegmentColumn cc = region.get(i);
+                ordinals[i] = -1;
+                for (int j = 0; j < arity; j++) {
+                    if (header.getConstrainedColumns().get(j).columnExpression
+                        .equals(cc.columnExpression))
+                    {
+                        ordinals[i] = j;
+                        break;
+                    }
+                }
                 // TODO find a way to approximate the cardinality
                 // of wildcard columns.
                 if (cc.values != null) {
@@ -513,11 +991,21 @@ public class SegmentBuilder {
         }
 
         public void describe(StringBuilder buf) {
-            // TODO
+            buf.append('{');
+            int k = 0;
+            for (SegmentColumn cc : region) {
+                if (k++ > 0) {
+                    buf.append(", ");
+                }
+                buf.append(cc.columnExpression)
+                    .append('=')
+                    .append(cc.values == null ? "*" : cc.values);
+            }
+            buf.append('}');
         }
 
         public int getArity() {
-            return header.getConstrainedColumns().size();
+            return arity;
         }
 
         public int getCellCount() {
@@ -525,28 +1013,106 @@ public class SegmentBuilder {
         }
 
         public boolean wouldContain(Object[] keys) {
-            assert keys.length == header.getConstrainedColumns().size();
-            for (int i = 0; i < keys.length; i++) {
-                final SegmentColumn excl =
-                    header.getExcludedRegion(
-                        header.getConstrainedColumns().get(i).columnExpression);
-                if (excl == null) {
+            assert keys.length == arity;
+            for (int i = 0; i < ordinals.length; i++) {
+                final SegmentColumn cc = region.get(i);
+                if (ordinals[i] < 0 || cc.values == null) {
                     continue;
                 }
-                if (excl.values.contains(keys[i])) {
-                    return true;
+                if (!cc.values.contains(keys[ordinals[i]])) {
+                    return false;
                 }
             }
-            return false;
+            return true;
         }
+    }
+
+    /**
+     * Returns an estimate of the number of bytes of heap used by a segment
+     * body.
+     *
+     * <p>Bodies created by mondrian know their own size. For other
+     * implementations of {@link SegmentBody}, the estimate is derived from
+     * the number of cells and axis values.</p>
+     *
+     * @param body Segment body
+     * @return Estimated size in bytes
+     */
+    public static long estimateByteSize(SegmentBody body) {
+        if (body instanceof AbstractSegmentBody) {
+            return ((AbstractSegmentBody) body).getEstimatedByteSize();
+        }
+        long size = AbstractSegmentBody.OBJECT_BYTES;
+        for (SortedSet<Comparable> axisValueSet : body.getAxisValueSets()) {
+            size += AbstractSegmentBody.OBJECT_BYTES
+                + axisValueSet.size()
+                * (AbstractSegmentBody.AXIS_ENTRY_BYTES
+                   + AbstractSegmentBody.OBJECT_BYTES);
+        }
+        Object values;
+        try {
+            values = body.getValueArray();
+        } catch (UnsupportedOperationException e) {
+            values = null;
+        }
+        if (values instanceof double[]) {
+            size += 8L * ((double[]) values).length;
+        } else if (values instanceof int[]) {
+            size += 4L * ((int[]) values).length;
+        } else if (values instanceof Object[]) {
+            size += (AbstractSegmentBody.REFERENCE_BYTES
+                     + AbstractSegmentBody.OBJECT_BYTES)
+                * (long) ((Object[]) values).length;
+        } else {
+            // Sparse body. Each cell has a key and a boxed value.
+            size += body.getValueMap().size()
+                * (long) (4 * AbstractSegmentBody.OBJECT_BYTES);
+        }
+        return size;
+    }
 
-        public ExcludedRegion get(int index) {
-            return this;
+    /**
+     * Returns how a segment body stores its cells.
+     *
+     * @param body Segment body
+     * @return Storage
+     */
+    static CellCacheSegmentCreateEvent.Storage getStorage(SegmentBody body) {
+        if (body instanceof SparseSegmentBody) {
+            return CellCacheSegmentCreateEvent.Storage.SPARSE;
+        } else if (body instanceof DictionaryObjectSegmentBody) {
+            return CellCacheSegmentCreateEvent.Storage.COMPRESSED;
+        } else {
+            return CellCacheSegmentCreateEvent.Storage.DENSE;
         }
+    }
 
-        public int size() {
-            return 1;
+    /**
+     * Estimates the number of bytes that a segment body saves by not
+     * storing its values in a dense array.
+     *
+     * @param body Segment body
+     * @param cellCount Number of cells that have a value
+     * @return Estimated bytes saved; zero if the body is dense, negative if
+     *   a dense array would have been smaller
+     */
+    static long estimateBytesSaved(SegmentBody body, int cellCount) {
+        final SqlStatement.Type type;
+        if (body instanceof SparseSegmentBody) {
+            type = ((SparseSegmentBody) body).getType();
+        } else if (body instanceof DictionaryObjectSegmentBody) {
+            type = SqlStatement.Type.OBJECT;
+        } else {
+            return 0;
+        }
+        double possibleCount = 1;
+        for (int i = 0; i < body.getAxisValueSets().length; i++) {
+            possibleCount *= body.getAxisValueSets()[i].size()
+                + (body.getNullAxisFlags()[i] ? 1 : 0);
         }
+        return (long) AbstractSegmentBody.estimateDenseValueByteSize(
+            type, possibleCount, cellCount)
+            - ((AbstractSegmentBody) body).getEstimatedValueByteSize();
     }
 
     /**
@@ -645,7 +1211,9 @@ public class SegmentBuilder {
                 new SqlQuery(
                     segment.star.getSqlQueryDialect());
             compoundPredicate.toSql(query, buf);
-            cp.add(buf.toString());
+            // Headers are compared across servers and stored in external
+            // caches, so must not contain bind variables.
+            cp.add(SqlQuery.inlineBindVariables(buf.toString()));
         }
         final RolapSchema schema = segment.star.getSchema();
         return new SegmentHeader(
@@ -657,10 +1225,10 @@ public class SegmentBuilder {
             cp,
             segment.star.getFactTable().getAlias(),
             segment.constrainedColumnsBitKey,
-            Collections.<SegmentColumn>emptyList());
+            Collections.<List<SegmentColumn>>emptyList());
     }
 
-    private static RolapStar.Column[] getConstrainedColumns(
+    static RolapStar.Column[] getConstrainedColumns(
         RolapStar star,
         BitKey bitKey)
     {
@@ -27,6 +27,7 @@ import java.io.PrintWriter;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import javax.sql.DataSource;
 
 /**
  * Active object that maintains the "global cache" (in JVM, but shared between
@@ -163,6 +164,13 @@ import java.util.concurrent.*;
  *
  * </ol>
  *
+ * <p>(Done. We use option #3. The flushed region is added to the header as an
+ * N-dimensional excluded region, and caches that implement
+ * {@link mondrian.spi.RestrictableSegmentCache} re-key the segment under the
+ * new header without reading its body; see
+ * {@link SegmentCacheWorker#addRestriction}. Only cells in excluded regions
+ * are re-read from the database.)</p>
+ *
  * <p>14. Move {@link AggregationManager#getCellFromCache} somewhere else.
  *   It's concerned with local segments, not the global/external cache.</p>
  *
@@ -181,7 +189,11 @@ import java.util.concurrent.*;
  * this. Instead, we should send cell-requests in batches (is ~1000 the right
  * size?), identify those that can be answered from global or external cache,
  * return those segments, but not execute SQL until the end of the phase.
- * If so, {@link CellRequestQuantumExceededException} be obsoleted.</p>
+ * If so, {@link CellRequestQuantumExceededException} be obsoleted.
+ * (Done, mostly. {@link FastBatchingCellReader} resolves requests in chunks of
+ * {@link MondrianProperties#CellBatchChunkSize} without executing SQL. The
+ * exception is now only thrown if the number of requests that could not be
+ * answered from cache exceeds {@link MondrianProperties#CellBatchSize}.)</p>
  *
  * <p>19. Tracing.
  * a. Remove or re-purpose {@link FastBatchingCellReader#pendingCount};
@@ -198,7 +210,8 @@ import java.util.concurrent.*;
  * broken for N-dimensional regions where N &gt; 1. Each call currently
  * creates N more 1-dimensional regions, but should create 1 more N-dimensional
  * region. {@link SegmentHeader#excludedRegions} should be a list of
- * {@link SegmentColumn} arrays.</p>
+ * {@link SegmentColumn} arrays. (Done. Each excluded region is now a list of
+ * columns.)</p>
  *
  * <p>23. All code that calls {@link Future#get} should probably handle
  * {@link CancellationException}.</p>
@@ -210,7 +223,19 @@ import java.util.concurrent.*;
  */
 public class SegmentCacheManager {
     private final Handler handler = new Handler();
-    private final Actor ACTOR;
+
+    /**
+     * Actors, one per partition. Each star is owned by exactly one partition
+     * (see {@link #getPartition(RolapStar)}), and all operations on the
+     * index of that star are carried out by that partition's actor.
+     */
+    private final Actor[] actors;
+    private final Thread[] threads;
+
+    /**
+     * Thread of the first actor. If the cache manager is not partitioned
+     * (the default), this is the only actor thread.
+     */
     public final Thread thread;
 
     /**
@@ -233,26 +258,29 @@ public class SegmentCacheManager {
             });
 
     /**
-     * Executor with which to execute SQL requests.
+     * Executors with which to execute SQL requests, one per data source.
      *
-     * <p>TODO: create using factory and/or configuration parameters. Executor
-     * should be shared within MondrianServer or target JDBC database.
+     * <p>A request whose data source's {@link SqlQueue} is full waits in
+     * its executor's thread. Because each data source has its own
+     * executor, requests waiting for a busy data source cannot use up the
+     * threads that requests against other data sources need.</p>
+     */
+    private final Map<DataSource, ExecutorService> sqlExecutors =
+        new WeakHashMap<DataSource, ExecutorService>();
+
+    /**
+     * Executor with which to execute the SQL statements of a partitioned
+     * segment load; see
+     * {@link MondrianProperties#SegmentLoadMaxPartitions}. If every thread is
+     * busy, a statement runs in the thread that is loading the segment.
      */
-    public final ExecutorService sqlExecutor =
+    public final ExecutorService sqlPartitionExecutor =
         Util.getExecutorService(
             MondrianProperties.instance()
                 .SegmentCacheManagerNumberSqlThreads.get(),
             0, 1,
-            "mondrian.rolap.agg.SegmentCacheManager$sqlExecutor",
-            new RejectedExecutionHandler() {
-                public void rejectedExecution(
-                    Runnable r,
-                    ThreadPoolExecutor executor)
-                {
-                    throw MondrianResource.instance()
-                        .SqlQueryLimitReached.ex();
-                }
-            });
+            "mondrian.rolap.agg.SegmentCacheManager$sqlPartitionExecutor",
+            new ThreadPoolExecutor.CallerRunsPolicy());
 
     // NOTE: This list is only mutable for testing purposes. Would rather it
     // were immutable.
@@ -262,28 +290,63 @@ public class SegmentCacheManager {
     public final SegmentCache compositeCache;
     private final SegmentCacheIndexRegistry indexRegistry;
 
+    /**
+     * The in-JVM segment cache, or null if local caching is disabled.
+     */
+    private final SegmentCache localCache;
+
+    /**
+     * Stars whose index has been populated from external caches; see
+     * {@link #loadCacheForStar(RolapStar)}.
+     */
+    private final Map<RolapStar, Boolean> loadedStars =
+        Collections.synchronizedMap(new WeakHashMap<RolapStar, Boolean>());
+
     private static final Logger LOGGER =
         Logger.getLogger(AggregationManager.class);
     private final MondrianServer server;
 
     public SegmentCacheManager(MondrianServer server) {
         this.server = server;
-        ACTOR = new Actor();
-        thread = new Thread(
-            ACTOR, "mondrian.rolap.agg.SegmentCacheManager$ACTOR");
-        thread.setDaemon(true);
-        thread.start();
+        final int partitionCount =
+            Math.max(
+                1,
+                MondrianProperties.instance()
+                    .SegmentCacheManagerNumberPartitions.get());
+        actors = new Actor[partitionCount];
+        threads = new Thread[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            actors[i] = new Actor();
+            threads[i] = new Thread(
+                actors[i],
+                partitionCount == 1
+                    ? "mondrian.rolap.agg.SegmentCacheManager$ACTOR"
+                    : "mondrian.rolap.agg.SegmentCacheManager$ACTOR-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        thread = threads[0];
 
         // Create the index registry.
         this.indexRegistry = new SegmentCacheIndexRegistry();
 
-        // Add a local cache, if needed.
+        // Add a local cache, if needed. If a size limit is set, the cache
+        // evicts segments itself; otherwise, it holds them via soft references
+        // and lets the garbage collector decide.
         if (!MondrianProperties.instance().DisableLocalSegmentCache.get()
             && !MondrianProperties.instance().DisableCaching.get())
         {
-            final MemorySegmentCache cache = new MemorySegmentCache();
+            final int maxSize =
+                MondrianProperties.instance().LocalSegmentCacheMaxSize.get();
+            final SegmentCache cache =
+                maxSize > 0
+                    ? new BoundedMemorySegmentCache(maxSize * 1024L * 1024L)
+                    : new MemorySegmentCache();
+            localCache = cache;
             segmentCacheWorkers.add(
-                new SegmentCacheWorker(cache, thread));
+                new SegmentCacheWorker(cache, Arrays.asList(threads)));
+        } else {
+            localCache = null;
         }
 
         // Add an external cache, if configured.
@@ -291,7 +354,7 @@ public class SegmentCacheManager {
         for (SegmentCache cache : externalCache) {
             // Create a worker for this external cache
             segmentCacheWorkers.add(
-                new SegmentCacheWorker(cache, thread));
+                new SegmentCacheWorker(cache, Arrays.asList(threads)));
             // Hook up a listener so it can update
             // the segment index.
             cache.addListener(
@@ -301,14 +364,205 @@ public class SegmentCacheManager {
         compositeCache = new CompositeSegmentCache(segmentCacheWorkers);
     }
 
+    /**
+     * Executes a command on the first actor.
+     *
+     * <p>If the command accesses the index of a particular star, use
+     * {@link #execute(RolapStar, Command)} instead; if it needs to visit
+     * every partition, use {@link #executeAll(Command)}.</p>
+     *
+     * @param command Command
+     * @return Result of command
+     */
     public <T> T execute(Command<T> command) {
-        return ACTOR.execute(handler, command);
+        return actors[0].execute(handler, command);
+    }
+
+    /**
+     * Executes a command on the actor that owns the index of a given star.
+     *
+     * @param star Star whose index the command accesses
+     * @param command Command
+     * @return Result of command
+     */
+    public <T> T execute(RolapStar star, Command<T> command) {
+        return actors[getPartition(star)].execute(handler, command);
+    }
+
+    /**
+     * Executes a command on each actor in turn, and returns the list of
+     * results, one per partition.
+     *
+     * <p>The command must only access indexes owned by the partition it is
+     * running on; for example,
+     * {@link SegmentCacheIndexRegistry#cancelExecutionSegments}.</p>
+     *
+     * @param command Command
+     * @return List of results, one per partition
+     */
+    public <T> List<T> executeAll(Command<T> command) {
+        final List<T> results = new ArrayList<T>(actors.length);
+        for (Actor actor : actors) {
+            results.add(actor.execute(handler, command));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of partitions. Each partition has its own actor
+     * thread and its own set of indexes.
+     *
+     * @return Number of partitions; 1 if the cache manager is not partitioned
+     */
+    public int getPartitionCount() {
+        return actors.length;
+    }
+
+    /**
+     * Returns the partition that owns the index of a given star.
+     *
+     * @param star Star
+     * @return Partition ordinal, between 0 and partition count - 1
+     */
+    public int getPartition(RolapStar star) {
+        if (actors.length == 1) {
+            return 0;
+        }
+        return getPartition(
+            star.getSchema().getChecksum(),
+            star.getFactTable().getTableName());
+    }
+
+    /**
+     * Returns the partition that owns the index that a segment header
+     * belongs to.
+     *
+     * @param header Segment header
+     * @return Partition ordinal, between 0 and partition count - 1
+     */
+    public int getPartition(SegmentHeader header) {
+        if (actors.length == 1) {
+            return 0;
+        }
+        return getPartition(
+            header.schemaChecksum,
+            header.rolapStarFactTableName);
+    }
+
+    private int getPartition(ByteString schemaChecksum, String factTableName) {
+        final int hash =
+            schemaChecksum.hashCode() * 31 + factTableName.hashCode();
+        return (hash & Integer.MAX_VALUE) % actors.length;
+    }
+
+    /**
+     * Returns the partition whose actor thread is the current thread.
+     */
+    private int getCurrentPartition() {
+        final Thread current = Thread.currentThread();
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] == current) {
+                return i;
+            }
+        }
+        throw Util.newInternal(
+            "not called from a segment cache manager actor: " + current);
     }
 
     public SegmentCacheIndexRegistry getIndexRegistry() {
         return indexRegistry;
     }
 
+    /**
+     * Returns the in-JVM segment cache, or null if local caching is
+     * disabled.
+     *
+     * @return Local segment cache
+     */
+    public SegmentCache getLocalCache() {
+        return localCache;
+    }
+
+    /**
+     * Tells the local cache how long it took to load a segment via SQL,
+     * so that, if it has to evict segments, it can keep those that would
+     * be expensive to load again.
+     *
+     * @param header Segment header
+     * @param millis Time taken to load the segment, in milliseconds
+     */
+    public void recordLoadCost(SegmentHeader header, long millis) {
+        if (localCache instanceof BoundedMemorySegmentCache) {
+            ((BoundedMemorySegmentCache) localCache)
+                .setLoadCost(header, millis);
+        }
+    }
+
+    /**
+     * Populates the index of a star with the segments that are already in
+     * file caches, the first time that the star is used.
+     *
+     * <p>A {@link FileSegmentCache} survives restarts, so may contain
+     * segments created by a previous incarnation of this server; this method
+     * makes them available without waiting for a cache event. Segments of the
+     * same schema and fact table that were created by a different version of
+     * the schema are removed. Other external caches are not scanned; they
+     * announce their segments by sending events.</p>
+     *
+     * <p>The star is marked as loaded only after the headers have been added
+     * to its index. Until then, another thread may scan the caches too;
+     * adding a header that is already in the index has no effect.</p>
+     *
+     * <p>Must not be called from an actor thread, because it calls the
+     * external caches.</p>
+     *
+     * @param star Star
+     */
+    public void loadCacheForStar(final RolapStar star) {
+        if (MondrianProperties.instance().DisableCaching.get()
+            || loadedStars.containsKey(star))
+        {
+            return;
+        }
+        final RolapSchema schema = star.getSchema();
+        final String factTableName = star.getFactTable().getTableName();
+        final List<SegmentHeader> headers = new ArrayList<SegmentHeader>();
+        for (SegmentCacheWorker worker : segmentCacheWorkers) {
+            if (!(worker.cache instanceof FileSegmentCache)) {
+                continue;
+            }
+            ((FileSegmentCache) worker.cache).removeStaleSegments(
+                schema.getName(), schema.getChecksum(), factTableName);
+            for (SegmentHeader header : worker.getSegmentHeaders()) {
+                if (header.schemaChecksum.equals(schema.getChecksum())
+                    && header.rolapStarFactTableName.equals(factTableName))
+                {
+                    headers.add(header);
+                }
+            }
+        }
+        if (!headers.isEmpty()) {
+            final Locus locus = Locus.peek();
+            execute(
+                star,
+                new Command<Void>() {
+                    public Void call() throws Exception {
+                        final SegmentCacheIndex index =
+                            indexRegistry.getIndex(star);
+                        for (SegmentHeader header : headers) {
+                            index.add(header, false, null);
+                        }
+                        return null;
+                    }
+
+                    public Locus getLocus() {
+                        return locus;
+                    }
+                });
+        }
+        loadedStars.put(star, Boolean.TRUE);
+    }
+
     /**
      * Adds a segment to segment index.
      *
@@ -326,7 +580,7 @@ public class SegmentCacheManager {
         SegmentBody body)
     {
         final Locus locus = Locus.peek();
-        ACTOR.event(
+        actors[getPartition(star)].event(
             handler,
             new SegmentLoadSucceededEvent(
                 System.currentTimeMillis(),
@@ -356,7 +610,7 @@ public class SegmentCacheManager {
         Throwable throwable)
     {
         final Locus locus = Locus.peek();
-        ACTOR.event(
+        actors[getPartition(star)].event(
             handler,
             new SegmentLoadFailedEvent(
                 System.currentTimeMillis(),
@@ -385,7 +639,7 @@ public class SegmentCacheManager {
         SegmentHeader header)
     {
         final Locus locus = Locus.peek();
-        ACTOR.event(
+        actors[getPartition(star)].event(
             handler,
             new SegmentRemoveEvent(
                 System.currentTimeMillis(),
@@ -411,7 +665,7 @@ public class SegmentCacheManager {
             // Ignore cache requests.
             return;
         }
-        ACTOR.event(
+        actors[getPartition(header)].event(
             handler,
             new ExternalSegmentCreatedEvent(
                 System.currentTimeMillis(),
@@ -436,7 +690,7 @@ public class SegmentCacheManager {
             // Ignore cache requests.
             return;
         }
-        ACTOR.event(
+        actors[getPartition(header)].event(
             handler,
             new ExternalSegmentDeletedEvent(
                 System.currentTimeMillis(),
@@ -454,18 +708,279 @@ public class SegmentCacheManager {
         PrintWriter pw,
         Locus locus)
     {
-        ACTOR.execute(
-            handler,
-            new PrintCacheStateCommand(region, pw, locus));
+        final List<RolapStar> starList =
+            CacheControlImpl.getStarList(region);
+        Collections.sort(
+            starList,
+            new Comparator<RolapStar>() {
+                public int compare(RolapStar o1, RolapStar o2) {
+                    return o1.getFactTable().getAlias().compareTo(
+                        o2.getFactTable().getAlias());
+                }
+            });
+        for (RolapStar star : starList) {
+            execute(
+                star,
+                new PrintCacheStateCommand(star, pw, locus));
+        }
+    }
+
+    /**
+     * Flushes a region from the cache.
+     *
+     * <p>If the cache manager is partitioned, sends a {@link FlushCommand} to
+     * each partition that owns one of the region's stars, and combines the
+     * results.</p>
+     *
+     * @param locus Locus
+     * @param region Region to flush
+     * @param cacheControlImpl Cache control, for tracing
+     * @return Tasks that must be executed to flush segments from the
+     *     external cache(s)
+     */
+    public FlushResult flush(
+        Locus locus,
+        CellRegion region,
+        CacheControlImpl cacheControlImpl)
+    {
+        return flush(locus, region, cacheControlImpl, false);
+    }
+
+    private FlushResult flush(
+        Locus locus,
+        CellRegion region,
+        CacheControlImpl cacheControlImpl,
+        boolean append)
+    {
+        if (actors.length == 1) {
+            return execute(
+                new FlushCommand(
+                    locus, this, region, cacheControlImpl, -1, append));
+        }
+        final SortedSet<Integer> partitions = new TreeSet<Integer>();
+        for (RolapStar star : CacheControlImpl.getStarList(region)) {
+            partitions.add(getPartition(star));
+        }
+        final List<Callable<Boolean>> tasks =
+            new ArrayList<Callable<Boolean>>();
+        final List<SegmentAppend> appends = new ArrayList<SegmentAppend>();
+        for (int partition : partitions) {
+            final FlushResult result =
+                actors[partition].execute(
+                    handler,
+                    new FlushCommand(
+                        locus, this, region, cacheControlImpl, partition,
+                        append));
+            tasks.addAll(result.tasks);
+            appends.addAll(result.appends);
+        }
+        return new FlushResult(tasks, appends);
+    }
+
+    /**
+     * Loads the cells of a region, typically new rows in a fact table that
+     * is partitioned by time, into the segments that can hold them.
+     *
+     * <p>First flushes the region, as {@link #flush} does, except that the
+     * segments that {@link FlushCommand#canAppend can be appended to} are
+     * remembered. While the region is excluded from those segments, queries
+     * for its cells go to the database. Then, for each such segment, loads
+     * just the cells of the region via SQL, merges them into the segment's
+     * body, and puts the merged body into cache under the segment's original
+     * header, which replaces the restricted header in the index.</p>
+     *
+     * <p>Must not be called from an actor thread, because it executes SQL
+     * and calls the external caches.</p>
+     *
+     * @param locus Locus
+     * @param region Region to append
+     * @param cacheControlImpl Cache control, for tracing
+     */
+    public void append(
+        Locus locus,
+        CellRegion region,
+        CacheControlImpl cacheControlImpl)
+    {
+        final FlushResult result =
+            flush(locus, region, cacheControlImpl, true);
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (Callable<Boolean> task : result.tasks) {
+            futures.add(cacheExecutor.submit(task));
+        }
+        for (Future<Boolean> future : futures) {
+            Util.discard(Util.safeGet(future, "Append cache"));
+        }
+        final SegmentColumn[] appendRegion =
+            CacheControlImpl.findAxisValues(region);
+        final SegmentLoader loader = new SegmentLoader(this, false);
+        for (SegmentAppend segmentAppend : result.appends) {
+            append(
+                locus, loader, appendRegion, segmentAppend, cacheControlImpl);
+        }
+    }
+
+    private void append(
+        final Locus locus,
+        SegmentLoader loader,
+        SegmentColumn[] appendRegion,
+        final SegmentAppend segmentAppend,
+        CacheControlImpl cacheControlImpl)
+    {
+        final SegmentHeader header = segmentAppend.header;
+        final SegmentHeader restrictedHeader = segmentAppend.restrictedHeader;
+        final RolapStar star = segmentAppend.measure.getStar();
+        final SegmentBody body = compositeCache.get(restrictedHeader);
+        if (body == null) {
+            // The segment is still loading, or has been evicted. It keeps
+            // its restriction, and cells of the region are loaded on demand.
+            return;
+        }
+
+        // Create a segment with the same columns, whose region columns
+        // are restricted to the values in the region.
+        final List<SegmentColumn> columns = new ArrayList<SegmentColumn>();
+        final List<SortedSet<Comparable>> regionValues =
+            new ArrayList<SortedSet<Comparable>>();
+        for (SegmentColumn column : header.getConstrainedColumns()) {
+            SegmentColumn regionColumn = null;
+            for (SegmentColumn c : appendRegion) {
+                if (c.columnExpression.equals(column.columnExpression)) {
+                    regionColumn = c;
+                }
+            }
+            if (regionColumn == null) {
+                columns.add(column);
+                regionValues.add(null);
+                continue;
+            }
+            final SortedSet<Comparable> values =
+                column.values == null
+                    ? regionColumn.values
+                    : Util.intersect(column.values, regionColumn.values);
+            if (values.isEmpty()) {
+                return;
+            }
+            columns.add(
+                new SegmentColumn(
+                    column.columnExpression, column.valueCount, values));
+            regionValues.add(values);
+        }
+        final SegmentHeader regionHeader =
+            new SegmentHeader(
+                header.schemaName,
+                header.schemaChecksum,
+                header.cubeName,
+                header.measureName,
+                columns,
+                header.compoundPredicates,
+                header.rolapStarFactTableName,
+                header.getConstrainedColumnsBitKey(),
+                Collections.<List<SegmentColumn>>emptyList());
+        final BitKey bitKey = header.getConstrainedColumnsBitKey();
+        final Segment segment =
+            SegmentBuilder.toSegment(
+                regionHeader,
+                star,
+                bitKey,
+                SegmentBuilder.getConstrainedColumns(star, bitKey),
+                segmentAppend.measure,
+                Collections.<StarPredicate>emptyList());
+        final SegmentBody regionBody = loader.loadBody(segment);
+        final SegmentBody appendedBody =
+            SegmentBuilder.append(body, regionBody, regionValues);
+        if (appendedBody == null) {
+            cacheControlImpl.trace(
+                "cannot append to segment - it will keep its restriction:\n"
+                + header.getDescription());
+            return;
+        }
+        cacheControlImpl.trace(
+            "append to segment:\n" + header.getDescription());
+        compositeCache.put(header, appendedBody);
+        final boolean swapped =
+            execute(
+                star,
+                new Command<Boolean>() {
+                    public Boolean call() {
+                        final SegmentCacheIndex index =
+                            indexRegistry.getIndex(star);
+                        if (!index.contains(restrictedHeader)) {
+                            // Flushed or evicted while we were loading.
+                            return false;
+                        }
+                        index.remove(restrictedHeader);
+                        index.add(header, false, null);
+                        locus.getServer().getMonitor().sendEvent(
+                            new CellCacheSegmentAppendEvent(
+                                System.currentTimeMillis(),
+                                locus.getServer().getId(),
+                                locus.execution.getMondrianStatement()
+                                    .getMondrianConnection().getId(),
+                                locus.execution.getMondrianStatement()
+                                    .getId(),
+                                locus.execution.getId(),
+                                header.getConstrainedColumns().size(),
+                                regionBody.getValueMap().size(),
+                                CellCacheEvent.Source.CACHE_CONTROL));
+                        return true;
+                    }
+
+                    public Locus getLocus() {
+                        return locus;
+                    }
+                });
+        compositeCache.remove(swapped ? restrictedHeader : header);
     }
 
     /**
      * Shuts down this cache manager and all active threads and indexes.
      */
     public void shutdown() {
-        execute(new ShutdownCommand());
+        executeAll(new ShutdownCommand());
         cacheExecutor.shutdown();
-        sqlExecutor.shutdown();
+        synchronized (sqlExecutors) {
+            for (ExecutorService sqlExecutor : sqlExecutors.values()) {
+                sqlExecutor.shutdown();
+            }
+            sqlExecutors.clear();
+        }
+        sqlPartitionExecutor.shutdown();
+    }
+
+    /**
+     * Returns the executor with which to execute SQL requests against a
+     * given data source, creating it if necessary.
+     *
+     * <p>Each executor has at most
+     * {@link MondrianProperties#SegmentCacheManagerNumberSqlThreads}
+     * threads.</p>
+     *
+     * @param dataSource Data source
+     * @return Executor
+     */
+    public ExecutorService getSqlExecutor(DataSource dataSource) {
+        synchronized (sqlExecutors) {
+            ExecutorService sqlExecutor = sqlExecutors.get(dataSource);
+            if (sqlExecutor == null) {
+                sqlExecutor =
+                    Util.getExecutorService(
+                        MondrianProperties.instance()
+                            .SegmentCacheManagerNumberSqlThreads.get(),
+                        0, 1,
+                        "mondrian.rolap.agg.SegmentCacheManager$sqlExecutor",
+                        new RejectedExecutionHandler() {
+                            public void rejectedExecution(
+                                Runnable r,
+                                ThreadPoolExecutor executor)
+                            {
+                                throw MondrianResource.instance()
+                                    .SqlQueryLimitReached.ex();
+                            }
+                        });
+                sqlExecutors.put(dataSource, sqlExecutor);
+            }
+            return sqlExecutor;
+        }
     }
 
     public SegmentBuilder.SegmentConverter getConverter(
@@ -505,6 +1020,7 @@ public class SegmentCacheManager {
     public SegmentWithData peek(final CellRequest request) {
         final SegmentCacheManager.PeekResponse response =
             execute(
+                request.getMeasure().getStar(),
                 new PeekCommand(request, Locus.peek()));
         for (SegmentHeader header : response.headerMap.keySet()) {
             final SegmentBody body = compositeCache.get(header);
@@ -556,6 +1072,10 @@ public class SegmentCacheManager {
                     event.header,
                     event.body);
 
+            final int cellCount =
+                event.body == null
+                    ? 0
+                    : event.body.getValueMap().size();
             event.monitor.sendEvent(
                 new CellCacheSegmentCreateEvent(
                     event.timestamp,
@@ -564,9 +1084,14 @@ public class SegmentCacheManager {
                     event.statementId,
                     event.executionId,
                     event.header.getConstrainedColumns().size(),
+                    cellCount,
+                    event.body == null
+                        ? null
+                        : SegmentBuilder.getStorage(event.body),
                     event.body == null
                         ? 0
-                        : event.body.getValueMap().size(),
+                        : SegmentBuilder.estimateBytesSaved(
+                            event.body, cellCount),
                     CellCacheSegmentCreateEvent.Source.SQL));
         }
 
@@ -658,40 +1183,121 @@ public class SegmentCacheManager {
 
     /**
      * Command to flush a particular region from cache.
+     *
+     * <p>If the cache manager is partitioned, the command only visits the
+     * stars owned by one partition, and must be executed on that partition's
+     * actor. {@link SegmentCacheManager#flush} takes care of this.</p>
      */
     public static final class FlushCommand implements Command<FlushResult> {
         private final CellRegion region;
         private final CacheControlImpl cacheControlImpl;
         private final Locus locus;
         private final SegmentCacheManager cacheMgr;
+        private final int partition;
+        private final boolean append;
 
         public FlushCommand(
             Locus locus,
             SegmentCacheManager mgr,
             CellRegion region,
             CacheControlImpl cacheControlImpl)
+        {
+            this(locus, mgr, region, cacheControlImpl, -1);
+        }
+
+        public FlushCommand(
+            Locus locus,
+            SegmentCacheManager mgr,
+            CellRegion region,
+            CacheControlImpl cacheControlImpl,
+            int partition)
+        {
+            this(locus, mgr, region, cacheControlImpl, partition, false);
+        }
+
+        /**
+         * Creates a FlushCommand that only flushes the stars owned by a
+         * given partition.
+         *
+         * @param locus Locus
+         * @param mgr Cache manager
+         * @param region Region to flush
+         * @param cacheControlImpl Cache control
+         * @param partition Partition, or -1 to flush all stars
+         * @param append Whether to remember, in the result, the segments
+         *   that can be appended to
+         */
+        public FlushCommand(
+            Locus locus,
+            SegmentCacheManager mgr,
+            CellRegion region,
+            CacheControlImpl cacheControlImpl,
+            int partition,
+            boolean append)
         {
             this.locus = locus;
             this.cacheMgr = mgr;
             this.region = region;
             this.cacheControlImpl = cacheControlImpl;
+            this.partition = partition;
+            this.append = append;
         }
 
         public Locus getLocus() {
             return locus;
         }
 
+        private boolean owns(RolapStar star) {
+            return partition < 0
+                || cacheMgr.getPartition(star) == partition;
+        }
+
+        /**
+         * Returns whether the cells of a region can be loaded and merged into
+         * a segment, rather than flushed from it. The segment must have a
+         * constrained column for each column of the region, and no compound
+         * predicates.
+         *
+         * @param header Segment header
+         * @param region Region
+         * @return Whether region can be appended to segment
+         */
+        static boolean canAppend(
+            SegmentHeader header,
+            SegmentColumn[] region)
+        {
+            if (!header.compoundPredicates.isEmpty()) {
+                return false;
+            }
+            for (SegmentColumn column : region) {
+                if (column.values == null
+                    || header.getConstrainedColumn(column.columnExpression)
+                    == null)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         public FlushResult call() throws Exception {
             // For each measure and each star, ask the index
             // which headers intersect.
             final List<SegmentHeader> headers =
                 new ArrayList<SegmentHeader>();
+            final Map<SegmentHeader, RolapStar.Measure> starMeasures =
+                new HashMap<SegmentHeader, RolapStar.Measure>();
             final List<Member> measures =
                 CacheControlImpl.findMeasures(region);
             final SegmentColumn[] flushRegion =
                 CacheControlImpl.findAxisValues(region);
             final List<RolapStar> starList =
-                CacheControlImpl.getStarList(region);
+                new ArrayList<RolapStar>();
+            for (RolapStar star : CacheControlImpl.getStarList(region)) {
+                if (owns(star)) {
+                    starList.add(star);
+                }
+            }
 
             for (Member member : measures) {
                 if (!(member instanceof RolapStoredMeasure)) {
@@ -700,9 +1306,12 @@ public class SegmentCacheManager {
                 final RolapStoredMeasure storedMeasure =
                     (RolapStoredMeasure) member;
                 final RolapStar star = storedMeasure.getCube().getStar();
+                if (!owns(star)) {
+                    continue;
+                }
                 final SegmentCacheIndex index =
                     cacheMgr.indexRegistry.getIndex(star);
-                headers.addAll(
+                final List<SegmentHeader> measureHeaders =
                     index.intersectRegion(
                         member.getDimension().getSchema().getName(),
                         ((RolapSchema) member.getDimension().getSchema())
@@ -711,7 +1320,13 @@ public class SegmentCacheManager {
                         storedMeasure.getName(),
                         storedMeasure.getCube().getStar()
                             .getFactTable().getAlias(),
-                        flushRegion));
+                        flushRegion);
+                headers.addAll(measureHeaders);
+                for (SegmentHeader header : measureHeaders) {
+                    starMeasures.put(
+                        header,
+                        (RolapStar.Measure) storedMeasure.getStarMeasure());
+                }
                 if (cacheControlImpl.isTraceEnabled()) {
                     Collections.sort(
                         headers,
@@ -770,6 +1385,7 @@ public class SegmentCacheManager {
             // empty, we should trash it completely.
             final List<Callable<Boolean>> callableList =
                 new ArrayList<Callable<Boolean>>();
+            final List<SegmentAppend> appends = new ArrayList<SegmentAppend>();
             for (final SegmentHeader header : headers) {
                 if (!header.canConstrain(flushRegion)) {
                     // We have to delete that segment altogether.
@@ -783,25 +1399,23 @@ public class SegmentCacheManager {
                 }
                 final SegmentHeader newHeader =
                     header.constrain(flushRegion);
+                if (newHeader == header) {
+                    // The region is already excluded from this segment.
+                    continue;
+                }
+                if (append && canAppend(header, flushRegion)) {
+                    appends.add(
+                        new SegmentAppend(
+                            header, newHeader, starMeasures.get(header)));
+                }
                 for (final SegmentCacheWorker worker
                     : cacheMgr.segmentCacheWorkers)
                 {
                     callableList.add(
                         new Callable<Boolean>() {
                             public Boolean call() throws Exception {
-                                boolean existed;
-                                if (worker.supportsRichIndex()) {
-                                    final SegmentBody sb = worker.get(header);
-                                    existed = worker.remove(header);
-                                    if (sb != null) {
-                                        worker.put(newHeader, sb);
-                                    }
-                                } else {
-                                    // The cache doesn't support rich index. We
-                                    // have to clear the segment entirely.
-                                    existed = worker.remove(header);
-                                }
-                                return existed;
+                                return worker.addRestriction(
+                                    header, newHeader);
                             }
                         });
                 }
@@ -814,7 +1428,7 @@ public class SegmentCacheManager {
             }
 
             // Done
-            return new FlushResult(callableList);
+            return new FlushResult(callableList, appends);
         }
     }
 
@@ -823,33 +1437,21 @@ public class SegmentCacheManager {
     {
         private final PrintWriter pw;
         private final Locus locus;
-        private final CellRegion region;
+        private final RolapStar star;
 
         public PrintCacheStateCommand(
-            CellRegion region,
+            RolapStar star,
             PrintWriter pw,
             Locus locus)
         {
-            this.region = region;
+            this.star = star;
             this.pw = pw;
             this.locus = locus;
         }
 
         public Void call() {
-            final List<RolapStar> starList =
-                CacheControlImpl.getStarList(region);
-            Collections.sort(
-                starList,
-                new Comparator<RolapStar>() {
-                    public int compare(RolapStar o1, RolapStar o2) {
-                        return o1.getFactTable().getAlias().compareTo(
-                            o2.getFactTable().getAlias());
-                    }
-                });
-            for (RolapStar star : starList) {
-                indexRegistry.getIndex(star)
-                    .printCacheState(pw);
-            }
+            indexRegistry.getIndex(star)
+                .printCacheState(pw);
             return null;
         }
 
@@ -865,9 +1467,38 @@ public class SegmentCacheManager {
      */
     public static class FlushResult {
         public final List<Callable<Boolean>> tasks;
+        final List<SegmentAppend> appends;
 
         public FlushResult(List<Callable<Boolean>> tasks) {
+            this(tasks, Collections.<SegmentAppend>emptyList());
+        }
+
+        FlushResult(
+            List<Callable<Boolean>> tasks,
+            List<SegmentAppend> appends)
+        {
             this.tasks = tasks;
+            this.appends = appends;
+        }
+    }
+
+    /**
+     * Segment that has been restricted by a {@link FlushCommand} in append
+     * mode, and into which the cells of the region will be merged.
+     */
+    static class SegmentAppend {
+        final SegmentHeader header;
+        final SegmentHeader restrictedHeader;
+        final RolapStar.Measure measure;
+
+        SegmentAppend(
+            SegmentHeader header,
+            SegmentHeader restrictedHeader,
+            RolapStar.Measure measure)
+        {
+            this.header = header;
+            this.restrictedHeader = restrictedHeader;
+            this.measure = measure;
         }
     }
 
@@ -1568,19 +2199,33 @@ public class SegmentCacheManager {
     /**
      * Registry of all the indexes that were created for this
      * cache manager, per {@link RolapStar}.
+     *
+     * <p>The indexes are split by partition. The indexes of a partition
+     * must only be accessed from that partition's actor thread.</p>
      */
     public class SegmentCacheIndexRegistry {
-        private final Map<RolapStar, SegmentCacheIndex> indexes =
-            new WeakHashMap<RolapStar, SegmentCacheIndex>();
+        private final List<Map<RolapStar, SegmentCacheIndex>> indexes =
+            new ArrayList<Map<RolapStar, SegmentCacheIndex>>();
+
+        SegmentCacheIndexRegistry() {
+            for (int i = 0; i < actors.length; i++) {
+                indexes.add(new WeakHashMap<RolapStar, SegmentCacheIndex>());
+            }
+        }
+
         /**
          * Returns the {@link SegmentCacheIndex} for a given
          * {@link RolapStar}.
          */
         public SegmentCacheIndex getIndex(RolapStar star) {
-            if (!indexes.containsKey(star)) {
-                indexes.put(star, new SegmentCacheIndexImpl(thread));
+            final int partition = getPartition(star);
+            final Map<RolapStar, SegmentCacheIndex> partitionIndexes =
+                indexes.get(partition);
+            if (!partitionIndexes.containsKey(star)) {
+                partitionIndexes.put(
+                    star, new SegmentCacheIndexImpl(threads[partition]));
             }
-            return indexes.get(star);
+            return partitionIndexes.get(star);
         }
         /**
          * Returns the {@link SegmentCacheIndex} for a given
@@ -1592,7 +2237,7 @@ public class SegmentCacheManager {
             // First we check the indexes that already exist.
             // This is fast.
             for (Entry<RolapStar, SegmentCacheIndex> entry
-                : indexes.entrySet())
+                : indexes.get(getPartition(header)).entrySet())
             {
                 final String factTableName =
                     entry.getKey().getFactTable().getTableName();
@@ -1618,8 +2263,16 @@ public class SegmentCacheManager {
             }
             return null;
         }
+        /**
+         * Cancels the segments of an execution in the indexes owned by the
+         * current partition. Call via
+         * {@link SegmentCacheManager#executeAll(Command)} to cancel in all
+         * partitions.
+         */
         public void cancelExecutionSegments(Execution exec) {
-            for (SegmentCacheIndex index : indexes.values()) {
+            for (SegmentCacheIndex index
+                : indexes.get(getCurrentPartition()).values())
+            {
                 index.cancel(exec);
             }
         }
@@ -31,7 +31,7 @@ public final class SegmentCacheWorker {
         Logger.getLogger(SegmentCacheWorker.class);
 
     final SegmentCache cache;
-    private final Thread cacheMgrThread;
+    private final List<Thread> cacheMgrThreads;
     private final boolean supportsRichIndex;
 
     /**
@@ -44,8 +44,27 @@ public final class SegmentCacheWorker {
      *                       Pass null if methods can be called from any thread.
      */
     public SegmentCacheWorker(SegmentCache cache, Thread cacheMgrThread) {
+        this(
+            cache,
+            cacheMgrThread == null
+                ? Collections.<Thread>emptyList()
+                : Collections.singletonList(cacheMgrThread));
+    }
+
+    /**
+     * Creates a worker for a cache manager that has several actor threads.
+     *
+     * @param cache Cache managed by this worker
+     * @param cacheMgrThreads Threads that the cache manager actors are running
+     *                        on, none of which should be used for potentially
+     *                        long-running calls to this cache
+     */
+    public SegmentCacheWorker(
+        SegmentCache cache,
+        List<Thread> cacheMgrThreads)
+    {
         this.cache = cache;
-        this.cacheMgrThread = cacheMgrThread;
+        this.cacheMgrThreads = cacheMgrThreads;
 
         // no need to call checkThread(): supportsRichIndex is a fast call
         this.supportsRichIndex = cache.supportsRichIndex();
@@ -193,6 +212,51 @@ public final class SegmentCacheWorker {
         }
     }
 
+    /**
+     * Replaces a segment in the cache with a segment that has the same
+     * body and a more restricted header.
+     *
+     * <p>If the cache implements {@link RestrictableSegmentCache}, the
+     * segment is re-keyed without reading its body. Otherwise, if the cache
+     * supports a rich index, the body is read and written under the new
+     * header. Otherwise the segment is removed.</p>
+     *
+     * @param header Header of existing segment
+     * @param restrictedHeader Header with additional excluded regions
+     * @return Whether a segment existed
+     */
+    public boolean addRestriction(
+        SegmentHeader header,
+        SegmentHeader restrictedHeader)
+    {
+        checkThread();
+        if (cache instanceof RestrictableSegmentCache) {
+            try {
+                return ((RestrictableSegmentCache) cache).addRestriction(
+                    header, restrictedHeader);
+            } catch (Throwable t) {
+                LOGGER.error(
+                    MondrianResource.instance()
+                        .SegmentCacheFailedToSaveSegment
+                        .baseMessage,
+                    t);
+                throw MondrianResource.instance()
+                    .SegmentCacheFailedToSaveSegment.ex(t);
+            }
+        }
+        if (supportsRichIndex) {
+            final SegmentBody body = get(header);
+            final boolean existed = remove(header);
+            if (body != null) {
+                put(restrictedHeader, body);
+            }
+            return existed;
+        }
+        // The cache doesn't support rich index. We have to clear the segment
+        // entirely.
+        return remove(header);
+    }
+
     /**
      * Returns a list of segments present in the cache.
      *
@@ -219,9 +283,9 @@ public final class SegmentCacheWorker {
     }
 
     private void checkThread() {
-        assert cacheMgrThread != Thread.currentThread()
+        assert !cacheMgrThreads.contains(Thread.currentThread())
             : "this method is potentially slow; you should not call it from "
-            + "the cache manager thread, " + cacheMgrThread;
+            + "the cache manager thread, " + Thread.currentThread();
     }
 }
 
@@ -34,6 +34,18 @@ public interface SegmentDataset extends Iterable<Map.Entry<CellKey, Object>> {
      */
     Object getObject(CellKey pos);
 
+    /**
+     * Returns the value at a given offset, as an {@link Object}.
+     *
+     * <p>The offset is the position of the cell in raster-scan order; see
+     * {@link CellKey#getOffset(long[])}. Unlike {@link #getObject(CellKey)},
+     * this method does not require the caller to create a cell key.
+     *
+     * @param offset Offset of cell
+     * @return Value, or null if the cell is null or has no value
+     */
+    Object getObjectAt(long offset);
+
     /**
      * Returns the value at a given coordinate, as an {@code int}.
      *
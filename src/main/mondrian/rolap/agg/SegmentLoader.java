@@ -53,6 +53,7 @@ public class SegmentLoader {
     private static final Logger LOGGER = Logger.getLogger(SegmentLoader.class);
 
     private final SegmentCacheManager cacheMgr;
+    private final boolean cacheSegments;
 
     /**
      * Creates a SegmentLoader.
@@ -60,7 +61,20 @@ public class SegmentLoader {
      * @param cacheMgr Cache manager
      */
     public SegmentLoader(SegmentCacheManager cacheMgr) {
+        this(cacheMgr, true);
+    }
+
+    /**
+     * Creates a SegmentLoader that optionally does not put the segments it
+     * loads into the cache.
+     *
+     * @param cacheMgr Cache manager
+     * @param cacheSegments Whether to put loaded segments into the index
+     *   and the external cache(s)
+     */
+    SegmentLoader(SegmentCacheManager cacheMgr, boolean cacheSegments) {
         this.cacheMgr = cacheMgr;
+        this.cacheSegments = cacheSegments;
     }
 
     /**
@@ -123,9 +137,11 @@ public class SegmentLoader {
                 }
             }
         }
+        final RolapStar star =
+            groupingSets.get(0).getSegments().get(0).star;
         try {
             segmentFutures.add(
-                cacheMgr.sqlExecutor.submit(
+                cacheMgr.getSqlExecutor(star.getDataSource()).submit(
                     new SegmentLoadCommand(
                         Locus.peek(),
                         this,
@@ -137,6 +153,43 @@ public class SegmentLoader {
         }
     }
 
+    /**
+     * Loads a segment via SQL in the current thread, and returns its body.
+     *
+     * <p>Unlike {@link #load}, the segment is not registered in the index
+     * first, so no other statement can wait for it; if this loader was
+     * created with {@code cacheSegments} false, the segment is not put into
+     * the cache either. Used by {@link SegmentCacheManager#append} to load
+     * the cells of a region that will be merged into an existing
+     * segment.</p>
+     *
+     * @param segment Segment
+     * @return Body of segment
+     */
+    SegmentBody loadBody(Segment segment) {
+        final BitKey measureBitKey =
+            segment.getConstrainedColumnsBitKey().emptyCopy();
+        measureBitKey.set(segment.measure.getBitPosition());
+        final GroupingSet groupingSet =
+            new GroupingSet(
+                Collections.singletonList(segment),
+                segment.getConstrainedColumnsBitKey(),
+                measureBitKey,
+                segment.predicates,
+                segment.getColumns());
+        final Map<Segment, SegmentWithData> segmentMap =
+            loadImpl(
+                0,
+                new ArrayList<GroupingSet>(
+                    Collections.singletonList(groupingSet)),
+                segment.getCompoundPredicateList());
+        final SegmentWithData segmentWithData = segmentMap.get(segment);
+        if (segmentWithData == null) {
+            throw Util.newInternal("Segment failed to load: " + segment);
+        }
+        return createSegmentBody(segmentWithData);
+    }
+
     private static class SegmentLoadCommand
         implements Callable<Map<Segment, SegmentWithData>>
     {
@@ -186,30 +239,50 @@ public class SegmentLoader {
 
         final Map<Segment, SegmentWithData> segmentMap =
             new HashMap<Segment, SegmentWithData>();
+        final long startMillis = System.currentTimeMillis();
         Throwable throwable = null;
         try {
             int arity = defaultColumns.length;
             SortedSet<Comparable>[] axisValueSets =
                 getDistinctValueWorkspace(arity);
 
-            stmt = createExecuteSql(
-                cellRequestCount,
-                groupingSetsList,
-                compoundPredicateList);
+            boolean[] axisContainsNull = new boolean[arity];
 
-            if (stmt == null) {
-                // Nothing to do. We're done here.
-                return segmentMap;
-            }
+            final List<GroupingSetsList> partitions =
+                partition(groupingSetsList);
+            final RowList rows;
+            if (partitions == null) {
+                stmt = createExecuteSql(
+                    cellRequestCount,
+                    groupingSetsList,
+                    compoundPredicateList);
 
-            boolean[] axisContainsNull = new boolean[arity];
+                if (stmt == null) {
+                    // Nothing to do. We're done here.
+                    return segmentMap;
+                }
 
-            RowList rows =
-                processData(
-                    stmt,
-                    axisContainsNull,
-                    axisValueSets,
-                    groupingSetsList);
+                rows =
+                    processData(
+                        stmt,
+                        axisContainsNull,
+                        axisValueSets,
+                        groupingSetsList);
+            } else {
+                rows =
+                    loadPartitions(
+                        cellRequestCount,
+                        groupingSetsList,
+                        partitions,
+                        compoundPredicateList,
+                        axisContainsNull,
+                        axisValueSets);
+
+                if (rows == null) {
+                    // Segments are no longer wanted.
+                    return segmentMap;
+                }
+            }
 
             boolean sparse =
                 setAxisDataAndDecideSparseUse(
@@ -231,7 +304,8 @@ public class SegmentLoader {
             setDataToSegments(
                 groupingSetsList,
                 groupingDataSetsMap,
-                segmentMap);
+                segmentMap,
+                System.currentTimeMillis() - startMillis);
 
             return segmentMap;
         } catch (Throwable e) {
@@ -244,8 +318,265 @@ public class SegmentLoader {
             if (stmt != null) {
                 stmt.close();
             }
-            setFailOnStillLoadingSegments(
-                segmentMap, groupingSetsList, throwable);
+            if (cacheSegments) {
+                setFailOnStillLoadingSegments(
+                    segmentMap, groupingSetsList, throwable);
+            }
+        }
+    }
+
+    /**
+     * Splits a segment load into several statements, if
+     * {@link MondrianProperties#SegmentLoadMaxPartitions} allows it and the
+     * load is estimated to read enough rows.
+     *
+     * <p>The load is split along the column whose predicate is the longest
+     * list of values. Each partition has the same columns and measures as the
+     * original, but that column is constrained to a contiguous part of the
+     * list.</p>
+     *
+     * <p>The number of partitions is the estimated number of fact rows
+     * (the cardinality of the fact table, reduced by the selectivity of
+     * each constrained column, all as reported by the star's
+     * {@link StatisticsProvider}s) divided by
+     * {@link MondrianProperties#SegmentLoadPartitionMinRows}, but no more
+     * than the number of values in the list or the maximum.</p>
+     *
+     * @param groupingSetsList Grouping sets to load
+     * @return List of partitions, or null if the load should not be split
+     */
+    List<GroupingSetsList> partition(GroupingSetsList groupingSetsList) {
+        final MondrianProperties properties = MondrianProperties.instance();
+        final int maxPartitions = properties.SegmentLoadMaxPartitions.get();
+        if (maxPartitions < 2 || groupingSetsList.useGroupingSets()) {
+            return null;
+        }
+        final GroupingSet groupingSet =
+            groupingSetsList.getGroupingSets().get(0);
+        final StarColumnPredicate[] predicates = groupingSet.getPredicates();
+        final RolapStar.Column[] columns = groupingSet.getColumns();
+        int splitOrdinal = -1;
+        int splitValueCount = 1;
+        for (int i = 0; i < predicates.length; i++) {
+            if (predicates[i] instanceof ListColumnPredicate) {
+                final int valueCount =
+                    ((ListColumnPredicate) predicates[i])
+                        .getPredicates().size();
+                if (valueCount > splitValueCount) {
+                    splitOrdinal = i;
+                    splitValueCount = valueCount;
+                }
+            }
+        }
+        if (splitOrdinal < 0) {
+            return null;
+        }
+
+        // Estimate the number of fact rows that the load will read.
+        final RolapStar star = groupingSetsList.getStar();
+        final RolapStar.Table factTable = star.getFactTable();
+        double rowCount =
+            star.getStatisticsCache().getRelationCardinality(
+                factTable.getRelation(), factTable.getAlias(), -1);
+        if (rowCount <= 0) {
+            return null;
+        }
+        for (int i = 0; i < predicates.length; i++) {
+            final int valueCount;
+            if (predicates[i] instanceof ListColumnPredicate) {
+                valueCount =
+                    ((ListColumnPredicate) predicates[i])
+                        .getPredicates().size();
+            } else if (predicates[i] instanceof ValueColumnPredicate) {
+                valueCount = 1;
+            } else {
+                continue;
+            }
+            final int cardinality = columns[i].getCardinality();
+            if (cardinality > valueCount) {
+                rowCount = rowCount * valueCount / cardinality;
+            }
+        }
+        final int minRows =
+            Math.max(1, properties.SegmentLoadPartitionMinRows.get());
+        final int partitionCount =
+            (int) Math.min(
+                Math.min(maxPartitions, splitValueCount),
+                Math.ceil(rowCount / minRows));
+        if (partitionCount < 2) {
+            return null;
+        }
+
+        final ListColumnPredicate splitPredicate =
+            (ListColumnPredicate) predicates[splitOrdinal];
+        final List<StarColumnPredicate> values =
+            splitPredicate.getPredicates();
+        final List<GroupingSetsList> partitions =
+            new ArrayList<GroupingSetsList>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            final List<StarColumnPredicate> subValues =
+                values.subList(
+                    i * splitValueCount / partitionCount,
+                    (i + 1) * splitValueCount / partitionCount);
+            final StarColumnPredicate[] subPredicates = predicates.clone();
+            subPredicates[splitOrdinal] =
+                subValues.size() == 1
+                    ? subValues.get(0)
+                    : new ListColumnPredicate(
+                        splitPredicate.getConstrainedColumn(),
+                        new ArrayList<StarColumnPredicate>(subValues));
+            final List<Segment> subSegments = new ArrayList<Segment>();
+            for (Segment segment : groupingSet.getSegments()) {
+                subSegments.add(
+                    new Segment(
+                        segment.star,
+                        segment.getConstrainedColumnsBitKey(),
+                        segment.getColumns(),
+                        segment.measure,
+                        subPredicates,
+                        segment.getExcludedRegions(),
+                        segment.getCompoundPredicateList()));
+            }
+            partitions.add(
+                new GroupingSetsList(
+                    Collections.singletonList(
+                        new GroupingSet(
+                            subSegments,
+                            groupingSet.getLevelBitKey(),
+                            groupingSet.getMeasureBitKey(),
+                            subPredicates,
+                            columns))));
+        }
+        return partitions;
+    }
+
+    /**
+     * Loads the partitions of a segment load concurrently, and merges their
+     * rows and axis values.
+     *
+     * <p>The first partition is loaded in the current thread, the others by
+     * {@link SegmentCacheManager#sqlPartitionExecutor}.</p>
+     *
+     * @param cellRequestCount Number of missed cells that led to this request
+     * @param groupingSetsList Grouping sets being loaded
+     * @param partitions Partitions of the grouping sets
+     * @param compoundPredicateList Compound predicates
+     * @param axisContainsNull Workspace in which to record whether each axis
+     *     contains null
+     * @param axisValueSets Workspace in which to gather values of each axis
+     * @return Rows of all partitions, or null if the load was abandoned
+     */
+    private RowList loadPartitions(
+        final int cellRequestCount,
+        final GroupingSetsList groupingSetsList,
+        List<GroupingSetsList> partitions,
+        final List<StarPredicate> compoundPredicateList,
+        boolean[] axisContainsNull,
+        SortedSet<Comparable>[] axisValueSets)
+        throws Exception
+    {
+        final Locus locus = Locus.peek();
+        final List<Future<PartitionResult>> futures =
+            new ArrayList<Future<PartitionResult>>();
+        for (final GroupingSetsList partition
+            : partitions.subList(1, partitions.size()))
+        {
+            futures.add(
+                cacheMgr.sqlPartitionExecutor.submit(
+                    new Callable<PartitionResult>() {
+                        public PartitionResult call() {
+                            Locus.push(locus);
+                            try {
+                                return loadPartition(
+                                    cellRequestCount,
+                                    groupingSetsList,
+                                    partition,
+                                    compoundPredicateList);
+                            } finally {
+                                Locus.pop(locus);
+                            }
+                        }
+                    }));
+        }
+        final List<PartitionResult> results =
+            new ArrayList<PartitionResult>();
+        try {
+            results.add(
+                loadPartition(
+                    cellRequestCount,
+                    groupingSetsList,
+                    partitions.get(0),
+                    compoundPredicateList));
+            for (Future<PartitionResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw Util.newError(
+                        e.getCause(), "Error while loading segment partition");
+                }
+            }
+        } finally {
+            for (Future<PartitionResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (results.contains(null)) {
+            return null;
+        }
+        final RowList rows = results.get(0).rows;
+        for (PartitionResult result : results) {
+            if (result.rows != rows) {
+                rows.addAll(result.rows);
+            }
+            for (int i = 0; i < axisValueSets.length; i++) {
+                axisValueSets[i].addAll(result.axisValueSets[i]);
+                axisContainsNull[i] |= result.axisContainsNull[i];
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Loads one partition of a segment load.
+     *
+     * @return Rows and axis values of the partition, or null if the load was
+     *     abandoned
+     */
+    private PartitionResult loadPartition(
+        int cellRequestCount,
+        GroupingSetsList groupingSetsList,
+        GroupingSetsList partition,
+        List<StarPredicate> compoundPredicateList)
+    {
+        SqlStatement stmt = null;
+        try {
+            stmt = executeSql(
+                cellRequestCount,
+                partition,
+                compoundPredicateList,
+                groupingSetsList.getDefaultSegments());
+            if (stmt == null) {
+                return null;
+            }
+            final int arity = partition.getDefaultColumns().length;
+            final PartitionResult result =
+                new PartitionResult(getDistinctValueWorkspace(arity));
+            result.rows =
+                processData(
+                    stmt,
+                    result.axisContainsNull,
+                    result.axisValueSets,
+                    partition);
+            return result;
+        } catch (Throwable e) {
+            if (stmt == null) {
+                throw new MondrianException(e);
+            }
+            throw stmt.handle(e);
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
         }
     }
 
@@ -255,11 +586,13 @@ public class SegmentLoader {
      *
      * @param header Segment header
      * @param body Segment body
+     * @param loadMillis Time taken to load the segment, in milliseconds
      */
     private void cacheSegment(
         RolapStar star,
         SegmentHeader header,
-        SegmentBody body)
+        SegmentBody body,
+        long loadMillis)
     {
         // Write the segment into external cache.
         //
@@ -272,6 +605,7 @@ public class SegmentLoader {
         // query to proceed.
         if (!MondrianProperties.instance().DisableCaching.get()) {
             cacheMgr.compositeCache.put(header, body);
+            cacheMgr.recordLoadCost(header, loadMillis);
             cacheMgr.loadSucceeded(star, header, body);
         }
     }
@@ -318,6 +652,21 @@ public class SegmentLoader {
 
         final List<SqlStatement.Type> types = rows.getTypes();
         final boolean useGroupingSet = groupingSetsList.useGroupingSets();
+
+        // For each dictionary-encoded column, map each code to the offset of
+        // its value on the axis, so that we need not look up each row's value.
+        final int[][] codeOffsets = new int[arity][];
+        for (int j = 0; j < arity; j++) {
+            final List<Object> values = rows.getDictionary(j);
+            if (values != null) {
+                codeOffsets[j] = new int[values.size()];
+                for (int code = 0; code < values.size(); code++) {
+                    codeOffsets[j][code] =
+                        axes[j].getOffset((Comparable) values.get(code));
+                }
+            }
+        }
+
         for (rows.first(); rows.next();) {
             final BitKey groupingBitKey;
             final GroupingSetsList.Cohort cohort;
@@ -332,6 +681,18 @@ public class SegmentLoader {
             }
             final int[] pos = cohort.pos;
             for (int j = 0, k = 0; j < arity; j++) {
+                if (codeOffsets[j] != null) {
+                    final Object o = rows.getObject(j);
+                    if (useGroupingSet
+                        && (o == null || o == RolapUtil.sqlNullValue)
+                        && groupingBitKey.get(
+                            groupingSetsList.findGroupingFunctionIndex(j)))
+                    {
+                        continue;
+                    }
+                    pos[k++] = codeOffsets[j][rows.getCode(j)];
+                    continue;
+                }
                 final SqlStatement.Type type = types.get(j);
                 switch (type) {
                 // TODO: different treatment for INT, LONG, DOUBLE
@@ -403,10 +764,36 @@ public class SegmentLoader {
                 sparse = true;
             }
         }
+        if (!sparse
+            && MondrianProperties.instance().AdaptiveSegmentStorage.get())
+        {
+            final int measureCount =
+                groupingSetsList.getDefaultSegments().size();
+            sparse =
+                useSparse(
+                    (double) n,
+                    (double) rows.size(),
+                    rows.getTypes().subList(
+                        axes.length, axes.length + measureCount));
+        }
         return useSparse(sparse, n, rows);
     }
 
+    /**
+     * Decides whether to use a sparse representation for the datasets of a
+     * load.
+     *
+     * <p>This method may be overridden in tests.
+     *
+     * @param sparse Whether a sparse representation has already been chosen
+     * @param n Number of possible cells
+     * @param rows Rows
+     * @return Whether to use a sparse representation
+     */
     boolean useSparse(boolean sparse, int n, RowList rows) {
+        if (MondrianProperties.instance().AdaptiveSegmentStorage.get()) {
+            return sparse;
+        }
         sparse = sparse || useSparse((double) n, (double) rows.size());
         return sparse;
     }
@@ -414,7 +801,8 @@ public class SegmentLoader {
     private void setDataToSegments(
         GroupingSetsList groupingSetsList,
         Map<BitKey, GroupingSetsList.Cohort> datasetsMap,
-        Map<Segment, SegmentWithData> segmentSlotMap)
+        Map<Segment, SegmentWithData> segmentSlotMap,
+        long loadMillis)
     {
         List<GroupingSet> groupingSets = groupingSetsList.getGroupingSets();
         for (int i = 0; i < groupingSets.size(); i++) {
@@ -433,32 +821,36 @@ public class SegmentLoader {
                         cohort.axes);
 
                 segmentSlotMap.put(segment, segmentWithData);
+                if (!cacheSegments) {
+                    continue;
+                }
 
                 final SegmentHeader header = segmentWithData.getHeader();
-                final SegmentBody body =
-                    segmentWithData.getData().createSegmentBody(
-                        new AbstractList<
-                                Pair<SortedSet<Comparable>, Boolean>>()
-                        {
-                            public Pair<SortedSet<Comparable>, Boolean> get(
-                                int index)
-                            {
-                                return segmentWithData.axes[index]
-                                    .getValuesAndIndicator();
-                            }
-
-                            public int size() {
-                                return segmentWithData.axes.length;
-                            }
-                        });
+                final SegmentBody body = createSegmentBody(segmentWithData);
 
                 // Send a message to the agg manager. It will place the segment
                 // in the index.
-                cacheSegment(segment.star, header, body);
+                cacheSegment(segment.star, header, body, loadMillis);
             }
         }
     }
 
+    private static SegmentBody createSegmentBody(
+        final SegmentWithData segmentWithData)
+    {
+        return segmentWithData.getData().createSegmentBody(
+            new AbstractList<Pair<SortedSet<Comparable>, Boolean>>() {
+                public Pair<SortedSet<Comparable>, Boolean> get(int index) {
+                    return segmentWithData.axes[index]
+                        .getValuesAndIndicator();
+                }
+
+                public int size() {
+                    return segmentWithData.axes.length;
+                }
+            });
+    }
+
     private Map<BitKey, GroupingSetsList.Cohort> createDataSetsForGroupingSets(
         GroupingSetsList groupingSetsList,
         boolean sparse,
@@ -557,7 +949,33 @@ public class SegmentLoader {
         final GroupingSetsList groupingSetsList,
         List<StarPredicate> compoundPredicateList)
     {
-        RolapStar star = groupingSetsList.getStar();
+        return executeSql(
+            cellRequestCount,
+            groupingSetsList,
+            compoundPredicateList,
+            groupingSetsList.getDefaultSegments());
+    }
+
+    /**
+     * Creates and executes a SQL statement to retrieve the set of cells
+     * specified by a GroupingSetsList, linking the statement to a given list
+     * of segments in the index.
+     *
+     * @param cellRequestCount Number of missed cells that led to this request
+     * @param groupingSetsList Grouping
+     * @param compoundPredicateList Compound predicate list
+     * @param segments Segments whose load the statement is part of; usually
+     *     the default segments of the grouping, but if the load is
+     *     partitioned, the segments of the whole load
+     * @return An executed SQL statement, or null
+     */
+    private SqlStatement executeSql(
+        int cellRequestCount,
+        final GroupingSetsList groupingSetsList,
+        List<StarPredicate> compoundPredicateList,
+        final List<Segment> segments)
+    {
+        final RolapStar star = groupingSetsList.getStar();
         Pair<String, List<SqlStatement.Type>> pair =
             AggregationManager.generateSql(
                 groupingSetsList, compoundPredicateList);
@@ -567,7 +985,10 @@ public class SegmentLoader {
                 "Segment.load",
                 "Error while loading segment",
                 SqlStatementEvent.Purpose.CELL_SEGMENT,
-                cellRequestCount);
+                cellRequestCount,
+                star,
+                groupingSetsList.getDefaultLevelBitKey(),
+                groupingSetsList.getDefaultMeasureBitKey());
 
         // When caching is enabled, we must register the SQL statement
         // in the index. We don't want to cancel SQL statements that are shared
@@ -576,12 +997,11 @@ public class SegmentLoader {
             new Util.Functor1<Void, Statement>() {
                 public Void apply(final Statement stmt) {
                     cacheMgr.execute(
+                        star,
                         new SegmentCacheManager.Command<Void>() {
                             public Void call() throws Exception {
                                 boolean atLeastOneActive = false;
-                                for (Segment seg
-                                    : groupingSetsList.getDefaultSegments())
-                                {
+                                for (Segment seg : segments) {
                                     final SegmentCacheIndex index =
                                         cacheMgr.getIndexRegistry()
                                             .getIndex(seg.star);
@@ -634,6 +1054,7 @@ public class SegmentLoader {
                 // Only one of the two callbacks are required, depending if we
                 // cache the segments or not.
                 MondrianProperties.instance().DisableCaching.get()
+                    || !cacheSegments
                     ? callbackNoCaching
                     : callbackWithCaching);
         } catch (Throwable t) {
@@ -673,7 +1094,15 @@ public class SegmentLoader {
         } else {
             processedTypes = types;
         }
-        final RowList processedRows = new RowList(processedTypes, 100);
+        final RowList processedRows =
+            new RowList(processedTypes, 100, arity);
+
+        // pre-compute which measures are numeric
+        final boolean[] numeric = new boolean[measureCount];
+        int k = 0;
+        for (Segment segment : segments) {
+            numeric[k++] = segment.measure.getDatatype().isNumeric();
+        }
 
         while (rawRows.next()) {
             checkResultLimit(++stmt.rowCount);
@@ -699,12 +1128,9 @@ public class SegmentLoader {
                         {
                             axisContainsNull[axisIndex] = true;
                         }
-                    } else {
-                        // We assume that all values are Comparable. Boolean
-                        // wasn't Comparable until JDK 1.5, but we can live with
-                        // that bug because JDK 1.4 is no longer important.
-                        axisValueSets[axisIndex].add((Comparable) o);
                     }
+                    // The column is dictionary-encoded. We add its distinct
+                    // values to the axis when all rows have been read.
                     processedRows.setObject(columnIndex, o);
                     break;
                 case INT:
@@ -763,13 +1189,6 @@ public class SegmentLoader {
                 }
             }
 
-            // pre-compute which measures are numeric
-            final boolean[] numeric = new boolean[measureCount];
-            int k = 0;
-            for (Segment segment : segments) {
-                numeric[k++] = segment.measure.getDatatype().isNumeric();
-            }
-
             // get the measure
             for (int i = 0; i < measureCount; i++, columnIndex++) {
                 final SqlStatement.Type type =
@@ -830,6 +1249,22 @@ public class SegmentLoader {
                         rawRows, columnIndex));
             }
         }
+
+        // Add the distinct values of each dictionary-encoded column to its
+        // axis. We assume that all values are Comparable. Boolean wasn't
+        // Comparable until JDK 1.5, but we can live with that bug because
+        // JDK 1.4 is no longer important.
+        for (int axisIndex = 0; axisIndex < arity; axisIndex++) {
+            final List<Object> values = processedRows.getDictionary(axisIndex);
+            if (values == null) {
+                continue;
+            }
+            for (Object value : values) {
+                if (value != RolapUtil.sqlNullValue) {
+                    axisValueSets[axisIndex].add((Comparable) value);
+                }
+            }
+        }
         return processedRows;
     }
 
@@ -900,6 +1335,40 @@ public class SegmentLoader {
         return axisValueSets;
     }
 
+    /**
+     * Decides whether to use a sparse representation for segments whose
+     * values are of given types.
+     *
+     * <p>If {@link MondrianProperties#AdaptiveSegmentStorage} is true,
+     * estimates the number of bytes that the values would occupy in dense
+     * arrays and in sparse bodies, and chooses the smaller; otherwise uses
+     * the thresholds, as {@link #useSparse(double, double)}.</p>
+     *
+     * @param possibleCount Number of values in the space
+     * @param actualCount Actual number of values
+     * @param types Type of each measure; one segment is created per measure
+     * @return Whether to use a sparse representation
+     */
+    static boolean useSparse(
+        final double possibleCount,
+        final double actualCount,
+        List<SqlStatement.Type> types)
+    {
+        if (!MondrianProperties.instance().AdaptiveSegmentStorage.get()) {
+            return useSparse(possibleCount, actualCount);
+        }
+        double denseBytes = 0;
+        double sparseBytes = 0;
+        for (SqlStatement.Type type : types) {
+            denseBytes +=
+                AbstractSegmentBody.estimateDenseValueByteSize(
+                    type, possibleCount, actualCount);
+            sparseBytes +=
+                AbstractSegmentBody.estimateSparseValueByteSize(actualCount);
+        }
+        return sparseBytes < denseBytes;
+    }
+
     /**
      * Decides whether to use a sparse representation for this segment, using
      * the formula described
@@ -994,10 +1463,33 @@ public class SegmentLoader {
          * @param capacity Initial capacity
          */
         RowList(List<SqlStatement.Type> types, int capacity) {
+            this(types, capacity, 0);
+        }
+
+        /**
+         * Creates a RowList whose leading columns are keys.
+         *
+         * <p>Key columns of type {@link SqlStatement.Type#OBJECT} or
+         * {@link SqlStatement.Type#STRING} are dictionary-encoded: each
+         * distinct value is stored once, and each row holds an int code.
+         *
+         * @param types Column types
+         * @param capacity Initial capacity
+         * @param keyCount Number of leading columns that are keys
+         */
+        RowList(List<SqlStatement.Type> types, int capacity, int keyCount) {
             this.columns = new Column[types.size()];
             this.capacity = capacity;
             for (int i = 0; i < columns.length; i++) {
-                columns[i] = Column.forType(i, types.get(i), capacity);
+                final SqlStatement.Type type = types.get(i);
+                if (i < keyCount
+                    && (type == SqlStatement.Type.OBJECT
+                        || type == SqlStatement.Type.STRING))
+                {
+                    columns[i] = new DictionaryColumn(i, type, capacity);
+                } else {
+                    columns[i] = Column.forType(i, type, capacity);
+                }
             }
         }
 
@@ -1038,6 +1530,22 @@ public class SegmentLoader {
             }
         }
 
+        /**
+         * Appends the rows of another list, which must have the same column
+         * types, to this list.
+         *
+         * @param rows Rows to append
+         */
+        void addAll(RowList rows) {
+            assert getTypes().equals(rows.getTypes());
+            for (int row = 0; row < rows.rowCount; row++) {
+                createRow();
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i].copyFrom(currentRow, rows.columns[i], row);
+                }
+            }
+        }
+
         public List<SqlStatement.Type> getTypes() {
             return new AbstractList<SqlStatement.Type>() {
                 public SqlStatement.Type get(int index) {
@@ -1104,6 +1612,33 @@ public class SegmentLoader {
             return columns[columnIndex].getInt(currentRow);
         }
 
+        /**
+         * Returns the code of the value in the given dictionary-encoded
+         * column of the current row.
+         *
+         * @param columnIndex Column index
+         * @return Code of value; index into the column's dictionary
+         * @see #getDictionary(int)
+         */
+        public int getCode(int columnIndex) {
+            return ((DictionaryColumn) columns[columnIndex]).codes[currentRow];
+        }
+
+        /**
+         * Returns the distinct values of a column, indexed by code, if the
+         * column is dictionary-encoded; otherwise null.
+         *
+         * @param columnIndex Column index
+         * @return Distinct values, or null
+         */
+        public List<Object> getDictionary(int columnIndex) {
+            final Column column = columns[columnIndex];
+            return column instanceof DictionaryColumn
+                ? Collections.unmodifiableList(
+                    ((DictionaryColumn) column).values)
+                : null;
+        }
+
         public double getDouble(int columnIndex) {
             return columns[columnIndex].getDouble(currentRow);
         }
@@ -1170,6 +1705,15 @@ public class SegmentLoader {
             public abstract void populateFrom(int row, ResultSet resultSet)
                 throws SQLException;
 
+            /**
+             * Copies a value from a column of the same type.
+             *
+             * @param row Row to set
+             * @param column Column to copy from
+             * @param fromRow Row of column to copy from
+             */
+            public abstract void copyFrom(int row, Column column, int fromRow);
+
             public Object getObject(int row) {
                 throw new UnsupportedOperationException();
             }
@@ -1217,11 +1761,72 @@ public class SegmentLoader {
                 objects[row] = value;
             }
 
+            public void copyFrom(int row, Column column, int fromRow) {
+                objects[row] = ((ObjectColumn) column).objects[fromRow];
+            }
+
             public Object getObject(int row) {
                 return objects[row];
             }
         }
 
+        /**
+         * Column that stores each distinct value once, and for each row the
+         * code of its value.
+         *
+         * <p>Key columns typically have far fewer distinct values than rows.
+         * Storing codes saves a reference per row, and allows the loader to
+         * work out each value's axis offset once, rather than once per
+         * row.</p>
+         */
+        static class DictionaryColumn extends Column {
+            private int[] codes;
+            private final List<Object> values = new ArrayList<Object>();
+            private final Map<Object, Integer> codeMap =
+                new HashMap<Object, Integer>();
+
+            DictionaryColumn(int ordinal, SqlStatement.Type type, int size) {
+                super(ordinal, type);
+                codes = new int[size];
+            }
+
+            protected int getCapacity() {
+                return codes.length;
+            }
+
+            public boolean isNull(int row) {
+                return values.get(codes[row]) == null;
+            }
+
+            public void resize(int newSize) {
+                codes = Util.copyOf(codes, newSize);
+            }
+
+            public void populateFrom(int row, ResultSet resultSet)
+                throws SQLException
+            {
+                setObject(row, resultSet.getObject(ordinal + 1));
+            }
+
+            public void setObject(int row, Object value) {
+                Integer code = codeMap.get(value);
+                if (code == null) {
+                    code = values.size();
+                    values.add(value);
+                    codeMap.put(value, code);
+                }
+                codes[row] = code;
+            }
+
+            public void copyFrom(int row, Column column, int fromRow) {
+                setObject(row, column.getObject(fromRow));
+            }
+
+            public Object getObject(int row) {
+                return values.get(codes[row]);
+            }
+        }
+
         static abstract class NativeColumn extends Column {
             protected BitSet nullIndicators;
 
@@ -1266,6 +1871,14 @@ public class SegmentLoader {
                 ints[row] = value;
             }
 
+            public void copyFrom(int row, Column column, int fromRow) {
+                final IntColumn from = (IntColumn) column;
+                ints[row] = from.ints[fromRow];
+                if (from.isNull(fromRow)) {
+                    setNull(row, true);
+                }
+            }
+
             public int getInt(int row) {
                 return ints[row];
             }
@@ -1310,6 +1923,14 @@ public class SegmentLoader {
                 longs[row] = value;
             }
 
+            public void copyFrom(int row, Column column, int fromRow) {
+                final LongColumn from = (LongColumn) column;
+                longs[row] = from.longs[fromRow];
+                if (from.isNull(fromRow)) {
+                    setNull(row, true);
+                }
+            }
+
             public long getLong(int row) {
                 return longs[row];
             }
@@ -1354,6 +1975,14 @@ public class SegmentLoader {
                 doubles[row] = value;
             }
 
+            public void copyFrom(int row, Column column, int fromRow) {
+                final DoubleColumn from = (DoubleColumn) column;
+                doubles[row] = from.doubles[fromRow];
+                if (from.isNull(fromRow)) {
+                    setNull(row, true);
+                }
+            }
+
             public double getDouble(int row) {
                 return doubles[row];
             }
@@ -1377,6 +2006,20 @@ public class SegmentLoader {
         }
     }
 
+    /**
+     * Rows and axis values loaded by one partition of a segment load.
+     */
+    private static class PartitionResult {
+        final SortedSet<Comparable>[] axisValueSets;
+        final boolean[] axisContainsNull;
+        RowList rows;
+
+        PartitionResult(SortedSet<Comparable>[] axisValueSets) {
+            this.axisValueSets = axisValueSets;
+            this.axisContainsNull = new boolean[axisValueSets.length];
+        }
+    }
+
     private static class BooleanComparator
         implements Comparator<Object>, Serializable
     {
@@ -52,6 +52,12 @@ public class SegmentWithData extends Segment {
      */
     private final SegmentDataset data;
 
+    /**
+     * For each axis, the product of the lengths of later axes. Used to compute
+     * the offset of a cell without creating a {@link CellKey}.
+     */
+    private final long[] axisMultipliers;
+
     /**
      * Creates a SegmentWithData from an existing Segment.
      *
@@ -108,6 +114,7 @@ public class SegmentWithData extends Segment {
             compoundPredicateList);
         this.axes = axes;
         this.data = data;
+        this.axisMultipliers = SegmentAxis.computeAxisMultipliers(axes);
     }
 
     @Override
@@ -149,7 +156,7 @@ public class SegmentWithData extends Segment {
     public Object getCellValue(Object[] keys) {
         assert keys.length == axes.length;
         int missed = 0;
-        CellKey cellKey = CellKey.Generator.newCellKey(axes.length);
+        long cellOffset = 0;
         for (int i = 0; i < keys.length; i++) {
             Comparable key = (Comparable) keys[i];
             int offset = axes[i].getOffset(key);
@@ -164,7 +171,7 @@ public class SegmentWithData extends Segment {
                     return null;
                 }
             }
-            cellKey.setAxis(i, offset);
+            cellOffset += offset * axisMultipliers[i];
         }
         if (isExcluded(keys)) {
             // this value should not appear in this segment; we
@@ -176,7 +183,7 @@ public class SegmentWithData extends Segment {
             // or more of its keys does have any values
             return Util.nullValue;
         } else {
-            Object o = data.getObject(cellKey);
+            Object o = data.getObjectAt(cellOffset);
             if (o == null) {
                 o = Util.nullValue;
             }
@@ -298,7 +305,7 @@ public class SegmentWithData extends Segment {
         // will be sparse.)
         SegmentDataset newData =
             createDataset(
-                axes,
+                newAxes,
                 data instanceof SparseSegmentDataset,
                 data.getType(),
                 valueCount);
@@ -4,12 +4,13 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2012 Pentaho and others
+// Copyright (C) 2011-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap.agg;
 
 import mondrian.rolap.CellKey;
+import mondrian.rolap.SqlStatement;
 import mondrian.util.Pair;
 
 import java.util.*;
@@ -18,11 +19,15 @@ import java.util.*;
  * Implementation of a segment body which stores the data of a
  * sparse segment data set into a dense array of java objects.
  *
+ * <p>Each cell is identified by its offset in raster-scan order (see
+ * {@link CellKey#getOffset(long[])}), held in an array of {@code long}, so
+ * there is no {@link CellKey} object per cell.</p>
+ *
  * @author LBoudreau
  */
 class SparseSegmentBody extends AbstractSegmentBody {
-    private static final long serialVersionUID = -6684830985364895836L;
-    final CellKey[] keys;
+    private static final long serialVersionUID = -2906356457405346924L;
+    final long[] offsets;
     final Object[] data;
 
     SparseSegmentBody(
@@ -31,19 +36,90 @@ class SparseSegmentBody extends AbstractSegmentBody {
     {
         super(axes);
 
-        this.keys = new CellKey[dataToSave.size()];
+        final long[] axisMultipliers = computeAxisMultipliers();
+        this.offsets = new long[dataToSave.size()];
         this.data = new Object[dataToSave.size()];
         int i = 0;
         for (Map.Entry<CellKey, Object> entry : dataToSave.entrySet()) {
-            keys[i] = entry.getKey();
+            offsets[i] = entry.getKey().getOffset(axisMultipliers);
             data[i] = entry.getValue();
             ++i;
         }
     }
 
+    /**
+     * Creates a SparseSegmentBody from arrays of offsets and values. The
+     * arrays are not copied.
+     *
+     * @param offsets Offset of each cell
+     * @param data Value of each cell
+     * @param axes Axes
+     */
+    SparseSegmentBody(
+        long[] offsets,
+        Object[] data,
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        super(axes);
+        assert offsets.length == data.length;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+    /**
+     * Computes, for each axis, the product of the lengths of later axes. The
+     * length of an axis includes the null value, if present, which sorts
+     * last; this is consistent with {@link SegmentAxis}.
+     */
+    private long[] computeAxisMultipliers() {
+        final boolean[] nullAxisFlags = getNullAxisFlags();
+        final long[] axisMultipliers = new long[axisValueSets.length];
+        long multiplier = 1;
+        for (int i = axisValueSets.length - 1; i >= 0; --i) {
+            axisMultipliers[i] = multiplier;
+            multiplier *=
+                axisValueSets[i].size() + (nullAxisFlags[i] ? 1 : 0);
+        }
+        return axisMultipliers;
+    }
+
+    /**
+     * Creates a dataset that contains the values in this body.
+     *
+     * @param axes Segment axes, containing actual column values
+     * @return Dataset
+     */
+    SparseSegmentDataset createDataset(SegmentAxis[] axes) {
+        final SparseSegmentDataset dataset =
+            new SparseSegmentDataset(axes, getType(), offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            dataset.put(offsets[i], data[i]);
+        }
+        return dataset;
+    }
+
+    /**
+     * Returns the most compact type that can hold all values of this body.
+     *
+     * @return Type of values
+     */
+    SqlStatement.Type getType() {
+        boolean allDouble = true;
+        boolean allInt = true;
+        for (Object o : data) {
+            if (o != null) {
+                allDouble = allDouble && o instanceof Double;
+                allInt = allInt && o instanceof Integer;
+            }
+        }
+        return allDouble ? SqlStatement.Type.DOUBLE
+            : allInt ? SqlStatement.Type.INT
+            : SqlStatement.Type.OBJECT;
+    }
+
     @Override
     protected int getSize() {
-        return keys.length;
+        return offsets.length;
     }
 
     @Override
@@ -51,12 +127,22 @@ class SparseSegmentBody extends AbstractSegmentBody {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    protected long getEstimatedValueByteSize() {
+        // Each cell has a long offset and a boxed value, referenced from an
+        // array.
+        return (long) estimateSparseValueByteSize(offsets.length);
+    }
+
     @Override
     public Map<CellKey, Object> getValueMap() {
+        final long[] axisMultipliers = computeAxisMultipliers();
         final Map<CellKey, Object> map =
-            new HashMap<CellKey, Object>(keys.length * 3 / 2);
-        for (int i = 0; i < keys.length; i++) {
-            map.put(keys[i], data[i]);
+            new HashMap<CellKey, Object>(offsets.length * 3 / 2);
+        for (int i = 0; i < offsets.length; i++) {
+            map.put(
+                SparseSegmentDataset.toCellKey(offsets[i], axisMultipliers),
+                data[i]);
         }
         return map;
     }
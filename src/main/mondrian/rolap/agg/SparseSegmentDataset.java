@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2010-2012 Pentaho and others
+// Copyright (C) 2010-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap.agg;
@@ -20,10 +20,18 @@ import java.util.*;
  * A <code>SparseSegmentDataset</code> is a means of storing segment values
  * which is suitable when few of the combinations of keys have a value present.
  *
- * <p>The storage requirements are as follows. Key is 1 word for each
- * dimension. Hashtable entry is 3 words. Value is 1 word. Total space is (4 +
- * d) * v. (May also need hash table to ensure that values are only stored
- * once.)</p>
+ * <p>Each cell is identified by its offset in raster-scan order, a
+ * {@code long} computed from the cell's ordinals and the axis multipliers
+ * (see {@link CellKey#getOffset(long[])}). Cells are held in an
+ * open-addressing hash table, with linear probing, whose keys are an array of
+ * {@code long} and whose values are an array of {@code double}, {@code int}
+ * or {@link Object}, depending on the type of the measure. Native values are
+ * not boxed, and there is no {@link CellKey} object per cell.</p>
+ *
+ * <p>The storage requirements are as follows. At a load factor of between
+ * 0.375 and 0.75, each cell requires between 16 and 32 bytes for a
+ * {@code double} value, 12 and 24 bytes for an {@code int} value, plus, for
+ * an object value, the size of the object.</p>
  *
  * <p>NOTE: This class is not synchronized.</p>
  *
@@ -31,81 +39,413 @@ import java.util.*;
  * @since 21 March, 2002
  */
 class SparseSegmentDataset implements SegmentDataset {
-    private final Map<CellKey, Object> values;
+    /** Marks an empty slot in {@link #keys}. Offsets are never negative. */
+    private static final long EMPTY = -1L;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final long[] axisMultipliers;
+    private final SqlStatement.Type type;
+
+    private long[] keys;
+    private double[] doubleValues;
+    private int[] intValues;
+    private Object[] objectValues;
+
+    /**
+     * Slots whose value is null. Used only if values are native; if values
+     * are objects, a null is stored in {@link #objectValues}.
+     */
+    private BitSet nullSlots;
+
+    private int size;
+    private int mask;
 
     /**
      * Creates an empty SparseSegmentDataset.
+     *
+     * @param axes Segment axes, containing actual column values
+     * @param type Type of values
+     */
+    SparseSegmentDataset(SegmentAxis[] axes, SqlStatement.Type type) {
+        this(axes, type, 0);
+    }
+
+    /**
+     * Creates an empty SparseSegmentDataset with room for a given number of
+     * cells.
+     *
+     * @param axes Segment axes, containing actual column values
+     * @param type Type of values
+     * @param expectedSize Number of cells expected
+     */
+    SparseSegmentDataset(
+        SegmentAxis[] axes,
+        SqlStatement.Type type,
+        int expectedSize)
+    {
+        this.axisMultipliers = SegmentAxis.computeAxisMultipliers(axes);
+        switch (type) {
+        case DOUBLE:
+        case INT:
+            this.type = type;
+            break;
+        default:
+            this.type = SqlStatement.Type.OBJECT;
+        }
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        switch (type) {
+        case DOUBLE:
+            doubleValues = new double[capacity];
+            nullSlots = new BitSet(capacity);
+            break;
+        case INT:
+            intValues = new int[capacity];
+            nullSlots = new BitSet(capacity);
+            break;
+        default:
+            objectValues = new Object[capacity];
+        }
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int hash(long offset) {
+        final long h = offset * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the slot that holds a given offset, or -1 if the offset is not
+     * present.
+     */
+    private int find(long offset) {
+        int slot = hash(offset) & mask;
+        for (;;) {
+            final long key = keys[slot];
+            if (key == offset) {
+                return slot;
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the slot that holds a given offset, creating it if the offset
+     * is not present.
      */
-    SparseSegmentDataset() {
-        this(new HashMap<CellKey, Object>());
+    private int findOrCreate(long offset) {
+        assert offset >= 0;
+        if ((size + 1) * 4 > keys.length * 3) {
+            grow();
+        }
+        int slot = hash(offset) & mask;
+        for (;;) {
+            final long key = keys[slot];
+            if (key == offset) {
+                return slot;
+            }
+            if (key == EMPTY) {
+                keys[slot] = offset;
+                ++size;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final double[] oldDoubleValues = doubleValues;
+        final int[] oldIntValues = intValues;
+        final Object[] oldObjectValues = objectValues;
+        final BitSet oldNullSlots = nullSlots;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            final long key = oldKeys[i];
+            if (key == EMPTY) {
+                continue;
+            }
+            final int slot = findOrCreate(key);
+            switch (type) {
+            case DOUBLE:
+                doubleValues[slot] = oldDoubleValues[i];
+                break;
+            case INT:
+                intValues[slot] = oldIntValues[i];
+                break;
+            default:
+                objectValues[slot] = oldObjectValues[i];
+            }
+            if (oldNullSlots != null && oldNullSlots.get(i)) {
+                nullSlots.set(slot);
+            }
+        }
     }
 
     /**
-     * Creates a SparseSegmentDataset with a given value map. The map is not
-     * copied; a reference to the map is retained inside the dataset, and
-     * therefore the contents of the dataset will change if the map is modified.
+     * Sets the value of the cell at a given offset.
      *
-     * @param values Value map
+     * @param offset Offset of cell
+     * @param value Value, or null
      */
-    SparseSegmentDataset(Map<CellKey, Object> values) {
-        this.values = values;
+    void put(long offset, Object value) {
+        final int slot = findOrCreate(offset);
+        switch (type) {
+        case DOUBLE:
+            if (value == null) {
+                doubleValues[slot] = 0d;
+                nullSlots.set(slot);
+            } else {
+                doubleValues[slot] = ((Number) value).doubleValue();
+                nullSlots.clear(slot);
+            }
+            break;
+        case INT:
+            if (value == null) {
+                intValues[slot] = 0;
+                nullSlots.set(slot);
+            } else {
+                intValues[slot] = ((Number) value).intValue();
+                nullSlots.clear(slot);
+            }
+            break;
+        default:
+            objectValues[slot] = value;
+        }
+    }
+
+    private void putDouble(long offset, double value, boolean isNull) {
+        final int slot = findOrCreate(offset);
+        doubleValues[slot] = value;
+        if (isNull) {
+            nullSlots.set(slot);
+        } else {
+            nullSlots.clear(slot);
+        }
+    }
+
+    private void putInt(long offset, int value, boolean isNull) {
+        final int slot = findOrCreate(offset);
+        intValues[slot] = value;
+        if (isNull) {
+            nullSlots.set(slot);
+        } else {
+            nullSlots.clear(slot);
+        }
+    }
+
+    private Object getSlotObject(int slot) {
+        switch (type) {
+        case DOUBLE:
+            return nullSlots.get(slot) ? null : doubleValues[slot];
+        case INT:
+            return nullSlots.get(slot) ? null : intValues[slot];
+        default:
+            return objectValues[slot];
+        }
     }
 
     public Object getObject(CellKey pos) {
-        return values.get(pos);
+        return getObjectAt(pos.getOffset(axisMultipliers));
+    }
+
+    public Object getObjectAt(long offset) {
+        final int slot = find(offset);
+        if (slot < 0) {
+            return null;
+        }
+        return getSlotObject(slot);
     }
 
     public boolean isNull(CellKey pos) {
         // cf exists -- calls values.containsKey
-        return values.get(pos) == null;
+        final int slot = find(pos.getOffset(axisMultipliers));
+        if (slot < 0) {
+            return true;
+        }
+        switch (type) {
+        case DOUBLE:
+        case INT:
+            return nullSlots.get(slot);
+        default:
+            return objectValues[slot] == null;
+        }
     }
 
     public int getInt(CellKey pos) {
-        throw new UnsupportedOperationException();
+        final int slot = find(pos.getOffset(axisMultipliers));
+        if (slot < 0) {
+            return 0;
+        }
+        switch (type) {
+        case INT:
+            return intValues[slot];
+        case DOUBLE:
+            return (int) doubleValues[slot];
+        default:
+            final Object o = objectValues[slot];
+            return o == null ? 0 : ((Number) o).intValue();
+        }
     }
 
     public double getDouble(CellKey pos) {
-        throw new UnsupportedOperationException();
+        final int slot = find(pos.getOffset(axisMultipliers));
+        if (slot < 0) {
+            return 0d;
+        }
+        switch (type) {
+        case DOUBLE:
+            return doubleValues[slot];
+        case INT:
+            return intValues[slot];
+        default:
+            final Object o = objectValues[slot];
+            return o == null ? 0d : ((Number) o).doubleValue();
+        }
     }
 
     public boolean exists(CellKey pos) {
-        return values.containsKey(pos);
+        return find(pos.getOffset(axisMultipliers)) >= 0;
     }
 
     public void put(CellKey key, Object value) {
-        values.put(key, value);
+        put(key.getOffset(axisMultipliers), value);
+    }
+
+    /**
+     * Returns the number of cells in this dataset.
+     */
+    int size() {
+        return size;
     }
 
     public Iterator<Map.Entry<CellKey, Object>> iterator() {
-        return values.entrySet().iterator();
+        return new Iterator<Map.Entry<CellKey, Object>>() {
+            private int slot = nextSlot(0);
+
+            private int nextSlot(int i) {
+                while (i < keys.length && keys[i] == EMPTY) {
+                    ++i;
+                }
+                return i;
+            }
+
+            public boolean hasNext() {
+                return slot < keys.length;
+            }
+
+            public Map.Entry<CellKey, Object> next() {
+                if (slot >= keys.length) {
+                    throw new NoSuchElementException();
+                }
+                final Pair<CellKey, Object> entry =
+                    Pair.of(
+                        toCellKey(keys[slot], axisMultipliers),
+                        getSlotObject(slot));
+                slot = nextSlot(slot + 1);
+                return entry;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public double getBytes() {
-        // assume a slot, key, and value are each 4 bytes
-        return values.size() * 12;
+        final int valueBytes;
+        switch (type) {
+        case INT:
+            valueBytes = 4;
+            break;
+        default:
+            valueBytes = 8;
+        }
+        return keys.length * (8 + valueBytes);
     }
 
     public void populateFrom(int[] pos, SegmentDataset data, CellKey key) {
-        values.put(CellKey.Generator.newCellKey(pos), data.getObject(key));
+        final long offset = CellKey.Generator.getOffset(pos, axisMultipliers);
+        switch (type) {
+        case DOUBLE:
+            final double d = data.getDouble(key);
+            putDouble(offset, d, d == 0d && data.isNull(key));
+            break;
+        case INT:
+            final int i = data.getInt(key);
+            putInt(offset, i, i == 0 && data.isNull(key));
+            break;
+        default:
+            put(offset, data.getObject(key));
+        }
     }
 
     public void populateFrom(
         int[] pos, SegmentLoader.RowList rowList, int column)
     {
-        final Object o = rowList.getObject(column);
-        put(CellKey.Generator.newCellKey(pos), o);
+        final long offset = CellKey.Generator.getOffset(pos, axisMultipliers);
+        switch (type) {
+        case DOUBLE:
+            final double d = rowList.getDouble(column);
+            putDouble(offset, d, d == 0d && rowList.isNull(column));
+            break;
+        case INT:
+            final int i = rowList.getInt(column);
+            putInt(offset, i, i == 0 && rowList.isNull(column));
+            break;
+        default:
+            put(offset, rowList.getObject(column));
+        }
     }
 
     public SqlStatement.Type getType() {
-        return SqlStatement.Type.OBJECT;
+        return type;
     }
 
     public SegmentBody createSegmentBody(
         List<Pair<SortedSet<Comparable>, Boolean>> axes)
     {
-        return new SparseSegmentBody(
-            values,
-            axes);
+        final long[] offsets = new long[size];
+        final Object[] values = new Object[size];
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                offsets[n] = keys[slot];
+                values[n] = getSlotObject(slot);
+                ++n;
+            }
+        }
+        return new SparseSegmentBody(offsets, values, axes);
+    }
+
+    /**
+     * Converts an offset in raster-scan order back into a cell key.
+     *
+     * @param offset Offset of cell
+     * @param axisMultipliers For each axis, the product of the lengths of
+     *     later axes
+     * @return Cell key
+     */
+    static CellKey toCellKey(long offset, long[] axisMultipliers) {
+        final int[] ordinals = new int[axisMultipliers.length];
+        for (int i = 0; i < axisMultipliers.length; i++) {
+            ordinals[i] = (int) (offset / axisMultipliers[i]);
+            offset %= axisMultipliers[i];
+        }
+        return CellKey.Generator.newCellKey(ordinals);
     }
 }
 
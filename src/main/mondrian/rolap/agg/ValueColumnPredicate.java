@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2006-2011 Pentaho
+// Copyright (C) 2006-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.rolap.agg;
@@ -157,7 +157,7 @@ public class ValueColumnPredicate
             buf.append(" is null");
         } else {
             buf.append(" = ");
-            sqlQuery.getDialect().quote(buf, key, column.getDatatype());
+            sqlQuery.quote(buf, key, column.getDatatype());
         }
     }
 
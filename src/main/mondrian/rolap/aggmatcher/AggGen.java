@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2005-2005 Julian Hyde
-// Copyright (C) 2005-2010 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap.aggmatcher;
@@ -15,6 +15,7 @@ import mondrian.olap.Util;
 import mondrian.rolap.RolapAggregator;
 import mondrian.rolap.RolapStar;
 import mondrian.rolap.sql.SqlQuery;
+import mondrian.util.Pair;
 
 import org.apache.log4j.Logger;
 
@@ -874,6 +875,19 @@ public class AggGen {
 
 
 
+    /**
+     * Returns the measures in the aggregate table, each as a pair of the
+     * name of the measure and the name of its column.
+     */
+    public List<Pair<String, String>> getMeasureColumnNames() {
+        final List<Pair<String, String>> list =
+            new ArrayList<Pair<String, String>>();
+        for (JdbcSchema.Table.Column.Usage usage : measures) {
+            list.add(Pair.of(usage.getSymbolicName(), getUsageName(usage)));
+        }
+        return list;
+    }
+
     private String getUsageName(final JdbcSchema.Table.Column.Usage usage) {
         JdbcSchema.Table.Column c = usage.getColumn();
         String name = c.getName();
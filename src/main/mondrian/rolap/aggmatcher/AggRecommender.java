@@ -0,0 +1,632 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.aggmatcher;
+
+import mondrian.olap.*;
+import mondrian.rolap.*;
+import mondrian.server.monitor.SegmentLoadInfo;
+import mondrian.util.Pair;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Recommends aggregate tables, based on the segments that a workload has
+ * loaded.
+ *
+ * <p>Whereas {@link AggGen} generates the aggregate table implied by a
+ * single request, this class considers a whole workload. Its input is a
+ * list of segment loads, as recorded by the monitor
+ * ({@link mondrian.server.monitor.Monitor#getSegmentLoads()}), or as
+ * written to the workload log ("mondrian.server.monitor.workload") and read
+ * back later using {@link #read(java.io.Reader)}.</p>
+ *
+ * <p>It chooses aggregate tables greedily, in the manner of Harinarayan,
+ * Rajaraman and Ullman's "Implementing data cubes efficiently". The
+ * candidates are the sets of columns of each load, and the unions of each
+ * pair of them. The cost of a load is the number of rows in the smallest
+ * table (fact table or chosen aggregate table) that contains its columns;
+ * the size of a candidate is estimated as the product of the cardinalities
+ * of its columns, but no more than the number of rows in the fact table. At
+ * each step, the recommender chooses the candidate that most reduces the
+ * total cost of the workload per row of storage, until no candidate fits
+ * in the remaining budget or reduces the cost.</p>
+ *
+ * <p>For each chosen aggregate table, the recommender generates
+ * <code>CREATE TABLE</code> and <code>INSERT</code> statements, as
+ * {@link AggGen} does for collapsed tables, and an
+ * <code>&lt;AggName&gt;</code> element to add to the cube's fact table in
+ * the schema.</p>
+ *
+ * <p>To run the recommender on a captured workload log:</p>
+ *
+ * <blockquote><code>java mondrian.rolap.aggmatcher.AggRecommender
+ * <i>connectString</i> <i>logFile</i> <i>budget</i></code></blockquote>
+ *
+ * <p>where <i>budget</i> is the total number of rows that the aggregate
+ * tables may contain.</p>
+ *
+ * @author agent
+ */
+public class AggRecommender {
+    /**
+     * Prefix of a line in the workload log that describes a segment load.
+     */
+    private static final String PREFIX = "SegmentLoad\t";
+
+    private final RolapSchema schema;
+    private final long budget;
+
+    /**
+     * Creates an AggRecommender.
+     *
+     * @param schema Schema
+     * @param budget Maximum total number of rows in recommended tables
+     */
+    public AggRecommender(RolapSchema schema, long budget) {
+        this.schema = schema;
+        this.budget = budget;
+    }
+
+    /**
+     * Recommends aggregate tables for a workload, and returns a script that
+     * creates and populates them, and declares them in the schema.
+     *
+     * <p>Loads whose schema is not this recommender's schema are
+     * ignored.</p>
+     *
+     * @param loads Segment loads
+     * @return Script containing SQL and schema elements
+     */
+    public String recommend(List<SegmentLoadInfo> loads) {
+        // Group loads by cube and fact table.
+        final Map<Pair<String, String>, List<SegmentLoadInfo>> map =
+            new LinkedHashMap<Pair<String, String>, List<SegmentLoadInfo>>();
+        for (SegmentLoadInfo load : loads) {
+            if (!schema.getName().equals(load.schemaName)) {
+                continue;
+            }
+            final Pair<String, String> key =
+                Pair.of(load.cubeName, load.factTable);
+            List<SegmentLoadInfo> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<SegmentLoadInfo>();
+                map.put(key, list);
+            }
+            list.add(load);
+        }
+
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        long remaining = budget;
+        int tableCount = 0;
+        for (Map.Entry<Pair<String, String>, List<SegmentLoadInfo>> entry
+            : map.entrySet())
+        {
+            final String cubeName = entry.getKey().left;
+            final RolapCube cube = lookupCube(cubeName);
+            final RolapStar star = lookupStar(entry.getKey().right);
+            if (cube == null || star == null) {
+                pw.println(
+                    "-- Cube '" + cubeName + "' or fact table '"
+                    + entry.getKey().right + "' not found");
+                continue;
+            }
+            final Map<String, Integer> cardinalities =
+                new HashMap<String, Integer>();
+            for (SegmentLoadInfo load : entry.getValue()) {
+                for (String columnName : load.columns) {
+                    if (!cardinalities.containsKey(columnName)) {
+                        final RolapStar.Column column =
+                            lookupColumn(star, columnName);
+                        cardinalities.put(
+                            columnName,
+                            column == null ? -1 : column.getCardinality());
+                    }
+                }
+            }
+            final long factRowCount =
+                star.getStatisticsCache().getRelationCardinality(
+                    star.getFactTable().getRelation(),
+                    star.getFactTable().getAlias(),
+                    -1);
+            final List<Candidate> candidates =
+                choose(
+                    factRowCount, cardinalities, entry.getValue(), remaining);
+            for (Candidate candidate : candidates) {
+                remaining -= candidate.rowCount;
+                generate(
+                    pw, cube, star, candidate,
+                    "agg_r" + (++tableCount) + "_");
+            }
+        }
+        if (tableCount == 0) {
+            pw.println("-- No aggregate tables recommended");
+        }
+        pw.flush();
+        return sw.toString();
+    }
+
+    /**
+     * Writes the SQL and schema element for a recommended aggregate table.
+     */
+    private void generate(
+        PrintWriter pw,
+        RolapCube cube,
+        RolapStar star,
+        Candidate candidate,
+        final String prefix)
+    {
+        final List<RolapStar.Column> columns =
+            new ArrayList<RolapStar.Column>();
+        for (String columnName : candidate.columns) {
+            columns.add(lookupColumn(star, columnName));
+        }
+        final AggGen aggGen =
+            new AggGen(
+                cube.getName(),
+                star,
+                columns.toArray(new RolapStar.Column[columns.size()]))
+            {
+                String makeCollapsedAggregateTableName(String factTableName) {
+                    return prefix + factTableName;
+                }
+            };
+        final String tableName =
+            aggGen.makeCollapsedAggregateTableName(aggGen.getFactTableName());
+        pw.println(
+            "-- " + tableName + ": columns " + candidate.columns
+            + ", estimated " + candidate.rowCount
+            + " rows, saves " + Math.round(candidate.benefit)
+            + " rows scanned");
+        if (!aggGen.isReady()) {
+            pw.println("-- Could not generate SQL for " + tableName);
+            return;
+        }
+        pw.println(aggGen.createCollapsed());
+        pw.println(aggGen.insertIntoCollapsed());
+
+        final MondrianDef.AggName aggName = new MondrianDef.AggName();
+        aggName.name = tableName;
+        aggName.factcount = new MondrianDef.AggFactCount();
+        aggName.factcount.column = aggGen.getFactCount();
+        aggName.ignoreColumns = new MondrianDef.AggIgnoreColumn[0];
+        aggName.foreignKeys = new MondrianDef.AggForeignKey[0];
+        final List<MondrianDef.AggMeasure> measures =
+            new ArrayList<MondrianDef.AggMeasure>();
+        for (Pair<String, String> pair : aggGen.getMeasureColumnNames()) {
+            final MondrianDef.AggMeasure measure = new MondrianDef.AggMeasure();
+            measure.name = "[Measures]." + Util.quoteMdxIdentifier(pair.left);
+            measure.column = pair.right;
+            measures.add(measure);
+        }
+        aggName.measures =
+            measures.toArray(new MondrianDef.AggMeasure[measures.size()]);
+        final List<MondrianDef.AggLevel> levels =
+            new ArrayList<MondrianDef.AggLevel>();
+        final Set<RolapStar.Column> collapsedColumns =
+            collapsedColumns(columns);
+        for (RolapHierarchy hierarchy : cube.getHierarchies()) {
+            for (Level level : hierarchy.getLevels()) {
+                if (!(level instanceof RolapCubeLevel)) {
+                    continue;
+                }
+                final RolapStar.Column column =
+                    ((RolapCubeLevel) level).getStarKeyColumn();
+                if (column != null && collapsedColumns.contains(column)) {
+                    final MondrianDef.AggLevel aggLevel =
+                        new MondrianDef.AggLevel();
+                    aggLevel.name = level.getUniqueName();
+                    aggLevel.column = aggColumnName(column);
+                    levels.add(aggLevel);
+                }
+            }
+        }
+        aggName.levels =
+            levels.toArray(new MondrianDef.AggLevel[levels.size()]);
+        pw.println(aggName.toXML());
+        pw.println();
+    }
+
+    /**
+     * Returns the columns that a collapsed aggregate table will contain for
+     * the given columns: each column, and the columns that precede it in its
+     * dimension table (except name columns), as {@link AggGen} generates.
+     */
+    private static Set<RolapStar.Column> collapsedColumns(
+        List<RolapStar.Column> columns)
+    {
+        final Set<RolapStar.Column> set = new HashSet<RolapStar.Column>();
+        for (RolapStar.Column column : columns) {
+            if (column.getTable().getParentTable() == null) {
+                // Column in the fact table.
+                for (RolapStar.Column c = column; c != null;
+                    c = c.getParentColumn())
+                {
+                    set.add(c);
+                }
+                continue;
+            }
+            for (RolapStar.Column c : column.getTable().getColumns()) {
+                if (c.isNameColumn()) {
+                    continue;
+                }
+                set.add(c);
+                if (c == column) {
+                    break;
+                }
+            }
+        }
+        return set;
+    }
+
+    private static String aggColumnName(RolapStar.Column column) {
+        final String name = getColumnName(column);
+        return column.getUsagePrefix() == null
+            ? name
+            : column.getUsagePrefix() + name;
+    }
+
+    private RolapCube lookupCube(String cubeName) {
+        for (RolapCube cube : schema.getCubeList()) {
+            if (cube.getName().equals(cubeName) && !cube.isVirtual()) {
+                return cube;
+            }
+        }
+        return null;
+    }
+
+    private RolapStar lookupStar(String factTable) {
+        for (RolapStar star : schema.getStars()) {
+            if (star.getFactTable().getAlias().equals(factTable)) {
+                return star;
+            }
+        }
+        return null;
+    }
+
+    private static RolapStar.Column lookupColumn(
+        RolapStar star,
+        String columnName)
+    {
+        final int i = columnName.indexOf('.');
+        if (i < 0) {
+            return null;
+        }
+        return star.lookupColumn(
+            columnName.substring(0, i), columnName.substring(i + 1));
+    }
+
+    /**
+     * Chooses aggregate tables for a workload on one fact table.
+     *
+     * @param factRowCount Number of rows in the fact table
+     * @param cardinalities Cardinality of each column; a column that is
+     *     missing, or whose cardinality is not positive, is assumed to have
+     *     as many values as the fact table has rows
+     * @param loads Segment loads
+     * @param budget Maximum total number of rows in the chosen tables
+     * @return Chosen aggregate tables, in the order they were chosen
+     */
+    public static List<Candidate> choose(
+        long factRowCount,
+        Map<String, Integer> cardinalities,
+        Collection<SegmentLoadInfo> loads,
+        long budget)
+    {
+        // Combine loads with the same columns, weighting by the number of
+        // times each occurred.
+        final Map<SortedSet<String>, Integer> weights =
+            new LinkedHashMap<SortedSet<String>, Integer>();
+        for (SegmentLoadInfo load : loads) {
+            final SortedSet<String> columns = new TreeSet<String>(load.columns);
+            final Integer weight = weights.get(columns);
+            weights.put(
+                columns,
+                (weight == null ? 0 : weight) + load.loadCount);
+        }
+
+        final Set<SortedSet<String>> candidates =
+            new LinkedHashSet<SortedSet<String>>(weights.keySet());
+        final List<SortedSet<String>> requests =
+            new ArrayList<SortedSet<String>>(weights.keySet());
+        for (int i = 0; i < requests.size(); i++) {
+            for (int j = i + 1; j < requests.size(); j++) {
+                final SortedSet<String> union =
+                    new TreeSet<String>(requests.get(i));
+                union.addAll(requests.get(j));
+                candidates.add(union);
+            }
+        }
+
+        // Current cost of each request. Initially, each must scan the fact
+        // table.
+        final Map<SortedSet<String>, Long> costs =
+            new HashMap<SortedSet<String>, Long>();
+        for (SortedSet<String> request : requests) {
+            costs.put(request, factRowCount);
+        }
+
+        final List<Candidate> chosen = new ArrayList<Candidate>();
+        long used = 0;
+        for (;;) {
+            Candidate best = null;
+            double bestRatio = 0d;
+            for (SortedSet<String> columns : candidates) {
+                final long rowCount =
+                    estimateRowCount(columns, factRowCount, cardinalities);
+                if (rowCount >= factRowCount || used + rowCount > budget) {
+                    continue;
+                }
+                double benefit = 0d;
+                for (Map.Entry<SortedSet<String>, Integer> entry
+                    : weights.entrySet())
+                {
+                    final long cost = costs.get(entry.getKey());
+                    if (cost > rowCount
+                        && columns.containsAll(entry.getKey()))
+                    {
+                        benefit += (double) entry.getValue()
+                            * (cost - rowCount);
+                    }
+                }
+                final double ratio = benefit / Math.max(rowCount, 1L);
+                if (ratio > bestRatio) {
+                    bestRatio = ratio;
+                    best = new Candidate(columns, rowCount, benefit);
+                }
+            }
+            if (best == null) {
+                return chosen;
+            }
+            chosen.add(best);
+            candidates.remove(best.columns);
+            used += best.rowCount;
+            for (SortedSet<String> request : requests) {
+                if (best.columns.containsAll(request)
+                    && costs.get(request) > best.rowCount)
+                {
+                    costs.put(request, best.rowCount);
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the number of rows in an aggregate table with the given
+     * columns: the product of their cardinalities, capped by the number of
+     * rows in the fact table.
+     */
+    static long estimateRowCount(
+        Set<String> columns,
+        long factRowCount,
+        Map<String, Integer> cardinalities)
+    {
+        double rowCount = 1d;
+        for (String column : columns) {
+            final Integer cardinality = cardinalities.get(column);
+            if (cardinality == null || cardinality <= 0) {
+                return factRowCount;
+            }
+            rowCount *= cardinality;
+            if (rowCount >= factRowCount) {
+                return factRowCount;
+            }
+        }
+        return (long) rowCount;
+    }
+
+    /**
+     * Returns the names of the columns in a bit key, each of the form
+     * "table.column", sorted.
+     *
+     * @param star Star
+     * @param bitKey Bit key of columns
+     * @return Sorted list of column names
+     */
+    public static List<String> getColumnNames(RolapStar star, BitKey bitKey) {
+        final List<String> list = new ArrayList<String>();
+        for (int bit = bitKey.nextSetBit(0); bit >= 0;
+            bit = bitKey.nextSetBit(bit + 1))
+        {
+            final RolapStar.Column column = star.getColumn(bit);
+            list.add(
+                column.getTable().getAlias() + "." + getColumnName(column));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Returns the name of the cube of the first measure in a bit key, or null
+     * if there are no measures.
+     *
+     * @param star Star
+     * @param measureBitKey Bit key of measures
+     * @return Cube name
+     */
+    public static String getCubeName(RolapStar star, BitKey measureBitKey) {
+        final int bit = measureBitKey.nextSetBit(0);
+        if (bit < 0) {
+            return null;
+        }
+        final RolapStar.Column column = star.getColumn(bit);
+        return column instanceof RolapStar.Measure
+            ? ((RolapStar.Measure) column).getCubeName()
+            : null;
+    }
+
+    private static String getColumnName(RolapStar.Column column) {
+        final MondrianDef.Expression expression = column.getExpression();
+        if (expression instanceof MondrianDef.Column) {
+            return ((MondrianDef.Column) expression).name;
+        }
+        return column.getName();
+    }
+
+    /**
+     * Formats a segment load as a line of the workload log.
+     *
+     * <p>The fields are separated by tabs: the prefix "SegmentLoad", schema,
+     * cube, fact table, columns (separated by commas), load count and row
+     * count.</p>
+     *
+     * @param load Segment load
+     * @return Line
+     */
+    public static String format(SegmentLoadInfo load) {
+        final StringBuilder buf = new StringBuilder(PREFIX);
+        buf.append(load.schemaName)
+            .append('\t')
+            .append(load.cubeName)
+            .append('\t')
+            .append(load.factTable)
+            .append('\t');
+        int i = 0;
+        for (String column : load.columns) {
+            if (i++ > 0) {
+                buf.append(',');
+            }
+            buf.append(column);
+        }
+        buf.append('\t')
+            .append(load.loadCount)
+            .append('\t')
+            .append(load.rowCount);
+        return buf.toString();
+    }
+
+    /**
+     * Parses a line of the workload log. Text before the "SegmentLoad"
+     * prefix, such as a timestamp written by the logging framework, is
+     * ignored.
+     *
+     * @param line Line
+     * @return Segment load, or null if the line does not describe a segment
+     *     load
+     */
+    public static SegmentLoadInfo parse(String line) {
+        final int start = line.indexOf(PREFIX);
+        if (start < 0) {
+            return null;
+        }
+        final String[] fields =
+            line.substring(start + PREFIX.length()).split("\t", -1);
+        if (fields.length != 6) {
+            return null;
+        }
+        final List<String> columns =
+            fields[3].length() == 0
+                ? Collections.<String>emptyList()
+                : Arrays.asList(fields[3].split(","));
+        try {
+            return new SegmentLoadInfo(
+                null,
+                fields[0],
+                fields[1],
+                fields[2],
+                columns,
+                Integer.parseInt(fields[4]),
+                Long.parseLong(fields[5].trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads segment loads from a workload log, ignoring lines that do not
+     * describe a segment load.
+     *
+     * @param reader Reader
+     * @return List of segment loads
+     * @throws IOException on error reading
+     */
+    public static List<SegmentLoadInfo> read(Reader reader)
+        throws IOException
+    {
+        final List<SegmentLoadInfo> list = new ArrayList<SegmentLoadInfo>();
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            final SegmentLoadInfo load = parse(line);
+            if (load != null) {
+                list.add(load);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Command-line entry point. Reads a workload log, recommends aggregate
+     * tables, and prints the script to standard output.
+     *
+     * @param args Command-line arguments: connect string, log file, and
+     *     budget (maximum total number of rows in recommended tables)
+     * @throws IOException on error reading log file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println(
+                "Usage: AggRecommender <connectString> <logFile> <budget>");
+            return;
+        }
+        final List<SegmentLoadInfo> loads;
+        final Reader reader = new FileReader(args[1]);
+        try {
+            loads = read(reader);
+        } finally {
+            reader.close();
+        }
+        final Connection connection =
+            DriverManager.getConnection(args[0], null);
+        try {
+            final AggRecommender recommender =
+                new AggRecommender(
+                    ((RolapConnection) connection).getSchema(),
+                    Long.parseLong(args[2]));
+            System.out.print(recommender.recommend(loads));
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Aggregate table chosen by the recommender.
+     */
+    public static class Candidate {
+        /**
+         * Columns of the table, each of the form "table.column".
+         */
+        public final SortedSet<String> columns;
+
+        /**
+         * Estimated number of rows in the table.
+         */
+        public final long rowCount;
+
+        /**
+         * Reduction in the number of rows scanned by the workload, at the
+         * time that the table was chosen.
+         */
+        public final double benefit;
+
+        Candidate(SortedSet<String> columns, long rowCount, double benefit) {
+            this.columns = columns;
+            this.rowCount = rowCount;
+            this.benefit = benefit;
+        }
+
+        public String toString() {
+            return columns + " (" + rowCount + " rows)";
+        }
+    }
+}
+
+// End AggRecommender.java
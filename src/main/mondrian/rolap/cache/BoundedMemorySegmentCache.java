@@ -0,0 +1,311 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.cache;
+
+import mondrian.rolap.agg.SegmentBuilder;
+import mondrian.spi.*;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Implementation of {@link mondrian.spi.SegmentCache} that stores segments
+ * in memory, up to a given number of bytes.
+ *
+ * <p>Unlike {@link MemorySegmentCache}, which holds segments via soft
+ * references and lets the garbage collector discard as many of them as it
+ * likes, this cache holds segments via hard references and decides for itself
+ * which segments to evict when the total of their estimated sizes exceeds
+ * the budget. The size of each segment is estimated by
+ * {@link SegmentBuilder#estimateByteSize(mondrian.spi.SegmentBody)}.</p>
+ *
+ * <p>The eviction policy is GreedyDual-Size. Each segment has a priority,
+ * which is the cache's current 'inflation' value plus the cost of re-loading
+ * the segment divided by its size. When the cache is full, the segment with
+ * the lowest priority is evicted, and the inflation value is raised to that
+ * segment's priority. When a segment is read, its priority is recomputed.
+ * Thus large segments that are cheap to re-load and have not been read for a
+ * while are evicted first. Among segments of the same cost and size, the
+ * policy is LRU.</p>
+ *
+ * <p>The cost of a segment is the time, in milliseconds, taken by the SQL
+ * statement that loaded it; see {@link #setLoadCost}. If the cost is not
+ * known, it is assumed to be 1 millisecond.</p>
+ *
+ * <p>Evicted segments are reported to listeners as
+ * {@link SegmentCacheListener.SegmentCacheEvent.EventType#ENTRY_DELETED}
+ * events.</p>
+ *
+ * @author agent
+ */
+public class BoundedMemorySegmentCache implements SegmentCache {
+    private final long maxByteSize;
+
+    // Guarded by "this".
+    private final Map<SegmentHeader, Entry> map =
+        new HashMap<SegmentHeader, Entry>();
+    private final SortedSet<Entry> queue = new TreeSet<Entry>();
+    private long byteSize;
+    private double inflation;
+    private long sequence;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    private final List<SegmentCacheListener> listeners =
+        new CopyOnWriteArrayList<SegmentCacheListener>();
+
+    /**
+     * Creates a BoundedMemorySegmentCache.
+     *
+     * @param maxByteSize Maximum total estimated size of segments, in bytes
+     */
+    public BoundedMemorySegmentCache(long maxByteSize) {
+        assert maxByteSize > 0;
+        this.maxByteSize = maxByteSize;
+    }
+
+    public SegmentBody get(SegmentHeader header) {
+        synchronized (this) {
+            final Entry entry = map.get(header);
+            if (entry == null) {
+                ++missCount;
+                return null;
+            }
+            ++hitCount;
+            reprioritize(entry);
+            return entry.body;
+        }
+    }
+
+    public synchronized boolean contains(SegmentHeader header) {
+        return map.containsKey(header);
+    }
+
+    public synchronized List<SegmentHeader> getSegmentHeaders() {
+        return new ArrayList<SegmentHeader>(map.keySet());
+    }
+
+    public boolean put(final SegmentHeader header, SegmentBody body) {
+        assert header != null;
+        assert body != null;
+        final long size = SegmentBuilder.estimateByteSize(body);
+        if (size > maxByteSize) {
+            // Segment would not fit even in an empty cache. Pretend that we
+            // stored it and immediately forgot it.
+            return true;
+        }
+        final List<SegmentHeader> evicted = new ArrayList<SegmentHeader>();
+        final boolean created;
+        final Entry previous;
+        synchronized (this) {
+            previous = map.remove(header);
+            long cost = 1;
+            if (previous != null) {
+                queue.remove(previous);
+                byteSize -= previous.size;
+                cost = previous.cost;
+            }
+            final Entry entry = new Entry(header, body, size, cost);
+            map.put(header, entry);
+            byteSize += size;
+            reprioritize(entry);
+            while (byteSize > maxByteSize) {
+                final Entry victim = queue.first();
+                queue.remove(victim);
+                map.remove(victim.header);
+                byteSize -= victim.size;
+                inflation = victim.priority;
+                ++evictionCount;
+                evicted.add(victim.header);
+            }
+            created = map.containsKey(header);
+        }
+        for (SegmentHeader evictedHeader : evicted) {
+            if (!evictedHeader.equals(header) || previous != null) {
+                fireSegmentCacheEvent(
+                    evictedHeader,
+                    SegmentCacheListener.SegmentCacheEvent.EventType
+                        .ENTRY_DELETED);
+            }
+        }
+        if (created) {
+            fireSegmentCacheEvent(
+                header,
+                SegmentCacheListener.SegmentCacheEvent.EventType
+                    .ENTRY_CREATED);
+        }
+        return true;
+    }
+
+    public boolean remove(final SegmentHeader header) {
+        synchronized (this) {
+            final Entry entry = map.remove(header);
+            if (entry == null) {
+                return false;
+            }
+            queue.remove(entry);
+            byteSize -= entry.size;
+        }
+        fireSegmentCacheEvent(
+            header,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_DELETED);
+        return true;
+    }
+
+    /**
+     * Records the cost of re-loading a segment, if it is in the cache.
+     *
+     * <p>The cost is the time, in milliseconds, taken by the SQL statement
+     * that loaded the segment. Costlier segments are kept in the cache
+     * longer.</p>
+     *
+     * @param header Segment header
+     * @param millis Cost in milliseconds
+     */
+    public synchronized void setLoadCost(SegmentHeader header, long millis) {
+        final Entry entry = map.get(header);
+        if (entry != null) {
+            entry.cost = Math.max(1, millis);
+            reprioritize(entry);
+        }
+    }
+
+    public synchronized void tearDown() {
+        map.clear();
+        queue.clear();
+        byteSize = 0;
+        listeners.clear();
+    }
+
+    public void addListener(SegmentCacheListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SegmentCacheListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean supportsRichIndex() {
+        return true;
+    }
+
+    /**
+     * Returns the maximum total size of the segments in this cache, in bytes.
+     */
+    public long getMaxByteSize() {
+        return maxByteSize;
+    }
+
+    /**
+     * Returns the total estimated size of the segments currently in this
+     * cache, in bytes.
+     */
+    public synchronized long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * Returns the number of segments currently in this cache.
+     */
+    public synchronized int getSegmentCount() {
+        return map.size();
+    }
+
+    /**
+     * Returns the number of calls to {@link #get} that found a segment.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of calls to {@link #get} that did not find a segment.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of segments that have been evicted to make room for
+     * other segments.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Recomputes the priority of an entry, and moves it to its new position
+     * in the eviction queue. Caller must hold the lock.
+     */
+    private void reprioritize(Entry entry) {
+        queue.remove(entry);
+        entry.priority = inflation + (double) entry.cost / entry.size;
+        entry.sequence = ++sequence;
+        queue.add(entry);
+    }
+
+    private void fireSegmentCacheEvent(
+        final SegmentHeader header,
+        final SegmentCacheListener.SegmentCacheEvent.EventType eventType)
+    {
+        final SegmentCacheListener.SegmentCacheEvent event =
+            new SegmentCacheListener.SegmentCacheEvent() {
+                public boolean isLocal() {
+                    return true;
+                }
+                public SegmentHeader getSource() {
+                    return header;
+                }
+                public EventType getEventType() {
+                    return eventType;
+                }
+            };
+        for (SegmentCacheListener listener : listeners) {
+            listener.handle(event);
+        }
+    }
+
+    /**
+     * Cached segment, and the information needed to decide when to evict it.
+     * Entries are ordered by priority, then by the time of last access.
+     */
+    private static class Entry implements Comparable<Entry> {
+        final SegmentHeader header;
+        final SegmentBody body;
+        final long size;
+        long cost;
+        double priority;
+        long sequence;
+
+        Entry(
+            SegmentHeader header,
+            SegmentBody body,
+            long size,
+            long cost)
+        {
+            this.header = header;
+            this.body = body;
+            this.size = Math.max(1, size);
+            this.cost = cost;
+        }
+
+        public int compareTo(Entry o) {
+            if (priority != o.priority) {
+                return priority < o.priority ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1
+                : sequence > o.sequence ? 1
+                : 0;
+        }
+    }
+}
+
+// End BoundedMemorySegmentCache.java
@@ -0,0 +1,643 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.cache;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.Util;
+import mondrian.rolap.agg.BinarySegmentCodec;
+import mondrian.rolap.agg.OffHeapSegmentBody;
+import mondrian.spi.*;
+import mondrian.util.ByteString;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Implementation of {@link mondrian.spi.SegmentCache} that stores segments
+ * in files in a local directory, so that they survive a restart of the JVM.
+ *
+ * <p>To use it, set {@link MondrianProperties#SegmentCache} to
+ * {@code mondrian.rolap.cache.FileSegmentCache}, and set
+ * {@link MondrianProperties#FileSegmentCacheDirectory}.</p>
+ *
+ * <p>The directory contains one file per segment body, and an index file.
+ * The index file is a log of the headers of segments added and removed,
+ * encoded by {@link BinarySegmentCodec}; when
+ * the cache starts, it replays the log, so that {@link #getSegmentHeaders()}
+ * can return the headers without reading any segment bodies, then rewrites
+ * the log to contain only the current segments. When mondrian first uses a
+ * star, it asks the cache for its headers and adds those that belong to the
+ * star to its index; see
+ * {@link mondrian.rolap.agg.SegmentCacheManager#loadCacheForStar}.</p>
+ *
+ * <p>A segment file contains a small header (a magic number, the format
+ * version and the byte order) followed by the body in the layout of
+ * {@link OffHeapSegmentBody}. Files are memory-mapped for reading, and
+ * {@link #get} returns a view over the mapped file, so cell values are read
+ * from the operating system's page cache rather than copied onto the Java
+ * heap.</p>
+ *
+ * <p>If the index file was written by a different version of the format,
+ * the contents of the directory are discarded. Segments whose schema has
+ * changed since they were written (that is, whose header has a different
+ * schema checksum) will never be used; mondrian removes them when it finds
+ * them; see {@link #removeStaleSegments}.</p>
+ *
+ * <p>The total size of the segment files is limited by
+ * {@link MondrianProperties#FileSegmentCacheMaxSize}. When the limit is
+ * reached, the least recently used segments are removed.</p>
+ *
+ * <p>When a region is flushed, {@link #addRestriction} renames the segment
+ * file and logs the new header; the body is not read or rewritten.</p>
+ *
+ * @author agent
+ */
+public class FileSegmentCache implements RestrictableSegmentCache {
+    private static final Logger LOGGER =
+        Logger.getLogger(FileSegmentCache.class);
+
+    private static final int INDEX_MAGIC = 0x4d534958; // "MSIX"
+    private static final int SEGMENT_MAGIC = 0x4d534547; // "MSEG"
+
+    /**
+     * Version of the file format. Increment this if you change the layout of
+     * the index or segment files, or of {@link OffHeapSegmentBody}, or the
+     * encoding of {@link SegmentHeader} by {@link BinarySegmentCodec}.
+     */
+    private static final int VERSION = 3;
+
+    /** Size of the header of a segment file. A multiple of 8, so that the
+     * values that follow it are aligned. */
+    private static final int SEGMENT_HEADER_BYTES = 16;
+
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+
+    private static final String INDEX_FILE_NAME = "segments.idx";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+    private final File indexFile;
+    private final long maxByteSize;
+
+    // Guarded by "this". In access order, least recently used first.
+    private final LinkedHashMap<SegmentHeader, Entry> map =
+        new LinkedHashMap<SegmentHeader, Entry>(16, 0.75f, true);
+    private long byteSize;
+    private DataOutputStream indexOut;
+
+    private final List<SegmentCacheListener> listeners =
+        new CopyOnWriteArrayList<SegmentCacheListener>();
+
+    /**
+     * Creates a FileSegmentCache whose directory and size are given by
+     * {@link MondrianProperties#FileSegmentCacheDirectory} and
+     * {@link MondrianProperties#FileSegmentCacheMaxSize}.
+     *
+     * <p>This is the constructor used when the cache is instantiated via
+     * {@link MondrianProperties#SegmentCache} or service discovery.</p>
+     */
+    public FileSegmentCache() {
+        this(
+            defaultDirectory(),
+            MondrianProperties.instance().FileSegmentCacheMaxSize.get()
+            * 1024L * 1024L);
+    }
+
+    /**
+     * Creates a FileSegmentCache, loading the index of any segments
+     * previously stored in the directory.
+     *
+     * @param directory Directory in which to store segments; created if it
+     *     does not exist
+     * @param maxByteSize Maximum total size of segment files, in bytes
+     */
+    public FileSegmentCache(File directory, long maxByteSize) {
+        assert maxByteSize > 0;
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+        this.maxByteSize = maxByteSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw Util.newError(
+                "Cannot create segment cache directory " + directory);
+        }
+        synchronized (this) {
+            loadIndex();
+            writeIndex();
+        }
+    }
+
+    private static File defaultDirectory() {
+        final String path =
+            MondrianProperties.instance().FileSegmentCacheDirectory.get();
+        if (path != null && path.length() > 0) {
+            return new File(path);
+        }
+        return new File(
+            System.getProperty("java.io.tmpdir"), "mondrian-segment-cache");
+    }
+
+    /**
+     * Reads the index log, and removes segment files that are not in the
+     * index. If the index was written by a different version of the format,
+     * or cannot be read, discards everything.
+     */
+    private void loadIndex() {
+        if (indexFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+                    LOGGER.warn(
+                        "Segment cache index " + indexFile
+                        + " has wrong format or version; discarding cache");
+                } else {
+                    readIndexRecords(in);
+                }
+            } catch (IOException e) {
+                LOGGER.warn(
+                    "Error reading segment cache index " + indexFile
+                    + "; discarding cache",
+                    e);
+                map.clear();
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        // Remove files that are not referenced by the index, and index
+        // entries whose file is missing.
+        final Set<String> fileNames = new HashSet<String>();
+        for (Iterator<Entry> iterator = map.values().iterator();
+             iterator.hasNext();)
+        {
+            final Entry entry = iterator.next();
+            if (entry.file.isFile()) {
+                fileNames.add(entry.file.getName());
+                entry.size = entry.file.length();
+                byteSize += entry.size;
+            } else {
+                iterator.remove();
+            }
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SEGMENT_SUFFIX)
+                    && !fileNames.contains(file.getName()))
+                {
+                    deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    private void readIndexRecords(DataInputStream in) throws IOException {
+        for (;;) {
+            final byte op;
+            final byte[] bytes;
+            try {
+                op = in.readByte();
+                bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+            } catch (EOFException e) {
+                // End of log, or a record that was only partly written
+                // before the JVM stopped.
+                return;
+            }
+            final SegmentHeader header;
+            try {
+                header = BinarySegmentCodec.INSTANCE.decodeHeader(bytes);
+            } catch (RuntimeException e) {
+                throw new IOException(e.toString());
+            }
+            switch (op) {
+            case PUT:
+                map.put(header, new Entry(segmentFile(header)));
+                break;
+            case REMOVE:
+                map.remove(header);
+                break;
+            default:
+                throw new IOException("Unknown index record type " + op);
+            }
+        }
+    }
+
+    /**
+     * Writes a new index log containing the current segments, and opens it
+     * for appending.
+     */
+    private void writeIndex() {
+        closeQuietly(indexOut);
+        indexOut = null;
+        final File tempFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+        try {
+            final DataOutputStream out =
+                new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                for (SegmentHeader header : map.keySet()) {
+                    writeIndexRecord(out, PUT, header);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                // Some platforms cannot rename over an existing file.
+                deleteQuietly(indexFile);
+                if (!tempFile.renameTo(indexFile)) {
+                    throw new IOException(
+                        "Cannot rename " + tempFile + " to " + indexFile);
+                }
+            }
+            indexOut =
+                new DataOutputStream(
+                    new BufferedOutputStream(
+                        new FileOutputStream(indexFile, true)));
+        } catch (IOException e) {
+            throw Util.newError(
+                e, "Error writing segment cache index " + indexFile);
+        }
+    }
+
+    private static void writeIndexRecord(
+        DataOutputStream out,
+        byte op,
+        SegmentHeader header) throws IOException
+    {
+        final byte[] bytes = BinarySegmentCodec.INSTANCE.encodeHeader(header);
+        out.writeByte(op);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Appends a record to the index log. Caller must hold the lock.
+     */
+    private void appendIndexRecord(byte op, SegmentHeader header)
+        throws IOException
+    {
+        if (indexOut == null) {
+            throw new IOException("Segment cache has been torn down");
+        }
+        writeIndexRecord(indexOut, op, header);
+        indexOut.flush();
+    }
+
+    private File segmentFile(SegmentHeader header) {
+        return new File(directory, header.getUniqueID() + SEGMENT_SUFFIX);
+    }
+
+    public SegmentBody get(SegmentHeader header) {
+        final Entry entry;
+        synchronized (this) {
+            entry = map.get(header);
+        }
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return OffHeapSegmentBody.decode(entry.getBuffer());
+        } catch (Exception e) {
+            LOGGER.warn(
+                "Error reading segment file " + entry.file + "; removing it",
+                e);
+            remove(header);
+            return null;
+        }
+    }
+
+    public synchronized boolean contains(SegmentHeader header) {
+        return map.containsKey(header);
+    }
+
+    public synchronized List<SegmentHeader> getSegmentHeaders() {
+        return new ArrayList<SegmentHeader>(map.keySet());
+    }
+
+    public boolean put(final SegmentHeader header, SegmentBody body) {
+        assert header != null;
+        assert body != null;
+        final ByteBuffer buffer = OffHeapSegmentBody.encode(body);
+        final long size = SEGMENT_HEADER_BYTES + buffer.capacity();
+        if (size > maxByteSize) {
+            // Segment would not fit even in an empty cache.
+            return false;
+        }
+        final File file = segmentFile(header);
+        final File tempFile = new File(directory, file.getName() + ".tmp");
+        final List<SegmentHeader> evicted = new ArrayList<SegmentHeader>();
+        synchronized (this) {
+            try {
+                writeSegmentFile(tempFile, buffer);
+                final Entry previous = map.remove(header);
+                if (previous != null) {
+                    byteSize -= previous.size;
+                    deleteQuietly(file);
+                }
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException(
+                        "Cannot rename " + tempFile + " to " + file);
+                }
+                appendIndexRecord(PUT, header);
+            } catch (IOException e) {
+                LOGGER.warn("Error writing segment file " + file, e);
+                deleteQuietly(tempFile);
+                return false;
+            }
+            final Entry entry = new Entry(file);
+            entry.size = size;
+            map.put(header, entry);
+            byteSize += size;
+            final Iterator<Map.Entry<SegmentHeader, Entry>> iterator =
+                map.entrySet().iterator();
+            while (byteSize > maxByteSize) {
+                final Map.Entry<SegmentHeader, Entry> victim =
+                    iterator.next();
+                byteSize -= victim.getValue().size;
+                iterator.remove();
+                deleteQuietly(victim.getValue().file);
+                try {
+                    appendIndexRecord(REMOVE, victim.getKey());
+                } catch (IOException e) {
+                    LOGGER.warn("Error writing segment cache index", e);
+                }
+                evicted.add(victim.getKey());
+            }
+        }
+        for (SegmentHeader evictedHeader : evicted) {
+            fireSegmentCacheEvent(
+                evictedHeader,
+                SegmentCacheListener.SegmentCacheEvent.EventType
+                    .ENTRY_DELETED);
+        }
+        fireSegmentCacheEvent(
+            header,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_CREATED);
+        return true;
+    }
+
+    private static void writeSegmentFile(File file, ByteBuffer buffer)
+        throws IOException
+    {
+        final ByteBuffer header =
+            ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(VERSION);
+        header.put(
+            buffer.order() == ByteOrder.BIG_ENDIAN ? (byte) 0 : (byte) 1);
+        header.clear();
+        final ByteBuffer bytes = buffer.duplicate();
+        bytes.clear();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public boolean remove(final SegmentHeader header) {
+        synchronized (this) {
+            final Entry entry = map.remove(header);
+            if (entry == null) {
+                return false;
+            }
+            byteSize -= entry.size;
+            deleteQuietly(entry.file);
+            try {
+                appendIndexRecord(REMOVE, header);
+            } catch (IOException e) {
+                LOGGER.warn("Error writing segment cache index", e);
+            }
+        }
+        fireSegmentCacheEvent(
+            header,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_DELETED);
+        return true;
+    }
+
+    public boolean addRestriction(
+        SegmentHeader header,
+        SegmentHeader restrictedHeader)
+    {
+        synchronized (this) {
+            final Entry entry = map.get(header);
+            if (entry == null) {
+                return false;
+            }
+            final File file = segmentFile(restrictedHeader);
+            final Entry previous = map.remove(restrictedHeader);
+            if (previous != null) {
+                byteSize -= previous.size;
+                deleteQuietly(previous.file);
+            }
+            try {
+                if (!entry.file.renameTo(file)) {
+                    throw new IOException(
+                        "Cannot rename " + entry.file + " to " + file);
+                }
+                appendIndexRecord(REMOVE, header);
+                appendIndexRecord(PUT, restrictedHeader);
+            } catch (IOException e) {
+                LOGGER.warn("Error restricting segment file " + file, e);
+                map.remove(header);
+                byteSize -= entry.size;
+                deleteQuietly(entry.file);
+                deleteQuietly(file);
+                return true;
+            }
+            map.remove(header);
+            final Entry newEntry = new Entry(file);
+            newEntry.size = entry.size;
+            map.put(restrictedHeader, newEntry);
+        }
+        fireSegmentCacheEvent(
+            header,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_DELETED);
+        fireSegmentCacheEvent(
+            restrictedHeader,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_CREATED);
+        return true;
+    }
+
+    /**
+     * Removes segments that belong to a given schema and fact table but were
+     * created by a different version of the schema.
+     *
+     * <p>Such segments can never be used, because the segment index matches
+     * headers using the schema checksum. Mondrian calls this method when it
+     * first uses a star.</p>
+     *
+     * @param schemaName Schema name
+     * @param schemaChecksum Checksum of the current version of the schema
+     * @param factTableName Name of the star's fact table
+     * @return Number of segments removed
+     */
+    public int removeStaleSegments(
+        String schemaName,
+        ByteString schemaChecksum,
+        String factTableName)
+    {
+        final List<SegmentHeader> staleHeaders = new ArrayList<SegmentHeader>();
+        for (SegmentHeader header : getSegmentHeaders()) {
+            if (header.schemaName.equals(schemaName)
+                && header.rolapStarFactTableName.equals(factTableName)
+                && !header.schemaChecksum.equals(schemaChecksum))
+            {
+                staleHeaders.add(header);
+            }
+        }
+        int count = 0;
+        for (SegmentHeader header : staleHeaders) {
+            if (remove(header)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void tearDown() {
+        closeQuietly(indexOut);
+        indexOut = null;
+        map.clear();
+        byteSize = 0;
+        listeners.clear();
+    }
+
+    public void addListener(SegmentCacheListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SegmentCacheListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean supportsRichIndex() {
+        return true;
+    }
+
+    /**
+     * Returns the directory in which this cache stores segments.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the total size of the segment files currently in this cache, in
+     * bytes.
+     */
+    public synchronized long getByteSize() {
+        return byteSize;
+    }
+
+    private void fireSegmentCacheEvent(
+        final SegmentHeader header,
+        final SegmentCacheListener.SegmentCacheEvent.EventType eventType)
+    {
+        final SegmentCacheListener.SegmentCacheEvent event =
+            new SegmentCacheListener.SegmentCacheEvent() {
+                public boolean isLocal() {
+                    return true;
+                }
+                public SegmentHeader getSource() {
+                    return header;
+                }
+                public EventType getEventType() {
+                    return eventType;
+                }
+            };
+        for (SegmentCacheListener listener : listeners) {
+            listener.handle(event);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Segment file, and the memory-mapped view of it, if it has been read.
+     */
+    private static class Entry {
+        final File file;
+        long size;
+        private ByteBuffer buffer;
+
+        Entry(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Returns the body section of the segment file, memory-mapped and
+         * with the byte order it was written with. Maps the file on first
+         * call.
+         */
+        synchronized ByteBuffer getBuffer() throws IOException {
+            if (buffer == null) {
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                final ByteBuffer mapped;
+                try {
+                    mapped = raf.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                } finally {
+                    // The mapping remains valid after the file is closed.
+                    raf.close();
+                }
+                if (mapped.capacity() < SEGMENT_HEADER_BYTES
+                    || mapped.getInt(0) != SEGMENT_MAGIC
+                    || mapped.getInt(4) != VERSION)
+                {
+                    throw new IOException(
+                        "Segment file " + file
+                        + " has wrong format or version");
+                }
+                final ByteOrder order =
+                    mapped.get(8) == 0
+                        ? ByteOrder.BIG_ENDIAN
+                        : ByteOrder.LITTLE_ENDIAN;
+                mapped.position(SEGMENT_HEADER_BYTES);
+                buffer = mapped.slice().order(order);
+            }
+            return buffer;
+        }
+    }
+}
+
+// End FileSegmentCache.java
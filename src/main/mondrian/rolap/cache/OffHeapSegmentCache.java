@@ -0,0 +1,231 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.cache;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.rolap.agg.OffHeapSegmentBody;
+import mondrian.spi.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Implementation of {@link mondrian.spi.SegmentCache} that stores segments
+ * outside the Java heap, in direct byte buffers.
+ *
+ * <p>Large segments held on the heap as arrays make garbage collection slow.
+ * This cache stores each segment's values, null indicators and axis values
+ * in a compact binary layout in a direct {@link ByteBuffer}, and
+ * {@link #get} returns a view over the buffer (see
+ * {@link OffHeapSegmentBody}) rather than a copy. Only the segment headers
+ * and small bookkeeping objects are on the heap.</p>
+ *
+ * <p>To use it, set {@link MondrianProperties#SegmentCache} to
+ * {@code mondrian.rolap.cache.OffHeapSegmentCache}. You will usually also
+ * want to set {@link MondrianProperties#DisableLocalSegmentCache}, so that
+ * segments are not also held on the heap by the local cache.</p>
+ *
+ * <p>The total size of the buffers is limited by
+ * {@link MondrianProperties#OffHeapSegmentCacheMaxSize}. When the limit is
+ * reached, the least recently used segments are removed, and listeners
+ * receive
+ * {@link SegmentCacheListener.SegmentCacheEvent.EventType#ENTRY_DELETED}
+ * events. The memory of a removed segment is released when the garbage
+ * collector collects its buffer.</p>
+ *
+ * <p>When a region is flushed, {@link #addRestriction} associates the
+ * existing buffer with the restricted header, without decoding it.</p>
+ *
+ * @author agent
+ */
+public class OffHeapSegmentCache implements RestrictableSegmentCache {
+    private final long maxByteSize;
+
+    // Guarded by "this". In access order, least recently used first.
+    private final LinkedHashMap<SegmentHeader, ByteBuffer> map =
+        new LinkedHashMap<SegmentHeader, ByteBuffer>(16, 0.75f, true);
+    private long byteSize;
+
+    private final List<SegmentCacheListener> listeners =
+        new CopyOnWriteArrayList<SegmentCacheListener>();
+
+    /**
+     * Creates an OffHeapSegmentCache whose size is limited by
+     * {@link MondrianProperties#OffHeapSegmentCacheMaxSize}.
+     *
+     * <p>This is the constructor used when the cache is instantiated via
+     * {@link MondrianProperties#SegmentCache} or service discovery.</p>
+     */
+    public OffHeapSegmentCache() {
+        this(
+            MondrianProperties.instance().OffHeapSegmentCacheMaxSize.get()
+            * 1024L * 1024L);
+    }
+
+    /**
+     * Creates an OffHeapSegmentCache with a given size limit.
+     *
+     * @param maxByteSize Maximum total size of buffers, in bytes
+     */
+    public OffHeapSegmentCache(long maxByteSize) {
+        assert maxByteSize > 0;
+        this.maxByteSize = maxByteSize;
+    }
+
+    public SegmentBody get(SegmentHeader header) {
+        final ByteBuffer buffer;
+        synchronized (this) {
+            buffer = map.get(header);
+        }
+        if (buffer == null) {
+            return null;
+        }
+        return OffHeapSegmentBody.decode(buffer);
+    }
+
+    public synchronized boolean contains(SegmentHeader header) {
+        return map.containsKey(header);
+    }
+
+    public synchronized List<SegmentHeader> getSegmentHeaders() {
+        return new ArrayList<SegmentHeader>(map.keySet());
+    }
+
+    public boolean put(final SegmentHeader header, SegmentBody body) {
+        assert header != null;
+        assert body != null;
+        final ByteBuffer buffer = OffHeapSegmentBody.encode(body);
+        if (buffer.capacity() > maxByteSize) {
+            // Segment would not fit even in an empty cache.
+            return true;
+        }
+        final List<SegmentHeader> evicted = new ArrayList<SegmentHeader>();
+        synchronized (this) {
+            final ByteBuffer previous = map.put(header, buffer);
+            if (previous != null) {
+                byteSize -= previous.capacity();
+            }
+            byteSize += buffer.capacity();
+            final Iterator<Map.Entry<SegmentHeader, ByteBuffer>> iterator =
+                map.entrySet().iterator();
+            while (byteSize > maxByteSize) {
+                final Map.Entry<SegmentHeader, ByteBuffer> entry =
+                    iterator.next();
+                byteSize -= entry.getValue().capacity();
+                evicted.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+        for (SegmentHeader evictedHeader : evicted) {
+            fireSegmentCacheEvent(
+                evictedHeader,
+                SegmentCacheListener.SegmentCacheEvent.EventType
+                    .ENTRY_DELETED);
+        }
+        fireSegmentCacheEvent(
+            header,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_CREATED);
+        return true;
+    }
+
+    public boolean remove(final SegmentHeader header) {
+        synchronized (this) {
+            final ByteBuffer buffer = map.remove(header);
+            if (buffer == null) {
+                return false;
+            }
+            byteSize -= buffer.capacity();
+        }
+        fireSegmentCacheEvent(
+            header,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_DELETED);
+        return true;
+    }
+
+    public boolean addRestriction(
+        SegmentHeader header,
+        SegmentHeader restrictedHeader)
+    {
+        synchronized (this) {
+            final ByteBuffer buffer = map.remove(header);
+            if (buffer == null) {
+                return false;
+            }
+            final ByteBuffer previous = map.put(restrictedHeader, buffer);
+            if (previous != null) {
+                byteSize -= previous.capacity();
+            }
+        }
+        fireSegmentCacheEvent(
+            header,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_DELETED);
+        fireSegmentCacheEvent(
+            restrictedHeader,
+            SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_CREATED);
+        return true;
+    }
+
+    public synchronized void tearDown() {
+        map.clear();
+        byteSize = 0;
+        listeners.clear();
+    }
+
+    public void addListener(SegmentCacheListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SegmentCacheListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean supportsRichIndex() {
+        return true;
+    }
+
+    /**
+     * Returns the maximum total size of the buffers in this cache, in bytes.
+     */
+    public long getMaxByteSize() {
+        return maxByteSize;
+    }
+
+    /**
+     * Returns the total size of the buffers currently in this cache, in
+     * bytes.
+     */
+    public synchronized long getByteSize() {
+        return byteSize;
+    }
+
+    private void fireSegmentCacheEvent(
+        final SegmentHeader header,
+        final SegmentCacheListener.SegmentCacheEvent.EventType eventType)
+    {
+        final SegmentCacheListener.SegmentCacheEvent event =
+            new SegmentCacheListener.SegmentCacheEvent() {
+                public boolean isLocal() {
+                    return true;
+                }
+                public SegmentHeader getSource() {
+                    return header;
+                }
+                public EventType getEventType() {
+                    return eventType;
+                }
+            };
+        for (SegmentCacheListener listener : listeners) {
+            listener.handle(event);
+        }
+    }
+}
+
+// End OffHeapSegmentCache.java
@@ -274,17 +274,11 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         if (!header.compoundPredicates.equals(compoundPredicates)) {
             return false;
         }
+        // Check if the segment explicitly excludes this cell.
+        if (header.isExcluded(coords)) {
+            return false;
+        }
         for (Map.Entry<String, Comparable> entry : coords.entrySet()) {
-            // Check if the segment explicitly excludes this coordinate.
-            final SegmentColumn excludedColumn =
-                header.getExcludedRegion(entry.getKey());
-            if (excludedColumn != null) {
-                final SortedSet<Comparable> values =
-                    excludedColumn.getValues();
-                if (values == null || values.contains(entry.getValue())) {
-                    return false;
-                }
-            }
             // Check if the dimensionality of the segment intersects
             // with the coordinate.
             final SegmentColumn constrainedColumn =
@@ -353,6 +347,9 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         if (region.length == 0) {
             return true;
         }
+        // The region is the cartesian product of its columns' values, so
+        // intersects the segment only if it intersects every axis.
+        regionLoop:
         for (SegmentColumn regionColumn : region) {
             final SegmentColumn headerColumn =
                 header.getConstrainedColumn(regionColumn.getColumnExpression());
@@ -360,7 +357,7 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
                 // If the segment header doesn't contain a column specified
                 // by the region, then it always implicitly intersects.
                 // This allows flush operations to be valid.
-                return true;
+                continue;
             }
             final SortedSet<Comparable> regionValues =
                 regionColumn.getValues();
@@ -368,15 +365,16 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
                 headerColumn.getValues();
             if (headerValues == null || regionValues == null) {
                 // This is a wildcard, so it always intersects.
-                return true;
+                continue;
             }
             for (Comparable myValue : regionValues) {
                 if (headerValues.contains(myValue)) {
-                    return true;
+                    continue regionLoop;
                 }
             }
+            return false;
         }
-        return false;
+        return true;
     }
 
     public void printCacheState(PrintWriter pw) {
@@ -707,7 +705,7 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
             // Skip headers that have exclusions.
             //
             // TODO: This is a bit harsh.
-            if (!header.getExcludedRegions().isEmpty()) {
+            if (!header.getExcludedCellRegions().isEmpty()) {
                 continue;
             }
 
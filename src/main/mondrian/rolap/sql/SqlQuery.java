@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2002-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 //
 // jhyde, Mar 21, 2002
@@ -18,6 +18,11 @@ import mondrian.spi.Dialect;
 import mondrian.spi.DialectManager;
 import mondrian.util.Pair;
 
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
 import java.util.*;
 import javax.sql.DataSource;
 
@@ -73,6 +78,23 @@ public class SqlQuery {
     /** Controls the formatting of the sql string. */
     private final boolean generateFormattedSql;
 
+    /** Whether to generate key values as bind variables. */
+    private final boolean bindVariables;
+
+    /**
+     * Marks the start of a bind variable in generated SQL. It is followed by
+     * a character that identifies the datatype, the value, {@link #BIND_SEP},
+     * the value as a literal, and {@link #BIND_END}. See
+     * {@link #extractBindVariables} and {@link #inlineBindVariables}.
+     */
+    private static final char BIND_START = '\u0001';
+
+    /** Separates the value of a bind variable from its literal. */
+    private static final char BIND_SEP = '\u0002';
+
+    /** Marks the end of a bind variable in generated SQL. */
+    private static final char BIND_END = '\u0003';
+
     private boolean distinct;
 
     private final ClauseList select;
@@ -145,6 +167,9 @@ public class SqlQuery {
         this.buf = new StringBuilder(128);
         this.groupingSets = new ArrayList<ClauseList>();
         this.dialect = dialect;
+        this.bindVariables =
+            MondrianProperties.instance().GenerateBindVariables.get()
+            && dialect.allowsBindVariables();
 
         // REVIEW emcdermid 10-Jul-2009: It might be okay to allow
         // hints in all cases, but for initial implementation this
@@ -699,6 +724,117 @@ public class SqlQuery {
         return dialect;
     }
 
+    /**
+     * Appends a value to a buffer, in the format required by this query's
+     * dialect.
+     *
+     * <p>Usually the value is a literal, as generated by
+     * {@link Dialect#quote(StringBuilder, Object, Dialect.Datatype)}. But if
+     * this query generates bind variables (see
+     * {@link MondrianProperties#GenerateBindVariables}), the value is
+     * instead encoded so that {@link SqlStatement} can later replace it with
+     * "?" and bind it using {@link #extractBindVariables}.</p>
+     *
+     * @param buf Buffer
+     * @param value Value
+     * @param datatype Datatype of value
+     */
+    public void quote(
+        StringBuilder buf,
+        Object value,
+        Dialect.Datatype datatype)
+    {
+        final int start = buf.length();
+
+        // Generate the literal even if we are going to bind; it validates
+        // the value.
+        dialect.quote(buf, value, datatype);
+        if (!bindVariables || value == null) {
+            return;
+        }
+        final String valueString = value.toString();
+        for (int i = 0; i < valueString.length(); i++) {
+            if (valueString.charAt(i) <= BIND_END) {
+                // Cannot encode. Keep the literal.
+                return;
+            }
+        }
+        if (BindVariable.convert(datatype, valueString) == null) {
+            return;
+        }
+        final String literal = buf.substring(start);
+        buf.setLength(start);
+        buf.append(BIND_START)
+            .append((char) ('0' + datatype.ordinal()))
+            .append(valueString)
+            .append(BIND_SEP)
+            .append(literal)
+            .append(BIND_END);
+    }
+
+    /**
+     * Replaces the bind variables in a SQL string generated by
+     * {@link #quote(StringBuilder, Object, Dialect.Datatype)} with "?", and
+     * adds them, in order of occurrence, to a list.
+     *
+     * @param sql SQL string, possibly containing bind variables
+     * @param bindVariables List to which to add bind variables
+     * @return SQL string with bind variables replaced by "?"; the original
+     *   string if it contains none
+     */
+    public static String extractBindVariables(
+        String sql,
+        List<BindVariable> bindVariables)
+    {
+        int start = sql.indexOf(BIND_START);
+        if (start < 0) {
+            return sql;
+        }
+        final Dialect.Datatype[] datatypes = Dialect.Datatype.values();
+        final StringBuilder buf = new StringBuilder(sql.length());
+        int prev = 0;
+        while (start >= 0) {
+            final int sep = sql.indexOf(BIND_SEP, start);
+            final int end = sql.indexOf(BIND_END, sep);
+            buf.append(sql, prev, start).append('?');
+            bindVariables.add(
+                new BindVariable(
+                    datatypes[sql.charAt(start + 1) - '0'],
+                    sql.substring(start + 2, sep)));
+            prev = end + 1;
+            start = sql.indexOf(BIND_START, prev);
+        }
+        buf.append(sql, prev, sql.length());
+        return buf.toString();
+    }
+
+    /**
+     * Replaces the bind variables in a SQL string generated by
+     * {@link #quote(StringBuilder, Object, Dialect.Datatype)} with the
+     * literals that would have been generated had bind variables been
+     * disabled. Use this for SQL that is to be given to an application.
+     *
+     * @param sql SQL string, possibly containing bind variables
+     * @return SQL string containing only literals
+     */
+    public static String inlineBindVariables(String sql) {
+        int start = sql.indexOf(BIND_START);
+        if (start < 0) {
+            return sql;
+        }
+        final StringBuilder buf = new StringBuilder(sql.length());
+        int prev = 0;
+        while (start >= 0) {
+            final int sep = sql.indexOf(BIND_SEP, start);
+            final int end = sql.indexOf(BIND_END, sep);
+            buf.append(sql, prev, start).append(sql, sep + 1, end);
+            prev = end + 1;
+            start = sql.indexOf(BIND_START, prev);
+        }
+        buf.append(sql, prev, sql.length());
+        return buf.toString();
+    }
+
     public static SqlQuery newQuery(DataSource dataSource, String err) {
         final Dialect dialect =
             DialectManager.createDialect(dataSource, null);
@@ -1013,6 +1149,69 @@ public class SqlQuery {
         }
     }
 
+    /**
+     * Value of a bind variable in a SQL statement.
+     */
+    public static class BindVariable {
+        public final Dialect.Datatype datatype;
+        public final String value;
+
+        BindVariable(Dialect.Datatype datatype, String value) {
+            this.datatype = datatype;
+            this.value = value;
+        }
+
+        /**
+         * Sets this value as a parameter of a prepared statement.
+         *
+         * @param statement Prepared statement
+         * @param ordinal Ordinal of parameter (1-based)
+         * @throws SQLException on error
+         */
+        public void bind(PreparedStatement statement, int ordinal)
+            throws SQLException
+        {
+            statement.setObject(ordinal, convert(datatype, value));
+        }
+
+        /**
+         * Converts the string form of a value to the Java type that JDBC
+         * expects for the given datatype; returns null if it cannot.
+         */
+        static Object convert(Dialect.Datatype datatype, String value) {
+            try {
+                switch (datatype) {
+                case String:
+                    return value;
+                case Numeric:
+                    return new BigDecimal(value);
+                case Integer:
+                    try {
+                        return Long.valueOf(value);
+                    } catch (NumberFormatException e) {
+                        return new BigDecimal(value);
+                    }
+                case Boolean:
+                    return Boolean.valueOf(value);
+                case Date:
+                    return java.sql.Date.valueOf(value);
+                case Time:
+                    return Time.valueOf(value);
+                case Timestamp:
+                    return Timestamp.valueOf(value);
+                default:
+                    return null;
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        public String toString() {
+            return value;
+        }
+    }
+
     private static class RelInfo {
         final MondrianDef.Relation relation;
         final String leftKey;
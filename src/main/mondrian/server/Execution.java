@@ -68,6 +68,12 @@ public class Execution {
      */
     private String outOfMemoryMsg;
 
+    /**
+     * Whether this execution loads data into the cache in advance of, rather
+     * than on behalf of, a query. See {@link #setCacheWarming(boolean)}.
+     */
+    private volatile boolean cacheWarming;
+
     private long startTimeMillis;
     private long timeoutTimeMillis;
     private long timeoutIntervalMillis;
@@ -388,7 +394,7 @@ public class Execution {
         final SegmentCacheManager mgr =
             locus.getServer()
                 .getAggregationManager().cacheMgr;
-        mgr.execute(
+        mgr.executeAll(
             new SegmentCacheManager.Command<Void>() {
                 public Void call() throws Exception {
                     mgr.getIndexRegistry()
@@ -405,6 +411,27 @@ public class Execution {
         return startTimeMillis;
     }
 
+    /**
+     * Marks this execution as warming the cache. SQL statements executed on
+     * behalf of a cache-warming execution have lower priority than those of
+     * interactive queries when they wait for a data source; see
+     * {@link mondrian.rolap.SqlQueue}.
+     *
+     * @param cacheWarming Whether this execution warms the cache
+     */
+    public void setCacheWarming(boolean cacheWarming) {
+        this.cacheWarming = cacheWarming;
+    }
+
+    /**
+     * Returns whether this execution warms the cache.
+     *
+     * @return Whether this execution warms the cache
+     */
+    public boolean isCacheWarming() {
+        return cacheWarming;
+    }
+
     public final mondrian.server.Statement getMondrianStatement() {
         return statement;
     }
@@ -11,7 +11,11 @@ package mondrian.server;
 
 import mondrian.olap.MondrianProperties;
 import mondrian.olap.Util;
+import mondrian.rolap.RolapStar;
 import mondrian.rolap.RolapUtil;
+import mondrian.rolap.SqlQueue;
+import mondrian.rolap.SqlStatement;
+import mondrian.rolap.aggmatcher.AggRecommender;
 import mondrian.server.monitor.*;
 import mondrian.util.Pair;
 
@@ -55,6 +59,8 @@ import java.util.concurrent.BlockingQueue;
  *                 </ul>
  *             </ul>
  *         </ul>
+ *         <li>{@link MutableSegmentLoadInfo}
+ *             &rarr; {@link SegmentLoadInfo}</li>
  *     </ul>
  * </ul>
  */
@@ -131,6 +137,11 @@ class MonitorImpl
         return (List<SqlStatementInfo>) execute(new SqlStatementsCommand());
     }
 
+    public List<SegmentLoadInfo> getSegmentLoads() {
+        //noinspection unchecked
+        return (List<SegmentLoadInfo>) execute(new SegmentLoadsCommand());
+    }
+
     private Object execute(Command command) {
         return ACTOR.execute(handler, command);
     }
@@ -156,6 +167,12 @@ class MonitorImpl
         }
     }
 
+    static class SegmentLoadsCommand extends Command {
+        public <T> T accept(Visitor<T> visitor) {
+            return ((CommandVisitor<T>) visitor).visit(this);
+        }
+    }
+
     static class ConnectionsCommand extends Command {
         public <T> T accept(Visitor<T> visitor) {
             return ((CommandVisitor<T>) visitor).visit(this);
@@ -184,6 +201,7 @@ class MonitorImpl
         T visit(ServerCommand serverCommand);
         T visit(SqlStatementsCommand command);
         T visit(StatementsCommand command);
+        T visit(SegmentLoadsCommand command);
         T visit(ShutdownCommand command);
     }
 
@@ -199,6 +217,10 @@ class MonitorImpl
             new MutableStatementInfo(null, -1, null);
         private final MutableConnectionInfo aggConn =
             new MutableConnectionInfo(null);
+        private final Map<Pair<String, SqlQueue.Priority>, MutableSqlQueueInfo>
+            sqlQueueMap =
+            new LinkedHashMap<
+                Pair<String, SqlQueue.Priority>, MutableSqlQueueInfo>();
         private final String stack;
 
         public MutableServerInfo(String stack) {
@@ -207,6 +229,10 @@ class MonitorImpl
 
         public ServerInfo fix() {
             Util.MemoryInfo.Usage memoryUsage = MEMORY_INFO.get();
+            final List<SqlQueueInfo> sqlQueues = new ArrayList<SqlQueueInfo>();
+            for (MutableSqlQueueInfo sqlQueue : sqlQueueMap.values()) {
+                sqlQueues.add(sqlQueue.fix());
+            }
             return new ServerInfo(
                 stack,
                 aggConn.startCount,
@@ -219,6 +245,9 @@ class MonitorImpl
                 aggSql.rowFetchCount,
                 aggSql.executeNanos,
                 aggSql.cellRequestCount,
+                aggSql.queueWaitNanos,
+                aggSql.fetchNanos,
+                aggSql.maxBufferedByteCount,
                 aggExec.cellCacheHitCount,
                 aggExec.cellCacheRequestCount,
                 aggExec.cellCacheMissCount,
@@ -235,8 +264,10 @@ class MonitorImpl
                 aggExec.cellCacheSegmentDeleteViaExternalCount,
                 aggExec.cellCacheSegmentCreateViaRollupCount,
                 aggExec.cellCacheSegmentCreateViaSqlCount,
+                aggExec.cellCacheSegmentAppendCount,
                 aggExec.cellCacheSegmentCellCount,
-                aggExec.cellCacheSegmentCoordinateSum);
+                aggExec.cellCacheSegmentCoordinateSum,
+                Collections.unmodifiableList(sqlQueues));
         }
     }
 
@@ -349,6 +380,7 @@ class MonitorImpl
         private int cellCacheSegmentCreateViaExternalCount;
         private int cellCacheSegmentDeleteViaExternalCount;
         private int cellCacheSegmentDeleteCount;
+        private int cellCacheSegmentAppendCount;
         private int cellCacheSegmentCoordinateSum;
         private int cellCacheSegmentCellCount;
         private final String stack;
@@ -394,7 +426,10 @@ class MonitorImpl
         private int endCount;
         private int cellRequestCount;
         private long executeNanos;
+        private long queueWaitNanos;
         private long rowFetchCount;
+        private long fetchNanos;
+        private long maxBufferedByteCount;
         private final String stack;
         private final String sql;
 
@@ -418,6 +453,70 @@ class MonitorImpl
         }
     }
 
+    /**
+     * Workspace to collect statistics about the SQL statements of a given
+     * priority that have executed via a data source's queue. Parent context
+     * is the server.
+     */
+    private static class MutableSqlQueueInfo {
+        private final String queue;
+        private final SqlQueue.Priority priority;
+        private int executeCount;
+        private long waitNanos;
+        private long maxWaitNanos;
+
+        public MutableSqlQueueInfo(String queue, SqlQueue.Priority priority) {
+            this.queue = queue;
+            this.priority = priority;
+        }
+
+        public SqlQueueInfo fix() {
+            return new SqlQueueInfo(
+                null,
+                queue,
+                priority,
+                executeCount,
+                waitNanos,
+                maxWaitNanos);
+        }
+    }
+
+    /**
+     * Workspace to collect statistics about the segments loaded for a
+     * particular set of constrained columns. Parent context is the server.
+     */
+    private static class MutableSegmentLoadInfo {
+        private final String schemaName;
+        private final String cubeName;
+        private final String factTable;
+        private final List<String> columns;
+        private int loadCount;
+        private long rowCount;
+
+        public MutableSegmentLoadInfo(
+            String schemaName,
+            String cubeName,
+            String factTable,
+            List<String> columns)
+        {
+            this.schemaName = schemaName;
+            this.cubeName = cubeName;
+            this.factTable = factTable;
+            this.columns = columns;
+        }
+
+        public SegmentLoadInfo fix() {
+            return new SegmentLoadInfo(
+                null,
+                schemaName,
+                cubeName,
+                factTable,
+                columns,
+                loadCount,
+                rowCount);
+        }
+    }
+
     private static class Handler implements CommandVisitor<Object> {
 
         private final MutableServerInfo server =
@@ -562,6 +661,23 @@ class MonitorImpl
                 }
         };
 
+        private final Map<List<String>, MutableSegmentLoadInfo>
+            segmentLoadMap =
+            new LinkedHashMap<List<String>, MutableSegmentLoadInfo>(
+                MondrianProperties.instance().ExecutionHistorySize.get(),
+                0.8f,
+                true)
+            {
+                private final int maxSize =
+                    MondrianProperties.instance().ExecutionHistorySize.get();
+                private static final long serialVersionUID = 1L;
+                protected boolean removeEldestEntry(
+                    Map.Entry<List<String>, MutableSegmentLoadInfo> e)
+                {
+                    return size() > maxSize;
+                }
+            };
+
         /**
          * Method for debugging that does nothing, but is a place to put a break
          * point to find out places where an event or its parent should be
@@ -841,6 +957,28 @@ class MonitorImpl
             }
         }
 
+        public Object visit(CellCacheSegmentAppendEvent event) {
+            final MutableExecutionInfo exec =
+                executionMap.get(event.executionId);
+            if (exec == null) {
+                return missing(event);
+            }
+
+            foo(exec, event);
+            foo(exec.stmt.aggExec, event);
+            foo(exec.stmt.conn.aggExec, event);
+            foo(server.aggExec, event);
+            return null;
+        }
+
+        private void foo(
+            MutableExecutionInfo exec,
+            CellCacheSegmentAppendEvent event)
+        {
+            ++exec.cellCacheSegmentAppendCount;
+            exec.cellCacheSegmentCellCount += event.appendedCellCount;
+        }
+
         public Object visit(SqlStatementStartEvent event) {
             final MutableStatementInfo stmt =
                 statementMap.get(
@@ -878,6 +1016,21 @@ class MonitorImpl
         }
 
         public Object visit(SqlStatementExecuteEvent event) {
+            // Queue statistics belong to the server, so record them even if
+            // the statement is not known.
+            final Pair<String, SqlQueue.Priority> key =
+                Pair.of(event.queue, event.priority);
+            MutableSqlQueueInfo sqlQueue = server.sqlQueueMap.get(key);
+            if (sqlQueue == null) {
+                sqlQueue =
+                    new MutableSqlQueueInfo(event.queue, event.priority);
+                server.sqlQueueMap.put(key, sqlQueue);
+            }
+            ++sqlQueue.executeCount;
+            sqlQueue.waitNanos += event.queueWaitNanos;
+            sqlQueue.maxWaitNanos =
+                Math.max(sqlQueue.maxWaitNanos, event.queueWaitNanos);
+
             final MutableSqlStatementInfo sql =
                 sqlStatementMap.get(event.sqlStatementId);
             if (sql == null) {
@@ -895,6 +1048,7 @@ class MonitorImpl
         {
             ++sql.executeCount;
             sql.executeNanos += event.executeNanos;
+            sql.queueWaitNanos += event.queueWaitNanos;
         }
 
         public Object visit(SqlStatementEndEvent event) {
@@ -907,18 +1061,65 @@ class MonitorImpl
             foo(sql.stmt.aggSql, event);
             foo(server.aggSql, event);
 
+            if (event.purpose == SqlStatementEvent.Purpose.CELL_SEGMENT
+                && event.locus instanceof SqlStatement.StatementLocus)
+            {
+                foo((SqlStatement.StatementLocus) event.locus, event);
+            }
+
             // Since the SQL statement info will no longer be in the table,
             // broadcast the final info to anyone who is interested.
             RolapUtil.MONITOR_LOGGER.debug(sql.fix());
             return null;
         }
 
+        private void foo(
+            SqlStatement.StatementLocus locus,
+            SqlStatementEndEvent event)
+        {
+            final RolapStar star = locus.getStar();
+            if (star == null) {
+                return;
+            }
+            final String schemaName = star.getSchema().getName();
+            final String cubeName =
+                AggRecommender.getCubeName(star, locus.getMeasureBitKey());
+            final String factTable = star.getFactTable().getAlias();
+            final List<String> columns =
+                AggRecommender.getColumnNames(star, locus.getLevelBitKey());
+            final List<String> key =
+                Arrays.asList(
+                    schemaName, cubeName, factTable, columns.toString());
+            MutableSegmentLoadInfo load = segmentLoadMap.get(key);
+            if (load == null) {
+                load =
+                    new MutableSegmentLoadInfo(
+                        schemaName, cubeName, factTable, columns);
+                segmentLoadMap.put(key, load);
+            }
+            ++load.loadCount;
+            load.rowCount += event.rowFetchCount;
+
+            // Write the load to the workload log, from which the
+            // recommender can later read it.
+            if (RolapUtil.WORKLOAD_LOGGER.isDebugEnabled()) {
+                RolapUtil.WORKLOAD_LOGGER.debug(
+                    AggRecommender.format(
+                        new SegmentLoadInfo(
+                            null, schemaName, cubeName, factTable, columns,
+                            1, event.rowFetchCount)));
+            }
+        }
+
         private void foo(
             MutableSqlStatementInfo sql,
             SqlStatementEndEvent event)
         {
             ++sql.endCount;
             sql.rowFetchCount += event.rowFetchCount;
+            sql.fetchNanos += event.fetchNanos;
+            sql.maxBufferedByteCount =
+                Math.max(sql.maxBufferedByteCount, event.bufferedByteCount);
         }
 
         public Object visit(ConnectionsCommand connectionsCommand) {
@@ -952,6 +1153,15 @@ class MonitorImpl
             return list;
         }
 
+        public Object visit(SegmentLoadsCommand command) {
+            List<SegmentLoadInfo> list =
+                new ArrayList<SegmentLoadInfo>();
+            for (MutableSegmentLoadInfo info : segmentLoadMap.values()) {
+                list.add(info.fix());
+            }
+            return list;
+        }
+
         public Object visit(ShutdownCommand command) {
             return "Shutdown succeeded";
         }
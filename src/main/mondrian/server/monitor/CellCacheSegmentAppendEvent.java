@@ -0,0 +1,61 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.server.monitor;
+
+/**
+ * Addition of newly loaded cells to a segment that is already in the cell
+ * cache.
+ *
+ * <p>Occurs when {@link mondrian.olap.CacheControl#append} loads the cells
+ * of a region, such as a new day in an append-only fact table, and merges
+ * them into an existing segment rather than discarding the segment.</p>
+ */
+public class CellCacheSegmentAppendEvent extends CellCacheEvent {
+
+    public final int coordinateCount;
+    public final int appendedCellCount;
+
+    /**
+     * Creates a CellCacheSegmentAppendEvent.
+     *
+     * @param timestamp Timestamp
+     * @param serverId ID of the server from which the event originates.
+     * @param connectionId ID of the connection from which the event
+     * originates.
+     * @param statementId ID of the statement from which the event originates.
+     * @param executionId ID of the execution from which the event originates.
+     * @param coordinateCount Number of coordinates of segment header
+     * @param appendedCellCount Number of cells loaded from SQL and merged
+     *     into the segment
+     * @param source Source of the new cells
+     */
+    public CellCacheSegmentAppendEvent(
+        long timestamp,
+        int serverId,
+        int connectionId,
+        long statementId,
+        long executionId,
+        int coordinateCount,
+        int appendedCellCount,
+        Source source)
+    {
+        super(
+            timestamp, serverId, connectionId,
+            statementId, executionId, source);
+        this.coordinateCount = coordinateCount;
+        this.appendedCellCount = appendedCellCount;
+    }
+
+    public <T> T accept(Visitor<T> visitor) {
+        return visitor.visit(this);
+    }
+}
+
+// End CellCacheSegmentAppendEvent.java
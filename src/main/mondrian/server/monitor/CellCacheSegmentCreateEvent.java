@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2012 Pentaho
+// Copyright (C) 2011-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.server.monitor;
@@ -17,6 +17,19 @@ public class CellCacheSegmentCreateEvent extends CellCacheEvent {
     public final int coordinateCount;
     public final int actualCellCount;
 
+    /**
+     * How the cells of the segment are stored, or null if not known (for
+     * example, if the segment was created in an external cache).
+     */
+    public final Storage storage;
+
+    /**
+     * Estimated number of bytes saved by storing the segment as
+     * {@link #storage} rather than as a dense array of values. Zero if the
+     * segment is dense, or its storage is not known.
+     */
+    public final long bytesSaved;
+
     /**
      * Creates a CellCacheSegmentCreateEvent.
      *
@@ -29,6 +42,8 @@ public class CellCacheSegmentCreateEvent extends CellCacheEvent {
      * @param coordinateCount Number of coordinates of segment header
      * @param actualCellCount Number of cells in body (or 0 if body not yet
      *     present)
+     * @param storage How the cells are stored, or null if not known
+     * @param bytesSaved Estimated bytes saved compared to dense storage
      * @param source Source of segment
      */
     public CellCacheSegmentCreateEvent(
@@ -39,6 +54,8 @@ public class CellCacheSegmentCreateEvent extends CellCacheEvent {
         long executionId,
         int coordinateCount,
         int actualCellCount,
+        Storage storage,
+        long bytesSaved,
         Source source)
     {
         super(
@@ -46,11 +63,56 @@ public class CellCacheSegmentCreateEvent extends CellCacheEvent {
             statementId, executionId, source);
         this.coordinateCount = coordinateCount;
         this.actualCellCount = actualCellCount;
+        this.storage = storage;
+        this.bytesSaved = bytesSaved;
+    }
+
+    /**
+     * Creates a CellCacheSegmentCreateEvent whose storage is not known.
+     *
+     * @param timestamp Timestamp
+     * @param serverId ID of the server from which the event originates.
+     * @param connectionId ID of the connection from which the event
+     * originates.
+     * @param statementId ID of the statement from which the event originates.
+     * @param executionId ID of the execution from which the event originates.
+     * @param coordinateCount Number of coordinates of segment header
+     * @param actualCellCount Number of cells in body (or 0 if body not yet
+     *     present)
+     * @param source Source of segment
+     */
+    public CellCacheSegmentCreateEvent(
+        long timestamp,
+        int serverId,
+        int connectionId,
+        long statementId,
+        long executionId,
+        int coordinateCount,
+        int actualCellCount,
+        Source source)
+    {
+        this(
+            timestamp, serverId, connectionId, statementId, executionId,
+            coordinateCount, actualCellCount, null, 0L, source);
     }
 
     public <T> T accept(Visitor<T> visitor) {
         return visitor.visit(this);
     }
+
+    /**
+     * Representation of the cells of a segment.
+     */
+    public enum Storage {
+        /** Array with one entry for every possible cell. */
+        DENSE,
+
+        /** Offsets and values of the cells that are present. */
+        SPARSE,
+
+        /** Array of codes into a dictionary of distinct values. */
+        COMPRESSED
+    }
 }
 
 // End CellCacheSegmentCreateEvent.java
@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2011 Pentaho
+// Copyright (C) 2011-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.server.monitor;
@@ -31,6 +31,14 @@ public interface Monitor {
 
     List<SqlStatementInfo> getSqlStatements();
 
+    /**
+     * Returns the segment loads recorded recently, one for each distinct set
+     * of constrained columns.
+     *
+     * @return List of segment loads
+     */
+    List<SegmentLoadInfo> getSegmentLoads();
+
     /**
      * Sends an event to the monitor.
      *
@@ -0,0 +1,70 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.server.monitor;
+
+import java.util.List;
+
+/**
+ * Information about the segments that have been loaded from the database
+ * for a particular set of constrained columns.
+ *
+ * <p>The monitor accumulates one of these for each distinct combination of
+ * schema, cube, fact table and columns among the SQL statements executed
+ * to load cell segments. The aggregate table recommender
+ * ({@link mondrian.rolap.aggmatcher.AggRecommender}) uses them to
+ * estimate which aggregate tables would be most beneficial.</p>
+ *
+ * @see Monitor#getSegmentLoads()
+ */
+public class SegmentLoadInfo extends Info {
+    public final String schemaName;
+    public final String cubeName;
+
+    /**
+     * Alias of the fact table.
+     */
+    public final String factTable;
+
+    /**
+     * Constrained columns, each of the form "table.column", where "table"
+     * is the alias of the table in the star, sorted.
+     */
+    public final List<String> columns;
+
+    /**
+     * Number of SQL statements that have loaded segments with these columns.
+     */
+    public final int loadCount;
+
+    /**
+     * Number of rows returned by those SQL statements.
+     */
+    public final long rowCount;
+
+    public SegmentLoadInfo(
+        String stack,
+        String schemaName,
+        String cubeName,
+        String factTable,
+        List<String> columns,
+        int loadCount,
+        long rowCount)
+    {
+        super(stack);
+        this.schemaName = schemaName;
+        this.cubeName = cubeName;
+        this.factTable = factTable;
+        this.columns = columns;
+        this.loadCount = loadCount;
+        this.rowCount = rowCount;
+    }
+}
+
+// End SegmentLoadInfo.java
@@ -4,11 +4,13 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2012 Pentaho
+// Copyright (C) 2011-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.server.monitor;
 
+import java.util.List;
+
 /**
  * Information about a Mondrian server.
  */
@@ -38,6 +40,27 @@ public class ServerInfo extends Info {
      * and bring back a few more cells than it was asked for.
      */
     public final int sqlStatementCellRequestCount;
+
+    /**
+     * Cumulative time that SQL statements have waited in the queues of their
+     * data sources before executing. See {@link #sqlQueues}.
+     */
+    public final long sqlStatementQueueWaitNanos;
+
+    /**
+     * Cumulative time spent fetching rows from SQL statements, after they
+     * have executed. See {@link #sqlStatementRowFetchRate()}.
+     */
+    public final long sqlStatementFetchNanos;
+
+    /**
+     * Largest estimated number of bytes that the JDBC driver has held in
+     * memory for the rows of any one SQL statement. If drivers stream result
+     * sets (see {@link mondrian.olap.MondrianProperties#StreamingFetchSize}),
+     * this should remain small however large the result sets.
+     */
+    public final long sqlStatementMaxBufferedByteCount;
+
     public final int cellCacheRequestCount;
     public final int cellCacheHitCount;
     public final int cellCacheMissCount;
@@ -85,6 +108,13 @@ public class ServerInfo extends Info {
      */
     public final int segmentCreateViaSqlCount;
 
+    /**
+     * The number of times that newly loaded cells have been appended to a
+     * segment already in cache, since the server started. (See
+     * {@link mondrian.olap.CacheControl#append}.)
+     */
+    public final int segmentAppendCount;
+
     /**
      * The number of cells currently in cache.
      */
@@ -102,6 +132,12 @@ public class ServerInfo extends Info {
      */
     public final int cellCoordinateCount;
 
+    /**
+     * Statistics for each combination of data source queue and priority
+     * through which at least one SQL statement has executed.
+     */
+    public final List<SqlQueueInfo> sqlQueues;
+
     public ServerInfo(
         String stack,
         int connectionStartCount,
@@ -114,6 +150,9 @@ public class ServerInfo extends Info {
         long sqlStatementRowFetchCount,
         long sqlStatementExecuteNanos,
         int sqlStatementCellRequestCount,
+        long sqlStatementQueueWaitNanos,
+        long sqlStatementFetchNanos,
+        long sqlStatementMaxBufferedByteCount,
         int cellCacheHitCount,
         int cellCacheRequestCount,
         int cellCacheMissCount,
@@ -129,8 +168,10 @@ public class ServerInfo extends Info {
         int segmentDeleteViaExternalCount,
         int segmentCreateViaRollupCount,
         int segmentCreateViaSqlCount,
+        int segmentAppendCount,
         int cellCount,
-        int cellCoordinateCount)
+        int cellCoordinateCount,
+        List<SqlQueueInfo> sqlQueues)
     {
         super(stack);
         this.connectionStartCount = connectionStartCount;
@@ -143,6 +184,10 @@ public class ServerInfo extends Info {
         this.sqlStatementRowFetchCount = sqlStatementRowFetchCount;
         this.sqlStatementExecuteNanos = sqlStatementExecuteNanos;
         this.sqlStatementCellRequestCount = sqlStatementCellRequestCount;
+        this.sqlStatementQueueWaitNanos = sqlStatementQueueWaitNanos;
+        this.sqlStatementFetchNanos = sqlStatementFetchNanos;
+        this.sqlStatementMaxBufferedByteCount =
+            sqlStatementMaxBufferedByteCount;
         this.cellCacheRequestCount = cellCacheRequestCount;
         this.cellCacheHitCount = cellCacheHitCount;
         this.cellCacheMissCount = cellCacheMissCount;
@@ -158,14 +203,28 @@ public class ServerInfo extends Info {
         this.segmentDeleteViaExternalCount = segmentDeleteViaExternalCount;
         this.segmentCreateViaRollupCount = segmentCreateViaRollupCount;
         this.segmentCreateViaSqlCount = segmentCreateViaSqlCount;
+        this.segmentAppendCount = segmentAppendCount;
         this.cellCount = cellCount;
         this.cellCoordinateCount = cellCoordinateCount;
+        this.sqlQueues = sqlQueues;
     }
 
     public int cellCacheMissCount() {
         return cellCacheRequestCount - cellCacheHitCount;
     }
 
+    /**
+     * @return number of rows fetched from SQL statements per second spent
+     * fetching them, or 0 if no rows have been fetched
+     */
+    public double sqlStatementRowFetchRate() {
+        if (sqlStatementFetchNanos == 0) {
+            return 0d;
+        }
+        return sqlStatementRowFetchCount * 1000000000d
+            / sqlStatementFetchNanos;
+    }
+
     /**
      * @return number of SQL statements currently executing
      */
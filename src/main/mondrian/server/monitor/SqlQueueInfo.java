@@ -0,0 +1,56 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.server.monitor;
+
+import mondrian.rolap.SqlQueue;
+
+/**
+ * Information about the SQL statements of one priority that have executed
+ * via a data source's queue.
+ *
+ * @see mondrian.rolap.SqlQueue
+ */
+public class SqlQueueInfo extends Info {
+    public final String queue;
+    public final SqlQueue.Priority priority;
+
+    /**
+     * Number of statements that have started executing.
+     */
+    public final int executeCount;
+
+    /**
+     * Cumulative time that statements have waited in the queue.
+     */
+    public final long waitNanos;
+
+    /**
+     * Longest time that any one statement has waited in the queue.
+     */
+    public final long maxWaitNanos;
+
+    public SqlQueueInfo(
+        String stack,
+        String queue,
+        SqlQueue.Priority priority,
+        int executeCount,
+        long waitNanos,
+        long maxWaitNanos)
+    {
+        super(stack);
+        this.queue = queue;
+        this.priority = priority;
+        this.executeCount = executeCount;
+        this.waitNanos = waitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+}
+
+// End SqlQueueInfo.java
@@ -16,6 +16,20 @@ import mondrian.server.Locus;
  */
 public class SqlStatementEndEvent extends SqlStatementEvent {
     public final long rowFetchCount;
+
+    /**
+     * Time between the statement returning its result set and the
+     * statement being closed; that is, the time spent fetching rows.
+     */
+    public final long fetchNanos;
+
+    /**
+     * Estimated peak number of bytes that the JDBC driver held in memory for
+     * rows of the result set. Small if the driver streamed the result set,
+     * otherwise proportional to {@link #rowFetchCount}.
+     */
+    public final long bufferedByteCount;
+
     public final boolean canceled;
     public final Throwable throwable;
 
@@ -28,6 +42,8 @@ public class SqlStatementEndEvent extends SqlStatementEvent {
      * @param sql SQL
      * @param purpose Why Mondrian is executing this statement
      * @param rowFetchCount Number of rows fetched
+     * @param fetchNanos Time spent fetching rows
+     * @param bufferedByteCount Estimated peak bytes held by the driver
      * @param canceled Whether statement was canceled
      * @param throwable Throwable, or null if there was no error
      */
@@ -38,11 +54,15 @@ public class SqlStatementEndEvent extends SqlStatementEvent {
         String sql,
         Purpose purpose,
         long rowFetchCount,
+        long fetchNanos,
+        long bufferedByteCount,
         boolean canceled,
         Throwable throwable)
     {
         super(timestamp, sqlStatementId, locus, sql, purpose);
         this.rowFetchCount = rowFetchCount;
+        this.fetchNanos = fetchNanos;
+        this.bufferedByteCount = bufferedByteCount;
         this.canceled = canceled;
         this.throwable = throwable;
     }
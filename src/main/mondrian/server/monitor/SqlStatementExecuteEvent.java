@@ -4,11 +4,12 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2011 Pentaho
+// Copyright (C) 2011-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.server.monitor;
 
+import mondrian.rolap.SqlQueue;
 import mondrian.server.Locus;
 
 /**
@@ -17,6 +18,23 @@ import mondrian.server.Locus;
 public class SqlStatementExecuteEvent extends SqlStatementEvent {
     public final long executeNanos;
 
+    /**
+     * Name of the queue of the data source against which the statement
+     * was executed.
+     */
+    public final String queue;
+
+    /**
+     * Priority of the statement in its queue.
+     */
+    public final SqlQueue.Priority priority;
+
+    /**
+     * Time that the statement waited in its queue before it started
+     * executing.
+     */
+    public final long queueWaitNanos;
+
     /**
      * Creates a SqlStatementExecuteEvent.
      *
@@ -26,6 +44,9 @@ public class SqlStatementExecuteEvent extends SqlStatementEvent {
      * @param sql SQL
      * @param purpose Why Mondrian is executing this statement
      * @param executeNanos Execution time
+     * @param queue Name of queue
+     * @param priority Priority of statement in queue
+     * @param queueWaitNanos Time spent waiting in queue
      */
     public SqlStatementExecuteEvent(
         long timestamp,
@@ -33,10 +54,18 @@ public class SqlStatementExecuteEvent extends SqlStatementEvent {
         Locus locus,
         String sql,
         Purpose purpose,
-        long executeNanos)
+        long executeNanos,
+        String queue,
+        SqlQueue.Priority priority,
+        long queueWaitNanos)
     {
         super(timestamp, statementId, locus, sql, purpose);
+        assert queue != null;
+        assert priority != null;
         this.executeNanos = executeNanos;
+        this.queue = queue;
+        this.priority = priority;
+        this.queueWaitNanos = queueWaitNanos;
     }
 
     public String toString() {
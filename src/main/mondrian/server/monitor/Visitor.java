@@ -25,6 +25,7 @@ public interface Visitor<T> {
     T visit(SqlStatementEndEvent event);
     T visit(CellCacheSegmentCreateEvent event);
     T visit(CellCacheSegmentDeleteEvent event);
+    T visit(CellCacheSegmentAppendEvent event);
 }
 
 // End Visitor.java
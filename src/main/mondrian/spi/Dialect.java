@@ -11,6 +11,7 @@ package mondrian.spi;
 
 import mondrian.rolap.SqlStatement;
 
+import java.math.BigDecimal;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.List;
@@ -719,6 +720,57 @@ public interface Dialect {
      */
     boolean allowsRegularExpressionInWhereClause();
 
+    /**
+     * Returns whether this dialect can execute statements that contain bind
+     * variables, with values supplied by
+     * {@link java.sql.PreparedStatement#setObject(int, Object)} and similar
+     * methods.
+     *
+     * <p>If true, and
+     * {@link mondrian.olap.MondrianProperties#GenerateBindVariables} is
+     * enabled, Mondrian generates key values in SQL as bind variables
+     * rather than literals, so that queries that differ only in those values
+     * have the same SQL text, and the database need not parse each one
+     * afresh. Dialects whose driver does not support
+     * {@link java.sql.PreparedStatement} properly should return false.</p>
+     *
+     * @return Whether this dialect allows bind variables
+     */
+    boolean allowsBindVariables();
+
+    /**
+     * Returns the fetch size that Mondrian should set on a statement so that
+     * the driver streams the statement's result set, reading a few rows at a
+     * time, rather than reading every row into memory before returning the
+     * first.
+     *
+     * <p>Most drivers treat the fetch size as the number of rows to read in
+     * each round trip, and this method returns {@code fetchSize}. The MySQL
+     * driver streams only if the fetch size is {@link Integer#MIN_VALUE}.
+     * Return 0 if the driver cannot stream, or rejects
+     * {@link java.sql.Statement#setFetchSize(int)}; Mondrian then leaves the
+     * driver's default fetch size.</p>
+     *
+     * @param fetchSize Desired number of rows to read per round trip;
+     *     positive
+     * @return Fetch size to set, or 0 to leave the driver's default
+     */
+    int getStreamingFetchSize(int fetchSize);
+
+    /**
+     * Returns whether the driver streams a result set only if the statement
+     * executes inside a transaction.
+     *
+     * <p>For example, the PostgreSQL driver ignores the fetch size, and reads
+     * the whole result set, unless the connection's auto-commit is off. If
+     * this method returns true, Mondrian turns auto-commit off while it
+     * executes a statement whose result set it wants to stream, and restores
+     * it when it closes the statement.</p>
+     *
+     * @return Whether streaming requires auto-commit to be off
+     */
+    boolean requiresTransactionForStreaming();
+
     /**
      * Some databases, like Greenplum, don't include nulls as part
      * of the results of a COUNT sql call. This allows dialects
@@ -763,6 +815,24 @@ public interface Dialect {
         String source,
         String javaRegExp);
 
+    /**
+     * Generates a clause that, placed after a table in the FROM clause of a
+     * query, causes the query to read a random sample of the table's rows.
+     *
+     * <p>For example, on Oracle,
+     * <code>generateTableSample(new BigDecimal("1.5"))</code> returns
+     * <code>SAMPLE (1.5)</code>, and the query
+     * <code>SELECT gender FROM customer SAMPLE (1.5)</code> reads roughly
+     * 1.5% of the rows of the {@code customer} table.</p>
+     *
+     * <p>Dialects return null if the database cannot sample a table.</p>
+     *
+     * @param percent Percentage of rows to read; greater than 0 and less
+     * than 100
+     * @return Sampling clause, or null if the dialect cannot sample
+     */
+    String generateTableSample(BigDecimal percent);
+
     /**
      * Returns a list of statistics providers for this dialect.
      *
@@ -0,0 +1,49 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.spi;
+
+/**
+ * Segment cache that can restrict a segment without reading its body.
+ *
+ * <p>When a region of the cache is flushed, Mondrian does not throw away
+ * the segments that intersect the region. It adds the region to the
+ * segment's header as an excluded region (see
+ * {@link SegmentHeader#constrain(SegmentColumn[])}), and only the cells in
+ * the excluded region are read from the database again.</p>
+ *
+ * <p>For a cache that does not implement this interface, Mondrian has to
+ * {@link #get} the body, {@link #remove} the old header and {@link #put} the
+ * body under the new header; or, if the cache does not
+ * {@link #supportsRichIndex() support a rich index}, discard the segment. An
+ * implementation of this interface can instead associate the existing
+ * body with the new header, which is usually much cheaper.</p>
+ *
+ * @author agent
+ */
+public interface RestrictableSegmentCache extends SegmentCache {
+    /**
+     * Replaces the header of a segment with a header that has more excluded
+     * regions, keeping the same body.
+     *
+     * <p>After this call, {@link #get} returns the body for
+     * {@code restrictedHeader} and null for {@code header}. Listeners
+     * receive events as if the segment had been removed and added.</p>
+     *
+     * @param header Header of existing segment
+     * @param restrictedHeader New header; same as {@code header} except that
+     *   it has additional excluded regions
+     * @return Whether a segment with the given header existed
+     */
+    boolean addRestriction(
+        SegmentHeader header,
+        SegmentHeader restrictedHeader);
+}
+
+// End RestrictableSegmentCache.java
@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2012 Pentaho and others
+// Copyright (C) 2011-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.spi;
@@ -56,6 +56,12 @@ import java.util.List;
  * an exception. Then Mondrian can get on with its life, and get the segment
  * some other way.</p>
  *
+ * <p>An implementation that stores segments outside the JVM needs to convert
+ * headers and bodies to bytes. Rather than use Java serialization, it can
+ * use the {@link SegmentCodec} returned by
+ * {@link SegmentCodec.SegmentCodecFactory#getCodec()}, which is faster and
+ * produces smaller payloads.</p>
+ *
  * <p>Implementations must provide a default empty constructor.
  * Mondrian creates one segment cache instance per Mondrian server.
  * There could be more than one Mondrian server running in the same JVM.
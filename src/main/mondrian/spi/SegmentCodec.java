@@ -0,0 +1,122 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.spi;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.Util;
+import mondrian.rolap.agg.BinarySegmentCodec;
+import mondrian.util.ClassResolver;
+import mondrian.util.ServiceDiscovery;
+
+import java.util.List;
+
+/**
+ * Converts segment headers and bodies to and from arrays of bytes.
+ *
+ * <p>{@link SegmentHeader} and {@link SegmentBody} are
+ * {@link java.io.Serializable}, and a {@link SegmentCache} that stores
+ * segments outside the JVM may simply use Java serialization. But Java
+ * serialization is slow, and produces large payloads, for objects such as
+ * segment bodies that consist mainly of arrays of boxed values. A cache can
+ * instead opt to use a codec.</p>
+ *
+ * <p>A cache should get its codec by calling
+ * {@link SegmentCodecFactory#getCodec()}. There are two ways to declare
+ * the implementation that it returns. The first is to set the
+ * {@link mondrian.olap.MondrianProperties#SegmentCodec} property. The
+ * second is to use the Java Services API: add a file called
+ * <code>/META-INF/services/mondrian.spi.SegmentCodec</code>, containing the
+ * name of the codec class, to a jar file accessible through the same class
+ * loader as Mondrian. If neither is present, the codec is Mondrian's own,
+ * {@link mondrian.rolap.agg.BinarySegmentCodec}. Its format is versioned,
+ * and it does not require the classes of the segment body to be known to
+ * the process that decodes it.</p>
+ *
+ * <p>Implementations must be thread-safe, and must provide a public
+ * constructor that takes no arguments.</p>
+ *
+ * @author agent
+ */
+public interface SegmentCodec {
+    /**
+     * Encodes a segment header.
+     *
+     * @param header Segment header
+     * @return Encoded header
+     */
+    byte[] encodeHeader(SegmentHeader header);
+
+    /**
+     * Decodes a segment header that was encoded by {@link #encodeHeader}.
+     *
+     * @param bytes Encoded header
+     * @return Segment header
+     */
+    SegmentHeader decodeHeader(byte[] bytes);
+
+    /**
+     * Encodes a segment body.
+     *
+     * @param body Segment body
+     * @return Encoded body
+     */
+    byte[] encodeBody(SegmentBody body);
+
+    /**
+     * Decodes a segment body that was encoded by {@link #encodeBody}.
+     *
+     * @param bytes Encoded body
+     * @return Segment body
+     */
+    SegmentBody decodeBody(byte[] bytes);
+
+    /**
+     * Provides the codec that segment caches should use. See
+     * {@link SegmentCodec} for how the implementation is chosen.
+     */
+    public static class SegmentCodecFactory {
+        private static SegmentCodec codec;
+        private static String codecClassName;
+
+        /**
+         * Returns the codec, creating it if this is the first call or if
+         * {@link MondrianProperties#SegmentCodec} has changed since the
+         * previous call.
+         *
+         * @return Codec
+         */
+        public static synchronized SegmentCodec getCodec() {
+            final String className =
+                MondrianProperties.instance().SegmentCodec.get();
+            if (codec == null || !Util.equals(className, codecClassName)) {
+                codec = createCodec(className);
+                codecClassName = className;
+            }
+            return codec;
+        }
+
+        private static SegmentCodec createCodec(String className) {
+            if (className != null && !className.equals("")) {
+                return ClassResolver.INSTANCE.instantiateSafe(className);
+            }
+            final List<Class<SegmentCodec>> implementors =
+                ServiceDiscovery.forClass(SegmentCodec.class)
+                    .getImplementor();
+            if (implementors.size() > 0) {
+                // The contract is to use the first implementation found.
+                return ClassResolver.INSTANCE.instantiateSafe(
+                    implementors.get(0).getName());
+            }
+            return BinarySegmentCodec.INSTANCE;
+        }
+    }
+}
+
+// End SegmentCodec.java
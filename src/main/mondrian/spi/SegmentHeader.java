@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2011-2012 Pentaho and others
+// Copyright (C) 2011-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.spi;
@@ -44,10 +44,10 @@ import java.util.*;
  * @author LBoudreau
  */
 public class SegmentHeader implements Serializable {
-    private static final long serialVersionUID = 8696439182886512850L;
+    private static final long serialVersionUID = -3411478256410398513L;
     private final int arity;
     private final List<SegmentColumn> constrainedColumns;
-    private final List<SegmentColumn> excludedRegions;
+    private final List<List<SegmentColumn>> excludedRegions;
     public final List<String> compoundPredicates;
     public final String measureName;
     public final String cubeName;
@@ -74,7 +74,9 @@ public class SegmentHeader implements Serializable {
      * typically empty.)
      * @param rolapStarFactTableName Star fact table name
      * @param constrainedColsBitKey Constrained columns bit key
-     * @param excludedRegions Excluded regions. (Must not be null, but typically
+     * @param excludedRegions Excluded regions. Each region is a list of
+     * columns, and contains the cells whose value of each column is among
+     * that column's values. (Must not be null, but typically empty.)
      */
     public SegmentHeader(
         String schemaName,
@@ -85,10 +87,14 @@ public class SegmentHeader implements Serializable {
         List<String> compoundPredicates,
         String rolapStarFactTableName,
         BitKey constrainedColsBitKey,
-        List<SegmentColumn> excludedRegions)
+        Collection<List<SegmentColumn>> excludedRegions)
     {
         this.constrainedColumns = constrainedColumns;
-        this.excludedRegions = excludedRegions;
+        this.excludedRegions =
+            excludedRegions instanceof List
+                ? (List<List<SegmentColumn>>) excludedRegions
+                : Collections.unmodifiableList(
+                    new ArrayList<List<SegmentColumn>>(excludedRegions));
         this.schemaName = schemaName;
         this.schemaChecksum = schemaChecksum;
         assert schemaChecksum != null;
@@ -103,6 +109,61 @@ public class SegmentHeader implements Serializable {
         this.hashCode = computeHashCode();
     }
 
+    /**
+     * Creates a segment header whose excluded regions each have one column.
+     *
+     * @param schemaName The name of the schema which this
+     * header belongs to.
+     * @param schemaChecksum Schema checksum
+     * @param cubeName The name of the cube this segment belongs to.
+     * @param measureName The name of the measure which defines
+     * this header.
+     * @param constrainedColumns An array of constrained columns
+     * objects which define the predicated of this segment header.
+     * @param compoundPredicates Compound predicates (Must not be null, but
+     * typically empty.)
+     * @param rolapStarFactTableName Star fact table name
+     * @param constrainedColsBitKey Constrained columns bit key
+     * @param excludedRegions Excluded regions, one column each. (Must not be
+     * null, but typically empty.)
+     *
+     * @deprecated Use the constructor that takes a collection of
+     * multi-column excluded regions; will be removed in mondrian-4.0
+     */
+    public SegmentHeader(
+        String schemaName,
+        ByteString schemaChecksum,
+        String cubeName,
+        String measureName,
+        List<SegmentColumn> constrainedColumns,
+        List<String> compoundPredicates,
+        String rolapStarFactTableName,
+        BitKey constrainedColsBitKey,
+        List<SegmentColumn> excludedRegions)
+    {
+        this(
+            schemaName,
+            schemaChecksum,
+            cubeName,
+            measureName,
+            constrainedColumns,
+            compoundPredicates,
+            rolapStarFactTableName,
+            constrainedColsBitKey,
+            toRegions(excludedRegions));
+    }
+
+    private static List<List<SegmentColumn>> toRegions(
+        List<SegmentColumn> columns)
+    {
+        final List<List<SegmentColumn>> regions =
+            new ArrayList<List<SegmentColumn>>();
+        for (SegmentColumn column : columns) {
+            regions.add(Collections.singletonList(column));
+        }
+        return Collections.unmodifiableList(regions);
+    }
+
     private int computeHashCode() {
         int hash = 42;
         hash = Util.hash(hash, schemaName);
@@ -115,10 +176,13 @@ public class SegmentHeader implements Serializable {
                 hash = Util.hashArray(hash, col.values.toArray());
             }
         }
-        for (SegmentColumn col : this.excludedRegions) {
-            hash = Util.hash(hash, col.columnExpression);
-            if (col.values != null) {
-                hash = Util.hashArray(hash, col.values.toArray());
+        for (List<SegmentColumn> excludedRegion : this.excludedRegions) {
+            hash = Util.hash(hash, excludedRegion.size());
+            for (SegmentColumn col : excludedRegion) {
+                hash = Util.hash(hash, col.columnExpression);
+                if (col.values != null) {
+                    hash = Util.hashArray(hash, col.values.toArray());
+                }
             }
         }
         hash = Util.hash(hash, compoundPredicates);
@@ -164,49 +228,40 @@ public class SegmentHeader implements Serializable {
                 Collections.<String>emptyList(),
                 rolapStarFactTableName,
                 constrainedColsBitKey,
-                Collections.<SegmentColumn>emptyList());
+                Collections.<List<SegmentColumn>>emptyList());
     }
 
     /**
      * Checks if this header can be constrained by a given region.
      *
-     * <p>It will return false if the region covers one of the axis in
-     * its entirety.
+     * <p>A region is the cartesian product of its columns' values. Columns
+     * of the region that are not constrained columns of this header are
+     * ignored: every cell of this segment aggregates over all values of such
+     * a column, so intersects the region if its other coordinates do.</p>
+     *
+     * <p>It will return false if the region covers all cells of this
+     * header; that is, if it covers every axis in its entirety.
      *
-     * <p>It will return false if the region sits outside of the bounds
-     * of this header. This means that when performing a flush operation,
-     * the header must be scrapped altogether.
+     * <p>It will return false if none of the region's columns are
+     * constrained columns of this header. This means that when performing a
+     * flush operation, the header must be scrapped altogether.
      */
     public boolean canConstrain(SegmentColumn[] region) {
-        boolean atLeastOnePresent = false;
         for (SegmentColumn ccToFlush : region) {
             SegmentColumn ccActual =
                 getConstrainedColumn(ccToFlush.columnExpression);
-            if (ccActual != null) {
-                final SegmentColumn ccActualExcl =
-                    getExcludedRegion(ccToFlush.columnExpression);
-                if (ccToFlush.values == null
-                    || (ccActualExcl != null
-                        && ccActualExcl.values != null
-                        && ccActualExcl.merge(ccToFlush).values == null))
-                {
-                    // This means that the whole axis is excluded.
-                    // Better destroy that segment.
-                    return false;
-                }
-                if (ccActual.values != null
-                    && ccActual.values.equals(ccToFlush.values))
-                {
-                    // This means that the whole axis is excluded.
-                    // Better destroy that segment.
-                    return false;
-                }
-                // We know there is at least one column on which
-                // we can constrain.
-                atLeastOnePresent = true;
+            if (ccActual != null
+                && ccToFlush.values != null
+                && (ccActual.values == null
+                    || !ccToFlush.values.containsAll(ccActual.values)))
+            {
+                // The region excludes only part of this axis, so only part
+                // of the segment.
+                return true;
             }
         }
-        return atLeastOnePresent;
+        // The region covers the whole segment. Better destroy that segment.
+        return false;
     }
 
     /**
@@ -214,33 +269,28 @@ public class SegmentHeader implements Serializable {
      * a new segment header representing the original one to which a
      * region has been excluded.
      *
+     * <p>The region is added as one N-dimensional excluded region,
+     * consisting of those of its columns that are constrained columns of this
+     * header. If the header already excludes an equal region, it is
+     * returned unchanged.</p>
+     *
      * @param region Region
      * @return Header with constraint applied
      */
     public SegmentHeader constrain(SegmentColumn[] region) {
-        final Map<String, SegmentColumn> newRegions =
-            new HashMap<String, SegmentColumn>();
-        for (SegmentColumn excludedRegion : excludedRegions) {
-            newRegions.put(
-                excludedRegion.columnExpression,
-                excludedRegion);
-        }
+        final List<SegmentColumn> newRegion = new ArrayList<SegmentColumn>();
         for (SegmentColumn col : region) {
-            if (getConstrainedColumn(col.columnExpression) == null) {
-                continue;
-            }
-            if (newRegions.containsKey(col.columnExpression)) {
-                newRegions.put(
-                    col.columnExpression,
-                    newRegions.get(col.columnExpression)
-                        .merge(col));
-            } else {
-                newRegions.put(
-                    col.columnExpression,
-                    col);
+            if (getConstrainedColumn(col.columnExpression) != null) {
+                newRegion.add(col);
             }
         }
-        assert newRegions.size() > 0;
+        assert newRegion.size() > 0;
+        if (excludedRegions.contains(newRegion)) {
+            return this;
+        }
+        final List<List<SegmentColumn>> newRegions =
+            new ArrayList<List<SegmentColumn>>(excludedRegions);
+        newRegions.add(Collections.unmodifiableList(newRegion));
         return
             new SegmentHeader(
                 schemaName,
@@ -251,7 +301,40 @@ public class SegmentHeader implements Serializable {
                 compoundPredicates,
                 rolapStarFactTableName,
                 constrainedColsBitKey,
-                new ArrayList<SegmentColumn>(newRegions.values()));
+                Collections.unmodifiableList(newRegions));
+    }
+
+    /**
+     * Returns whether a cell is in one of the excluded regions of this
+     * header.
+     *
+     * <p>A cell is in a region if, for each column of the region, its
+     * coordinate is one of that column's values. If the cell has no
+     * coordinate for one of a region's columns, the cell is an aggregate
+     * over all values of that column, so is considered to be in the
+     * region.</p>
+     *
+     * @param coordinates Value of each column, keyed by column expression
+     * @return Whether cell is excluded
+     */
+    public boolean isExcluded(Map<String, Comparable> coordinates) {
+        regionLoop:
+        for (List<SegmentColumn> excludedRegion : excludedRegions) {
+            for (SegmentColumn column : excludedRegion) {
+                if (column.values == null
+                    || !coordinates.containsKey(column.columnExpression))
+                {
+                    continue;
+                }
+                if (!column.values.contains(
+                        coordinates.get(column.columnExpression)))
+                {
+                    continue regionLoop;
+                }
+            }
+            return true;
+        }
+        return false;
     }
 
     public String toString() {
@@ -266,10 +349,36 @@ public class SegmentHeader implements Serializable {
         return arity;
     }
 
-    public List<SegmentColumn> getExcludedRegions() {
+    /**
+     * Returns the regions that are excluded from this segment header. Each
+     * region is a list of columns. The caller should consider the lists
+     * immutable.
+     *
+     * @return List of excluded regions
+     */
+    public List<List<SegmentColumn>> getExcludedCellRegions() {
         return excludedRegions;
     }
 
+    /**
+     * Returns the excluded regions of this segment header that have one
+     * column. Regions of more than one column are not returned.
+     *
+     * @return List of one-column excluded regions
+     *
+     * @deprecated Use {@link #getExcludedCellRegions()}; will be removed in
+     * mondrian-4.0
+     */
+    public List<SegmentColumn> getExcludedRegions() {
+        final List<SegmentColumn> columns = new ArrayList<SegmentColumn>();
+        for (List<SegmentColumn> excludedRegion : excludedRegions) {
+            if (excludedRegion.size() == 1) {
+                columns.add(excludedRegion.get(0));
+            }
+        }
+        return columns;
+    }
+
     /**
      * Returns a list of constrained columns which define this segment
      * header. The caller should consider this list immutable.
@@ -297,10 +406,19 @@ public class SegmentHeader implements Serializable {
         return null;
     }
 
+    /**
+     * Returns the one-column excluded region, if any, on a given column.
+     *
+     * @param columnExpression Column expression
+     * @return Excluded region, or null
+     *
+     * @deprecated Use {@link #getExcludedCellRegions()}; will be removed in
+     * mondrian-4.0
+     */
     public SegmentColumn getExcludedRegion(
         String columnExpression)
     {
-        for (SegmentColumn c : excludedRegions) {
+        for (SegmentColumn c : getExcludedRegions()) {
             if (c.columnExpression.equals(columnExpression)) {
                 return c;
             }
@@ -335,11 +453,14 @@ public class SegmentHeader implements Serializable {
                     }
                 }
             }
-            for (SegmentColumn c : excludedRegions) {
-                hashSB.append(c.columnExpression);
-                if (c.values != null) {
-                    for (Object value : c.values) {
-                        hashSB.append(String.valueOf(value));
+            for (List<SegmentColumn> excludedRegion : excludedRegions) {
+                hashSB.append('|');
+                for (SegmentColumn c : excludedRegion) {
+                    hashSB.append(c.columnExpression);
+                    if (c.values != null) {
+                        for (Object value : c.values) {
+                            hashSB.append(String.valueOf(value));
+                        }
                     }
                 }
             }
@@ -389,21 +510,28 @@ public class SegmentHeader implements Serializable {
             }
             descriptionSB.append("]\n");
             descriptionSB.append("Excluded Regions:[");
-            for (SegmentColumn c : excludedRegions) {
+            for (List<SegmentColumn> excludedRegion : excludedRegions) {
                 descriptionSB.append("\n    {");
-                descriptionSB.append(c.columnExpression);
-                descriptionSB.append("=(");
-                if (c.values == null) {
-                    descriptionSB.append("* ");
-                } else {
-                    for (Object value : c.values) {
-                        descriptionSB.append("'");
-                        descriptionSB.append(value);
-                        descriptionSB.append("',");
+                int k = 0;
+                for (SegmentColumn c : excludedRegion) {
+                    if (k++ > 0) {
+                        descriptionSB.append(", ");
+                    }
+                    descriptionSB.append(c.columnExpression);
+                    descriptionSB.append("=(");
+                    if (c.values == null) {
+                        descriptionSB.append("* ");
+                    } else {
+                        for (Object value : c.values) {
+                            descriptionSB.append("'");
+                            descriptionSB.append(value);
+                            descriptionSB.append("',");
+                        }
                     }
+                    descriptionSB.deleteCharAt(descriptionSB.length() - 1);
+                    descriptionSB.append(")");
                 }
-                descriptionSB.deleteCharAt(descriptionSB.length() - 1);
-                descriptionSB.append(")}");
+                descriptionSB.append("}");
             }
             descriptionSB.append("]\n");
             descriptionSB.append("Compound Predicates:[");
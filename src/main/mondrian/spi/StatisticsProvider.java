@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2012-2012 Pentaho
+// Copyright (C) 2012-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.spi;
@@ -26,6 +26,7 @@ import javax.sql.DataSource;
  *
  * @see mondrian.spi.impl.JdbcStatisticsProvider
  * @see mondrian.spi.impl.SqlStatisticsProvider
+ * @see mondrian.spi.impl.SketchStatisticsProvider
  *
  */
 public interface StatisticsProvider {
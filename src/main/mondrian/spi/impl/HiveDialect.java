@@ -152,6 +152,18 @@ public class HiveDialect extends JdbcDialectImpl {
     public boolean allowsJoinOn() {
         return false;
     }
+
+    public boolean allowsBindVariables() {
+        // The Hive driver's PreparedStatement substitutes values into the
+        // SQL text on the client, so there is nothing to gain.
+        return false;
+    }
+
+    public int getStreamingFetchSize(int fetchSize) {
+        // Older versions of the Hive driver throw if you call
+        // Statement.setFetchSize.
+        return 0;
+    }
 }
 
 // End HiveDialect.java
@@ -99,6 +99,12 @@ public class ImpalaDialect extends HiveDialect {
         return ret;
     }
 
+    @Override
+    public boolean allowsBindVariables() {
+        // Impala's driver is derived from Hive's; see HiveDialect.
+        return false;
+    }
+
     @Override
     public boolean allowsMultipleCountDistinct() {
         return false;
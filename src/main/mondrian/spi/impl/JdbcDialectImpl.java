@@ -20,6 +20,7 @@ import mondrian.util.ClassResolver;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.math.BigDecimal;
 import java.sql.*;
 import java.sql.Date;
 import java.util.*;
@@ -856,6 +857,18 @@ public class JdbcDialectImpl implements Dialect {
 		return false;
 	}
 
+	public boolean allowsBindVariables() {
+		return true;
+	}
+
+	public int getStreamingFetchSize(int fetchSize) {
+		return fetchSize;
+	}
+
+	public boolean requiresTransactionForStreaming() {
+		return false;
+	}
+
 	public String generateCountExpression(String exp) {
 		return exp;
 	}
@@ -864,6 +877,10 @@ public class JdbcDialectImpl implements Dialect {
 		return null;
 	}
 
+	public String generateTableSample(BigDecimal percent) {
+		return null;
+	}
+
 	public List<StatisticsProvider> getStatisticsProviders() {
 		return statisticsProviders;
 	}
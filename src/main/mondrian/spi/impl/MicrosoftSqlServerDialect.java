@@ -9,6 +9,7 @@
 */
 package mondrian.spi.impl;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.SQLException;
@@ -53,6 +54,12 @@ public class MicrosoftSqlServerDialect extends JdbcDialectImpl {
             columnNames, columnTypes, valueList, null, false);
     }
 
+    public String generateTableSample(BigDecimal percent) {
+        // SQL Server samples pages rather than rows, so the sample is
+        // less random than Oracle's, but still spans the whole table.
+        return "TABLESAMPLE (" + percent.toPlainString() + " PERCENT)";
+    }
+
     public boolean requiresAliasForFromQuery() {
         return true;
     }
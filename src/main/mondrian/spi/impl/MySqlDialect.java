@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2008-2011 Pentaho
+// Copyright (C) 2008-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.spi.impl;
@@ -264,6 +264,14 @@ public class MySqlDialect extends JdbcDialectImpl {
         GLOBAL
     }
 
+    public int getStreamingFetchSize(int fetchSize) {
+        // The MySQL driver reads the whole result set into memory unless the
+        // fetch size is Integer.MIN_VALUE, in which case it reads one row at
+        // a time. (Positive fetch sizes work only if the connect string has
+        // useCursorFetch=true.)
+        return Integer.MIN_VALUE;
+    }
+
     public boolean allowsRegularExpressionInWhereClause() {
         return true;
     }
@@ -11,6 +11,7 @@ package mondrian.spi.impl;
 
 import mondrian.rolap.SqlStatement;
 
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.List;
 import java.util.regex.*;
@@ -73,6 +74,13 @@ public class OracleDialect extends JdbcDialectImpl {
     }
 
 
+    @Override
+    public String generateTableSample(BigDecimal percent) {
+        // Row sampling, so that the sample is not biased by the order in
+        // which rows are stored.
+        return "SAMPLE (" + percent.toPlainString() + ")";
+    }
+
     @Override
     public boolean allowsRegularExpressionInWhereClause() {
         return true;
@@ -76,6 +76,13 @@ public class PostgreSqlDialect extends JdbcDialectImpl {
         return DatabaseProduct.POSTGRESQL;
     }
 
+    @Override
+    public boolean requiresTransactionForStreaming() {
+        // The driver uses a cursor, and honors the fetch size, only if
+        // auto-commit is off.
+        return true;
+    }
+
     @Override
     public boolean allowsRegularExpressionInWhereClause() {
         return true;
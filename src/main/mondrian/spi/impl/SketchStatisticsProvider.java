@@ -0,0 +1,502 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.spi.impl;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.Util;
+import mondrian.rolap.RolapUtil;
+import mondrian.rolap.SqlStatement;
+import mondrian.server.Execution;
+import mondrian.server.Locus;
+import mondrian.spi.Dialect;
+import mondrian.spi.StatisticsProvider;
+import mondrian.util.HyperLogLog;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import javax.sql.DataSource;
+
+/**
+ * Implementation of {@link mondrian.spi.StatisticsProvider} that estimates
+ * the number of distinct values in a column by reading a sample of its
+ * values into a {@link HyperLogLog} sketch, and stores the statistics it has
+ * computed in a file so that they survive a restart.
+ *
+ * <p>If a table has more than
+ * {@link MondrianProperties#StatisticsSketchSampleRows} rows, the provider
+ * reads a random sample of about that many rows, using the dialect's
+ * sampling clause (see {@link Dialect#generateTableSample}), and assumes
+ * that new values continue to appear at the rate that they appeared in the
+ * second half of the sample. If the table is smaller, or the dialect cannot
+ * sample, the provider counts the distinct values using SQL, as
+ * {@link SqlStatisticsProvider} does.</p>
+ *
+ * <p>The number of rows in a table comes from JDBC metadata, as in
+ * {@link JdbcStatisticsProvider}, and is also stored.</p>
+ *
+ * <p>Statistics are stored in the file given by
+ * {@link MondrianProperties#StatisticsSketchFile}, keyed by the JDBC URL of
+ * the data source and the name of the table and column. A statistic that is
+ * older than {@link MondrianProperties#StatisticsSketchTimeToLive} is still
+ * returned, but the provider computes a new value in the background. Only a
+ * statistic that has never been computed blocks the caller.</p>
+ *
+ * <p>This provider does not estimate the cardinality of queries; it returns
+ * -1, so that the next provider in the chain is asked.</p>
+ *
+ * @author agent
+ */
+public class SketchStatisticsProvider implements StatisticsProvider {
+    private static final Logger LOGGER =
+        Logger.getLogger(SketchStatisticsProvider.class);
+
+    private static final int PRECISION = 14;
+
+    /**
+     * Executor that refreshes stale statistics, one at a time. It has no
+     * queue, so rejects a refresh while another is running.
+     */
+    private static final ExecutorService EXECUTOR =
+        Util.getExecutorService(
+            1, 0, 1, "mondrian.spi.impl.SketchStatisticsProvider$refresh",
+            null);
+
+    private static final Map<File, Store> STORES = new HashMap<File, Store>();
+
+    private static final Map<DataSource, String> URLS =
+        Collections.synchronizedMap(new WeakHashMap<DataSource, String>());
+
+    private final JdbcStatisticsProvider jdbcStatisticsProvider =
+        new JdbcStatisticsProvider();
+
+    private final SqlStatisticsProvider sqlStatisticsProvider =
+        new SqlStatisticsProvider();
+
+    public int getTableCardinality(
+        final Dialect dialect,
+        final DataSource dataSource,
+        final String catalog,
+        final String schema,
+        final String table,
+        final Execution execution)
+    {
+        return lookup(
+            key(dataSource, "table", catalog, schema, table),
+            new Estimator() {
+                public int estimate(Execution execution) {
+                    return jdbcStatisticsProvider.getTableCardinality(
+                        dialect, dataSource, catalog, schema, table,
+                        execution);
+                }
+            },
+            execution);
+    }
+
+    public int getQueryCardinality(
+        Dialect dialect,
+        DataSource dataSource,
+        String sql,
+        Execution execution)
+    {
+        // Defer to another statistics provider.
+        return -1;
+    }
+
+    public int getColumnCardinality(
+        final Dialect dialect,
+        final DataSource dataSource,
+        final String catalog,
+        final String schema,
+        final String table,
+        final String column,
+        Execution execution)
+    {
+        return lookup(
+            key(dataSource, "column", catalog, schema, table, column),
+            new Estimator() {
+                public int estimate(Execution execution) {
+                    return estimateColumnCardinality(
+                        dialect, dataSource, catalog, schema, table, column,
+                        execution);
+                }
+            },
+            execution);
+    }
+
+    /**
+     * Returns a stored statistic, or computes it if it has never been
+     * computed. If the stored statistic is stale, returns it and computes a
+     * new value in the background.
+     */
+    private int lookup(
+        final String key,
+        final Estimator estimator,
+        final Execution execution)
+    {
+        final Store store = getStore();
+        final long[] entry = store.get(key);
+        if (entry == null) {
+            // We have nothing to return meanwhile, so compute now.
+            return store.compute(key, estimator, execution);
+        }
+        final long ageMillis = System.currentTimeMillis() - entry[1];
+        final long timeToLiveMillis =
+            MondrianProperties.instance().StatisticsSketchTimeToLive.get()
+            * 1000L;
+        if (ageMillis > timeToLiveMillis && store.startRefresh(key)) {
+            // Refresh in a new execution, at low priority, because the
+            // caller's execution will have finished by the time we run.
+            final Execution refreshExecution =
+                new Execution(execution.getMondrianStatement(), 0);
+            refreshExecution.setCacheWarming(true);
+            try {
+                EXECUTOR.execute(
+                    new Runnable() {
+                        public void run() {
+                            try {
+                                store.compute(
+                                    key, estimator, refreshExecution);
+                            } finally {
+                                store.endRefresh(key);
+                            }
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                // The executor is busy refreshing another statistic. Skip
+                // this refresh; the statistic is still stale, so the next
+                // lookup will try again.
+                store.endRefresh(key);
+            }
+        }
+        return (int) entry[0];
+    }
+
+    private int estimateColumnCardinality(
+        Dialect dialect,
+        DataSource dataSource,
+        String catalog,
+        String schema,
+        String table,
+        String column,
+        Execution execution)
+    {
+        final int sampleRows =
+            MondrianProperties.instance().StatisticsSketchSampleRows.get();
+        final int tableRowCount =
+            sampleRows > 0
+                ? getTableCardinality(
+                    dialect, dataSource, catalog, schema, table, execution)
+                : -1;
+        final String sampleClause =
+            tableRowCount > sampleRows
+                ? dialect.generateTableSample(
+                    new BigDecimal(100d * sampleRows / tableRowCount)
+                        .round(new MathContext(3)))
+                : null;
+        if (sampleClause != null) {
+            try {
+                final int n =
+                    estimateFromSample(
+                        dialect, dataSource, catalog, schema, table, column,
+                        sampleClause, tableRowCount, execution);
+                if (n >= 0) {
+                    return n;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.debug(
+                    "Could not sample column "
+                    + Arrays.asList(catalog, schema, table, column)
+                    + "; counting instead",
+                    e);
+            }
+        }
+        // The table is no larger than the sample, its size is not known, or
+        // the database cannot sample it. Count the distinct values.
+        return sqlStatisticsProvider.getColumnCardinality(
+            dialect, dataSource, catalog, schema, table, column, execution);
+    }
+
+    /**
+     * Estimates the number of distinct values in a column by reading a
+     * random sample of the table's rows. Returns -1 if the sample is empty.
+     */
+    private int estimateFromSample(
+        Dialect dialect,
+        DataSource dataSource,
+        String catalog,
+        String schema,
+        String table,
+        String column,
+        String sampleClause,
+        int tableRowCount,
+        Execution execution)
+    {
+        final StringBuilder buf = new StringBuilder("select ");
+        dialect.quoteIdentifier(buf, column);
+        buf.append(" from ");
+        dialect.quoteIdentifier(buf, catalog, schema, table);
+        buf.append(" ").append(sampleClause);
+        final String sql = buf.toString();
+        final List<Object> values = new ArrayList<Object>();
+        SqlStatement stmt =
+            RolapUtil.executeQuery(
+                dataSource,
+                sql,
+                new Locus(
+                    execution,
+                    "SketchStatisticsProvider.getColumnCardinality",
+                    "Sampling values of column "
+                    + Arrays.asList(catalog, schema, table, column)));
+        try {
+            ResultSet resultSet = stmt.getResultSet();
+            while (resultSet.next()) {
+                ++stmt.rowCount;
+                values.add(resultSet.getObject(1));
+            }
+        } catch (SQLException e) {
+            throw stmt.handle(e);
+        } finally {
+            stmt.close();
+        }
+        if (values.isEmpty()) {
+            return -1;
+        }
+        final HyperLogLog sketch = new HyperLogLog(PRECISION);
+        long halfSampleDistinct = 0;
+        for (int i = 0; i < values.size(); i++) {
+            if (i == values.size() / 2) {
+                halfSampleDistinct = sketch.estimate();
+            }
+            final Object value = values.get(i);
+            if (value != null) {
+                // Like count(distinct), ignore nulls.
+                sketch.add(value);
+            }
+        }
+        return (int) extrapolate(
+            sketch.estimate(), halfSampleDistinct, values.size(),
+            tableRowCount);
+    }
+
+    /**
+     * Estimates the number of distinct values in a table from the number of
+     * distinct values in a sample of its rows.
+     *
+     * <p>Assumes that new values continue to appear at the rate at which
+     * they appeared in the second half of the sample. The result is never
+     * less than the number of distinct values in the sample, nor more than
+     * the number of rows in the table.</p>
+     *
+     * @param sampleDistinct Number of distinct values in sample
+     * @param halfSampleDistinct Number of distinct values in the first half
+     *     of the sample
+     * @param sampleRowCount Number of rows in sample
+     * @param tableRowCount Number of rows in table, or -1 if not known
+     * @return Estimated number of distinct values in table
+     */
+    public static long extrapolate(
+        long sampleDistinct,
+        long halfSampleDistinct,
+        long sampleRowCount,
+        long tableRowCount)
+    {
+        if (tableRowCount <= sampleRowCount) {
+            return sampleDistinct;
+        }
+        final double rate =
+            (double) Math.max(sampleDistinct - halfSampleDistinct, 0)
+            / (sampleRowCount - sampleRowCount / 2);
+        final double estimate =
+            sampleDistinct + rate * (tableRowCount - sampleRowCount);
+        return Math.min((long) estimate, tableRowCount);
+    }
+
+    private static String key(DataSource dataSource, String... names) {
+        final StringBuilder buf = new StringBuilder(getUrl(dataSource));
+        for (String name : names) {
+            buf.append('|').append(name);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns the JDBC URL of a data source, which identifies it across
+     * restarts.
+     */
+    private static String getUrl(DataSource dataSource) {
+        String url = URLS.get(dataSource);
+        if (url == null) {
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                url = connection.getMetaData().getURL();
+            } catch (SQLException e) {
+                LOGGER.debug("Could not get URL of " + dataSource, e);
+            } finally {
+                Util.close(null, null, connection);
+            }
+            if (url == null) {
+                url = dataSource.toString();
+            }
+            URLS.put(dataSource, url);
+        }
+        return url;
+    }
+
+    private static Store getStore() {
+        String fileName =
+            MondrianProperties.instance().StatisticsSketchFile.get();
+        final File file =
+            fileName == null || fileName.equals("")
+                ? new File(
+                    System.getProperty("java.io.tmpdir"),
+                    "mondrian-statistics.properties")
+                : new File(fileName);
+        synchronized (STORES) {
+            Store store = STORES.get(file);
+            if (store == null) {
+                store = new Store(file);
+                STORES.put(file, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Computes a statistic.
+     */
+    private interface Estimator {
+        /**
+         * Computes the statistic.
+         *
+         * @param execution Execution in which to run SQL statements
+         * @return Statistic, or -1 if it cannot be computed
+         */
+        int estimate(Execution execution);
+    }
+
+    /**
+     * Statistics that have been computed, backed by a file. Each value
+     * consists of the statistic and the time it was computed.
+     */
+    static class Store {
+        private final File file;
+        private final Properties properties = new Properties();
+        private final Set<String> refreshingKeys = new HashSet<String>();
+
+        Store(File file) {
+            this.file = file;
+            if (file.exists()) {
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(file);
+                    properties.load(in);
+                } catch (IOException e) {
+                    LOGGER.warn("Could not read statistics from " + file, e);
+                } finally {
+                    close(in);
+                }
+            }
+        }
+
+        /**
+         * Returns a statistic and the time it was computed, or null.
+         */
+        synchronized long[] get(String key) {
+            final String value = properties.getProperty(key);
+            if (value == null) {
+                return null;
+            }
+            final int comma = value.indexOf(',');
+            try {
+                return new long[] {
+                    Long.parseLong(value.substring(0, comma)),
+                    Long.parseLong(value.substring(comma + 1))
+                };
+            } catch (RuntimeException e) {
+                // Corrupt entry. Compute it again.
+                return null;
+            }
+        }
+
+        /**
+         * Computes a statistic and, if successful, stores it.
+         */
+        int compute(String key, Estimator estimator, Execution execution) {
+            int n;
+            try {
+                n = estimator.estimate(execution);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not compute statistic " + key, e);
+                return -1;
+            }
+            if (n >= 0) {
+                put(key, n, System.currentTimeMillis());
+            }
+            return n;
+        }
+
+        synchronized void put(String key, long n, long timestamp) {
+            properties.setProperty(key, n + "," + timestamp);
+            // Write to a temporary file and rename, so that a reader never
+            // sees a partial file.
+            final File tempFile =
+                new File(file.getParentFile(), file.getName() + ".tmp");
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(tempFile);
+                properties.store(out, "Mondrian statistics");
+                out.close();
+                out = null;
+                if (!tempFile.renameTo(file)) {
+                    // On some platforms, renameTo does not replace.
+                    if (!file.delete() || !tempFile.renameTo(file)) {
+                        LOGGER.warn("Could not write statistics to " + file);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not write statistics to " + file, e);
+            } finally {
+                close(out);
+            }
+        }
+
+        /**
+         * Marks a statistic as being refreshed. Returns false if it is
+         * already being refreshed.
+         */
+        synchronized boolean startRefresh(String key) {
+            return refreshingKeys.add(key);
+        }
+
+        synchronized void endRefresh(String key) {
+            refreshingKeys.remove(key);
+        }
+
+        private static void close(Closeable closeable) {
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
+
+// End SketchStatisticsProvider.java
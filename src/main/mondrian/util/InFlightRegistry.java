@@ -0,0 +1,150 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.util;
+
+import mondrian.olap.Util;
+import mondrian.server.Execution;
+import mondrian.server.Locus;
+
+import java.util.EmptyStackException;
+import java.util.concurrent.*;
+
+/**
+ * Registry of computations that are in progress, so that threads that
+ * request a computation that another thread is already performing can wait
+ * for, and share, its result rather than repeat the work.
+ *
+ * <p>For example, when several statements request the same members at the
+ * same time, before any of them has been able to populate the member cache,
+ * the first executes the SQL and the others wait for it.</p>
+ *
+ * <p>A computation is registered only while it is running; the registry is
+ * not a cache. If the computation fails, each waiting thread performs it
+ * again itself, so that one statement's cancellation or timeout does not
+ * cause other statements to fail.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @param <K> Key type; must implement {@link Object#equals} and
+ *     {@link Object#hashCode}
+ * @param <V> Result type
+ *
+ * @author agent
+ */
+public class InFlightRegistry<K, V> {
+    /**
+     * Interval, in milliseconds, at which a thread that is waiting for
+     * another thread's computation checks whether its own statement has been
+     * canceled or has timed out.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final ConcurrentMap<K, Flight<V>> futures =
+        new ConcurrentHashMap<K, Flight<V>>();
+
+    /**
+     * Performs a computation, or, if a computation with the same key is in
+     * progress in another thread, waits for it and returns its result.
+     *
+     * <p>While it waits, the thread checks periodically whether its
+     * statement has been canceled or has timed out. If the computation with
+     * the same key is in progress in the current thread (that is, the
+     * computation has called this method re-entrantly) performs the
+     * computation again rather than waiting for itself.
+     *
+     * @param key Key identifying the computation
+     * @param callable Computation
+     * @return Result of computation
+     */
+    public V execute(K key, Callable<V> callable) {
+        final Flight<V> future = new Flight<V>();
+        final Flight<V> existing = futures.putIfAbsent(key, future);
+        if (existing != null) {
+            if (existing.owner == Thread.currentThread()) {
+                return call(callable);
+            }
+            try {
+                return await(existing);
+            } catch (InterruptedException e) {
+                throw Util.newError(e, "while waiting for " + key);
+            } catch (ExecutionException e) {
+                // The other thread failed. Try for ourselves.
+                return call(callable);
+            }
+        }
+        try {
+            final V v = call(callable);
+            future.put(v);
+            return v;
+        } catch (RuntimeException e) {
+            future.fail(e);
+            throw e;
+        } catch (Error e) {
+            future.fail(e);
+            throw e;
+        } finally {
+            futures.remove(key, future);
+        }
+    }
+
+    /**
+     * Waits for another thread's computation to finish, throwing if the
+     * current statement is canceled or times out meanwhile. If the current
+     * thread is not executing a statement, waits without checking.
+     */
+    private static <V> V await(Flight<V> future)
+        throws InterruptedException, ExecutionException
+    {
+        final Execution execution;
+        try {
+            execution = Locus.peek().execution;
+        } catch (EmptyStackException e) {
+            return future.get();
+        }
+        while (true) {
+            try {
+                return future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                execution.checkCancelOrTimeout();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of computations in progress.
+     *
+     * @return Number of computations in progress
+     */
+    public int size() {
+        return futures.size();
+    }
+
+    private static <V> V call(Callable<V> callable) {
+        try {
+            return callable.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Exception e) {
+            throw Util.newError(e, "while executing " + callable);
+        }
+    }
+
+    /**
+     * Result of a computation in progress, and the thread that is performing
+     * it.
+     */
+    private static class Flight<V> extends SlotFuture<V> {
+        final Thread owner = Thread.currentThread();
+    }
+}
+
+// End InFlightRegistry.java
@@ -5,7 +5,7 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2004-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.olap;
@@ -922,6 +922,60 @@ public class ParserTest extends FoodMartTestCase {
         assertEquals(1, call.getArgCount());
     }
 
+    /**
+     * Tests {@link QueryPlanCache#normalize(String)}, which collapses white
+     * space and removes comments outside quoted strings and identifiers.
+     */
+    public void testNormalizeQueryText() {
+        assertEquals(
+            "select [Store].[With   multiple  spaces] on 0 from [Sales]",
+            QueryPlanCache.normalize(
+                "  select  [Store].[With   multiple  spaces]\ton 0 "
+                + "from [Sales]\n"));
+        assertEquals(
+            "with member [Measures].[A b] as 'Iif(1 = 1,\n\"a  b\", \"c\")'"
+            + " select from [Sales]",
+            QueryPlanCache.normalize(
+                "with member [Measures].[A b] as 'Iif(1 = 1,\n\"a  b\", \"c\")'"
+                + "  select \n \n from [Sales]"));
+        // Escaped quotes
+        assertEquals(
+            "select [Foo]]  bar] on 0, {'it''s  a', 'b'} on 1",
+            QueryPlanCache.normalize(
+                "select [Foo]]  bar]  on 0,  {'it''s  a',  'b'} on 1"));
+    }
+
+    /**
+     * Tests that {@link QueryPlanCache#normalize(String)} removes comments,
+     * and that quotes inside a comment do not start a quoted string.
+     */
+    public void testNormalizeQueryTextComments() {
+        assertEquals(
+            "select {} on 0 from [Sales]",
+            QueryPlanCache.normalize(
+                "select   -- comment \r\n  {} on 0 from [Sales] // end"));
+        assertEquals(
+            "select {} on 0 from [Sales]",
+            QueryPlanCache.normalize(
+                "select /* it's /* nested */ [ */{} on 0 from [Sales]"));
+        // The quote in the comment does not start a quoted string, so white
+        // space in the string that follows is kept.
+        assertEquals(
+            "with member [Measures].[A] as 'Len(\"a  b\")' select from [Sales]",
+            QueryPlanCache.normalize(
+                "with -- it's\nmember [Measures].[A] as 'Len(\"a  b\")'\n"
+                + "select from [Sales]"));
+        assertEquals(
+            "select {'a  b'} on 0 from [Sales]",
+            QueryPlanCache.normalize(
+                "select /* it's */ {'a  b'} on 0 from [Sales]"));
+        // Comment markers inside quoted strings and identifiers are kept.
+        assertEquals(
+            "select [a -- b] on 0, {'/* c */'} on 1",
+            QueryPlanCache.normalize(
+                "select [a -- b]  on 0, {'/* c */'} on 1"));
+    }
+
     /**
      * Parses an MDX query and asserts that the result is as expected when
      * unparsed.
@@ -981,6 +981,33 @@ public class BatchTestCase extends FoodMartTestCase {
         return connection.execute(query);
     }
 
+    /**
+     * Executes a query and returns the SQL statements that it executed, in
+     * any thread.
+     *
+     * @param mdx MDX query
+     * @return List of SQL statements, in the order they were executed
+     */
+    protected List<String> executeQueryCollectingSql(String mdx) {
+        final List<String> sqlList = new ArrayList<String>();
+        RolapUtil.setHook(
+            new RolapUtil.ExecuteQueryHook() {
+                public void onExecuteQuery(String sql) {
+                    synchronized (sqlList) {
+                        sqlList.add(sql);
+                    }
+                }
+            });
+        try {
+            getTestContext().executeQuery(mdx);
+        } finally {
+            RolapUtil.setHook(null);
+        }
+        synchronized (sqlList) {
+            return new ArrayList<String>(sqlList);
+        }
+    }
+
     /**
      * Convenience method for debugging; please do not delete.
      */
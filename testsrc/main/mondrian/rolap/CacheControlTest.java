@@ -11,12 +11,13 @@ package mondrian.rolap;
 
 import mondrian.olap.*;
 import mondrian.olap.CacheControl.CellRegion;
+import mondrian.spi.SegmentCache;
+import mondrian.spi.SegmentHeader;
 import mondrian.test.*;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * Unit-test for cache-flushing functionality.
@@ -1213,6 +1214,56 @@ public class CacheControlTest extends FoodMartTestCase {
         cacheControl.flush(flushRegion);
     }
 
+    /**
+     * Tests {@link CacheControl#append(CellRegion)}. Appending a month to a
+     * segment that holds months must merge the month's cells into the
+     * segment, leave the same segment headers in cache (not, for instance,
+     * an extra header for the month), and return the same values.
+     */
+    public void testAppend() {
+        if (MondrianProperties.instance().DisableCaching.get()) {
+            return;
+        }
+        final TestContext testContext = getTestContext();
+        flushCache(testContext);
+        final String query =
+            "select [Gender].Children on 0,\n"
+            + " [Time].[1997].[Q1].Children on 1\n"
+            + "from [Sales]\n"
+            + "where [Measures].[Unit Sales]";
+        final String expected =
+            TestContext.toString(testContext.executeQuery(query));
+
+        final SegmentCache compositeCache =
+            ((RolapConnection) testContext.getConnection()).getServer()
+                .getAggregationManager().cacheMgr.compositeCache;
+        final Set<SegmentHeader> headers =
+            new HashSet<SegmentHeader>(compositeCache.getSegmentHeaders());
+        assertFalse(headers.isEmpty());
+
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        final CacheControl cacheControl =
+            testContext.getConnection().getCacheControl(pw);
+        final Cube salesCube =
+            testContext.getConnection().getSchema().lookupCube("Sales", true);
+        final Member february =
+            testContext.getConnection().getSchemaReader().withLocus()
+                .getMemberByUniqueName(
+                    Id.Segment.toList("Time", "1997", "Q1", "2"), true);
+        cacheControl.append(
+            cacheControl.createCrossjoinRegion(
+                cacheControl.createMeasuresRegion(salesCube),
+                cacheControl.createMemberRegion(february, false)));
+        pw.flush();
+        assertTrue(sw.toString(), sw.toString().contains("append to segment"));
+
+        assertEquals(
+            headers,
+            new HashSet<SegmentHeader>(compositeCache.getSegmentHeaders()));
+        testContext.assertQueryReturns(query, expected);
+    }
+
     public void testMondrian1094() throws Exception {
         final String query =
             "select NON EMPTY {[Measures].[Unit Sales]} ON COLUMNS, \n"
@@ -360,6 +360,39 @@ public class CellKeyTest extends FoodMartTestCase {
         testContext.assertQueryReturns(query, result);
     }
 
+    /**
+     * Tests that {@link CellKey#getOffset(long[])} agrees with
+     * {@link CellKey#getOffset(int[])} for each implementation, and does not
+     * overflow when the product of axis lengths exceeds 2^31.
+     */
+    public void testLongOffset() {
+        for (int size = 0; size < 7; size++) {
+            final int[] ordinals = new int[size];
+            final int[] intMultipliers = new int[size];
+            final long[] longMultipliers = new long[size];
+            int multiplier = 1;
+            for (int i = size - 1; i >= 0; --i) {
+                ordinals[i] = i + 1;
+                intMultipliers[i] = multiplier;
+                longMultipliers[i] = multiplier;
+                multiplier *= 10;
+            }
+            final CellKey key = CellKey.Generator.newCellKey(ordinals);
+            assertEquals(
+                (long) key.getOffset(intMultipliers),
+                key.getOffset(longMultipliers));
+        }
+
+        // 3 axes of length 100,000, 100,000 and 1,000.
+        final long[] longMultipliers = {100000000L, 1000L, 1L};
+        final CellKey key =
+            CellKey.Generator.newCellKey(new int[] {99999, 5, 7});
+        assertEquals(9999900005007L, key.getOffset(longMultipliers));
+        assertEquals(
+            9999900005007L,
+            CellKey.Generator.getOffset(key.getOrdinals(), longMultipliers));
+    }
+
     public void testSize() {
         for (int i = 1; i < 20; i++) {
             assertEquals(i, CellKey.Generator.newCellKey(new int[i]).size());
@@ -0,0 +1,145 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.test.FoodMartTestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link ExpResultCache}.
+ *
+ * @author agent
+ */
+public class ExpResultCacheTest extends FoodMartTestCase {
+    private RolapSchema schema;
+    private RolapStar salesStar;
+    private RolapStar warehouseStar;
+
+    public ExpResultCacheTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        propSaver.set(MondrianProperties.instance().ExpCacheSharedMaxSize, 10);
+        schema = ((RolapConnection) getConnection()).getSchema();
+        salesStar = ((RolapCube) schema.lookupCube("Sales", true)).getStar();
+        warehouseStar =
+            ((RolapCube) schema.lookupCube("Warehouse", true)).getStar();
+    }
+
+    protected void tearDown() throws Exception {
+        schema = null;
+        salesStar = null;
+        warehouseStar = null;
+        super.tearDown();
+    }
+
+    private ExpResultCache.Key key(RolapSchema schema, String text) {
+        return new ExpResultCache.Key(
+            schema, null, Locale.US, text, false,
+            Collections.<Object>emptyList());
+    }
+
+    /**
+     * Tests that flushing the cells of a star removes the entries that
+     * depend on that star, and only those.
+     */
+    public void testFlushStars() {
+        final ExpResultCache cache = new ExpResultCache();
+        final ExpResultCache.Key salesKey = key(schema, "sales");
+        final ExpResultCache.Key warehouseKey = key(schema, "warehouse");
+        final ExpResultCache.Key bothKey = key(schema, "both");
+        cache.put(
+            salesKey, "s", Collections.singleton(salesStar),
+            cache.getGeneration());
+        cache.put(
+            warehouseKey, "w", Collections.singleton(warehouseStar),
+            cache.getGeneration());
+        cache.put(
+            bothKey, "b",
+            new HashSet<RolapStar>(Arrays.asList(salesStar, warehouseStar)),
+            cache.getGeneration());
+        assertEquals(3, cache.size());
+        assertEquals("s", cache.get(key(schema, "sales")));
+
+        cache.flush(Collections.singletonList(salesStar));
+        assertEquals(1, cache.size());
+        assertNull(cache.get(salesKey));
+        assertNull(cache.get(bothKey));
+        assertEquals("w", cache.get(warehouseKey));
+    }
+
+    /**
+     * Tests that flushing a schema removes the entries of that schema, and
+     * only those.
+     */
+    public void testFlushSchema() {
+        final ExpResultCache cache = new ExpResultCache();
+        final Set<RolapStar> stars = Collections.singleton(salesStar);
+        final ExpResultCache.Key key = key(schema, "x");
+        final ExpResultCache.Key otherKey = key(null, "x");
+        cache.put(key, "a", stars, cache.getGeneration());
+        cache.put(otherKey, "b", stars, cache.getGeneration());
+        assertEquals(2, cache.size());
+
+        cache.flush(schema);
+        assertNull(cache.get(key));
+        assertEquals("b", cache.get(otherKey));
+    }
+
+    /**
+     * Tests that a value whose computation started before a flush is not
+     * put into the cache, because it might have read cells that the flush
+     * removed.
+     */
+    public void testGeneration() {
+        final ExpResultCache cache = new ExpResultCache();
+        final Set<RolapStar> stars = Collections.singleton(salesStar);
+        final ExpResultCache.Key key = key(schema, "x");
+        final long generation = cache.getGeneration();
+
+        // Flushing an unrelated star also starts a new generation.
+        cache.flush(Collections.singletonList(warehouseStar));
+        assertTrue(cache.getGeneration() != generation);
+        cache.put(key, "stale", stars, generation);
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+
+        cache.put(key, "fresh", stars, cache.getGeneration());
+        assertEquals("fresh", cache.get(key));
+    }
+
+    /**
+     * Tests that when the cache is full, the least recently used entry is
+     * removed, and that no entries are added if the cache is disabled.
+     */
+    public void testMaxSize() {
+        propSaver.set(MondrianProperties.instance().ExpCacheSharedMaxSize, 2);
+        final ExpResultCache cache = new ExpResultCache();
+        final Set<RolapStar> stars = Collections.singleton(salesStar);
+        cache.put(key(schema, "a"), "a", stars, cache.getGeneration());
+        cache.put(key(schema, "b"), "b", stars, cache.getGeneration());
+        assertEquals("a", cache.get(key(schema, "a")));
+        cache.put(key(schema, "c"), "c", stars, cache.getGeneration());
+        assertEquals(2, cache.size());
+        assertNull(cache.get(key(schema, "b")));
+        assertEquals("a", cache.get(key(schema, "a")));
+        assertEquals("c", cache.get(key(schema, "c")));
+
+        propSaver.set(MondrianProperties.instance().ExpCacheSharedMaxSize, 0);
+        cache.put(key(schema, "d"), "d", stars, cache.getGeneration());
+        assertNull(cache.get(key(schema, "d")));
+    }
+}
+
+// End ExpResultCacheTest.java
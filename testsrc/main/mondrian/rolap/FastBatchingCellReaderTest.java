@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2007-2012 Pentaho and others
+// Copyright (C) 2007-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap;
@@ -208,6 +208,44 @@ public class FastBatchingCellReaderTest extends BatchTestCase {
         }
     }
 
+    /**
+     * Tests that a reader that merges the readers it forked takes their cell
+     * requests and counts, and loads the cells they requested.
+     */
+    public void testMerge() {
+        // Do not resolve requests from cache until the end of the phase.
+        propSaver.set(MondrianProperties.instance().CellBatchChunkSize, 0);
+        final FastBatchingCellReader reader =
+            new FastBatchingCellReader(e, salesCube, aggMgr);
+        final FastBatchingCellReader reader1 = reader.fork();
+        final FastBatchingCellReader reader2 = reader.fork();
+        final CellRequest request1 =
+            createRequest(
+                cubeNameSales, measureUnitSales, "customer", "gender", "F");
+        final CellRequest request2 =
+            createRequest(
+                cubeNameSales, measureUnitSales,
+                "customer", "marital_status", "M");
+        reader1.recordCellRequest(request1);
+        reader2.recordCellRequest(request2);
+        assertTrue(reader1.isDirty());
+        assertFalse(reader.isDirty());
+
+        reader.merge(reader1);
+        reader.merge(reader2);
+        assertTrue(reader.isDirty());
+        assertEquals(2, reader.getMissCount());
+        assertEquals(0, reader.getHitCount());
+
+        assertTrue(reader.loadAggregations());
+        assertFalse(reader.isDirty());
+        for (CellRequest request : Arrays.asList(request1, request2)) {
+            assertNotNull(
+                request.getMeasure().getStar().getCellFromCache(
+                    request, null));
+        }
+    }
+
     public void testGroupBatchesForNonGroupableBatchesWithSorting() {
         final BatchLoader fbcr = createFbcr(null, salesCube);
         BatchLoader.Batch genderBatch = fbcr.new Batch(
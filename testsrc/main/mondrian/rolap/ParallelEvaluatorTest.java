@@ -0,0 +1,113 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.server.Execution;
+import mondrian.server.Locus;
+import mondrian.test.FoodMartTestCase;
+import mondrian.test.TestContext;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link ParallelEvaluator}.
+ *
+ * @author agent
+ */
+public class ParallelEvaluatorTest extends FoodMartTestCase {
+    private Locus locus;
+
+    public ParallelEvaluatorTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        final RolapConnection connection = (RolapConnection) getConnection();
+        locus =
+            new Locus(
+                new Execution(connection.getInternalStatement(), 0),
+                getName(),
+                null);
+        Locus.push(locus);
+    }
+
+    protected void tearDown() throws Exception {
+        Locus.pop(locus);
+        locus = null;
+        super.tearDown();
+    }
+
+    /**
+     * Tests that {@link ParallelEvaluator#sort} sorts, and is stable, for
+     * various numbers of threads. If the number of threads is odd, there is
+     * an odd number of runs to merge, and the last run of a pass is copied
+     * without being merged.
+     */
+    public void testSort() {
+        final Comparator<Integer> comparator =
+            new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    // Many elements compare equal.
+                    return o1 % 7 - o2 % 7;
+                }
+            };
+        for (int threadCount : new int[] {2, 3, 4, 5, 7}) {
+            propSaver.set(
+                MondrianProperties.instance().SetEvaluationThreads,
+                threadCount);
+            for (int size : new int[] {0, 1, 2, 3, 10, 1001}) {
+                final Integer[] a = new Integer[size];
+                final Random random = new Random(size);
+                for (int i = 0; i < size; i++) {
+                    a[i] = random.nextInt(1000);
+                }
+                final Integer[] expected = a.clone();
+                Arrays.sort(expected, comparator);
+                ParallelEvaluator.sort(a, comparator);
+                assertEquals(
+                    "threadCount=" + threadCount + ", size=" + size,
+                    Arrays.asList(expected),
+                    Arrays.asList(a));
+            }
+        }
+    }
+
+    /**
+     * Tests that a named set whose elements are filtered using another named
+     * set that has not been evaluated yet returns the same result whether or
+     * not sets are evaluated in parallel. The named set is evaluated while
+     * holding the lock of the query's result; if it were evaluated in
+     * parallel, the threads that need the other named set would wait for
+     * that lock forever.
+     */
+    public void testNestedNamedSets() {
+        final String query =
+            "with set [CA Stores] as\n"
+            + "  'Filter([Store].[Store Name].Members,\n"
+            + "     [Store].CurrentMember.Parent.Parent.Name = \"CA\")'\n"
+            + " set [Top Products] as\n"
+            + "  'Filter([Product].[Product Name].Members,\n"
+            + "     Sum([CA Stores], [Measures].[Unit Sales]) > 30)'\n"
+            + "select [Measures].[Unit Sales] on 0,\n"
+            + " Head(Order([Top Products], [Measures].[Unit Sales], BDESC),\n"
+            + "   10) on 1\n"
+            + "from [Sales]";
+        propSaver.set(MondrianProperties.instance().SetEvaluationThreads, 1);
+        final String expected = TestContext.toString(executeQuery(query));
+        propSaver.set(MondrianProperties.instance().SetEvaluationThreads, 4);
+        propSaver.set(
+            MondrianProperties.instance().SetEvaluationParallelThreshold, 2);
+        assertEquals(expected, TestContext.toString(executeQuery(query)));
+    }
+}
+
+// End ParallelEvaluatorTest.java
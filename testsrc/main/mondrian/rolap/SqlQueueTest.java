@@ -0,0 +1,211 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.CacheControl;
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.QueryCanceledException;
+import mondrian.server.Execution;
+import mondrian.server.Locus;
+import mondrian.server.monitor.ServerInfo;
+import mondrian.server.monitor.SqlQueueInfo;
+import mondrian.test.FoodMartTestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link SqlQueue}.
+ *
+ * @author agent
+ */
+public class SqlQueueTest extends FoodMartTestCase {
+    public SqlQueueTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that when a queue is full, a waiting interactive statement
+     * starts before a cache-warming statement that has waited longer.
+     */
+    public void testPriority() throws Exception {
+        propSaver.set(MondrianProperties.instance().SqlQueueLimit, 1);
+        final SqlQueue queue = new SqlQueue("test");
+        final List<SqlQueue.Priority> started =
+            Collections.synchronizedList(new ArrayList<SqlQueue.Priority>());
+        assertEquals(0, queue.enter(SqlQueue.Priority.INTERACTIVE));
+
+        final Thread warming =
+            start(queue, SqlQueue.Priority.CACHE_WARMING, started);
+        awaitWaiting(queue, SqlQueue.Priority.CACHE_WARMING);
+        final Thread interactive =
+            start(queue, SqlQueue.Priority.INTERACTIVE, started);
+        awaitWaiting(queue, SqlQueue.Priority.INTERACTIVE);
+        assertEquals(1, queue.getActiveCount());
+
+        queue.leave(SqlQueue.Priority.INTERACTIVE);
+        interactive.join();
+        warming.join();
+        assertEquals(
+            Arrays.asList(
+                SqlQueue.Priority.INTERACTIVE,
+                SqlQueue.Priority.CACHE_WARMING),
+            started);
+        assertEquals(0, queue.getActiveCount());
+    }
+
+    /**
+     * Tests that the limit of a priority holds back statements of that
+     * priority, but not statements of other priorities.
+     */
+    public void testPriorityLimit() throws Exception {
+        propSaver.set(
+            MondrianProperties.instance().SqlQueueDrillThroughLimit, 1);
+        final SqlQueue queue = new SqlQueue("test");
+        final List<SqlQueue.Priority> started =
+            Collections.synchronizedList(new ArrayList<SqlQueue.Priority>());
+        assertEquals(0, queue.enter(SqlQueue.Priority.DRILL_THROUGH));
+
+        final Thread drillThrough =
+            start(queue, SqlQueue.Priority.DRILL_THROUGH, started);
+        awaitWaiting(queue, SqlQueue.Priority.DRILL_THROUGH);
+
+        // Neither an interactive statement nor a cache-warming statement
+        // needs to wait. The waiting drill-through statement does not block
+        // the cache-warming statement, because it could not start anyway.
+        assertEquals(0, queue.enter(SqlQueue.Priority.INTERACTIVE));
+        assertEquals(0, queue.enter(SqlQueue.Priority.CACHE_WARMING));
+        assertEquals(3, queue.getActiveCount());
+        assertTrue(started.isEmpty());
+
+        queue.leave(SqlQueue.Priority.DRILL_THROUGH);
+        drillThrough.join();
+        assertEquals(
+            Collections.singletonList(SqlQueue.Priority.DRILL_THROUGH),
+            started);
+        queue.leave(SqlQueue.Priority.INTERACTIVE);
+        queue.leave(SqlQueue.Priority.CACHE_WARMING);
+        assertEquals(0, queue.getActiveCount());
+    }
+
+    /**
+     * Tests that a statement waiting in a full queue gives up when its
+     * execution is canceled, and lets the next statement start.
+     */
+    public void testCancelWhileWaiting() throws Exception {
+        propSaver.set(MondrianProperties.instance().SqlQueueLimit, 1);
+        final SqlQueue queue = new SqlQueue("test");
+        final RolapConnection connection =
+            (RolapConnection) getTestContext().getConnection();
+        final Execution execution =
+            new Execution(connection.getInternalStatement(), 0);
+        execution.start();
+        assertEquals(0, queue.enter(SqlQueue.Priority.INTERACTIVE));
+
+        final List<Throwable> errors =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        final Thread thread =
+            new Thread(
+                new Runnable() {
+                    public void run() {
+                        final Locus locus =
+                            new Locus(execution, "cancel", null);
+                        Locus.push(locus);
+                        try {
+                            queue.enter(SqlQueue.Priority.INTERACTIVE);
+                            queue.leave(SqlQueue.Priority.INTERACTIVE);
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        } finally {
+                            Locus.pop(locus);
+                        }
+                    }
+                },
+                "SqlQueueTest-cancel");
+        thread.start();
+        awaitWaiting(queue, SqlQueue.Priority.INTERACTIVE);
+
+        execution.cancel();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof QueryCanceledException);
+        assertEquals(0, queue.getWaitingCount(SqlQueue.Priority.INTERACTIVE));
+        assertEquals(1, queue.getActiveCount());
+        queue.leave(SqlQueue.Priority.INTERACTIVE);
+        assertEquals(0, queue.getActiveCount());
+    }
+
+    /**
+     * Tests that statements go through their data source's queue, and that
+     * the monitor reports statistics for each queue.
+     */
+    public void testMonitor() {
+        final RolapConnection connection =
+            (RolapConnection) getTestContext().getConnection();
+        final CacheControl cacheControl = connection.getCacheControl(null);
+        cacheControl.flush(cacheControl.createMeasuresRegion(
+            connection.getSchema().getCubes()[0]));
+        assertSame(
+            SqlQueue.forDataSource(connection.getDataSource()),
+            SqlQueue.forDataSource(connection.getDataSource()));
+
+        executeQuery(
+            "select [Measures].[Unit Sales] on 0,\n"
+            + " [Product].Children on 1\n"
+            + "from [Sales]");
+        final ServerInfo serverInfo =
+            connection.getServer().getMonitor().getServer();
+        final String name =
+            SqlQueue.forDataSource(connection.getDataSource()).name;
+        int executeCount = 0;
+        for (SqlQueueInfo sqlQueue : serverInfo.sqlQueues) {
+            if (sqlQueue.queue.equals(name)) {
+                assertEquals(SqlQueue.Priority.INTERACTIVE, sqlQueue.priority);
+                assertTrue(sqlQueue.waitNanos >= sqlQueue.maxWaitNanos);
+                executeCount += sqlQueue.executeCount;
+            }
+        }
+        assertTrue(executeCount > 0);
+        assertTrue(serverInfo.sqlStatementQueueWaitNanos >= 0);
+    }
+
+    private static Thread start(
+        final SqlQueue queue,
+        final SqlQueue.Priority priority,
+        final List<SqlQueue.Priority> started)
+    {
+        final Thread thread =
+            new Thread(
+                new Runnable() {
+                    public void run() {
+                        queue.enter(priority);
+                        started.add(priority);
+                        queue.leave(priority);
+                    }
+                },
+                "SqlQueueTest-" + priority);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(
+        SqlQueue queue,
+        SqlQueue.Priority priority)
+        throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getWaitingCount(priority) == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
+
+// End SqlQueueTest.java
@@ -14,6 +14,7 @@ package mondrian.rolap;
 
 import mondrian.olap.*;
 import mondrian.rolap.agg.*;
+import mondrian.rolap.aggmatcher.AggStar;
 import mondrian.server.*;
 import mondrian.spi.Dialect;
 import mondrian.test.SqlPattern;
@@ -104,6 +105,40 @@ public class TestAggregationManager extends BatchTestCase {
         assertEquals(2755, ((Number) value).intValue());
     }
 
+    /**
+     * Tests that cell requests that can be answered from cache are resolved
+     * in chunks, and do not count towards the limit that ends the phase.
+     */
+    public void testCellRequestChunks() {
+        final CellRequest femaleRequest = createRequest(
+            "Sales", "[Measures].[Unit Sales]", "customer", "gender", "F");
+        final CellRequest maleRequest = createRequest(
+            "Sales", "[Measures].[Unit Sales]", "customer", "gender", "M");
+        final FastBatchingCellReader fbcr =
+            new FastBatchingCellReader(execution, getCube("Sales"), aggMgr);
+        fbcr.recordCellRequest(femaleRequest);
+        fbcr.recordCellRequest(maleRequest);
+        fbcr.loadAggregations();
+
+        // The segment is now in the global cache. Without chunks, the third
+        // request would exceed the limit.
+        propSaver.set(MondrianProperties.instance().CellBatchChunkSize, 2);
+        propSaver.set(MondrianProperties.instance().CellBatchSize, 3);
+        final FastBatchingCellReader fbcr2 =
+            new FastBatchingCellReader(execution, getCube("Sales"), aggMgr);
+        for (int i = 0; i < 5; i++) {
+            fbcr2.recordCellRequest(femaleRequest);
+            fbcr2.recordCellRequest(maleRequest);
+        }
+        assertEquals(10, fbcr2.getMissCount());
+        assertTrue(fbcr2.isDirty());
+        assertTrue(fbcr2.loadAggregations());
+        assertFalse(fbcr2.isDirty());
+        Object value = aggMgr.getCellFromCache(maleRequest);
+        assertTrue(value instanceof Number);
+        assertEquals(135215, ((Number) value).intValue());
+    }
+
     public void testFemaleCustomerCountWithConstraints() {
         List<String[]> Q1M1 = new ArrayList<String[]> ();
         Q1M1.add(new String[] {"1997", "Q1", "1"});
@@ -185,6 +220,137 @@ public class TestAggregationManager extends BatchTestCase {
         assertRequestSql(new CellRequest[]{request}, patterns);
     }
 
+    /**
+     * Tests that, with {@link MondrianProperties#ChooseAggregateByCost}, the
+     * aggregate table with the lowest estimated cost is chosen, even if it is
+     * not the smallest.
+     *
+     * <p>The cube has two aggregate tables, whose sizes are given by
+     * {@code approxRowCount}. The smaller, agg_l_03_sales_fact_1997, must be
+     * joined to the customer table to read gender; the larger,
+     * agg_g_ms_pcat_sales_fact_1997, has gender collapsed into it. Without
+     * the property, the smaller table is chosen; with it, the larger.
+     */
+    public void testChooseAggregateByCost() {
+        propSaver.set(MondrianProperties.instance().UseAggregates, true);
+        propSaver.set(MondrianProperties.instance().ReadAggregates, true);
+        final TestContext testContext =
+            TestContext.instance().create(
+                null,
+                "<Cube name=\"Sales Cost\">\n"
+                + "  <Table name=\"sales_fact_1997\">\n"
+                + "    <AggExclude ignorecase=\"true\"\n"
+                + "        pattern=\"agg_(?!l_03_|g_ms_pcat_).*\"/>\n"
+                + "    <AggName name=\"agg_l_03_sales_fact_1997\"\n"
+                + "        approxRowCount=\"1000\">\n"
+                + "      <AggFactCount column=\"FACT_COUNT\"/>\n"
+                + "      <AggIgnoreColumn column=\"STORE_SALES\"/>\n"
+                + "      <AggIgnoreColumn column=\"STORE_COST\"/>\n"
+                + "      <AggForeignKey factColumn=\"customer_id\"\n"
+                + "          aggColumn=\"CUSTOMER_ID\"/>\n"
+                + "      <AggForeignKey factColumn=\"time_id\"\n"
+                + "          aggColumn=\"TIME_ID\"/>\n"
+                + "      <AggMeasure name=\"[Measures].[Unit Sales]\"\n"
+                + "          column=\"UNIT_SALES\"/>\n"
+                + "    </AggName>\n"
+                + "    <AggName name=\"agg_g_ms_pcat_sales_fact_1997\"\n"
+                + "        approxRowCount=\"1100\">\n"
+                + "      <AggFactCount column=\"FACT_COUNT\"/>\n"
+                + "      <AggIgnoreColumn column=\"STORE_SALES\"/>\n"
+                + "      <AggIgnoreColumn column=\"STORE_COST\"/>\n"
+                + "      <AggIgnoreColumn column=\"CUSTOMER_COUNT\"/>\n"
+                + "      <AggIgnoreColumn column=\"MARITAL_STATUS\"/>\n"
+                + "      <AggIgnoreColumn column=\"PRODUCT_FAMILY\"/>\n"
+                + "      <AggIgnoreColumn column=\"PRODUCT_DEPARTMENT\"/>\n"
+                + "      <AggIgnoreColumn column=\"PRODUCT_CATEGORY\"/>\n"
+                + "      <AggMeasure name=\"[Measures].[Unit Sales]\"\n"
+                + "          column=\"UNIT_SALES\"/>\n"
+                + "      <AggLevel name=\"[Gender].[Gender]\"\n"
+                + "          column=\"GENDER\"/>\n"
+                + "      <AggLevel name=\"[Time].[Year]\"\n"
+                + "          column=\"THE_YEAR\"/>\n"
+                + "      <AggLevel name=\"[Time].[Quarter]\"\n"
+                + "          column=\"QUARTER\"/>\n"
+                + "      <AggLevel name=\"[Time].[Month]\"\n"
+                + "          column=\"MONTH_OF_YEAR\"/>\n"
+                + "    </AggName>\n"
+                + "  </Table>\n"
+                + "  <DimensionUsage name=\"Time\" source=\"Time\"\n"
+                + "      foreignKey=\"time_id\"/>\n"
+                + "  <Dimension name=\"Gender\" foreignKey=\"customer_id\">\n"
+                + "    <Hierarchy hasAll=\"true\" primaryKey=\"customer_id\">\n"
+                + "      <Table name=\"customer\"/>\n"
+                + "      <Level name=\"Gender\" column=\"gender\"\n"
+                + "          uniqueMembers=\"true\"/>\n"
+                + "    </Hierarchy>\n"
+                + "  </Dimension>\n"
+                + "  <Measure name=\"Unit Sales\" column=\"unit_sales\"\n"
+                + "      aggregator=\"sum\" formatString=\"Standard\"/>\n"
+                + "</Cube>",
+                null, null, null, null);
+        final Cube cube =
+            testContext.getConnection().getSchema().lookupCube(
+                "Sales Cost", true);
+        final RolapStar.Measure measure =
+            RolapStar.getStarMeasure(
+                cube.getSchemaReader(null).getMemberByUniqueName(
+                    Util.parseIdentifier("[Measures].[Unit Sales]"), true));
+        final RolapStar star = measure.getStar();
+        final RolapStar.Column column = star.lookupColumn("customer", "gender");
+        final BitKey levelBitKey = BitKey.Factory.makeBitKey(
+            star.getColumnCount());
+        levelBitKey.set(column.getBitPosition());
+        final BitKey measureBitKey = levelBitKey.emptyCopy();
+        measureBitKey.set(measure.getBitPosition());
+        final StarColumnPredicate[] predicates = {
+            new ValueColumnPredicate(column, "F")
+        };
+        final boolean[] rollup = {false};
+
+        // Without the property, the first suitable table (the smallest) is
+        // chosen.
+        propSaver.set(
+            MondrianProperties.instance().ChooseAggregateByCost, false);
+        final AggStar smallest =
+            AggregationManager.findAgg(
+                star, levelBitKey, measureBitKey, predicates, rollup, null);
+        assertNotNull(smallest);
+        assertEquals(
+            "agg_l_03_sales_fact_1997",
+            smallest.getFactTable().getName().toLowerCase());
+
+        // With the property, the cheaper table. For the rows that survive
+        // the predicate, agg_l_03 costs a join and a rollup; agg_g_ms_pcat
+        // costs only a rollup.
+        propSaver.set(
+            MondrianProperties.instance().ChooseAggregateByCost, true);
+        final List<AggregationManager.AggStarCost> costs =
+            new ArrayList<AggregationManager.AggStarCost>();
+        final AggStar cheapest =
+            AggregationManager.findAgg(
+                star, levelBitKey, measureBitKey, predicates, rollup, costs);
+        assertNotNull(cheapest);
+        assertEquals(
+            "agg_g_ms_pcat_sales_fact_1997",
+            cheapest.getFactTable().getName().toLowerCase());
+        assertTrue(rollup[0]);
+        assertEquals(costs.toString(), 2, costs.size());
+        assertSame(smallest, costs.get(0).aggStar);
+        assertSame(cheapest, costs.get(1).aggStar);
+        assertTrue(costs.toString(), costs.get(1).cost < costs.get(0).cost);
+
+        // The predicate on gender reduces the cost of each table below its
+        // cost for all rows, but no lower than its size.
+        for (AggregationManager.AggStarCost cost : costs) {
+            assertTrue(cost.cost >= cost.aggStar.getSize());
+            assertTrue(
+                cost.toString(),
+                cost.cost
+                < AggregationManager.estimateCost(
+                    cost.aggStar, levelBitKey, null, cost.rollup));
+        }
+    }
+
     /**
      * As {@link #testFemaleUnitSalesSql()}, but with aggregate tables switched
      * on.
@@ -0,0 +1,285 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.rolap.BitKey;
+import mondrian.spi.*;
+import mondrian.test.PerformanceTest;
+import mondrian.test.PropertySaver;
+import mondrian.util.ByteString;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Unit test for {@link BinarySegmentCodec}.
+ *
+ * @author agent
+ */
+public class BinarySegmentCodecTest extends TestCase {
+    public BinarySegmentCodecTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that a header survives a round trip, including wildcard
+     * columns, excluded regions and the bit key.
+     */
+    public void testHeader() {
+        final BitKey bitKey = BitKey.Factory.makeBitKey(100);
+        bitKey.set(3);
+        bitKey.set(70);
+        final SegmentHeader header =
+            new SegmentHeader(
+                "FoodMart",
+                new ByteString(new byte[] {1, 2, 3}),
+                "Sales",
+                "Unit Sales",
+                Arrays.asList(
+                    new SegmentColumn("time.year", 2, set(1997, 1998)),
+                    new SegmentColumn("store.state", 10, null)),
+                Collections.singletonList("compound predicate"),
+                "sales_fact_1997",
+                bitKey,
+                Collections.singletonList(
+                    Collections.singletonList(
+                        new SegmentColumn(
+                            "store.state", 10, set("CA", "OR")))));
+        for (BinarySegmentCodec codec : codecs()) {
+            final SegmentHeader header2 =
+                codec.decodeHeader(codec.encodeHeader(header));
+            assertEquals(header, header2);
+            assertEquals(header.getUniqueID(), header2.getUniqueID());
+            assertEquals(
+                header.getConstrainedColumnsBitKey(),
+                header2.getConstrainedColumnsBitKey());
+            assertEquals(
+                header.getExcludedCellRegions(),
+                header2.getExcludedCellRegions());
+            assertEquals(header.compoundPredicates, header2.compoundPredicates);
+            assertNull(header2.getConstrainedColumns().get(1).values);
+        }
+    }
+
+    /**
+     * Tests a round trip of each kind of segment body, and that the encoded
+     * body is smaller than its Java serialized form.
+     */
+    public void testBodies() throws IOException {
+        for (SegmentBody body : makeBodies(100)) {
+            for (BinarySegmentCodec codec : codecs()) {
+                final byte[] bytes = codec.encodeBody(body);
+                final SegmentBody body2 = codec.decodeBody(bytes);
+                assertEquals(body.getClass(), body2.getClass());
+                assertEquals(body.getValueMap(), body2.getValueMap());
+                assertTrue(
+                    Arrays.equals(
+                        body.getNullAxisFlags(), body2.getNullAxisFlags()));
+                assertEquals(
+                    Arrays.asList(body.getAxisValueSets()),
+                    Arrays.asList(body2.getAxisValueSets()));
+                if (!(body instanceof SparseSegmentBody)) {
+                    assertEquals(
+                        body.getNullValueIndicators(),
+                        body2.getNullValueIndicators());
+                }
+                assertTrue(
+                    body + ": " + bytes.length,
+                    bytes.length < serialize(body).length);
+            }
+        }
+    }
+
+    /**
+     * Tests that compression makes a repetitive body smaller, and that a
+     * payload of a different version is rejected.
+     */
+    public void testCompressionAndVersion() {
+        final SegmentBody body = makeBodies(1000).get(0);
+        final byte[] bytes = BinarySegmentCodec.INSTANCE.encodeBody(body);
+        final byte[] compressed =
+            BinarySegmentCodec.COMPRESSING_INSTANCE.encodeBody(body);
+        assertTrue(compressed.length < bytes.length);
+
+        // Either codec can decode either payload.
+        assertEquals(
+            body.getValueMap(),
+            BinarySegmentCodec.INSTANCE.decodeBody(compressed).getValueMap());
+
+        bytes[0] = BinarySegmentCodec.VERSION + 1;
+        try {
+            final SegmentBody body2 =
+                BinarySegmentCodec.INSTANCE.decodeBody(bytes);
+            fail("expected error, got " + body2);
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("different version"));
+        }
+    }
+
+    /**
+     * Tests that {@link SegmentCodec.SegmentCodecFactory} returns the codec
+     * named by {@link MondrianProperties#SegmentCodec}, and otherwise the
+     * default codec.
+     */
+    public void testCodecFactory() {
+        assertSame(
+            BinarySegmentCodec.INSTANCE,
+            SegmentCodec.SegmentCodecFactory.getCodec());
+        final PropertySaver propSaver = new PropertySaver();
+        try {
+            propSaver.set(
+                MondrianProperties.instance().SegmentCodec,
+                CompressingCodec.class.getName());
+            final SegmentCodec codec =
+                SegmentCodec.SegmentCodecFactory.getCodec();
+            assertTrue(codec instanceof CompressingCodec);
+            assertSame(codec, SegmentCodec.SegmentCodecFactory.getCodec());
+        } finally {
+            propSaver.reset();
+        }
+        assertSame(
+            BinarySegmentCodec.INSTANCE,
+            SegmentCodec.SegmentCodecFactory.getCodec());
+    }
+
+    /**
+     * Benchmark. Measures the time to encode and decode each kind of body,
+     * and the size of the result, with Java serialization and with each
+     * codec. Prints results if {@link PerformanceTest#LOGGER} is enabled
+     * for debug, and in that case uses larger bodies and more iterations.
+     */
+    public void testThroughput() throws Exception {
+        final boolean debug = PerformanceTest.LOGGER.isDebugEnabled();
+        final int iterations = debug ? 200 : 2;
+        for (SegmentBody body : makeBodies(debug ? 100000 : 1000)) {
+            long start = System.nanoTime();
+            int size = 0;
+            for (int i = 0; i < iterations; i++) {
+                final byte[] bytes = serialize(body);
+                size = bytes.length;
+                assertNotNull(
+                    new ObjectInputStream(new ByteArrayInputStream(bytes))
+                        .readObject());
+            }
+            report(body, "serialization", size, start, iterations);
+            for (BinarySegmentCodec codec : codecs()) {
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    final byte[] bytes = codec.encodeBody(body);
+                    size = bytes.length;
+                    assertNotNull(codec.decodeBody(bytes));
+                }
+                report(
+                    body,
+                    codec.isCompressing() ? "compressing codec" : "codec",
+                    size,
+                    start,
+                    iterations);
+            }
+        }
+    }
+
+    private static void report(
+        SegmentBody body,
+        String method,
+        int size,
+        long start,
+        int iterations)
+    {
+        if (PerformanceTest.LOGGER.isDebugEnabled()) {
+            final long nanos = System.nanoTime() - start;
+            PerformanceTest.LOGGER.debug(
+                "BinarySegmentCodecTest.testThroughput: "
+                + body.getClass().getSimpleName()
+                + " " + method
+                + " bytes=" + size
+                + " round-trip=" + (nanos / iterations / 1000) + "us");
+        }
+    }
+
+    static List<BinarySegmentCodec> codecs() {
+        return Arrays.asList(
+            BinarySegmentCodec.INSTANCE,
+            BinarySegmentCodec.COMPRESSING_INSTANCE);
+    }
+
+    /**
+     * Creates a body of each kind, with two axes and about {@code n} cells.
+     * Some cells are null.
+     */
+    static List<SegmentBody> makeBodies(int n) {
+        final SortedSet<Comparable> keys = new TreeSet<Comparable>();
+        for (int i = 0; i < n / 2; i++) {
+            keys.add("member #" + i);
+        }
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        axes.add(Pair.of(keys, false));
+        axes.add(Pair.of(set(1997, 1998), true));
+        final int size = keys.size() * 3;
+        final double[] doubles = new double[size];
+        final int[] ints = new int[size];
+        final Object[] objects = new Object[size];
+        final BitSet nullValues = new BitSet();
+        final Map<CellKey, Object> sparseValues =
+            new HashMap<CellKey, Object>();
+        for (int i = 0; i < size; i++) {
+            if (i % 7 == 3) {
+                nullValues.set(i);
+                continue;
+            }
+            doubles[i] = i * 1.5d;
+            ints[i] = i - 10;
+            objects[i] =
+                i % 3 == 0 ? "value #" + (i % 5)
+                    : i % 3 == 1 ? new BigDecimal("12.5")
+                    : Long.valueOf(i);
+            if (i % 10 == 0) {
+                sparseValues.put(
+                    CellKey.Generator.newCellKey(new int[] {i / 3, i % 3}),
+                    doubles[i]);
+            }
+        }
+        return Arrays.<SegmentBody>asList(
+            new DenseDoubleSegmentBody(nullValues, doubles, axes),
+            new DenseIntSegmentBody(nullValues, ints, axes),
+            new DenseObjectSegmentBody(objects, axes),
+            new DictionaryObjectSegmentBody(objects, axes),
+            new SparseSegmentBody(sparseValues, axes));
+    }
+
+    static byte[] serialize(Object o) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(o);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static SortedSet<Comparable> set(Comparable... values) {
+        return new TreeSet<Comparable>(Arrays.asList(values));
+    }
+
+    /**
+     * Codec that compresses, and can be created by name.
+     */
+    public static class CompressingCodec extends BinarySegmentCodec {
+        public CompressingCodec() {
+            super(true);
+        }
+    }
+}
+
+// End BinarySegmentCodecTest.java
@@ -0,0 +1,133 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.cache.BoundedMemorySegmentCache;
+import mondrian.spi.*;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link BoundedMemorySegmentCache}.
+ *
+ * @author agent
+ */
+public class BoundedMemorySegmentCacheTest extends TestCase {
+    public BoundedMemorySegmentCacheTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that the cache evicts the least recently used segment when
+     * segments are the same size and cost, and fires an event.
+     */
+    public void testEvictLeastRecentlyUsed() {
+        final SegmentBody body = makeBody(1000);
+        final long size = SegmentBuilder.estimateByteSize(body);
+        final BoundedMemorySegmentCache cache =
+            new BoundedMemorySegmentCache(size * 3);
+        final List<String> events = new ArrayList<String>();
+        cache.addListener(
+            new SegmentCache.SegmentCacheListener() {
+                public void handle(SegmentCacheEvent e) {
+                    events.add(
+                        e.getEventType() + ":" + e.getSource().measureName);
+                }
+            });
+        final SegmentHeader a = SegmentFixtures.makeHeader("a");
+        final SegmentHeader b = SegmentFixtures.makeHeader("b");
+        final SegmentHeader c = SegmentFixtures.makeHeader("c");
+        final SegmentHeader d = SegmentFixtures.makeHeader("d");
+        cache.put(a, body);
+        cache.put(b, body);
+        cache.put(c, body);
+        assertEquals(3, cache.getSegmentCount());
+        assertEquals(size * 3, cache.getByteSize());
+
+        // Touch "a", so that "b" becomes least recently used.
+        assertSame(body, cache.get(a));
+        cache.put(d, body);
+        assertEquals(3, cache.getSegmentCount());
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+        assertNotNull(cache.get(d));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(4, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(
+            "[ENTRY_CREATED:a, ENTRY_CREATED:b, ENTRY_CREATED:c, "
+            + "ENTRY_DELETED:b, ENTRY_CREATED:d]",
+            events.toString());
+    }
+
+    /**
+     * Tests that a segment that was expensive to load survives longer than
+     * cheaper segments that were used more recently.
+     */
+    public void testEvictCheapestFirst() {
+        final SegmentBody body = makeBody(1000);
+        final long size = SegmentBuilder.estimateByteSize(body);
+        final BoundedMemorySegmentCache cache =
+            new BoundedMemorySegmentCache(size * 2);
+        final SegmentHeader a = SegmentFixtures.makeHeader("a");
+        final SegmentHeader b = SegmentFixtures.makeHeader("b");
+        final SegmentHeader c = SegmentFixtures.makeHeader("c");
+        cache.put(a, body);
+        cache.setLoadCost(a, 10000);
+        cache.put(b, body);
+        cache.put(c, body);
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+    }
+
+    /**
+     * Tests that a segment larger than the whole cache is not stored, and
+     * that removing a segment releases its space.
+     */
+    public void testSizeAccounting() {
+        final SegmentBody small = makeBody(10);
+        final SegmentBody big = makeBody(100000);
+        final long smallSize = SegmentBuilder.estimateByteSize(small);
+        final long bigSize = SegmentBuilder.estimateByteSize(big);
+        assertTrue(bigSize > 100000 * 8);
+        final BoundedMemorySegmentCache cache =
+            new BoundedMemorySegmentCache(smallSize * 10);
+        final SegmentHeader a = SegmentFixtures.makeHeader("a");
+        final SegmentHeader b = SegmentFixtures.makeHeader("b");
+        assertTrue(cache.put(a, big));
+        assertNull(cache.get(a));
+        assertEquals(0, cache.getByteSize());
+        cache.put(a, small);
+        cache.put(b, small);
+        assertEquals(smallSize * 2, cache.getByteSize());
+        assertTrue(cache.remove(a));
+        assertFalse(cache.remove(a));
+        assertEquals(smallSize, cache.getByteSize());
+        assertEquals(Collections.singletonList(b), cache.getSegmentHeaders());
+    }
+
+    private static SegmentBody makeBody(int cellCount) {
+        final SortedSet<Comparable> values = new TreeSet<Comparable>();
+        for (int i = 0; i < cellCount; i++) {
+            values.add(i);
+        }
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            Collections.singletonList(Pair.of(values, Boolean.FALSE));
+        return new DenseDoubleSegmentBody(
+            new BitSet(), new double[cellCount], axes);
+    }
+}
+
+// End BoundedMemorySegmentCacheTest.java
@@ -0,0 +1,197 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.cache.FileSegmentCache;
+import mondrian.spi.*;
+import mondrian.util.ByteString;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Unit test for {@link FileSegmentCache}.
+ *
+ * @author agent
+ */
+public class FileSegmentCacheTest extends TestCase {
+    private File directory;
+
+    public FileSegmentCacheTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("mondrian-segment-cache", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    protected void tearDown() throws Exception {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that segments survive when the cache is closed and re-opened.
+     */
+    public void testPersist() {
+        final SegmentHeader a = makeHeader("a", 1);
+        final SegmentHeader b = makeHeader("b", 1);
+        final SegmentBody bodyA = makeBody(new double[] {1d, 2d, 3d});
+        final SegmentBody bodyB = makeBody(new double[] {4d, 5d, 6d});
+
+        FileSegmentCache cache = new FileSegmentCache(directory, 1 << 20);
+        assertTrue(cache.put(a, bodyA));
+        assertTrue(cache.put(b, bodyB));
+        assertTrue(cache.remove(b));
+        assertEquals(bodyA.getValueMap(), cache.get(a).getValueMap());
+        cache.tearDown();
+
+        cache = new FileSegmentCache(directory, 1 << 20);
+        assertEquals(Collections.singletonList(a), cache.getSegmentHeaders());
+        assertNull(cache.get(b));
+        final SegmentBody body = cache.get(a);
+        assertTrue(body instanceof OffHeapSegmentBody);
+        assertEquals(bodyA.getValueMap(), body.getValueMap());
+        assertTrue(
+            Arrays.equals(
+                new double[] {1d, 2d, 3d}, (double[]) body.getValueArray()));
+        cache.tearDown();
+
+        // The log was compacted when the cache was opened. There is one
+        // segment file left.
+        int segmentFileCount = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".seg")) {
+                ++segmentFileCount;
+            }
+        }
+        assertEquals(1, segmentFileCount);
+    }
+
+    /**
+     * Tests that the cache discards its contents if the index was written
+     * in a different format.
+     */
+    public void testWrongVersion() throws IOException {
+        FileSegmentCache cache = new FileSegmentCache(directory, 1 << 20);
+        cache.put(makeHeader("a", 1), makeBody(new double[] {1d}));
+        cache.tearDown();
+
+        final RandomAccessFile raf =
+            new RandomAccessFile(new File(directory, "segments.idx"), "rw");
+        raf.seek(4);
+        raf.writeInt(-1);
+        raf.close();
+
+        cache = new FileSegmentCache(directory, 1 << 20);
+        assertTrue(cache.getSegmentHeaders().isEmpty());
+        assertEquals(0, cache.getByteSize());
+        cache.tearDown();
+    }
+
+    /**
+     * Tests that segments of an old version of a schema are removed, and
+     * that the cache evicts segments when it is full.
+     */
+    public void testStaleAndEviction() {
+        final SegmentBody body = makeBody(new double[100]);
+        final FileSegmentCache cache =
+            new FileSegmentCache(directory, 1 << 20);
+        final SegmentHeader a1 = makeHeader("a", 1);
+        final SegmentHeader a2 = makeHeader("a", 2);
+        cache.put(a1, body);
+        cache.put(a2, body);
+        assertEquals(
+            1,
+            cache.removeStaleSegments(
+                "dummySchemaName",
+                new ByteString(new byte[] {2}),
+                "dummyFactTable"));
+        assertEquals(Collections.singletonList(a2), cache.getSegmentHeaders());
+        final long size = cache.getByteSize();
+        cache.tearDown();
+
+        final FileSegmentCache cache2 =
+            new FileSegmentCache(directory, size * 2);
+        final SegmentHeader b = makeHeader("b", 2);
+        final SegmentHeader c = makeHeader("c", 2);
+        cache2.put(b, body);
+        assertNotNull(cache2.get(a2));
+        cache2.put(c, body);
+        assertEquals(
+            new HashSet<SegmentHeader>(Arrays.asList(a2, c)),
+            new HashSet<SegmentHeader>(cache2.getSegmentHeaders()));
+        cache2.tearDown();
+    }
+
+    /**
+     * Tests that a segment can be restricted without rewriting its body,
+     * and that the restriction survives a restart.
+     */
+    public void testAddRestriction() {
+        final SegmentHeader a = makeHeader("a", 1);
+        final SegmentHeader a2 =
+            a.constrain(
+                new SegmentColumn[] {
+                    new SegmentColumn(
+                        "col",
+                        3,
+                        new TreeSet<Comparable>(
+                            Collections.singleton("k1")))
+                });
+        final SegmentBody body = makeBody(new double[] {1d, 2d, 3d});
+
+        FileSegmentCache cache = new FileSegmentCache(directory, 1 << 20);
+        assertFalse(cache.addRestriction(a2, a));
+        assertTrue(cache.put(a, body));
+        final long size = cache.getByteSize();
+        assertTrue(cache.addRestriction(a, a2));
+        assertNull(cache.get(a));
+        assertEquals(body.getValueMap(), cache.get(a2).getValueMap());
+        assertEquals(size, cache.getByteSize());
+        cache.tearDown();
+
+        cache = new FileSegmentCache(directory, 1 << 20);
+        assertEquals(Collections.singletonList(a2), cache.getSegmentHeaders());
+        assertEquals(body.getValueMap(), cache.get(a2).getValueMap());
+        cache.tearDown();
+    }
+
+    private static SegmentHeader makeHeader(String measureName, int version) {
+        return SegmentFixtures.makeHeader(
+            measureName,
+            new byte[] {(byte) version},
+            Collections.singletonList(new SegmentColumn("col", 3, null)));
+    }
+
+    private static SegmentBody makeBody(double[] values) {
+        final SortedSet<Comparable> keys = new TreeSet<Comparable>();
+        for (int i = 0; i < values.length; i++) {
+            keys.add("k" + i);
+        }
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            Collections.singletonList(Pair.of(keys, Boolean.FALSE));
+        return new DenseDoubleSegmentBody(new BitSet(), values, axes);
+    }
+}
+
+// End FileSegmentCacheTest.java
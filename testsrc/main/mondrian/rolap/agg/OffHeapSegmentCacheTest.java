@@ -0,0 +1,164 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.rolap.cache.OffHeapSegmentCache;
+import mondrian.spi.*;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Unit test for {@link OffHeapSegmentCache} and {@link OffHeapSegmentBody}.
+ *
+ * @author agent
+ */
+public class OffHeapSegmentCacheTest extends TestCase {
+    public OffHeapSegmentCacheTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that a dense body survives a round trip through a buffer, and
+     * that the result is a view over the buffer.
+     */
+    public void testDenseRoundTrip() {
+        final BitSet nullValues = new BitSet();
+        nullValues.set(1);
+        nullValues.set(4);
+        final double[] values = {1.5d, 0d, 0d, -7d, 0d, 1e10d};
+        final SegmentBody body =
+            new DenseDoubleSegmentBody(nullValues, values, makeAxes(2, 3));
+        final SegmentBody body2 =
+            OffHeapSegmentBody.decode(OffHeapSegmentBody.encode(body));
+        assertTrue(body2 instanceof OffHeapSegmentBody);
+        assertTrue(
+            Arrays.equals(values, (double[]) body2.getValueArray()));
+        assertEquals(nullValues, body2.getNullValueIndicators());
+        assertEquals(body.getValueMap(), body2.getValueMap());
+        assertEquals(
+            Arrays.asList(body.getAxisValueSets()),
+            Arrays.asList(body2.getAxisValueSets()));
+        assertTrue(
+            Arrays.equals(body.getNullAxisFlags(), body2.getNullAxisFlags()));
+
+        final SegmentDataset dataset =
+            ((OffHeapSegmentBody) body2).createDataset(
+                new SegmentAxis[] {
+                    new SegmentAxis(null, new Comparable[] {0, 1}),
+                    new SegmentAxis(null, new Comparable[] {"a0", "a1", "a2"})
+                });
+        final CellKey key = CellKey.Generator.newCellKey(new int[] {1, 0});
+        assertEquals(-7d, dataset.getDouble(key), 0d);
+        assertEquals(-7d, dataset.getObject(key));
+        assertFalse(dataset.isNull(key));
+        final CellKey key2 = CellKey.Generator.newCellKey(new int[] {1, 1});
+        assertTrue(dataset.isNull(key2));
+        assertNull(dataset.getObject(key2));
+
+        // A body of ints, with axis keys of various types.
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        axes.add(
+            Pair.<SortedSet<Comparable>, Boolean>of(
+                new TreeSet<Comparable>(Arrays.<Comparable>asList(3L, 5L)),
+                Boolean.TRUE));
+        axes.add(
+            Pair.<SortedSet<Comparable>, Boolean>of(
+                new TreeSet<Comparable>(
+                    Arrays.<Comparable>asList(new java.sql.Date(0L))),
+                Boolean.FALSE));
+        final SegmentBody intBody =
+            new DenseIntSegmentBody(new BitSet(), new int[] {7, 8}, axes);
+        final SegmentBody intBody2 =
+            OffHeapSegmentBody.decode(OffHeapSegmentBody.encode(intBody));
+        assertTrue(
+            Arrays.equals(new int[] {7, 8}, (int[]) intBody2.getValueArray()));
+        assertEquals(intBody.getValueMap(), intBody2.getValueMap());
+        assertEquals(
+            Arrays.asList(intBody.getAxisValueSets()),
+            Arrays.asList(intBody2.getAxisValueSets()));
+    }
+
+    /**
+     * Tests that a sparse body, which has no native values, is stored
+     * serialized and comes back as a copy.
+     */
+    public void testSparseRoundTrip() {
+        final Map<CellKey, Object> map = new HashMap<CellKey, Object>();
+        map.put(CellKey.Generator.newCellKey(new int[] {0, 2}), "x");
+        map.put(CellKey.Generator.newCellKey(new int[] {1, 1}), 12);
+        final SegmentBody body = new SparseSegmentBody(map, makeAxes(2, 3));
+        final ByteBuffer buffer = OffHeapSegmentBody.encode(body);
+        assertTrue(buffer.isDirect());
+        final SegmentBody body2 = OffHeapSegmentBody.decode(buffer);
+        assertTrue(body2 instanceof SparseSegmentBody);
+        assertEquals(map, body2.getValueMap());
+    }
+
+    /**
+     * Tests that the cache evicts least recently used segments when it is
+     * full.
+     */
+    public void testEviction() {
+        final SegmentBody body =
+            new DenseDoubleSegmentBody(
+                new BitSet(), new double[1000], makeAxes(10, 100));
+        final long size = OffHeapSegmentBody.encode(body).capacity();
+        final OffHeapSegmentCache cache = new OffHeapSegmentCache(size * 2);
+        final List<String> events = new ArrayList<String>();
+        cache.addListener(
+            new SegmentCache.SegmentCacheListener() {
+                public void handle(SegmentCacheEvent e) {
+                    events.add(
+                        e.getEventType() + ":" + e.getSource().measureName);
+                }
+            });
+        final SegmentHeader a = SegmentFixtures.makeHeader("a");
+        final SegmentHeader b = SegmentFixtures.makeHeader("b");
+        final SegmentHeader c = SegmentFixtures.makeHeader("c");
+        cache.put(a, body);
+        cache.put(b, body);
+        assertEquals(size * 2, cache.getByteSize());
+        assertNotNull(cache.get(a));
+        cache.put(c, body);
+        assertNull(cache.get(b));
+        assertEquals(body.getValueMap(), cache.get(a).getValueMap());
+        assertNotNull(cache.get(c));
+        assertEquals(
+            "[ENTRY_CREATED:a, ENTRY_CREATED:b, ENTRY_DELETED:b, "
+            + "ENTRY_CREATED:c]",
+            events.toString());
+        assertTrue(cache.remove(a));
+        assertEquals(size, cache.getByteSize());
+        assertEquals(Collections.singletonList(c), cache.getSegmentHeaders());
+    }
+
+    private static List<Pair<SortedSet<Comparable>, Boolean>> makeAxes(
+        int... sizes)
+    {
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        for (int i = 0; i < sizes.length; i++) {
+            final SortedSet<Comparable> values = new TreeSet<Comparable>();
+            for (int j = 0; j < sizes[i]; j++) {
+                values.add(i == 0 ? (Comparable) j : "a" + j);
+            }
+            axes.add(Pair.of(values, Boolean.FALSE));
+        }
+        return axes;
+    }
+}
+
+// End OffHeapSegmentCacheTest.java
@@ -11,6 +11,7 @@ package mondrian.rolap.agg;
 
 import mondrian.olap.*;
 import mondrian.rolap.*;
+import mondrian.server.monitor.CellCacheSegmentCreateEvent;
 import mondrian.spi.Dialect;
 import mondrian.spi.SegmentBody;
 import mondrian.spi.SegmentColumn;
@@ -38,6 +39,8 @@ public class SegmentBuilderTest extends BatchTestCase {
             MondrianProperties.instance().SparseSegmentDensityThreshold, .5);
         propSaver.set(
             MondrianProperties.instance().SparseSegmentCountThreshold, 1000);
+        propSaver.set(
+            MondrianProperties.instance().AdaptiveSegmentStorage, false);
     }
 
     public void testSparseRollup() {
@@ -124,6 +127,256 @@ public class SegmentBuilderTest extends BatchTestCase {
         assertTrue(rollup.right instanceof DenseDoubleSegmentBody);
     }
 
+    /**
+     * Tests rolling up dense segments of native values, which goes directly
+     * from array to array, including the null value of an axis and null
+     * cells.
+     */
+    public void testDenseRollup() {
+        final BitSet nullValues = new BitSet();
+        nullValues.set(3);
+        final double[] doubles = {1d, 2d, 3d, 0d, 5d, 6d, 7d, 8d};
+        final Map<SegmentHeader, SegmentBody> map =
+            makeDenseSegmentMap(
+                new DenseDoubleSegmentBody(
+                    nullValues, doubles, makeDenseAxes()));
+        final Set<String> keepColumns = Collections.singleton("col1");
+
+        SegmentBody body =
+            SegmentBuilder.rollup(
+                map, keepColumns, null, RolapAggregator.Sum,
+                Dialect.Datatype.Numeric).right;
+        assertTrue(body instanceof DenseDoubleSegmentBody);
+        assertTrue(
+            Arrays.equals(
+                new double[] {3d, 3d, 11d, 15d},
+                (double[]) body.getValueArray()));
+        assertTrue(body.getNullValueIndicators().isEmpty());
+        assertTrue(body.getNullAxisFlags()[0]);
+
+        body =
+            SegmentBuilder.rollup(
+                map, keepColumns, null, RolapAggregator.Min,
+                Dialect.Datatype.Numeric).right;
+        assertTrue(
+            Arrays.equals(
+                new double[] {1d, 3d, 5d, 7d},
+                (double[]) body.getValueArray()));
+
+        body =
+            SegmentBuilder.rollup(
+                map, keepColumns, null, RolapAggregator.Max,
+                Dialect.Datatype.Numeric).right;
+        assertTrue(
+            Arrays.equals(
+                new double[] {2d, 3d, 6d, 8d},
+                (double[]) body.getValueArray()));
+
+        // Ints. Cell "b" has no values, so is null.
+        nullValues.set(2);
+        final int[] ints = {1, 2, 0, 0, 5, 6, 7, 8};
+        body =
+            SegmentBuilder.rollup(
+                makeDenseSegmentMap(
+                    new DenseIntSegmentBody(nullValues, ints, makeDenseAxes())),
+                keepColumns, null, RolapAggregator.Sum,
+                Dialect.Datatype.Integer).right;
+        assertTrue(body instanceof DenseIntSegmentBody);
+        final int[] values = (int[]) body.getValueArray();
+        assertEquals(3, values[0]);
+        assertEquals(11, values[2]);
+        assertEquals(15, values[3]);
+        final BitSet expectedNulls = new BitSet();
+        expectedNulls.set(1);
+        assertEquals(expectedNulls, body.getNullValueIndicators());
+    }
+
+    /**
+     * Tests that constraining a segment header by a 2-dimensional region
+     * adds one 2-dimensional excluded region, which excludes only the cells
+     * in the cartesian product of the region's values.
+     */
+    public void testConstrainNDimensional() {
+        final SegmentHeader header =
+            makeDenseSegmentMap(null).keySet().iterator().next();
+        final SegmentColumn[] region = {
+            new SegmentColumn("col1", 3, set("a")),
+            new SegmentColumn("col2", 2, set("x")),
+            new SegmentColumn("col3", 5, set("p"))
+        };
+        assertTrue(header.canConstrain(region));
+        final SegmentHeader header2 = header.constrain(region);
+        assertEquals(1, header2.getExcludedCellRegions().size());
+        assertEquals(2, header2.getExcludedCellRegions().get(0).size());
+        assertFalse(header2.equals(header));
+        assertFalse(header2.getUniqueID().equals(header.getUniqueID()));
+
+        // Constraining again by the same region has no effect.
+        assertSame(header2, header2.constrain(region));
+
+        assertTrue(header2.isExcluded(coords("a", "x")));
+        assertFalse(header2.isExcluded(coords("a", "y")));
+        assertFalse(header2.isExcluded(coords("b", "x")));
+        final Map<String, Comparable> col1Only = coords("a", "x");
+        col1Only.remove("col2");
+        assertTrue(header2.isExcluded(col1Only));
+
+        // A second region adds a second excluded region.
+        final SegmentHeader header3 =
+            header2.constrain(
+                new SegmentColumn[] {
+                    new SegmentColumn("col1", 3, set("b"))
+                });
+        assertEquals(2, header3.getExcludedCellRegions().size());
+        assertTrue(header3.isExcluded(coords("b", "y")));
+        assertFalse(header3.isExcluded(coords("c", "y")));
+
+        // A region that covers every axis entirely covers the whole
+        // segment; so does a region none of whose columns are in the
+        // segment.
+        assertFalse(
+            header.canConstrain(
+                new SegmentColumn[] {
+                    new SegmentColumn("col1", 3, null),
+                    new SegmentColumn("col2", 2, null)
+                }));
+        assertFalse(
+            header.canConstrain(
+                new SegmentColumn[] {
+                    new SegmentColumn("col3", 5, set("p"))
+                }));
+    }
+
+    /**
+     * Tests that the cells of a region are merged into a segment body,
+     * adding a value to one axis and replacing existing cells of the region.
+     */
+    public void testAppend() {
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        axes.add(Pair.of(set(1, 2), false));
+        axes.add(Pair.of(set("x", "y"), false));
+        final BitSet nullValues = new BitSet();
+        nullValues.set(3);
+        final SegmentBody body =
+            new DenseDoubleSegmentBody(
+                nullValues, new double[] {1d, 2d, 3d, 0d}, axes);
+
+        // Region is day 3 (new) and day 2 (which the segment already has).
+        final List<Pair<SortedSet<Comparable>, Boolean>> regionAxes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        regionAxes.add(Pair.of(set(2, 3), false));
+        regionAxes.add(Pair.of(set("x", "y"), false));
+        final SegmentBody regionBody =
+            new DenseDoubleSegmentBody(
+                new BitSet(), new double[] {5d, 6d, 7d, 8d}, regionAxes);
+        final List<SortedSet<Comparable>> regionValues =
+            new ArrayList<SortedSet<Comparable>>();
+        regionValues.add(set(2, 3));
+        regionValues.add(null);
+
+        final SegmentBody merged =
+            SegmentBuilder.append(body, regionBody, regionValues);
+        assertTrue(merged instanceof DenseDoubleSegmentBody);
+        assertEquals(set(1, 2, 3), merged.getAxisValueSets()[0]);
+        assertEquals(set("x", "y"), merged.getAxisValueSets()[1]);
+        assertTrue(
+            Arrays.equals(
+                new double[] {1d, 2d, 5d, 6d, 7d, 8d},
+                (double[]) merged.getValueArray()));
+        assertTrue(merged.getNullValueIndicators().isEmpty());
+
+        // Cannot merge if an axis has a null value.
+        final SegmentBody nullBody =
+            new DenseObjectSegmentBody(new Object[8], makeDenseAxes());
+        assertNull(SegmentBuilder.append(nullBody, nullBody, regionValues));
+    }
+
+    /**
+     * Tests that, with {@link MondrianProperties#AdaptiveSegmentStorage},
+     * the representation of a segment is chosen by its estimated size, and
+     * that a dense object segment with few distinct values is compressed.
+     */
+    public void testAdaptiveStorage() {
+        propSaver.set(
+            MondrianProperties.instance().AdaptiveSegmentStorage, true);
+        final List<SqlStatement.Type> doubleType =
+            Collections.singletonList(SqlStatement.Type.DOUBLE);
+        final List<SqlStatement.Type> objectType =
+            Collections.singletonList(SqlStatement.Type.OBJECT);
+
+        // Thresholds would say dense (count below 1000), but at 2% density
+        // a sparse segment is smaller.
+        assertTrue(SegmentLoader.useSparse(100, 2, doubleType));
+        assertFalse(SegmentLoader.useSparse(100, 90, doubleType));
+        // Sparse costs less than dense for objects at lower density.
+        assertTrue(SegmentLoader.useSparse(100, 30, objectType));
+        assertFalse(SegmentLoader.useSparse(100, 30, doubleType));
+
+        final Object[] values = new Object[8];
+        for (int i = 0; i < 6; i++) {
+            values[i] = i % 2 == 0 ? "red" : "green";
+        }
+        final DenseObjectSegmentDataset dataset =
+            new DenseObjectSegmentDataset(
+                new SegmentAxis[0], values);
+        final SegmentBody body =
+            dataset.createSegmentBody(makeDenseAxes());
+        assertTrue(body instanceof DictionaryObjectSegmentBody);
+        assertTrue(Arrays.equals(values, (Object[]) body.getValueArray()));
+        assertEquals(6, body.getValueMap().size());
+        assertEquals(
+            CellCacheSegmentCreateEvent.Storage.COMPRESSED,
+            SegmentBuilder.getStorage(body));
+        assertTrue(SegmentBuilder.estimateBytesSaved(body, 6) > 0);
+
+        propSaver.set(
+            MondrianProperties.instance().AdaptiveSegmentStorage, false);
+        assertTrue(
+            dataset.createSegmentBody(makeDenseAxes())
+                instanceof DenseObjectSegmentBody);
+    }
+
+    /**
+     * Creates the axes of a dense segment with two columns: "col1" has
+     * values "a", "b", "c" and null; "col2" has values "x" and "y".
+     */
+    private List<Pair<SortedSet<Comparable>, Boolean>> makeDenseAxes() {
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        axes.add(
+            Pair.<SortedSet<Comparable>, Boolean>of(
+                new TreeSet<Comparable>(
+                    Arrays.<Comparable>asList("a", "b", "c")),
+                true));
+        axes.add(
+            Pair.<SortedSet<Comparable>, Boolean>of(
+                new TreeSet<Comparable>(Arrays.<Comparable>asList("x", "y")),
+                false));
+        return axes;
+    }
+
+    private Map<SegmentHeader, SegmentBody> makeDenseSegmentMap(
+        SegmentBody body)
+    {
+        final List<SegmentColumn> constrainedColumns =
+            Arrays.asList(
+                new SegmentColumn("col1", 3, null),
+                new SegmentColumn("col2", 2, null));
+        final SegmentHeader header =
+            new SegmentHeader(
+                "dummySchemaName",
+                new ByteString(new byte[]{}),
+                "dummyCubeName",
+                "dummyMeasureName",
+                constrainedColumns,
+                Collections.<String>emptyList(),
+                "dummyFactTable",
+                null,
+                Collections.<List<SegmentColumn>>emptyList());
+        return Collections.singletonMap(header, body);
+    }
+
     /**
      * Creates a rough segment map for testing purposes, containing
      * the array of column names passed in, with numValsPerCol dummy
@@ -179,12 +432,26 @@ public class SegmentBuilderTest extends BatchTestCase {
                 Collections.<String>emptyList(),
                 "dummyFactTable",
                 null,
-                Collections.<SegmentColumn>emptyList()),
+                Collections.<List<SegmentColumn>>emptyList()),
             new DenseObjectSegmentBody(
                 cells,
                 axes));
     }
 
+    private static SortedSet<Comparable> set(Comparable... values) {
+        return new TreeSet<Comparable>(Arrays.asList(values));
+    }
+
+    private static Map<String, Comparable> coords(
+        Comparable col1,
+        Comparable col2)
+    {
+        final Map<String, Comparable> map = new HashMap<String, Comparable>();
+        map.put("col1", col1);
+        map.put("col2", col2);
+        return map;
+    }
+
     private String [][] dummyColumnValues(int cols, int numVals) {
         String [][] dummyColVals = new String[cols][numVals];
         for (int i = 0; i < cols; i++) {
@@ -0,0 +1,68 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.spi.SegmentColumn;
+import mondrian.spi.SegmentHeader;
+import mondrian.util.ByteString;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Segment headers for tests of segment caches.
+ *
+ * @author agent
+ */
+class SegmentFixtures {
+    private SegmentFixtures() {
+    }
+
+    /**
+     * Creates the header of a segment of a dummy schema, cube and fact table,
+     * with no constrained columns.
+     *
+     * @param measureName Name of measure; distinguishes headers
+     * @return Segment header
+     */
+    static SegmentHeader makeHeader(String measureName) {
+        return makeHeader(
+            measureName,
+            new byte[0],
+            Collections.<SegmentColumn>emptyList());
+    }
+
+    /**
+     * Creates the header of a segment of a dummy schema, cube and fact table.
+     *
+     * @param measureName Name of measure; distinguishes headers
+     * @param checksum Checksum of schema; distinguishes versions of the schema
+     * @param constrainedColumns Constrained columns
+     * @return Segment header
+     */
+    static SegmentHeader makeHeader(
+        String measureName,
+        byte[] checksum,
+        List<SegmentColumn> constrainedColumns)
+    {
+        return new SegmentHeader(
+            "dummySchemaName",
+            new ByteString(checksum),
+            "dummyCubeName",
+            measureName,
+            constrainedColumns,
+            Collections.<String>emptyList(),
+            "dummyFactTable",
+            null,
+            Collections.<List<SegmentColumn>>emptyList());
+    }
+}
+
+// End SegmentFixtures.java
@@ -16,6 +16,7 @@ import mondrian.server.*;
 import mondrian.server.Statement;
 import mondrian.spi.Dialect;
 import mondrian.test.SqlPattern;
+import mondrian.test.TestContext;
 import mondrian.util.DelegatingInvocationHandler;
 
 import java.io.PrintWriter;
@@ -108,6 +109,110 @@ public class SegmentLoaderTest extends BatchTestCase {
         }
     }
 
+    /**
+     * Tests that a segment load is split along the column with the longest
+     * list of values, and only if
+     * {@link MondrianProperties#SegmentLoadMaxPartitions} allows it.
+     */
+    public void testPartition() {
+        final GroupingSet groupingSet = getDefaultGroupingSet();
+        final GroupingSetsList groupingSetsList =
+            new GroupingSetsList(Collections.singletonList(groupingSet));
+        final SegmentLoader loader = new SegmentLoader(cacheMgr);
+        assertNull(loader.partition(groupingSetsList));
+
+        propSaver.set(
+            MondrianProperties.instance().SegmentLoadMaxPartitions, 3);
+        propSaver.set(
+            MondrianProperties.instance().SegmentLoadPartitionMinRows, 1);
+        final List<GroupingSetsList> partitions =
+            loader.partition(groupingSetsList);
+        assertNotNull(partitions);
+        assertEquals(3, partitions.size());
+        final Set<Object> values = new HashSet<Object>();
+        for (GroupingSetsList partition : partitions) {
+            final StarColumnPredicate[] predicates =
+                partition.getDefaultPredicates();
+            assertEquals(
+                groupingSet.getPredicates().length, predicates.length);
+            for (int i = 0; i < predicates.length; i++) {
+                if (predicates[i] != groupingSet.getPredicates()[i]) {
+                    // The split column is product department, which has the
+                    // most values.
+                    final Set<Object> allValues = new HashSet<Object>();
+                    groupingSet.getPredicates()[i].values(allValues);
+                    assertEquals(
+                        fieldValueProductDepartment.length, allValues.size());
+                    predicates[i].values(values);
+                }
+            }
+        }
+        assertEquals(fieldValueProductDepartment.length, values.size());
+
+        // Each partition must read at least as many rows as the fact table
+        // has, so there is only one partition.
+        propSaver.set(
+            MondrianProperties.instance().SegmentLoadPartitionMinRows,
+            Integer.MAX_VALUE);
+        assertNull(loader.partition(groupingSetsList));
+    }
+
+    /**
+     * Tests that a query returns the same result if its segments are loaded
+     * in partitions, and that each segment load is split into the expected
+     * number of SQL statements.
+     *
+     * <p>Every segment of the query constrains product department to its
+     * longest list of values, more than 4, so with at most 4 partitions and a
+     * minimum of 1 row per partition, each load becomes 4 statements.
+     */
+    public void testPartitionedLoad() {
+        final String mdx =
+            "select {[Measures].[Unit Sales], [Measures].[Store Sales]}"
+            + " on 0,\n"
+            + " {[Product].[Drink].Children, [Product].[Food].Children}"
+            + " * [Gender].[Gender].Members on 1\n"
+            + "from [Sales]";
+        getConnection().getCacheControl(null).flushSchemaCache();
+        final Result expected = getTestContext().executeQuery(mdx);
+        getConnection().getCacheControl(null).flushSchemaCache();
+        final List<String> expectedSql =
+            segmentLoadSql(executeQueryCollectingSql(mdx));
+        assertFalse(expectedSql.isEmpty());
+
+        getConnection().getCacheControl(null).flushSchemaCache();
+        propSaver.set(
+            MondrianProperties.instance().SegmentLoadMaxPartitions, 4);
+        propSaver.set(
+            MondrianProperties.instance().SegmentLoadPartitionMinRows, 1);
+        final Result actual = getTestContext().executeQuery(mdx);
+        assertEquals(
+            TestContext.toString(expected),
+            TestContext.toString(actual));
+        getConnection().getCacheControl(null).flushSchemaCache();
+        final List<String> actualSql =
+            segmentLoadSql(executeQueryCollectingSql(mdx));
+        assertEquals(
+            actualSql.toString(), expectedSql.size() * 4, actualSql.size());
+        for (String sql : actualSql) {
+            assertTrue(sql, sql.contains("product_department"));
+        }
+    }
+
+    /**
+     * Returns the statements in a list of SQL statements that load segments,
+     * that is, that compute an aggregate.
+     */
+    private static List<String> segmentLoadSql(List<String> sqlList) {
+        final List<String> list = new ArrayList<String>();
+        for (String sql : sqlList) {
+            if (sql.toLowerCase().contains("sum(")) {
+                list.add(sql);
+            }
+        }
+        return list;
+    }
+
     public void testLoadWithMockResultsForLoadingSummaryAndDetailedSegments()
         throws ExecutionException, InterruptedException
     {
@@ -508,6 +613,58 @@ public class SegmentLoaderTest extends BatchTestCase {
         assertEquals(2, genderAxis.size());
     }
 
+    /**
+     * Tests that key columns of type OBJECT and STRING in a
+     * {@link SegmentLoader.RowList} are dictionary-encoded, and that other
+     * columns are not.
+     */
+    public void testRowListDictionary() {
+        final SegmentLoader.RowList rows =
+            new SegmentLoader.RowList(
+                Arrays.asList(
+                    SqlStatement.Type.STRING,
+                    SqlStatement.Type.INT,
+                    SqlStatement.Type.OBJECT),
+                2,
+                2);
+        final String[] genders = {"M", "F", "M", null, "F"};
+        for (int i = 0; i < genders.length; i++) {
+            rows.createRow();
+            rows.setObject(0, genders[i]);
+            rows.setInt(1, i);
+            rows.setObject(2, "x" + i);
+        }
+        assertEquals(Arrays.asList("M", "F", null), rows.getDictionary(0));
+        assertNull(rows.getDictionary(1));
+        assertNull(rows.getDictionary(2));
+
+        final int[] codes = {0, 1, 0, 2, 1};
+        int i = 0;
+        for (rows.first(); rows.next(); i++) {
+            assertEquals(codes[i], rows.getCode(0));
+            assertEquals(genders[i], rows.getObject(0));
+            assertEquals(genders[i] == null, rows.isNull(0));
+            assertEquals(i, rows.getInt(1));
+            assertEquals("x" + i, rows.getObject(2));
+        }
+        assertEquals(genders.length, i);
+
+        // Appending rows re-encodes values in the target's dictionary.
+        final SegmentLoader.RowList rows2 =
+            new SegmentLoader.RowList(rows.getTypes(), 10, 2);
+        rows2.createRow();
+        rows2.setObject(0, "F");
+        rows2.setInt(1, 10);
+        rows2.setObject(2, "y");
+        rows2.addAll(rows);
+        assertEquals(6, rows2.size());
+        assertEquals(Arrays.asList("F", "M", null), rows2.getDictionary(0));
+        rows2.last();
+        assertTrue(rows2.previous());
+        assertEquals("F", rows2.getObject(0));
+        assertEquals(0, rows2.getCode(0));
+    }
+
     private void verifyUnitSalesDetailed(SegmentWithData segment) {
         Double[] unitSalesValues = {
             null, null, null, null, 1987.0, 2199.0,
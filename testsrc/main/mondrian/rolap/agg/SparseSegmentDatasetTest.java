@@ -0,0 +1,125 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.rolap.SqlStatement;
+import mondrian.spi.SegmentBody;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link SparseSegmentDataset} and {@link SparseSegmentBody}.
+ *
+ * @author agent
+ */
+public class SparseSegmentDatasetTest extends TestCase {
+    public SparseSegmentDatasetTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests a dataset of doubles whose axes have more than 2^31 cells in
+     * total, and which grows beyond its initial capacity.
+     */
+    public void testDouble() {
+        final SegmentAxis[] axes = {
+            makeAxis(100000), makeAxis(100000), makeAxis(1000)
+        };
+        final SparseSegmentDataset dataset =
+            new SparseSegmentDataset(axes, SqlStatement.Type.DOUBLE);
+        assertEquals(SqlStatement.Type.DOUBLE, dataset.getType());
+        final Map<CellKey, Object> expected = new HashMap<CellKey, Object>();
+        for (int i = 0; i < 1000; i++) {
+            final CellKey key =
+                CellKey.Generator.newCellKey(
+                    new int[] {99999 - i, i * 7, i % 1000});
+            final Double value = i % 10 == 0 ? null : (double) i;
+            dataset.put(key, value);
+            expected.put(key, value);
+        }
+        assertEquals(1000, dataset.size());
+        for (Map.Entry<CellKey, Object> entry : expected.entrySet()) {
+            final CellKey key = entry.getKey();
+            assertTrue(dataset.exists(key));
+            assertEquals(entry.getValue(), dataset.getObject(key));
+            assertEquals(entry.getValue() == null, dataset.isNull(key));
+        }
+        final CellKey missing =
+            CellKey.Generator.newCellKey(new int[] {1, 2, 3});
+        assertFalse(dataset.exists(missing));
+        assertTrue(dataset.isNull(missing));
+        assertNull(dataset.getObject(missing));
+        assertEquals(0d, dataset.getDouble(missing), 0d);
+
+        final Map<CellKey, Object> actual = new HashMap<CellKey, Object>();
+        for (Map.Entry<CellKey, Object> entry : dataset) {
+            actual.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(expected, actual);
+
+        // Convert to a body and back again.
+        final SegmentBody body =
+            dataset.createSegmentBody(makeAxisList(axes));
+        assertTrue(body instanceof SparseSegmentBody);
+        assertEquals(expected, body.getValueMap());
+        final SparseSegmentDataset dataset2 =
+            ((SparseSegmentBody) body).createDataset(axes);
+        assertEquals(SqlStatement.Type.DOUBLE, dataset2.getType());
+        for (Map.Entry<CellKey, Object> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dataset2.getObject(entry.getKey()));
+        }
+    }
+
+    /**
+     * Tests a dataset of objects, and looking up cells by offset.
+     */
+    public void testObject() {
+        final SegmentAxis[] axes = {makeAxis(3), makeAxis(4)};
+        final SparseSegmentDataset dataset =
+            new SparseSegmentDataset(axes, SqlStatement.Type.STRING);
+        assertEquals(SqlStatement.Type.OBJECT, dataset.getType());
+        dataset.put(CellKey.Generator.newCellKey(new int[] {2, 1}), "x");
+        dataset.put(CellKey.Generator.newCellKey(new int[] {0, 3}), null);
+        assertEquals("x", dataset.getObjectAt(2 * 4 + 1));
+        assertNull(dataset.getObjectAt(3));
+        assertTrue(
+            dataset.exists(CellKey.Generator.newCellKey(new int[] {0, 3})));
+        assertNull(dataset.getObjectAt(5));
+        assertEquals(2, dataset.size());
+    }
+
+    private static SegmentAxis makeAxis(int size) {
+        final Comparable[] keys = new Comparable[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i;
+        }
+        return new SegmentAxis(null, keys);
+    }
+
+    private static List<Pair<SortedSet<Comparable>, Boolean>> makeAxisList(
+        SegmentAxis[] axes)
+    {
+        final List<Pair<SortedSet<Comparable>, Boolean>> list =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        for (SegmentAxis axis : axes) {
+            list.add(
+                Pair.<SortedSet<Comparable>, Boolean>of(
+                    new TreeSet<Comparable>(Arrays.asList(axis.getKeys())),
+                    false));
+        }
+        return list;
+    }
+}
+
+// End SparseSegmentDatasetTest.java
@@ -0,0 +1,151 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.rolap.aggmatcher;
+
+import mondrian.olap.*;
+import mondrian.rolap.RolapConnection;
+import mondrian.server.monitor.SegmentLoadInfo;
+import mondrian.test.FoodMartTestCase;
+
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * Unit test for {@link AggRecommender}.
+ *
+ * @author agent
+ */
+public class AggRecommenderTest extends FoodMartTestCase {
+    public AggRecommenderTest(String name) {
+        super(name);
+    }
+
+    private static SegmentLoadInfo load(int loadCount, String... columns) {
+        return new SegmentLoadInfo(
+            null, "FoodMart", "Sales", "sales_fact_1997",
+            Arrays.asList(columns), loadCount, 0);
+    }
+
+    /**
+     * Tests the greedy choice of aggregate tables, without a database.
+     */
+    public void testChoose() {
+        final Map<String, Integer> cardinalities =
+            new HashMap<String, Integer>();
+        cardinalities.put("time_by_day.the_year", 2);
+        cardinalities.put("time_by_day.quarter", 4);
+        cardinalities.put("customer.gender", 2);
+        cardinalities.put("customer.customer_id", 10000);
+        final List<SegmentLoadInfo> loads =
+            Arrays.asList(
+                load(10, "time_by_day.the_year", "customer.gender"),
+                load(5, "time_by_day.quarter", "time_by_day.the_year"),
+                load(1, "customer.customer_id", "time_by_day.quarter"),
+                load(3, "customer.gender", "time_by_day.the_year"));
+
+        // The first and fourth loads have the same columns, so count as one
+        // load with weight 13. With a large budget, the recommender first
+        // chooses a tiny table for it, then one for the second load, then a
+        // large table for the customer_id load. It does not choose the
+        // table with gender, quarter and year, which would answer the first
+        // two, because once they are answered it brings no benefit.
+        List<AggRecommender.Candidate> candidates =
+            AggRecommender.choose(100000, cardinalities, loads, 100000);
+        assertEquals(
+            "[[customer.gender, time_by_day.the_year] (4 rows),"
+            + " [time_by_day.quarter, time_by_day.the_year] (8 rows),"
+            + " [customer.customer_id, time_by_day.quarter] (40000 rows)]",
+            candidates.toString());
+
+        // With a small budget, the large table does not fit.
+        candidates =
+            AggRecommender.choose(100000, cardinalities, loads, 1000);
+        assertEquals(
+            "[[customer.gender, time_by_day.the_year] (4 rows),"
+            + " [time_by_day.quarter, time_by_day.the_year] (8 rows)]",
+            candidates.toString());
+
+        // A table as large as the fact table is never useful.
+        candidates =
+            AggRecommender.choose(20000, cardinalities, loads, 100000);
+        assertEquals(2, candidates.size());
+
+        // A column of unknown cardinality makes its tables too large.
+        candidates =
+            AggRecommender.choose(
+                100000, cardinalities,
+                Collections.singletonList(load(1, "store.store_name")),
+                100000);
+        assertEquals(0, candidates.size());
+    }
+
+    /**
+     * Tests writing and reading segment loads in the workload log format.
+     */
+    public void testFormatParse() throws Exception {
+        final SegmentLoadInfo load =
+            load(3, "customer.gender", "time_by_day.the_year");
+        final String line = AggRecommender.format(load);
+        assertEquals(
+            "SegmentLoad\tFoodMart\tSales\tsales_fact_1997\t"
+            + "customer.gender,time_by_day.the_year\t3\t0",
+            line);
+        final List<SegmentLoadInfo> loads =
+            AggRecommender.read(
+                new StringReader(
+                    "2013-06-01 10:00:00,000 DEBUG [workload] " + line + "\n"
+                    + "some other line\n"
+                    + AggRecommender.format(load(1)) + "\n"));
+        assertEquals(2, loads.size());
+        assertEquals("sales_fact_1997", loads.get(0).factTable);
+        assertEquals(load.columns, loads.get(0).columns);
+        assertEquals(3, loads.get(0).loadCount);
+        assertEquals(Collections.<String>emptyList(), loads.get(1).columns);
+    }
+
+    /**
+     * Tests that the monitor records segment loads, and that the recommender
+     * generates SQL and schema elements for them.
+     */
+    public void testMonitor() {
+        final RolapConnection connection =
+            (RolapConnection) getConnection();
+        final CacheControl cacheControl = connection.getCacheControl(null);
+        final Cube salesCube =
+            connection.getSchema().lookupCube("Sales", true);
+        cacheControl.flush(cacheControl.createMeasuresRegion(salesCube));
+        executeQuery(
+            "select [Gender].Children * [Product].Children on 0\n"
+            + "from [Sales]");
+
+        final List<SegmentLoadInfo> loads =
+            connection.getServer().getMonitor().getSegmentLoads();
+        SegmentLoadInfo found = null;
+        for (SegmentLoadInfo load : loads) {
+            if (load.factTable.equals("sales_fact_1997")
+                && load.columns.contains("customer.gender")
+                && load.columns.contains("product_class.product_family"))
+            {
+                found = load;
+            }
+        }
+        assertNotNull(String.valueOf(loads), found);
+        assertEquals("Sales", found.cubeName);
+        assertTrue(found.loadCount > 0);
+
+        final String script =
+            new AggRecommender(connection.getSchema(), 1000000L)
+                .recommend(Collections.singletonList(found));
+        assertTrue(script, script.contains("agg_r1_sales_fact_1997"));
+        assertTrue(script, script.contains("AggLevel"));
+    }
+}
+
+// End AggRecommenderTest.java
@@ -5,12 +5,13 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2004-2005 Julian Hyde
-// Copyright (C) 2005-2011 Pentaho and others
+// Copyright (C) 2005-2013 Pentaho and others
 // All Rights Reserved.
 */
 package mondrian.rolap.sql;
 
 import mondrian.olap.MondrianProperties;
+import mondrian.olap.Result;
 import mondrian.rolap.BatchTestCase;
 import mondrian.spi.Dialect;
 import mondrian.test.SqlPattern;
@@ -659,6 +660,102 @@ public class SqlQueryTest extends BatchTestCase {
             true,
             true);
     }
+
+    /**
+     * Tests that {@link SqlQuery#quote} generates bind variables if
+     * {@link MondrianProperties#GenerateBindVariables} is set, and that they
+     * can be converted to "?" and values, or back to literals.
+     */
+    public void testBindVariables() {
+        final Dialect dialect = getTestContext().getDialect();
+        final StringBuilder literals = new StringBuilder("x in (");
+        dialect.quote(literals, "O'Brien", Dialect.Datatype.String);
+        literals.append(", ");
+        dialect.quote(literals, 12, Dialect.Datatype.Integer);
+        literals.append(")");
+
+        // Without the property, values are literals.
+        assertEquals(literals.toString(), quoteTwo(new SqlQuery(dialect)));
+
+        propSaver.set(prop.GenerateBindVariables, true);
+        final SqlQuery sqlQuery = new SqlQuery(dialect);
+        final String sql = quoteTwo(sqlQuery);
+        if (!dialect.allowsBindVariables()) {
+            assertEquals(literals.toString(), sql);
+            return;
+        }
+        final List<SqlQuery.BindVariable> bindVariables =
+            new ArrayList<SqlQuery.BindVariable>();
+        assertEquals(
+            "x in (?, ?)",
+            SqlQuery.extractBindVariables(sql, bindVariables));
+        assertEquals("[O'Brien, 12]", bindVariables.toString());
+        assertEquals(
+            Dialect.Datatype.String, bindVariables.get(0).datatype);
+        assertEquals(
+            Dialect.Datatype.Integer, bindVariables.get(1).datatype);
+        assertEquals(literals.toString(), SqlQuery.inlineBindVariables(sql));
+
+        // Invalid values are still rejected.
+        try {
+            sqlQuery.quote(
+                new StringBuilder(), "not a date", Dialect.Datatype.Date);
+            fail("expected error");
+        } catch (NumberFormatException e) {
+            // ok
+        }
+    }
+
+    private static String quoteTwo(SqlQuery sqlQuery) {
+        final StringBuilder buf = new StringBuilder("x in (");
+        sqlQuery.quote(buf, "O'Brien", Dialect.Datatype.String);
+        buf.append(", ");
+        sqlQuery.quote(buf, 12, Dialect.Datatype.Integer);
+        return buf.append(")").toString();
+    }
+
+    /**
+     * Tests that a query returns the same result whether its SQL uses bind
+     * variables or literals, and that the SQL executed with bind variables
+     * contains "?" placeholders.
+     */
+    public void testBindVariablesQuery() {
+        final String mdx =
+            "select [Measures].[Unit Sales] on 0,\n"
+            + " {[Store].[USA].[CA].[San Francisco],\n"
+            + "  [Store].[USA].[OR].[Portland]}\n"
+            + " * [Gender].Members on 1\n"
+            + "from [Sales]\n"
+            + "where [Time].[1997].[Q1]";
+        final TestContext testContext = getTestContext();
+        testContext.flushSchemaCache();
+        final Result result = testContext.executeQuery(mdx);
+        propSaver.set(prop.GenerateBindVariables, true);
+        testContext.flushSchemaCache();
+        final Result result2 = testContext.executeQuery(mdx);
+        assertEquals(
+            TestContext.toString(result),
+            TestContext.toString(result2));
+
+        // Statements that were executed with bind variables have "?" in
+        // place of values. Other statements have no "?".
+        final boolean bind = testContext.getDialect().allowsBindVariables();
+        testContext.flushSchemaCache();
+        assertEquals(bind, containsPlaceholder(executeQueryCollectingSql(mdx)));
+        propSaver.set(prop.GenerateBindVariables, false);
+        testContext.flushSchemaCache();
+        assertFalse(containsPlaceholder(executeQueryCollectingSql(mdx)));
+    }
+
+    private static boolean containsPlaceholder(List<String> sqlList) {
+        assertFalse(sqlList.isEmpty());
+        for (String sql : sqlList) {
+            if (sql.contains("?")) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
 
 // End SqlQueryTest.java
@@ -84,6 +84,27 @@ public class AccessControlTest extends FoodMartTestCase {
             "MDX object '[Gender]' not found in cube 'Sales'");
     }
 
+    /**
+     * Tests that the plan of a query, which records what the query's
+     * identifiers resolved to, is not shared between roles. See
+     * {@link MondrianProperties#QueryPlanCacheMaxSize}.
+     */
+    public void testQueryPlanCacheRole() {
+        propSaver.set(MondrianProperties.instance().QueryPlanCacheMaxSize, 10);
+        final String mdx = "select {[Store].[USA].[OR]} on 0 from [Sales]";
+        final TestContext testContext = getTestContext();
+        final Result result = testContext.executeQuery(mdx);
+        assertEquals(
+            "[Store].[USA].[OR]",
+            result.getAxes()[0].getPositions().get(0).get(0).getUniqueName());
+        testContext.withRole("California manager").assertQueryThrows(
+            mdx,
+            "MDX object '[Store].[USA].[OR]' not found in cube 'Sales'");
+        assertEquals(
+            TestContext.toString(result),
+            TestContext.toString(testContext.executeQuery(mdx)));
+    }
+
     public void testRestrictMeasures() {
         final TestContext testContext = TestContext.instance().create(
             null, null, null, null, null,
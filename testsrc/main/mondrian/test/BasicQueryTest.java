@@ -24,6 +24,7 @@ import mondrian.rolap.RolapSchema;
 import mondrian.server.Execution;
 import mondrian.spi.*;
 import mondrian.spi.impl.JdbcStatisticsProvider;
+import mondrian.spi.impl.SketchStatisticsProvider;
 import mondrian.spi.impl.SqlStatisticsProvider;
 import mondrian.util.Bug;
 
@@ -34,6 +35,7 @@ import org.eigenbase.util.property.StringProperty;
 import org.olap4j.*;
 import org.olap4j.layout.RectangularCellSetFormatter;
 
+import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.sql.*;
@@ -7775,6 +7777,69 @@ public class BasicQueryTest extends FoodMartTestCase {
         }
     }
 
+    /**
+     * Unit test for {@link SketchStatisticsProvider}: computes the
+     * cardinality of a column, stores it in a file, and reads it back.
+     */
+    public void testSketchStatistics() throws Exception {
+        final File file =
+            File.createTempFile("mondrian-statistics", ".properties");
+        assertTrue(file.delete());
+        propSaver.set(
+            MondrianProperties.instance().StatisticsSketchFile,
+            file.getPath());
+        final TestContext testContext = getTestContext();
+        final Dialect dialect = testContext.getDialect();
+        final javax.sql.DataSource dataSource =
+            testContext.getConnection().getDataSource();
+        final Execution execution =
+            new Execution(
+                ((RolapSchema) testContext.getConnection().getSchema())
+                    .getInternalConnection().getInternalStatement(),
+                0);
+        try {
+            final StatisticsProvider statisticsProvider =
+                new SketchStatisticsProvider();
+            assertEquals(
+                2,
+                statisticsProvider.getColumnCardinality(
+                    dialect, dataSource, null, null, "customer", "gender",
+                    execution));
+            assertEquals(
+                -1,
+                statisticsProvider.getQueryCardinality(
+                    dialect, dataSource, "select * from customer",
+                    execution));
+            assertTrue(file.exists());
+
+            // The value is stored, so the provider returns it even if
+            // sampling would produce a different answer.
+            propSaver.set(
+                MondrianProperties.instance().StatisticsSketchSampleRows, 1);
+            assertEquals(
+                2,
+                new SketchStatisticsProvider().getColumnCardinality(
+                    dialect, dataSource, null, null, "customer", "gender",
+                    execution));
+        } finally {
+            file.delete();
+        }
+
+        // No more values appeared in the second half of the sample.
+        assertEquals(
+            100, SketchStatisticsProvider.extrapolate(100, 100, 1000, 5000));
+        // Every row in the sample was distinct.
+        assertEquals(
+            5000, SketchStatisticsProvider.extrapolate(1000, 500, 1000, 5000));
+        // Table row count not known, or no larger than sample.
+        assertEquals(
+            300, SketchStatisticsProvider.extrapolate(300, 200, 1000, -1));
+        assertEquals(
+            300, SketchStatisticsProvider.extrapolate(300, 200, 1000, 1000));
+        assertEquals(
+            700, SketchStatisticsProvider.extrapolate(300, 200, 1000, 3000));
+    }
+
     public void testResultLimit() throws Exception {
         propSaver.set(
             MondrianProperties.instance().ResultLimit,
@@ -9,8 +9,13 @@
 */
 package mondrian.test;
 
+import mondrian.olap.MondrianProperties;
 import mondrian.olap.Util;
+import mondrian.rolap.RolapConnection;
+import mondrian.rolap.RolapUtil;
 import mondrian.rolap.SqlStatement;
+import mondrian.server.Execution;
+import mondrian.server.monitor.SqlStatementEvent;
 import mondrian.spi.Dialect;
 import mondrian.spi.DialectManager;
 import mondrian.spi.impl.*;
@@ -20,6 +25,7 @@ import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 
 import java.lang.reflect.*;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
 import javax.sql.DataSource;
@@ -1334,6 +1340,89 @@ public class DialectTest extends TestCase {
                 0) == SqlStatement.Type.INT);
     }
 
+    /**
+     * Tests how dialects ask their driver to stream a result set, and that
+     * the driver of the current database streams a large result set.
+     */
+    public void testStreaming() throws SQLException {
+        final Dialect mysqlDialect =
+            TestContext.getFakeDialect(Dialect.DatabaseProduct.MYSQL);
+        assertEquals(
+            Integer.MIN_VALUE, mysqlDialect.getStreamingFetchSize(1000));
+        assertFalse(mysqlDialect.requiresTransactionForStreaming());
+        final Dialect postgresDialect =
+            TestContext.getFakeDialect(Dialect.DatabaseProduct.POSTGRESQL);
+        assertEquals(1000, postgresDialect.getStreamingFetchSize(1000));
+        assertTrue(postgresDialect.requiresTransactionForStreaming());
+        final Dialect oracleDialect =
+            TestContext.getFakeDialect(Dialect.DatabaseProduct.ORACLE);
+        assertEquals(1000, oracleDialect.getStreamingFetchSize(1000));
+        assertFalse(oracleDialect.requiresTransactionForStreaming());
+
+        // Execute a statement that is allowed to stream, and check that
+        // SqlStatement applied the dialect's settings.
+        final RolapConnection connection =
+            (RolapConnection) TestContext.instance().getConnection();
+        final Dialect dialect = connection.getSchema().getDialect();
+        final int fetchSize =
+            dialect.getStreamingFetchSize(
+                MondrianProperties.instance().StreamingFetchSize.get());
+        final SqlStatement stmt =
+            RolapUtil.executeQuery(
+                connection.getDataSource(),
+                dialectize("select [customer_id] from [sales_fact_1997]"),
+                new SqlStatement.StatementLocus(
+                    new Execution(connection.getInternalStatement(), 0),
+                    "DialectTest.testStreaming",
+                    null,
+                    SqlStatementEvent.Purpose.TUPLES,
+                    0));
+        try {
+            final Statement jdbcStatement =
+                stmt.getResultSet().getStatement();
+            if (fetchSize != 0) {
+                assertEquals(fetchSize, jdbcStatement.getFetchSize());
+                if (dialect.requiresTransactionForStreaming()) {
+                    assertFalse(jdbcStatement.getConnection().getAutoCommit());
+                }
+            }
+            int n = 0;
+            while (stmt.getResultSet().next()) {
+                ++n;
+            }
+            assertTrue(n > 0);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Tests {@link Dialect#generateTableSample(java.math.BigDecimal)}, and
+     * that the current database accepts the clause that its dialect
+     * generates.
+     */
+    public void testGenerateTableSample() {
+        final BigDecimal percent = new BigDecimal("1.5");
+        assertEquals(
+            "SAMPLE (1.5)",
+            TestContext.getFakeDialect(Dialect.DatabaseProduct.ORACLE)
+                .generateTableSample(percent));
+        assertEquals(
+            "TABLESAMPLE (1.5 PERCENT)",
+            TestContext.getFakeDialect(Dialect.DatabaseProduct.MSSQL)
+                .generateTableSample(percent));
+        assertNull(
+            TestContext.getFakeDialect(Dialect.DatabaseProduct.MYSQL)
+                .generateTableSample(percent));
+        final String sampleClause =
+            getDialect().generateTableSample(new BigDecimal(50));
+        if (sampleClause != null) {
+            assertQuerySucceeds(
+                dialectize("select [gender] from [customer]")
+                + " " + sampleClause);
+        }
+    }
+
     public static class MockResultSetMetadata
         extends DelegatingInvocationHandler
     {
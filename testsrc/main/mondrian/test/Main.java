@@ -205,8 +205,16 @@ public class Main extends TestSuite {
                 return suite;
             }
             addTest(suite, SegmentBuilderTest.class);
+            addTest(suite, BoundedMemorySegmentCacheTest.class);
+            addTest(suite, OffHeapSegmentCacheTest.class);
+            addTest(suite, FileSegmentCacheTest.class);
+            addTest(suite, BinarySegmentCodecTest.class);
+            addTest(suite, SparseSegmentDatasetTest.class);
             addTest(suite, NativeFilterMatchingTest.class);
             addTest(suite, RolapConnectionTest.class);
+            addTest(suite, SqlQueueTest.class);
+            addTest(suite, ParallelEvaluatorTest.class);
+            addTest(suite, ExpResultCacheTest.class);
             addTest(suite, FilteredIterableTest.class);
             addTest(suite, HighDimensionsTest.class);
             addTest(suite, IndexedValuesTest.class);
@@ -241,6 +249,9 @@ public class Main extends TestSuite {
             addTest(suite, ScheduleTest.class);
             addTest(suite, UtilTestCase.class);
             addTest(suite, PartiallyOrderedSetTest.class);
+            addTest(suite, InFlightRegistryTest.class);
+            addTest(suite, HyperLogLogTest.class);
+            addTest(suite, AggRecommenderTest.class);
             addTest(suite, ExpiringReferenceTest.class);
             addTest(suite, Olap4jTest.class);
             addTest(suite, SortTest.class);
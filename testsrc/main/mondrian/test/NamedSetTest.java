@@ -5,13 +5,14 @@
 // You must accept the terms of that agreement to use this software.
 //
 // Copyright (C) 2003-2005 Julian Hyde
-// Copyright (C) 2005-2012 Pentaho
+// Copyright (C) 2005-2013 Pentaho
 // All Rights Reserved.
 //
 // jhyde, Feb 14, 2003
 */
 package mondrian.test;
 
+import mondrian.olap.MondrianProperties;
 import mondrian.olap.Result;
 import mondrian.olap.Util;
 import mondrian.spi.impl.FilterDynamicSchemaProcessor;
@@ -1161,6 +1162,41 @@ public class NamedSetTest extends FoodMartTestCase {
         testNamedSetRangeInSlicer();
     }
 
+    /**
+     * Tests that the value of a named set defined using 'AS' within an
+     * expression, which depends on the context in which it is evaluated, is
+     * not shared between contexts by the cache of expression values shared by
+     * all statements. (See {@link MondrianProperties#ExpCacheSharedMaxSize}.)
+     */
+    public void testDynamicNamedSetNotShared() {
+        propSaver.set(MondrianProperties.instance().ExpCacheSharedMaxSize, 100);
+        final String query =
+            "with member [Measures].[Store Name] as\n"
+            + "  '[Store].CurrentMember.Name'\n"
+            + "select [Measures].[Store Name] on 0,\n"
+            + "  Generate({[Store].[USA].[CA], [Store].[USA].[OR]},\n"
+            + "    Head([Store].CurrentMember.Children as x, 2)) on 1\n"
+            + "from [Sales]";
+        final String expected =
+            "Axis #0:\n"
+            + "{}\n"
+            + "Axis #1:\n"
+            + "{[Measures].[Store Name]}\n"
+            + "Axis #2:\n"
+            + "{[Store].[USA].[CA].[Alameda]}\n"
+            + "{[Store].[USA].[CA].[Beverly Hills]}\n"
+            + "{[Store].[USA].[OR].[Portland]}\n"
+            + "{[Store].[USA].[OR].[Salem]}\n"
+            + "Row #0: Alameda\n"
+            + "Row #1: Beverly Hills\n"
+            + "Row #2: Portland\n"
+            + "Row #3: Salem\n";
+        // The second execution would find the values of the first, if they
+        // had been shared.
+        assertQueryReturns(query, expected);
+        assertQueryReturns(query, expected);
+    }
+
     /**
      * Dynamic schema processor which adds two named sets to a the first cube
      * in a schema.
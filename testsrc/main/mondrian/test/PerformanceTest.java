@@ -4,7 +4,7 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2009-2012 Pentaho
+// Copyright (C) 2009-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.test;
@@ -12,6 +12,10 @@ package mondrian.test;
 import mondrian.olap.*;
 import mondrian.olap.fun.FunUtil;
 import mondrian.olap.type.*;
+import mondrian.rolap.*;
+import mondrian.rolap.agg.SegmentCacheManager;
+import mondrian.server.Locus;
+import mondrian.spi.SegmentHeader;
 import mondrian.spi.UserDefinedFunction;
 import mondrian.util.Bug;
 
@@ -560,6 +564,129 @@ public class PerformanceTest extends FoodMartTestCase {
         return duration;
     }
 
+    /**
+     * Measures the throughput of the segment cache manager, for a varying
+     * number of client threads, with and without partitioning. Each client
+     * sends index lookups for the stars of the FoodMart schema, round-robin.
+     *
+     * <p>With one partition, every lookup goes through the same actor thread,
+     * and throughput stops growing after a few clients. With several
+     * partitions, lookups for different stars proceed in parallel.</p>
+     */
+    public void testSegmentCacheManagerPartitionThroughput() throws Exception {
+        final RolapConnection connection =
+            (RolapConnection) getConnection();
+        final List<RolapStar> stars =
+            new ArrayList<RolapStar>(connection.getSchema().getStars());
+        final int opCount = LOGGER.isDebugEnabled() ? 100000 : 1000;
+        for (int partitionCount : new int[] {1, 4}) {
+            propSaver.set(
+                MondrianProperties.instance()
+                    .SegmentCacheManagerNumberPartitions,
+                partitionCount);
+            final SegmentCacheManager cacheMgr =
+                new SegmentCacheManager(connection.getServer());
+            try {
+                for (int clientCount : new int[] {1, 2, 4, 8, 16}) {
+                    final long start = System.currentTimeMillis();
+                    checkSegmentCacheManagerThroughput(
+                        cacheMgr, stars, clientCount, opCount / clientCount);
+                    final long duration =
+                        printDuration(
+                            "testSegmentCacheManagerPartitionThroughput"
+                            + " partitions=" + partitionCount
+                            + " clients=" + clientCount,
+                            start);
+                    LOGGER.debug(
+                        "partitions=" + partitionCount
+                        + " clients=" + clientCount
+                        + " throughput="
+                        + (opCount * 1000L / Math.max(duration, 1))
+                        + " ops/sec");
+                }
+            } finally {
+                cacheMgr.shutdown();
+            }
+        }
+    }
+
+    private void checkSegmentCacheManagerThroughput(
+        final SegmentCacheManager cacheMgr,
+        final List<RolapStar> stars,
+        int clientCount,
+        final int opCount)
+        throws InterruptedException
+    {
+        final AtomicInteger counter = new AtomicInteger();
+        final List<Throwable> throwables =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clientCount; i++) {
+            final int clientOrdinal = i;
+            threads.add(
+                new Thread("client #" + i) {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < opCount; j++) {
+                                final RolapStar star =
+                                    stars.get(
+                                        (clientOrdinal + j) % stars.size());
+                                final List<SegmentHeader> headers =
+                                    cacheMgr.execute(
+                                        star,
+                                        new LocateCommand(cacheMgr, star));
+                                assertTrue(headers.isEmpty());
+                                counter.incrementAndGet();
+                            }
+                        } catch (Throwable e) {
+                            throwables.add(e);
+                        }
+                    }
+                });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), throwables);
+        assertEquals(clientCount * opCount, counter.get());
+    }
+
+    /**
+     * Command that looks up the index of a star, as
+     * {@link SegmentCacheManager#peek} does for each cell request.
+     */
+    private static class LocateCommand
+        implements SegmentCacheManager.Command<List<SegmentHeader>>
+    {
+        private final SegmentCacheManager cacheMgr;
+        private final RolapStar star;
+
+        LocateCommand(SegmentCacheManager cacheMgr, RolapStar star) {
+            this.cacheMgr = cacheMgr;
+            this.star = star;
+        }
+
+        public List<SegmentHeader> call() {
+            final RolapSchema schema = star.getSchema();
+            return cacheMgr.getIndexRegistry().getIndex(star).locate(
+                schema.getName(),
+                schema.getChecksum(),
+                "",
+                "",
+                star.getFactTable().getAlias(),
+                star.getBitKey(new String[0], new String[0]),
+                Collections.<String, Comparable>emptyMap(),
+                Collections.<String>emptyList());
+        }
+
+        public Locus getLocus() {
+            return null;
+        }
+    }
+
     /**
      * Test for
      * <a href="http://jira.pentaho.com/browse/MONDRIAN-1242">MONDRIAN-1242,
@@ -623,6 +750,256 @@ public class PerformanceTest extends FoodMartTestCase {
         assertEquals(4, CounterUdf.count.get());
     }
 
+    /**
+     * Compares serial and parallel evaluation of the cells of a query with
+     * expensive calculated measures; see
+     * {@link MondrianProperties#CellEvaluationThreads}. The results must be
+     * identical. If debug is enabled, also measures the speedup.
+     */
+    public void testParallelCellEvaluation() {
+        final String query =
+            "with member [Measures].[YTD Unit Sales] as\n"
+            + "  'Sum(Ytd(), [Measures].[Unit Sales])'\n"
+            + " member [Measures].[Brand Rank] as\n"
+            + "  'Rank([Product].CurrentMember,\n"
+            + "    Order([Product].CurrentMember.Siblings,\n"
+            + "      [Measures].[Unit Sales], BDESC))'\n"
+            + "select {[Measures].[Unit Sales], [Measures].[YTD Unit Sales],\n"
+            + "  [Measures].[Brand Rank]} * [Time].[1997].Children\n"
+            + "  * [Time].[Month].Members on 0,\n"
+            + " [Product].[Brand Name].Members on 1\n"
+            + "from [Sales]";
+        final int n = LOGGER.isDebugEnabled() ? 10 : 1;
+        String expected = null;
+        for (int threadCount : new int[] {1, 4}) {
+            propSaver.set(
+                MondrianProperties.instance().CellEvaluationThreads,
+                threadCount);
+            final Statistician statistician =
+                new Statistician(
+                    "testParallelCellEvaluation threads=" + threadCount);
+            for (int i = 0; i < n; i++) {
+                final long start = System.currentTimeMillis();
+                final Result result = executeQuery(query);
+                statistician.record(start);
+                final String actual = TestContext.toString(result);
+                if (expected == null) {
+                    expected = actual;
+                } else {
+                    assertEquals(expected, actual);
+                }
+            }
+            statistician.printDurations();
+        }
+    }
+
+    /**
+     * Tests evaluating the axes and named sets of a query concurrently, with
+     * {@link MondrianProperties#ConcurrentAxes}. The result must be the same
+     * as when they are evaluated one after another. Each iteration flushes
+     * the cache, so that the axes' SQL statements have to be executed.
+     */
+    public void testConcurrentAxes() {
+        final String query =
+            "with set [Top Products] as\n"
+            + "  'TopCount([Product].[Brand Name].Members, 20,\n"
+            + "     [Measures].[Unit Sales])'\n"
+            + " set [Top Customers] as\n"
+            + "  'TopCount([Customers].[City].Members, 10,\n"
+            + "     [Measures].[Store Sales])'\n"
+            + "select NON EMPTY [Top Products]\n"
+            + "  * [Store].[Store State].Members on 0,\n"
+            + " NON EMPTY [Top Customers]\n"
+            + "  * [Time].[1997].Children on 1\n"
+            + "from [Sales]\n"
+            + "where [Measures].[Unit Sales]";
+        final int n = LOGGER.isDebugEnabled() ? 10 : 1;
+        String expected = null;
+        for (boolean concurrent : new boolean[] {false, true}) {
+            propSaver.set(
+                MondrianProperties.instance().ConcurrentAxes, concurrent);
+            final Statistician statistician =
+                new Statistician(
+                    "testConcurrentAxes concurrent=" + concurrent);
+            for (int i = 0; i < n; i++) {
+                getTestContext().flushSchemaCache();
+                final long start = System.currentTimeMillis();
+                final Result result = executeQuery(query);
+                statistician.record(start);
+                final String actual = TestContext.toString(result);
+                if (expected == null) {
+                    expected = actual;
+                } else {
+                    assertEquals(expected, actual);
+                }
+            }
+            statistician.printDurations();
+        }
+    }
+
+    /**
+     * Compares serial and parallel evaluation of {@code Filter} and
+     * {@code Order} over large sets; see
+     * {@link MondrianProperties#SetEvaluationThreads}. The results must be
+     * identical. Sorts members and tuples, hierarchically and with
+     * break. If debug is enabled, also measures the speedup.
+     */
+    public void testParallelFilterOrder() {
+        final String query =
+            "with set [Big Customers] as\n"
+            + "  'Filter([Customers].[Name].Members,\n"
+            + "     [Measures].[Unit Sales] > 100)'\n"
+            + " member [Measures].[Count Big] as\n"
+            + "  'Count([Big Customers])'\n"
+            + " member [Measures].[First Customer] as\n"
+            + "  'Order([Customers].Members, [Measures].[Store Sales],\n"
+            + "     DESC).Item(1).Item(0).UniqueName'\n"
+            + " member [Measures].[Last Customer] as\n"
+            + "  'Tail(Order([Customers].[City].Members\n"
+            + "     * [Gender].[Gender].Members,\n"
+            + "     [Measures].[Unit Sales], ASC), 1).Item(0).Item(0)\n"
+            + "     .UniqueName'\n"
+            + "select {[Measures].[Count Big], [Measures].[First Customer],\n"
+            + "  [Measures].[Last Customer]} on 0,\n"
+            + " Head(Order([Big Customers], [Measures].[Unit Sales], BDESC),\n"
+            + "   20) on 1\n"
+            + "from [Sales]";
+        propSaver.set(
+            MondrianProperties.instance().SetEvaluationParallelThreshold, 10);
+        final int n = LOGGER.isDebugEnabled() ? 10 : 1;
+        String expected = null;
+        for (int threadCount : new int[] {1, 4}) {
+            propSaver.set(
+                MondrianProperties.instance().SetEvaluationThreads,
+                threadCount);
+            final Statistician statistician =
+                new Statistician(
+                    "testParallelFilterOrder threads=" + threadCount);
+            for (int i = 0; i < n; i++) {
+                final long start = System.currentTimeMillis();
+                final Result result = executeQuery(query);
+                statistician.record(start);
+                final String actual = TestContext.toString(result);
+                if (expected == null) {
+                    expected = actual;
+                } else {
+                    assertEquals(expected, actual);
+                }
+            }
+            statistician.printDurations();
+        }
+    }
+
+    /**
+     * Tests the cache of expression values shared by all statements; see
+     * {@link MondrianProperties#ExpCacheSharedMaxSize}. The second and later
+     * executions of a query get the values of its named set and cached
+     * expression from the cache, and must return the same result as the
+     * first. Flushing the cells of the cube removes the values.
+     */
+    public void testSharedExpResultCache() {
+        final String query =
+            "with set [Big Customers] as\n"
+            + "  'Filter([Customers].[Name].Members,\n"
+            + "     [Measures].[Unit Sales] > 100)'\n"
+            + " member [Measures].[Count Big] as\n"
+            + "  'Count([Big Customers])'\n"
+            + " member [Measures].[Top City] as\n"
+            + "  'Cache(TopCount([Customers].[City].Members, 1,\n"
+            + "     [Measures].[Store Sales]).Item(0).Item(0).Name)'\n"
+            + "select {[Measures].[Count Big], [Measures].[Top City]} on 0,\n"
+            + " Head([Big Customers], 10) on 1\n"
+            + "from [Sales]";
+        final ExpResultCache cache =
+            ((RolapConnection) getConnection()).getServer()
+                .getAggregationManager().expResultCache;
+        final int n = LOGGER.isDebugEnabled() ? 10 : 2;
+        String expected = null;
+        for (int maxSize : new int[] {0, 100}) {
+            propSaver.set(
+                MondrianProperties.instance().ExpCacheSharedMaxSize, maxSize);
+            final Statistician statistician =
+                new Statistician(
+                    "testSharedExpResultCache maxSize=" + maxSize);
+            for (int i = 0; i < n; i++) {
+                final long start = System.currentTimeMillis();
+                final Result result = executeQuery(query);
+                statistician.record(start);
+                final String actual = TestContext.toString(result);
+                if (expected == null) {
+                    expected = actual;
+                } else {
+                    assertEquals(expected, actual);
+                }
+            }
+            statistician.printDurations();
+        }
+        assertTrue(cache.size() > 0);
+
+        final CacheControl cacheControl = getConnection().getCacheControl(null);
+        final Cube salesCube =
+            getConnection().getSchema().lookupCube("Sales", true);
+        cacheControl.flush(cacheControl.createMeasuresRegion(salesCube));
+        assertEquals(0, cache.size());
+        assertEquals(expected, TestContext.toString(executeQuery(query)));
+    }
+
+    /**
+     * Tests the cache of query plans; see
+     * {@link MondrianProperties#QueryPlanCacheMaxSize}. Queries whose text
+     * differs only in white space share an entry, and each query created
+     * from it has its own calculated members and parameters. If debug is
+     * enabled, also measures how long it takes to parse, validate and compile
+     * the query, with and without the cache.
+     */
+    public void testQueryPlanCache() {
+        final String query =
+            "with member [Measures].[Double Sales] as\n"
+            + "  '[Measures].[Unit Sales] * 2'\n"
+            + "select {[Measures].[Unit Sales],\n"
+            + "  [Measures].[Double Sales]} on 0,\n"
+            + " {Parameter(\"Prod\", [Product], [Product].[Drink]).Children}\n"
+            + "  on 1\n"
+            + "from [Sales]";
+        final Connection connection = getConnection();
+        final QueryPlanCache cache =
+            ((RolapSchema) connection.getSchema()).getQueryPlanCache();
+        final String[] products = {null, "[Product].[Food]", "[Product]"};
+        final int n = LOGGER.isDebugEnabled() ? 1000 : 6;
+        final String[] expected = new String[products.length];
+        Member previousMember = null;
+        for (int maxSize : new int[] {0, 10}) {
+            propSaver.set(
+                MondrianProperties.instance().QueryPlanCacheMaxSize, maxSize);
+            cache.clear();
+            final Statistician statistician =
+                new Statistician("testQueryPlanCache maxSize=" + maxSize);
+            for (int i = 0; i < n; i++) {
+                final long start = System.currentTimeMillis();
+                final Query q =
+                    connection.parseQuery(
+                        i % 2 == 0 ? query : query.replace("\n", "\n  "));
+                statistician.record(start);
+                final Member member = q.getFormulas()[0].getMdxMember();
+                assertNotSame(previousMember, member);
+                previousMember = member;
+                final int p = i % products.length;
+                if (products[p] != null) {
+                    q.setParameter("Prod", products[p]);
+                }
+                final String actual =
+                    TestContext.toString(connection.execute(q));
+                if (expected[p] == null) {
+                    expected[p] = actual;
+                } else {
+                    assertEquals(expected[p], actual);
+                }
+            }
+            statistician.printDurations();
+            assertEquals(maxSize == 0 ? 0 : 1, cache.size());
+        }
+    }
+
     /**
      * Tests performance of
      * {@link mondrian.olap.fun.FunUtil#stablePartialSort}.
@@ -4,11 +4,14 @@
 // http://www.eclipse.org/legal/epl-v10.html.
 // You must accept the terms of that agreement to use this software.
 //
-// Copyright (C) 2009-2011 Pentaho
+// Copyright (C) 2009-2013 Pentaho
 // All Rights Reserved.
 */
 package mondrian.test;
 
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.Result;
+
 import junit.framework.TestCase;
 
 import org.apache.log4j.Logger;
@@ -97,6 +100,55 @@ public class SteelWheelsPerformanceTest extends TestCase {
         printDuration("Complex filters query performance", start);
     }
 
+    /**
+     * Measures the speedup of evaluating cells in parallel (see
+     * {@link MondrianProperties#CellEvaluationThreads}), and checks that the
+     * result is the same as when they are evaluated serially.
+     */
+    public void testParallelCellEvaluation() throws Exception {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        final String query =
+            "with member [Measures].[Cumulative Sales] as\n"
+            + "  'Sum(PeriodsToDate([Time].[Years]), [Measures].[Sales])'\n"
+            + " member [Measures].[Product Rank] as\n"
+            + "  'Rank([Product].CurrentMember,\n"
+            + "    Order([Product].CurrentMember.Siblings,\n"
+            + "      [Measures].[Sales], BDESC))'\n"
+            + "select {[Measures].[Sales], [Measures].[Cumulative Sales],\n"
+            + "  [Measures].[Product Rank]} * [Time].[Months].Members on 0,\n"
+            + " [Product].[Product].Members * [Markets].[Territory].Members\n"
+            + "   on 1\n"
+            + "from [SteelWheelsSales]";
+        final PropertySaver propSaver = new PropertySaver();
+        try {
+            String expected = null;
+            for (int threadCount : new int[] {1, 2, 4, 8}) {
+                propSaver.set(
+                    MondrianProperties.instance().CellEvaluationThreads,
+                    threadCount);
+                for (int i = 0; i < 5; i++) {
+                    long start = System.currentTimeMillis();
+                    final Result result =
+                        getTestContext().executeQuery(query);
+                    printDuration(
+                        "Parallel cell evaluation threads=" + threadCount
+                        + " iteration #" + i,
+                        start);
+                    final String actual = TestContext.toString(result);
+                    if (expected == null) {
+                        expected = actual;
+                    } else {
+                        assertEquals(expected, actual);
+                    }
+                }
+            }
+        } finally {
+            propSaver.reset();
+        }
+    }
+
     private void printDuration(String desc, long t0) {
         final long t1 = System.currentTimeMillis();
         final long duration = t1 - t0;
@@ -0,0 +1,85 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link HyperLogLog}.
+ *
+ * @author agent
+ */
+public class HyperLogLogTest extends TestCase {
+    public HyperLogLogTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that small numbers of distinct values are counted almost
+     * exactly, and that duplicates are not counted.
+     */
+    public void testSmall() {
+        final HyperLogLog sketch = new HyperLogLog(14);
+        assertEquals(0, sketch.estimate());
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(i % 2 == 0 ? "M" : "F");
+        }
+        assertEquals(2, sketch.estimate());
+        for (int i = 0; i < 100; i++) {
+            sketch.add(i);
+        }
+        final long estimate = sketch.estimate();
+        assertTrue("estimate " + estimate, Math.abs(estimate - 102) <= 2);
+    }
+
+    /**
+     * Tests that the estimate for a large number of distinct values is within
+     * a few standard errors of the true value.
+     */
+    public void testLarge() {
+        final int n = 1000000;
+        final HyperLogLog sketch = new HyperLogLog(14);
+        for (int i = 0; i < n; i++) {
+            sketch.add("customer #" + i);
+            sketch.add("customer #" + (i / 2));
+        }
+        final long estimate = sketch.estimate();
+        assertTrue(
+            "estimate " + estimate,
+            Math.abs(estimate - n) < n * 0.03);
+    }
+
+    /**
+     * Tests merging sketches.
+     */
+    public void testMerge() {
+        final HyperLogLog sketch1 = new HyperLogLog(12);
+        final HyperLogLog sketch2 = new HyperLogLog(12);
+        for (int i = 0; i < 20000; i++) {
+            sketch1.add(i);
+            sketch2.add(i + 10000);
+        }
+        sketch1.merge(sketch2);
+        final long estimate = sketch1.estimate();
+        assertTrue(
+            "estimate " + estimate,
+            Math.abs(estimate - 30000) < 30000 * 0.06);
+        try {
+            sketch1.merge(new HyperLogLog(13));
+            fail("expected error");
+        } catch (IllegalArgumentException e) {
+            assertEquals(
+                "cannot merge sketches of different precision",
+                e.getMessage());
+        }
+    }
+}
+
+// End HyperLogLogTest.java
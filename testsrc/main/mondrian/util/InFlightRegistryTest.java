@@ -0,0 +1,170 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2013 Pentaho and others
+// All Rights Reserved.
+*/
+package mondrian.util;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for {@link InFlightRegistry}.
+ *
+ * @author agent
+ */
+public class InFlightRegistryTest extends TestCase {
+    public InFlightRegistryTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Tests that threads that request the same key while a computation is in
+     * progress share its result, and that a different key is computed
+     * independently.
+     */
+    public void testShare() throws Exception {
+        final InFlightRegistry<String, String> registry =
+            new InFlightRegistry<String, String>();
+        final AtomicInteger callCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            final List<Future<String>> futures =
+                new ArrayList<Future<String>>();
+            futures.add(
+                executor.submit(
+                    execute(registry, "a", callCount, release, false)));
+            awaitSize(registry, 1);
+            for (int i = 0; i < 4; i++) {
+                futures.add(
+                    executor.submit(
+                        execute(registry, "a", callCount, release, false)));
+            }
+            // Give the other threads time to find the computation.
+            Thread.sleep(200);
+
+            // A different key does not wait.
+            assertEquals(
+                "b1",
+                registry.execute(
+                    "b",
+                    new Callable<String>() {
+                        public String call() {
+                            return "b" + callCount.incrementAndGet();
+                        }
+                    }));
+            release.countDown();
+            for (Future<String> future : futures) {
+                assertEquals("a2", future.get());
+            }
+            assertEquals(2, callCount.get());
+            assertEquals(0, registry.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that if a computation fails, its thread gets the error but
+     * threads that were waiting for it compute the result themselves.
+     */
+    public void testFailure() throws Exception {
+        final InFlightRegistry<String, String> registry =
+            new InFlightRegistry<String, String>();
+        final AtomicInteger callCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> failing =
+                executor.submit(
+                    execute(registry, "a", callCount, release, true));
+            awaitSize(registry, 1);
+            final Future<String> waiting =
+                executor.submit(
+                    execute(registry, "a", callCount, release, false));
+            Thread.sleep(200);
+            release.countDown();
+            try {
+                final String s = failing.get();
+                fail("expected error, got " + s);
+            } catch (ExecutionException e) {
+                assertEquals("failed 1", e.getCause().getMessage());
+            }
+            assertEquals("a2", waiting.get());
+            assertEquals(0, registry.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a computation that requests its own key, in the same thread,
+     * performs the computation again rather than waiting for itself.
+     */
+    public void testReentrant() {
+        final InFlightRegistry<String, String> registry =
+            new InFlightRegistry<String, String>();
+        final AtomicInteger callCount = new AtomicInteger();
+        final String s =
+            registry.execute(
+                "a",
+                new Callable<String>() {
+                    public String call() {
+                        final int n = callCount.incrementAndGet();
+                        if (n > 1) {
+                            return "a" + n;
+                        }
+                        return registry.execute("a", this) + "," + n;
+                    }
+                });
+        assertEquals("a2,1", s);
+        assertEquals(0, registry.size());
+    }
+
+    private static Callable<String> execute(
+        final InFlightRegistry<String, String> registry,
+        final String key,
+        final AtomicInteger callCount,
+        final CountDownLatch release,
+        final boolean fail)
+    {
+        return new Callable<String>() {
+            public String call() {
+                return registry.execute(
+                    key,
+                    new Callable<String>() {
+                        public String call() throws Exception {
+                            release.await();
+                            final int n = callCount.incrementAndGet();
+                            if (fail) {
+                                throw new RuntimeException("failed " + n);
+                            }
+                            return key + n;
+                        }
+                    });
+            }
+        };
+    }
+
+    private static void awaitSize(
+        InFlightRegistry<String, String> registry,
+        int size)
+        throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (registry.size() != size) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
+
+// End InFlightRegistryTest.java